@@ -1,5 +1,7 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
@@ -7,9 +9,13 @@ import naming.NamingServer;
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively. It takes one optional argument: a directory in which the
+    naming server keeps a journal of its directory tree and of the storage
+    servers registered with it. If the directory already holds a journal, the
+    tree and the storage servers are restored from it. Without the argument,
+    the tree is kept only in memory, and lost when the naming server stops.
  */
 public class NamingServerApp extends ServerApplication
 {
@@ -32,17 +38,23 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
+        @throws BadUsageException If there is more than one command line
+                                  argument.
+        @throws IOException If the journal cannot be created or read.
         @throws RMIException If the naming server cannot be started.
      */
     @Override
     protected void startServer(String[] arguments)
-        throws BadUsageException, RMIException
+        throws BadUsageException, IOException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("naming server expects no arguments");
+        if(arguments.length > 1)
+            throw new BadUsageException("arguments: [journal-directory]");
+
+        if(arguments.length == 0)
+            server = new StoppingNamingServer();
+        else
+            server = new StoppingNamingServer(new File(arguments[0]));
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +68,18 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates a naming server which keeps its tree only in memory. */
+        StoppingNamingServer()
+        {
+        }
+
+        /** Creates a naming server which keeps a journal in the given
+            directory. */
+        StoppingNamingServer(File directory) throws IOException
+        {
+            super(directory);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -0,0 +1,415 @@
+package build;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+
+/** Generates stub and skeleton classes for remote interfaces.
+
+    <p>
+    This annotation processor is run by <code>javac</code> over the project's
+    sources. For every interface <code>p.I</code> marked with
+    <code>rmi.RemoteInterface</code>, it writes the source of two classes in
+    the package <code>p</code>:
+    <ul>
+    <li><code>I_Stub</code>, which extends <code>rmi.GeneratedStub</code> and
+        implements each method of the interface by making the remote call
+        through <code>GeneratedStub.invoke</code>, rethrowing the exceptions
+        the method declares.</li>
+    <li><code>I_Skeleton</code>, which extends
+        <code>rmi.GeneratedSkeleton</code> and calls the methods of a server
+        object with a <code>switch</code> over their positions.</li>
+    </ul>
+    The names of nested interfaces are joined with underscores:
+    <code>p.A.I</code> gives <code>p.A_I_Stub</code>. Generic interfaces and
+    interfaces with generic methods are left to the reflective
+    implementation, with a note.
+
+    <p>
+    The processor refers to the <code>rmi</code> package only by name, so it
+    can be compiled on its own, before the rest of the project.
+ */
+@SupportedAnnotationTypes("rmi.RemoteInterface")
+public class RemoteProcessor extends AbstractProcessor
+{
+    private static final String RMI_EXCEPTION = "rmi.RMIException";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion()
+    {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations,
+                           RoundEnvironment round)
+    {
+        for (TypeElement annotation : annotations)
+        {
+            for (Element element : round.getElementsAnnotatedWith(annotation))
+            {
+                if (element.getKind() != ElementKind.INTERFACE)
+                {
+                    error(element, "RemoteInterface may only mark an interface");
+                    continue;
+                }
+
+                TypeElement type = (TypeElement) element;
+                List<ExecutableElement> methods = remoteMethods(type);
+                if (methods != null)
+                {
+                    generate(type, methods);
+                }
+            }
+        }
+        return true;
+    }
+
+    /** Returns the methods of a remote interface, or <code>null</code> if no
+        classes can be generated for it. */
+    private List<ExecutableElement> remoteMethods(TypeElement type)
+    {
+        if (!type.getTypeParameters().isEmpty())
+        {
+            note(type, "generic remote interface left to reflection");
+            return null;
+        }
+
+        List<ExecutableElement> methods = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(
+                 processingEnv.getElementUtils().getAllMembers(type)))
+        {
+            Element owner = method.getEnclosingElement();
+            if (owner.getKind() != ElementKind.INTERFACE ||
+                method.getModifiers().contains(Modifier.STATIC) ||
+                method.getModifiers().contains(Modifier.PRIVATE))
+            {
+                continue;
+            }
+
+            if (!method.getTypeParameters().isEmpty())
+            {
+                note(type, "generic method " + method.getSimpleName() +
+                     " left to reflection");
+                return null;
+            }
+
+            if (!throwsRMIException(method))
+            {
+                error(method, "remote method does not throw " + RMI_EXCEPTION);
+                return null;
+            }
+
+            methods.add(method);
+        }
+        return methods;
+    }
+
+    private boolean throwsRMIException(ExecutableElement method)
+    {
+        for (TypeMirror thrown : method.getThrownTypes())
+        {
+            if (thrown.toString().equals(RMI_EXCEPTION))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void generate(TypeElement type, List<ExecutableElement> methods)
+    {
+        String packageName = packageOf(type).getQualifiedName().toString();
+        String binaryName =
+            processingEnv.getElementUtils().getBinaryName(type).toString();
+        String baseName = packageName.isEmpty() ?
+            binaryName : binaryName.substring(packageName.length() + 1);
+        baseName = baseName.replace('$', '_');
+
+        try
+        {
+            writeStub(type, packageName, baseName + "_Stub", methods);
+            writeSkeleton(type, packageName, baseName + "_Skeleton", methods);
+        }
+        catch (IOException e)
+        {
+            error(type, "unable to write generated class: " + e.getMessage());
+        }
+    }
+
+    private void writeStub(TypeElement type, String packageName, String name,
+                           List<ExecutableElement> methods) throws IOException
+    {
+        String interfaceName = type.getQualifiedName().toString();
+        PrintWriter out = open(type, packageName, name);
+
+        out.println("/** Stub for <code>" + interfaceName + "</code>, generated by");
+        out.println("    <code>build.RemoteProcessor</code>. */");
+        out.println("@SuppressWarnings(\"unchecked\")");
+        out.println("public final class " + name + " extends rmi.GeneratedStub");
+        out.println("    implements " + interfaceName);
+        out.println("{");
+
+        for (int i = 0; i < methods.size(); i++)
+        {
+            ExecutableElement method = methods.get(i);
+            StringBuilder types = new StringBuilder();
+            for (VariableElement parameter : method.getParameters())
+            {
+                types.append(", ").append(erasure(parameter.asType())).append(".class");
+            }
+            out.println("    private static final java.lang.reflect.Method m" + i + " =");
+            out.println("        method(" + interfaceName + ".class, \"" +
+                        method.getSimpleName() + "\"" + types + ");");
+        }
+
+        for (int i = 0; i < methods.size(); i++)
+        {
+            ExecutableElement method = methods.get(i);
+            TypeMirror result = method.getReturnType();
+
+            out.println();
+            out.println("    @Override");
+            out.println("    public " + result + " " + method.getSimpleName() + "(" +
+                        parameters(method) + ")");
+            out.println("        throws " + thrown(method));
+            out.println("    {");
+            out.println("        try");
+            out.println("        {");
+
+            String call = "invoke(m" + i + ", " + arguments(method) + ")";
+            if (result.getKind() == TypeKind.VOID)
+            {
+                out.println("            " + call + ";");
+            }
+            else
+            {
+                out.println("            return " + cast(result) + call + ";");
+            }
+
+            out.println("        }");
+            out.println("        catch (java.lang.RuntimeException | java.lang.Error e)");
+            out.println("        {");
+            out.println("            throw e;");
+            out.println("        }");
+            out.println("        catch (java.lang.Throwable t)");
+            out.println("        {");
+            for (TypeMirror exception : method.getThrownTypes())
+            {
+                out.println("            if (t instanceof " + exception + ")");
+                out.println("            {");
+                out.println("                throw (" + exception + ") t;");
+                out.println("            }");
+            }
+            out.println("            throw new java.lang.reflect.UndeclaredThrowableException(t);");
+            out.println("        }");
+            out.println("    }");
+        }
+
+        out.println("}");
+        out.close();
+    }
+
+    private void writeSkeleton(TypeElement type, String packageName,
+                               String name, List<ExecutableElement> methods)
+        throws IOException
+    {
+        String interfaceName = type.getQualifiedName().toString();
+        PrintWriter out = open(type, packageName, name);
+
+        out.println("/** Skeleton dispatcher for <code>" + interfaceName + "</code>,");
+        out.println("    generated by <code>build.RemoteProcessor</code>. */");
+        out.println("public final class " + name + " extends rmi.GeneratedSkeleton");
+        out.println("{");
+        out.println("    @Override");
+        out.println("    protected java.lang.reflect.Method[] methods()");
+        out.println("    {");
+        out.println("        return new java.lang.reflect.Method[]");
+        out.println("        {");
+        for (ExecutableElement method : methods)
+        {
+            StringBuilder types = new StringBuilder();
+            for (VariableElement parameter : method.getParameters())
+            {
+                types.append(", ").append(erasure(parameter.asType())).append(".class");
+            }
+            out.println("            method(" + interfaceName + ".class, \"" +
+                        method.getSimpleName() + "\"" + types + "),");
+        }
+        out.println("        };");
+        out.println("    }");
+        out.println();
+        out.println("    @Override");
+        out.println("    @SuppressWarnings(\"unchecked\")");
+        out.println("    protected java.lang.Object invoke(java.lang.Object server, int index,");
+        out.println("                                      java.lang.Object[] args)");
+        out.println("        throws java.lang.Throwable");
+        out.println("    {");
+        out.println("        " + interfaceName + " target = (" + interfaceName + ") server;");
+        out.println();
+        out.println("        switch (index)");
+        out.println("        {");
+
+        for (int i = 0; i < methods.size(); i++)
+        {
+            ExecutableElement method = methods.get(i);
+            StringBuilder call = new StringBuilder();
+            call.append("target.").append(method.getSimpleName()).append("(");
+            List<? extends VariableElement> parameters = method.getParameters();
+            for (int p = 0; p < parameters.size(); p++)
+            {
+                if (p > 0)
+                {
+                    call.append(", ");
+                }
+                call.append(cast(parameters.get(p).asType())).append("args[")
+                    .append(p).append("]");
+            }
+            call.append(")");
+
+            out.println("            case " + i + ":");
+            if (method.getReturnType().getKind() == TypeKind.VOID)
+            {
+                out.println("                " + call + ";");
+                out.println("                return null;");
+            }
+            else
+            {
+                out.println("                return " + call + ";");
+            }
+        }
+
+        out.println("            default:");
+        out.println("                throw new java.lang.IllegalArgumentException(");
+        out.println("                    \"No method \" + index);");
+        out.println("        }");
+        out.println("    }");
+        out.println("}");
+        out.close();
+    }
+
+    /** Opens a generated source file and writes its package declaration. */
+    private PrintWriter open(TypeElement origin, String packageName, String name)
+        throws IOException
+    {
+        String qualified = packageName.isEmpty() ? name : packageName + "." + name;
+        Writer writer = processingEnv.getFiler()
+            .createSourceFile(qualified, origin).openWriter();
+        PrintWriter out = new PrintWriter(writer);
+
+        if (!packageName.isEmpty())
+        {
+            out.println("package " + packageName + ";");
+            out.println();
+        }
+        return out;
+    }
+
+    private static String parameters(ExecutableElement method)
+    {
+        StringBuilder result = new StringBuilder();
+        List<? extends VariableElement> parameters = method.getParameters();
+        for (int p = 0; p < parameters.size(); p++)
+        {
+            if (p > 0)
+            {
+                result.append(", ");
+            }
+            result.append(parameters.get(p).asType()).append(" a").append(p);
+        }
+        return result.toString();
+    }
+
+    private static String arguments(ExecutableElement method)
+    {
+        int count = method.getParameters().size();
+        if (count == 0)
+        {
+            return "null";
+        }
+
+        StringBuilder result = new StringBuilder("new java.lang.Object[] { ");
+        for (int p = 0; p < count; p++)
+        {
+            if (p > 0)
+            {
+                result.append(", ");
+            }
+            result.append("a").append(p);
+        }
+        return result.append(" }").toString();
+    }
+
+    private static String thrown(ExecutableElement method)
+    {
+        StringBuilder result = new StringBuilder();
+        for (TypeMirror exception : method.getThrownTypes())
+        {
+            if (result.length() > 0)
+            {
+                result.append(", ");
+            }
+            result.append(exception);
+        }
+        return result.toString();
+    }
+
+    /** Returns the cast of an <code>Object</code> to the given type, unboxing
+        primitives. */
+    private String cast(TypeMirror type)
+    {
+        if (type.getKind().isPrimitive())
+        {
+            return "(" + type + ") (" +
+                processingEnv.getTypeUtils()
+                    .boxedClass((javax.lang.model.type.PrimitiveType) type)
+                    .getQualifiedName() + ") ";
+        }
+        return "(" + type + ") ";
+    }
+
+    private String erasure(TypeMirror type)
+    {
+        return processingEnv.getTypeUtils().erasure(type).toString();
+    }
+
+    private static PackageElement packageOf(Element element)
+    {
+        while (element.getKind() != ElementKind.PACKAGE)
+        {
+            element = element.getEnclosingElement();
+        }
+        return (PackageElement) element;
+    }
+
+    private void error(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message,
+                                                 element);
+    }
+
+    private void note(Element element, String message)
+    {
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.NOTE, message,
+                                                 element);
+    }
+}
@@ -37,6 +37,13 @@ public class DFSInputStream extends InputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Address of the storage server's bulk data channel, or
+        <code>null</code> if it has none. Looked up on the first large
+        read. */
+    private InetSocketAddress bulk_address = null;
+    /** Indicates that <code>bulk_address</code> has been looked up. */
+    private boolean         bulk_checked = false;
+
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
         naming server.
 
@@ -218,6 +225,26 @@ public class DFSInputStream extends InputStream
         if(read_length > (length - offset))
             read_length = (int)(length - offset);
 
+        // Large reads go over the storage server's bulk data channel, which
+        // delivers the bytes directly into the caller's buffer.
+        InetSocketAddress   bulk = bulkAddress(read_length);
+
+        if(bulk != null)
+        {
+            try
+            {
+                BulkChannel.read(bulk, path, offset, buffer, buffer_offset,
+                                 read_length);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+
+            offset += read_length;
+            return read_length;
+        }
+
         // Read bytes from file and advance the stream offset if the request
         // succeeds.
         byte[]      result;
@@ -238,8 +265,7 @@ public class DFSInputStream extends InputStream
 
         // Copy bytes from the buffer that was received over the network into
         // the buffer provided by the caller.
-        for(int index = 0; index < read_length; ++index)
-            buffer[buffer_offset + index] = result[index];
+        System.arraycopy(result, 0, buffer, buffer_offset, read_length);
 
         // Return the number of bytes read.
         return read_length;
@@ -325,4 +351,35 @@ public class DFSInputStream extends InputStream
 
         return (int)(length - offset);
     }
+
+    /** Returns the address of the bulk data channel to use for a transfer of
+        the given size, or <code>null</code> if the transfer should be made
+        with an ordinary call.
+
+        @throws IOException If the storage server cannot be contacted.
+     */
+    private InetSocketAddress bulkAddress(int transfer_length)
+        throws IOException
+    {
+        int         threshold = BulkChannel.threshold();
+
+        if(threshold < 0 || transfer_length < threshold)
+            return null;
+
+        if(!bulk_checked)
+        {
+            try
+            {
+                bulk_address = storage_server.bulkAddress();
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            bulk_checked = true;
+        }
+
+        return bulk_address;
+    }
 }
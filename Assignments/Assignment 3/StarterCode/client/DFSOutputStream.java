@@ -37,6 +37,13 @@ public class DFSOutputStream extends OutputStream
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
 
+    /** Address of the storage server's bulk data channel, or
+        <code>null</code> if it has none. Looked up on the first large
+        write. */
+    private InetSocketAddress bulk_address = null;
+    /** Indicates that <code>bulk_address</code> has been looked up. */
+    private boolean         bulk_checked = false;
+
     /** Creates a <code>DFSOutputStream</code> for a file listed by the given
         naming server.
 
@@ -191,6 +198,32 @@ public class DFSOutputStream extends OutputStream
         if(write_length == 0)
             return;
 
+        // Large writes go over the storage server's bulk data channel, which
+        // sends the bytes directly from the caller's buffer.
+        InetSocketAddress   bulk = bulkAddress(write_length);
+
+        if(bulk != null)
+        {
+            try
+            {
+                BulkChannel.write(bulk, path, offset, buffer, buffer_offset,
+                                  write_length);
+            }
+            catch(FileNotFoundException e)
+            {
+                throw new IOException("file missing on storage server", e);
+            }
+            finally
+            {
+                // The write bypassed the stub, so the stub cannot tell that
+                // the size it may have kept is out of date.
+                Stub.invalidateCache(storage_server);
+            }
+
+            offset += write_length;
+            return;
+        }
+
         // Create the data buffer that will be sent over the network. If the
         // buffer offset is zero and all the bytes in the user-provided buffer
         // are to be written, the user-provided buffer will be serialized
@@ -205,8 +238,7 @@ public class DFSOutputStream extends OutputStream
         {
             data = new byte[write_length];
 
-            for(int index = 0; index < write_length; ++index)
-                data[index] = buffer[buffer_offset + index];
+            System.arraycopy(buffer, buffer_offset, data, 0, write_length);
         }
 
         // Send the write request to the server. If the write request succeds,
@@ -261,4 +293,35 @@ public class DFSOutputStream extends OutputStream
 
         offset += count;
     }
+
+    /** Returns the address of the bulk data channel to use for a transfer of
+        the given size, or <code>null</code> if the transfer should be made
+        with an ordinary call.
+
+        @throws IOException If the storage server cannot be contacted.
+     */
+    private InetSocketAddress bulkAddress(int transfer_length)
+        throws IOException
+    {
+        int         threshold = BulkChannel.threshold();
+
+        if(threshold < 0 || transfer_length < threshold)
+            return null;
+
+        if(!bulk_checked)
+        {
+            try
+            {
+                bulk_address = storage_server.bulkAddress();
+            }
+            catch(RMIException e)
+            {
+                throw new IOException("unable to contact storage server", e);
+            }
+
+            bulk_checked = true;
+        }
+
+        return bulk_address;
+    }
 }
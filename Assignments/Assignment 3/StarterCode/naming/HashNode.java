@@ -0,0 +1,130 @@
+package naming;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/** Entry of the directory tree held by a <code>HashTree</code>.
+
+    <p>
+    Nodes are kept small, since a tree holds one for every file. A node holds
+    its name, encoded and shared through the tree's <code>Names</code>, the
+    directory holding it, and the hash code of its path, by which it is found
+    both in that directory and in the tree's index. A file refers to the
+    storage servers hosting it by their identifiers, in an array shared by
+    every file hosted by the same servers. A file node thus takes 32 bytes
+    with compressed references, besides its slots in the tables which hold
+    it.
+ */
+abstract class HashNode
+{
+    private static final byte[] ROOT_NAME = new byte[0];
+
+    /** Name of the entry, encoded by <code>Names</code>. */
+    final byte[] name;
+    /** Directory holding the entry, or <code>null</code> for the root. */
+    final Directory parent;
+    /** Hash code of the path of the entry, equal to that of the
+        <code>Path</code> naming it. */
+    final int hash;
+
+    private HashNode(byte[] name, Directory parent, int hash)
+    {
+        this.name = name;
+        this.parent = parent;
+        this.hash = hash;
+    }
+
+    abstract boolean isDirectory();
+
+    /** Returns the hash code of the path of the entry with the given name in
+        a directory.
+
+        <p>
+        The hash code is that of the path's string, as computed by
+        <code>String.hashCode</code>, continued from that of the directory's
+        path, so that no string has to be built.
+     */
+    static int hash(Directory parent, String name)
+    {
+        // Below the root, the path of the directory is followed by a
+        // separator. The root's own path is the separator.
+        int hash = parent.parent == null ? 0 : parent.hash;
+        hash = 31 * hash + '/';
+
+        for (int index = 0; index < name.length(); index++)
+        {
+            hash = 31 * hash + name.charAt(index);
+        }
+        return hash;
+    }
+
+    /** Directory in the tree. */
+    static final class Directory extends HashNode
+    {
+        /** Entries of the directory. */
+        final NodeTable children = new NodeTable();
+        /** Lock of the directory's entries, which changes take and lookups
+            do not. */
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /** Creates a root directory. */
+        Directory()
+        {
+            super(ROOT_NAME, null, "/".hashCode());
+        }
+
+        Directory(byte[] name, Directory parent, int hash)
+        {
+            super(name, parent, hash);
+        }
+
+        @Override
+        boolean isDirectory()
+        {
+            return true;
+        }
+    }
+
+    /** File in the tree. */
+    static final class File extends HashNode
+    {
+        /** Identifiers of the storage servers hosting the file. The array is
+            shared, and is not changed. */
+        final int[] servers;
+        /** Number of times a storage server has been chosen for the file.
+            Updated without synchronization, since a lost update only changes
+            which server is chosen next. */
+        private int turn = 0;
+
+        File(byte[] name, Directory parent, int hash, int[] servers)
+        {
+            super(name, parent, hash);
+            this.servers = servers;
+        }
+
+        @Override
+        boolean isDirectory()
+        {
+            return false;
+        }
+
+        /** Returns the identifier of the storage server which created the
+            file. */
+        int server()
+        {
+            return servers[0];
+        }
+
+        /** Returns the identifiers of the storage servers hosting the file in
+            turn. */
+        int nextServer()
+        {
+            if (servers.length == 1)
+            {
+                return servers[0];
+            }
+
+            int next = turn++;
+            return servers[(next & Integer.MAX_VALUE) % servers.length];
+        }
+    }
+}
@@ -3,345 +3,798 @@ package naming;
 import common.Path;
 import rmi.RMIException;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.*;
-
-
-enum Operation
-{
-    CREATEDIR, CREATEFILE, DELETE, ISDIR
-}
-
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.locks.Lock;
+
+
+/** Directory tree of the naming server.
+
+    <p>
+    The tree is used by every thread serving the naming server's skeletons at
+    once. Each directory keeps its entries in a <code>NodeTable</code>, and
+    every node is also indexed by its full path in a <code>PathIndex</code>.
+    Lookups (<code>isDirectory</code>, <code>list</code> and
+    <code>getStorage</code>) find their node with one probe of the index,
+    however deep the path, and take no lock. A lookup sees every change which
+    completed before it began.
+
+    <p>
+    Changes take locks along their path, always from the root down, so they
+    cannot deadlock. A change takes the read locks of the directories above
+    the entry it adds or removes, and the write lock of the directory which
+    holds the entry. Changes in different directories thus run in parallel,
+    while a directory cannot be removed during a change below it. Each change
+    updates the index under the same locks: an entry is indexed when it is
+    added, and an entry removed from the tree is taken out of the index with
+    everything below it. The calls to storage servers which create or delete a
+    file are made under the same locks, so that the storage servers see the
+    changes to one path in the order in which the tree made them.
+
+    <p>
+    A tree may record its changes in a <code>Journal</code>. A change is
+    appended to the journal under its locks, so the journal holds the changes
+    in the order in which they were made, and the change waits for its record
+    to be durable once the locks have been released.
+
+    <p>
+    The tree is built to hold millions of files. Nodes are small
+    <code>HashNode</code> objects without strings: names are encoded and
+    shared through a <code>Names</code> dictionary, files name their storage
+    servers by identifier through the tree's table of servers, and the
+    tables holding nodes start with two slots and grow as needed. A file
+    takes about a hundred bytes with a name of its own, and less with a name
+    repeated in other directories, as measured by
+    <code>naming.TreeFootprint</code> among the unit test classes.
+ */
 public class HashTree
 {
-    public HashNode root;
-    private LinkedList<ServerStub> serverStubList;
+    private final HashNode.Directory root = new HashNode.Directory();
+    /** Every node of the tree, by path. */
+    private final PathIndex index = new PathIndex();
+    /** Names of the nodes of the tree. */
+    private final Names names = new Names();
+    /** Storage servers hosting files, by identifier. Copied when a server is
+        added, so that it can be read without locking. */
+    private volatile ServerStub[] servers = new ServerStub[0];
+    /** Identifiers of single servers, by identifier, each shared by every
+        file hosted by that server alone. Copied when a server is added. */
+    private volatile int[][] hosts = new int[0][];
+    /** Journal of the changes to the tree, or <code>null</code> if they are
+        not recorded. */
+    private final Journal journal;
+
+
+    public HashTree ()
+    {
+        this(null);
+    }
 
 
-    public HashTree (LinkedList<ServerStub> serverStubList)
+    public HashTree (Journal journal)
     {
-        this.serverStubList = serverStubList;
-        this.root = new HashNode();
+        this.journal = journal;
+        index.add(root);
     }
 
 
     public String[] list (Path directory) throws FileNotFoundException
     {
+        HashNode node = find(directory);
 
-        Iterator<String> iter = directory.iterator();
-        String fileName;
-        HashNode subRoot = root;
-
-        while (iter.hasNext())
+        if (node == null)
         {
-            fileName = iter.next();
-            if(!subRoot.hasDirectory(fileName))
-                throw new FileNotFoundException();
-
-            subRoot = subRoot.getChild(fileName);
+            throw new FileNotFoundException("Directory not found");
         }
-
-        if (subRoot.hashtable == null)
+        if (!node.isDirectory())
         {
             throw new FileNotFoundException("File is not a directory");
         }
 
-        String[] fileList = new String[subRoot.hashtable.keySet().size()];
-        fileList = subRoot.hashtable.keySet().toArray(fileList);
-
-        return fileList;
+        HashNode[] children = ((HashNode.Directory) node).children.nodes();
+        String[] list = new String[children.length];
+        for (int i = 0; i < children.length; i++)
+        {
+            list[i] = Names.decode(children[i].name);
+        }
+        return list;
     }
 
 
-    public boolean createDirectory (Path directory) throws FileNotFoundException
+    public boolean createDirectory (Path directory) throws FileNotFoundException, RMIException
     {
-        Iterator<String> iter = directory.iterator();
-        boolean flag = OperationHelper(Operation.CREATEDIR, root, iter, null, directory);
-        return flag;
+        if (directory.isRoot())
+        {
+            return false;
+        }
+
+        long record = 0;
+        try (Locked locked = lockParent(directory, false))
+        {
+            if (child(locked.parent, directory.last()) != null)
+            {
+                return false;
+            }
+
+            add(locked.parent, newDirectory(locked.parent, directory.last()));
+            if (journal != null)
+            {
+                record = journal.directory(directory);
+            }
+        }
+
+        sync(record);
+        return true;
     }
 
 
-    public boolean createFile (Path file, ServerStub serverStub) throws FileNotFoundException
+    /** Creates a file hosted by the given storage server, in the tree and on
+        the storage server.
+
+        @return <code>true</code> if the file is created, <code>false</code>
+                if the path exists or the storage server did not create it.
+        @throws FileNotFoundException If the parent directory does not exist.
+        @throws RMIException If the storage server cannot be reached, in
+                             which case the file is not created, or if the
+                             creation cannot be recorded in the journal.
+     */
+    public boolean createFile (Path file, ServerStub serverStub) throws FileNotFoundException, RMIException
     {
+        if (file.isRoot())
+        {
+            return false;
+        }
+
+        long record = 0;
+        try (Locked locked = lockParent(file, false))
+        {
+            // The write lock of the parent keeps the name free while the
+            // storage server creates the file, which only then appears in
+            // the tree.
+            if (child(locked.parent, file.last()) != null ||
+                !serverStub.commandStub.create(file))
+            {
+                return false;
+            }
 
-        Iterator<String> iter = file.iterator();
-        boolean flag = OperationHelper(Operation.CREATEFILE, root, iter, serverStub, file);
+            add(locked.parent, newFile(locked.parent, file.last(), serverStub));
+            if (journal != null)
+            {
+                record = journal.file(file, serverStub.id);
+            }
+        }
 
-        return flag;
+        sync(record);
+        return true;
     }
 
 
+    /** Adds a file hosted by a registering storage server, with any missing
+        directories above it.
+
+        <p>
+        The addition is appended to the journal, if there is one, but the
+        caller must <code>sync</code> the tree before relying on it.
+
+        @return <code>true</code> if the file is added, was already hosted
+                by the storage server, or is hosted by a server restored from
+                the journal which has not registered again;
+                <code>false</code> if the path, or a file on the way to it,
+                already exists otherwise.
+     */
     public boolean createFileRecursive(Path path, ServerStub serverStub)
     {
-        Iterator<String> iter = path.iterator();
-        HashNode hashNode = root;
-        String currentPath = iter.next();
-        boolean doesNotExists = true;
+        if (path.isRoot())
+        {
+            return false;
+        }
 
-        while (iter.hasNext())
+        try (Locked locked = lockParent(path, true))
         {
-            if (hashNode.hasFile(currentPath))
+            if (locked.parent == null)
+            {
+                return false;
+            }
+
+            HashNode existing = child(locked.parent, path.last());
+            if (existing != null)
             {
-                doesNotExists = false;
-                break;
+                if (existing.isDirectory())
+                {
+                    return false;
+                }
+
+                // A storage server registering again after the naming server
+                // restarted keeps the files it was known to host. A file
+                // known to be hosted by a server which has not registered
+                // again is not deleted from this one either: it may be the
+                // same server, restarted on other ports.
+                ServerStub host = servers[((HashNode.File) existing).server()];
+                return host == serverStub || host.restored;
             }
 
-            if (!hashNode.hasDirectory(currentPath))
+            add(locked.parent, newFile(locked.parent, path.last(), serverStub));
+            if (journal != null)
             {
-                hashNode.create(currentPath, null);
+                journal.file(path, serverStub.id);
             }
+            return true;
+        }
+        catch (FileNotFoundException e)
+        {
+            // Missing directories are created, so this is not raised.
+            return false;
+        }
+    }
 
-            hashNode = hashNode.getChild(currentPath);
-            currentPath = iter.next();
+
+    public boolean delete (Path path) throws FileNotFoundException, RMIException
+    {
+        if (path.isRoot())
+        {
+            return false;
         }
 
-        if (doesNotExists)
+        long record = 0;
+        try (Locked locked = lockParent(path, false))
         {
-            if (hashNode.hasDirectory(currentPath) || hashNode.hasFile(currentPath))
+            HashNode child = child(locked.parent, path.last());
+            if (child == null)
             {
-                doesNotExists = false;
+                throw new FileNotFoundException("File not found in the server stubs available");
             }
-            else
+
+            // Send the delete command to every storage server at once, then
+            // wait for all of them.
+            ArrayList<CompletableFuture<Boolean>> pending = new ArrayList<>();
+            for (ServerStub serverStub : getAllStubs(child))
             {
-                hashNode.create(currentPath, serverStub);
+                pending.add(serverStub.deleteAsync(path));
             }
-        }
 
+            for (CompletableFuture<Boolean> result : pending)
+            {
+                try
+                {
+                    result.join();
+                }
+                catch (CompletionException e)
+                {
+                    e.getCause().printStackTrace();
+                }
+            }
 
-        return doesNotExists;
+            unindex(child);
+            locked.parent.children.remove(child);
+            if (journal != null)
+            {
+                record = journal.delete(path);
+            }
+        }
 
+        sync(record);
+        return true;
     }
 
 
-    public boolean delete (Path path) throws FileNotFoundException
-    {
+    /** Removes every file created by a storage server which has left, without
+        calling the server, and waits until the removals are recorded. The
+        directories above the files are kept.
 
-        Iterator<String> iter = path.iterator();
-        boolean flag = OperationHelper(Operation.DELETE, root, iter, null, path);
+        @return The number of files removed.
+        @throws RMIException If the removals cannot be recorded.
+     */
+    int removeServer (ServerStub serverStub) throws RMIException
+    {
+        ArrayList<Path> hosted = new ArrayList<>();
+        filesOf(root, new Path(), serverStub.id, hosted);
 
-        if (!flag)
+        int removed = 0;
+        for (Path path : hosted)
         {
-            throw new FileNotFoundException("File not found in the server stubs available");
+            try (Locked locked = lockParent(path, false))
+            {
+                // The file may have been deleted or replaced since it was
+                // found.
+                HashNode child = child(locked.parent, path.last());
+                if (child != null && !child.isDirectory() &&
+                    ((HashNode.File) child).server() == serverStub.id)
+                {
+                    unindex(child);
+                    locked.parent.children.remove(child);
+                    if (journal != null)
+                    {
+                        journal.delete(path);
+                    }
+                    removed++;
+                }
+            }
+            catch (FileNotFoundException e)
+            {
+                // A directory above the file was deleted, and the file with
+                // it.
+            }
         }
 
-        return flag;
+        sync();
+        return removed;
     }
 
 
-    public boolean isDirectory (Path path) throws FileNotFoundException
+    /** Returns whether the tree holds a file created by a storage server.
+        Walks the whole tree. */
+    boolean hostsFiles (ServerStub serverStub)
     {
+        return !files(serverStub).isEmpty();
+    }
 
-        Iterator<String> iter = path.iterator();
-        boolean flag = OperationHelper(Operation.ISDIR, root, iter, null, path);
 
-        return flag;
+    /** Returns the paths of the files created by a storage server. Walks the
+        whole tree, without locking it. */
+    List<Path> files (ServerStub serverStub)
+    {
+        ArrayList<Path> hosted = new ArrayList<>();
+        filesOf(root, new Path(), serverStub.id, hosted);
+        return hosted;
     }
 
-    public boolean OperationHelper(Operation mode, HashNode root, Iterator<String> iter, ServerStub serverStub, Path path) throws FileNotFoundException
+
+    /** Adds the paths of the files below a directory which were created by
+        the storage server with the given identifier to a list. Takes no
+        lock. */
+    private void filesOf (HashNode.Directory directory, Path path, int id, List<Path> files)
     {
-        if(!iter.hasNext())
+        for (HashNode node : directory.children.nodes())
         {
-            if (mode == Operation.CREATEDIR || mode == Operation.CREATEFILE || mode == Operation.DELETE)
+            Path child = new Path(path, Names.decode(node.name));
+            if (node.isDirectory())
             {
-                return false;
+                filesOf((HashNode.Directory) node, child, id, files);
             }
+            else if (((HashNode.File) node).server() == id)
+            {
+                files.add(child);
+            }
+        }
+    }
 
-            if (mode == Operation.ISDIR)
-                return true;
+
+    /** Waits until every change appended to the journal so far is durable.
+
+        @throws RMIException If the changes cannot be recorded.
+     */
+    public void sync () throws RMIException
+    {
+        if (journal != null)
+        {
+            sync(journal.last());
         }
+    }
 
-        String nextDir = iter.next();
 
-        if (iter.hasNext())
+    /** Waits until the given journal record is durable. Does nothing for
+        record zero, which a tree without a journal returns for every
+        change. */
+    private void sync (long record) throws RMIException
+    {
+        if (record == 0)
         {
-            return OperationHelper(mode, root.getChild(nextDir), iter, serverStub, path);
+            return;
         }
-        else
+
+        try
         {
-            if (mode == Operation.ISDIR)
-            {
-                if (root.hasDirectory(nextDir))
-                    return true;
-                if (root.hasFile(nextDir))
-                    return false;
+            journal.await(record);
+        }
+        catch (IOException e)
+        {
+            throw new RMIException("Unable to record change in journal", e);
+        }
+    }
+
+
+    /** Writes the tree to a snapshot, with each file's storage server given
+        by its identifier. The tree may change while it is written. */
+    void write (DataOutputStream out) throws IOException
+    {
+        write(out, root);
+    }
+
+
+    private void write (DataOutputStream out, HashNode.Directory directory) throws IOException
+    {
+        // The entries are copied first, so that their number matches the
+        // entries written.
+        HashNode[] entries = directory.children.nodes();
+        out.writeInt(entries.length);
 
-                throw new FileNotFoundException("File not found in the directory in any storage server");
+        for (HashNode node : entries)
+        {
+            out.writeUTF(Names.decode(node.name));
+            out.writeBoolean(node.isDirectory());
+            if (node.isDirectory())
+            {
+                write(out, (HashNode.Directory) node);
             }
             else
             {
-                if (root.hasDirectory(nextDir) || root.hasFile(nextDir))
-                {
-                    if (mode == Operation.DELETE)
-                    {
-                        root.delete (nextDir, path);
-                        return true;
-                    }
-                    else
-                    {
-                        return false;
-                    }
-                }
-                else
-                {
-                    if (mode == Operation.DELETE)
-                    {
-                        return false;
-                    }
-                    else
-                    {
-                        root.create(nextDir, serverStub);
-                        return true;
-                    }
-                }
+                out.writeInt(((HashNode.File) node).server());
             }
         }
     }
 
 
-    public ServerStub getStorage (Path path) throws FileNotFoundException
+    /** Reads a snapshot written by <code>write</code> into an empty tree,
+        during recovery.
+
+        @param servers Storage servers by identifier, to which servers
+                       which are not yet known are added.
+     */
+    void read (DataInputStream in, Map<Integer, ServerStub> servers) throws IOException
+    {
+        read(in, root, servers);
+    }
+
+
+    private void read (DataInputStream in, HashNode.Directory directory,
+                       Map<Integer, ServerStub> servers) throws IOException
     {
-        Iterator<String> iter = path.iterator();
-        HashNode subRoot = root;
-        String name;
+        int count = in.readInt();
 
-        while (iter.hasNext())
+        for (int i = 0; i < count; i++)
         {
-            name = iter.next();
-            if (iter.hasNext())
+            String name = in.readUTF();
+
+            if (in.readBoolean())
             {
-                if (subRoot.hasDirectory(name))
-                {
-                    subRoot = subRoot.getChild(name);
-                }
-                else
-                {
-                    throw new FileNotFoundException("Directory is invalid");
-                }
+                HashNode.Directory child = newDirectory(directory, name);
+                add(directory, child);
+                read(in, child, servers);
             }
             else
             {
-                if (subRoot.hasFile(name))
-                {
-                    return subRoot.getFileStorage (name);
-                }
-                else
-                {
-                    throw new FileNotFoundException("File not found in the given directory");
-                }
+                add(directory, newFile(directory, name, ServerStub.restored(servers, in.readInt())));
             }
         }
+    }
+
+
+    /** Replays the creation of a directory during recovery. A directory which
+        already exists is kept with its contents. */
+    void restoreDirectory (Path path)
+    {
+        HashNode existing = index.get(path);
 
-        return null;
+        if (existing == null || !existing.isDirectory())
+        {
+            restore(path, null);
+        }
     }
 
 
+    /** Replays the creation of a file during recovery, replacing anything at
+        its path. */
+    void restoreFile (Path path, ServerStub serverStub)
+    {
+        restore(path, serverStub);
+    }
 
-    private class HashNode {
 
-        private int serverIndex = 0;
-        private LinkedList<ServerStub> serverStubList = null;
-        private Hashtable<String, HashNode> hashtable = null;
+    /** Replays a deletion during recovery. */
+    void restoreDelete (Path path)
+    {
+        HashNode node = index.get(path);
 
-        public HashNode()
+        if (node != null && !path.isRoot())
         {
-            hashtable = new Hashtable<>();
+            node.parent.children.remove(node);
+            unindex(node);
         }
+    }
+
 
+    /** Sets the node at a path during recovery, creating the missing
+        directories above it and replacing any file in their way. Replayed
+        changes set the state of their paths in this way, so that replaying a
+        change which a snapshot already holds has no further effect.
 
-        public HashNode (ServerStub serverStub)
+        @param serverStub Storage server hosting the file at the path, or
+                          <code>null</code> to set a directory there.
+     */
+    private void restore (Path path, ServerStub serverStub)
+    {
+        if (path.isRoot())
         {
-            this.serverStubList = new LinkedList<>();
-            this.serverStubList.add(serverStub);
+            return;
         }
 
+        HashNode.Directory directory = root;
 
-        public boolean hasDirectory (String rootDir)
+        for (String name : path.parent())
         {
-            HashNode node = this.hashtable.get(rootDir);
+            HashNode child = child(directory, name);
 
-            if (node != null && node.hashtable != null)
-                return true;
+            if (child == null || !child.isDirectory())
+            {
+                if (child != null)
+                {
+                    directory.children.remove(child);
+                    unindex(child);
+                }
+                child = newDirectory(directory, name);
+                add(directory, child);
+            }
+            directory = (HashNode.Directory) child;
+        }
 
-            return false;
+        HashNode previous = child(directory, path.last());
+        if (previous != null)
+        {
+            directory.children.remove(previous);
+            unindex(previous);
         }
 
+        add(directory, serverStub == null ? newDirectory(directory, path.last())
+                                          : newFile(directory, path.last(), serverStub));
+    }
 
-        public boolean hasFile (String filename)
-        {
-            HashNode hashNode = hashtable.get(filename);
 
-            if (hashNode != null && hashNode.serverStubList != null)
-                return true;
+    public boolean isDirectory (Path path) throws FileNotFoundException
+    {
+        HashNode node = find(path);
 
-            return false;
+        if (node == null)
+        {
+            throw new FileNotFoundException("File not found in the directory in any storage server");
         }
 
+        return node.isDirectory();
+    }
+
 
-        public HashNode getChild (String dir)
+    public ServerStub getStorage (Path path) throws FileNotFoundException
+    {
+        HashNode node = find(path);
+
+        if (node == null || node.isDirectory())
         {
-            return hashtable.get(dir);
+            throw new FileNotFoundException("File not found in the given directory");
         }
 
+        return servers[((HashNode.File) node).nextServer()];
+    }
+
 
-        public ServerStub getFileStorage(String filename)
-        {
-            HashNode hashNode = this.hashtable.get(filename);
-            hashNode.serverIndex++;
+    /** Returns the storage server which created the file at a path, or
+        <code>null</code> if there is no file at the path. Takes no lock. */
+    ServerStub host (Path path)
+    {
+        HashNode node = find(path);
 
-            return hashNode.serverStubList.get(hashNode.serverIndex % hashNode.serverStubList.size());
+        if (node == null || node.isDirectory())
+        {
+            return null;
         }
 
+        return servers[((HashNode.File) node).server()];
+    }
+
+
+    /** Returns the node at a path, or <code>null</code> if there is none.
+        Takes no lock. */
+    private HashNode find (Path path)
+    {
+        return index.get(path);
+    }
+
+
+    /** Returns the entry of a directory with the given name, or
+        <code>null</code> if there is none. */
+    private HashNode child (HashNode.Directory directory, String name)
+    {
+        return directory.children.get(HashNode.hash(directory, name), name);
+    }
+
 
-        public void create(String fileName, ServerStub serverStub)
+    private HashNode.Directory newDirectory (HashNode.Directory parent, String name)
+    {
+        return new HashNode.Directory(names.acquire(name), parent, HashNode.hash(parent, name));
+    }
+
+
+    private HashNode.File newFile (HashNode.Directory parent, String name, ServerStub serverStub)
+    {
+        return new HashNode.File(names.acquire(name), parent, HashNode.hash(parent, name),
+                                 hostedBy(serverStub));
+    }
+
+
+    /** Returns the identifiers of the storage servers hosting a file hosted
+        by the given server alone, adding the server to the table of servers
+        if it is not there. */
+    private int[] hostedBy (ServerStub serverStub)
+    {
+        int id = serverStub.id;
+        ServerStub[] known = servers;
+        int[][] shared = hosts;
+
+        if (id < known.length && known[id] == serverStub && shared[id] != null)
         {
-            HashNode node;
+            return shared[id];
+        }
 
-            if (serverStub == null)
+        synchronized (this)
+        {
+            known = Arrays.copyOf(servers, Math.max(servers.length, id + 1));
+            shared = Arrays.copyOf(hosts, known.length);
+            known[id] = serverStub;
+            if (shared[id] == null)
             {
-                node = new HashNode();
+                shared[id] = new int[] {id};
             }
-            else
+
+            // The array of identifiers is published first, so that a server
+            // is never found without it.
+            hosts = shared;
+            servers = known;
+            return shared[id];
+        }
+    }
+
+
+    /** Returns the storage servers hosting a file, or every file below a
+        directory. */
+    private HashSet<ServerStub> getAllStubs (HashNode node)
+    {
+        HashSet<ServerStub> serverStubs = new HashSet<>();
+
+        if (!node.isDirectory())
+        {
+            for (int id : ((HashNode.File) node).servers)
             {
-                node = new HashNode(serverStub);
+                serverStubs.add(servers[id]);
             }
-            this.hashtable.put(fileName, node);
+            return serverStubs;
+        }
 
+        for (HashNode child : ((HashNode.Directory) node).children.nodes())
+        {
+            serverStubs.addAll(getAllStubs(child));
         }
+        return serverStubs;
+    }
+
 
+    /** Adds a node, which the directory must not already hold, to a
+        directory locked for writing and to the index. */
+    private void add (HashNode.Directory parent, HashNode node)
+    {
+        parent.children.put(node);
+        index.add(node);
+    }
+
+
+    /** Removes a node and every node below it from the index, and releases
+        their names. The directory holding the node must be locked for
+        writing. The entries of removed directories are left in place, for
+        lookups which reached them before the removal. */
+    private void unindex (HashNode node)
+    {
+        index.remove(node);
+        names.release(node.name);
 
-        public void delete(String filename, Path path)
+        if (node.isDirectory())
         {
-            HashNode child = this.getChild(filename);
+            for (HashNode child : ((HashNode.Directory) node).children.nodes())
+            {
+                unindex(child);
+            }
+        }
+    }
+
+
+    /** Locks the directory holding the last component of a path for
+        writing, and the directories above it for reading, from the root
+        down.
+
+        @param create If <code>true</code>, missing directories on the way
+                      are created.
+        @return The held locks, whose <code>parent</code> is the locked
+                directory. If <code>create</code> is <code>true</code> and a
+                file is in the way, no lock is held and <code>parent</code> is
+                <code>null</code>.
+        @throws FileNotFoundException If <code>create</code> is
+                                      <code>false</code> and a directory on
+                                      the way does not exist.
+     */
+    private Locked lockParent (Path path, boolean create) throws FileNotFoundException
+    {
+        Locked locked = new Locked();
+        HashNode.Directory directory = root;
 
-            for (ServerStub serverStub : child.getAllStubs())
+        try
+        {
+            for (String name : path.parent())
             {
-                try
+                HashNode child;
+
+                if (create)
                 {
-                    serverStub.commandStub.delete(path);
+                    // Create the directory under the write lock, then keep
+                    // only the read lock while descending.
+                    directory.lock.writeLock().lock();
+                    try
+                    {
+                        child = child(directory, name);
+                        if (child == null)
+                        {
+                            child = newDirectory(directory, name);
+                            add(directory, child);
+                        }
+                        locked.hold(directory.lock.readLock());
+                    }
+                    finally
+                    {
+                        directory.lock.writeLock().unlock();
+                    }
                 }
-                catch (RMIException e)
+                else
                 {
-                    e.printStackTrace();
+                    locked.hold(directory.lock.readLock());
+                    child = child(directory, name);
                 }
+
+                if (child == null || !child.isDirectory())
+                {
+                    locked.close();
+                    if (create)
+                    {
+                        return locked;
+                    }
+                    throw new FileNotFoundException("The parent of " + path + " is not a directory.");
+                }
+                directory = (HashNode.Directory) child;
             }
-            this.hashtable.remove(filename);
+
+            locked.hold(directory.lock.writeLock());
+            locked.parent = directory;
+            return locked;
+        }
+        catch (RuntimeException | Error e)
+        {
+            locked.close();
+            throw e;
         }
+    }
+
+
+    /** Locks held by a change to the tree, released in the reverse of the
+        order in which they were taken. */
+    private static class Locked implements AutoCloseable
+    {
+        private final ArrayList<Lock> held = new ArrayList<>();
+        HashNode.Directory parent = null;
 
-        public HashSet<ServerStub> getAllStubs()
+        void hold(Lock lock)
         {
-            if (this.hashtable == null)
-            {
-                return new HashSet<>(this.serverStubList);
-            }
-            HashSet<ServerStub> serverStubs = new HashSet<>();
+            lock.lock();
+            held.add(lock);
+        }
 
-            for (HashNode hashNode : hashtable.values())
+        @Override
+        public void close()
+        {
+            for (int i = held.size() - 1; i >= 0; i--)
             {
-                serverStubs.addAll(hashNode.getAllStubs());
+                held.get(i).unlock();
             }
-            return serverStubs;
+            held.clear();
+            parent = null;
         }
     }
 }
-
-
@@ -0,0 +1,693 @@
+package naming;
+
+import common.Path;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/** Durable journal of the changes made to a naming server's directory tree.
+
+    <p>
+    The journal is a directory holding a snapshot of the naming server's state
+    and a series of log segments, <code>journal.</code><em>n</em>. Every
+    change to the tree, and every storage server registration, is appended to
+    the current segment as a record carrying a checksum. Records are written
+    by a single thread, which takes every record appended since its last
+    write, writes them together and forces them to the disk once. A change
+    waits until its record has been forced before the naming server answers,
+    so changes made at the same time share one forced write.
+
+    <p>
+    Once <code>naming.snapshot.records</code> records (100000 by default) have
+    been written since the last snapshot, the writer starts a new segment and
+    a snapshot is written in the background, after which the older segments
+    are deleted. Changes continue while the snapshot is taken, so it may hold
+    some of the changes recorded in the new segment. Replaying a record sets
+    the state of its path, whatever that state was, so replaying the new
+    segment over the snapshot still gives the tree as of its last record.
+
+    <p>
+    On restart, the snapshot is loaded and the segments after it replayed. A
+    record which was being written when the server stopped fails its checksum,
+    or announces more bytes than the segment holds after it or than any record
+    may hold, and is discarded.
+ */
+final class Journal
+{
+    /** Receives the contents of the journal during recovery. */
+    interface Replay
+    {
+        /** Reads the state saved by a snapshot. */
+        void snapshot(DataInputStream in) throws IOException;
+        /** Replays the registration of a storage server. */
+        void register(int id, byte[] stubs) throws IOException;
+        void directory(Path path);
+        void file(Path path, int server);
+        void delete(Path path);
+    }
+
+    /** Writes the state of the naming server into a snapshot. */
+    interface Image
+    {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static final int SNAPSHOT_MAGIC = 0x4e534e50;
+    private static final int VERSION = 1;
+
+    private static final byte REGISTER = 1;
+    private static final byte DIRECTORY = 2;
+    private static final byte FILE = 3;
+    private static final byte DELETE = 4;
+
+    /** Largest record, in bytes. Records hold a path or the stubs of a
+        storage server, well below this; a longer record met during recovery
+        is taken for a torn one. */
+    static final int MAX_RECORD = 1 << 20;
+
+    private final File directory;
+    private final long snapshotRecords =
+        Long.getLong("naming.snapshot.records", 100000);
+    private Image image;
+
+    /** Records appended but not yet written. Guarded by the journal, as are
+        the fields which follow. */
+    private ArrayList<byte[]> queue = new ArrayList<>();
+    /** Number of records appended. */
+    private long appended = 0;
+    /** Number of records forced to the disk. */
+    private long durable = 0;
+    private IOException failure = null;
+    private boolean closed = false;
+    /** Whether the writer has stopped, after which no record is written. */
+    private boolean stopped = false;
+
+    /** Segment to which records are written. Used only by the writer once it
+        has started. */
+    private FileChannel segment;
+    private long segmentNumber = 0;
+    private long sinceSnapshot = 0;
+    private Thread writer;
+    private Thread snapshotter;
+
+    /** Opens the journal in the given directory, creating the directory if
+        it does not exist. The journal must then be recovered and started.
+
+        @throws IOException If the directory cannot be created.
+     */
+    Journal(File directory) throws IOException
+    {
+        this.directory = directory;
+        Files.createDirectories(directory.toPath());
+    }
+
+    /** Loads the snapshot, if there is one, and replays the segments which
+        follow it. A torn record at the end of the last segment is cut off.
+
+        @throws IOException If the snapshot or a segment before the last
+                            cannot be read.
+     */
+    void recover(Replay replay) throws IOException
+    {
+        long first = 0;
+        File snapshot = new File(directory, "snapshot");
+
+        if (snapshot.exists())
+        {
+            try (InputStream file = new FileInputStream(snapshot))
+            {
+                CheckedInputStream checked = new CheckedInputStream(
+                    new BufferedInputStream(file, 1 << 16), new CRC32());
+                DataInputStream in = new DataInputStream(checked);
+
+                if (in.readInt() != SNAPSHOT_MAGIC || in.readInt() != VERSION)
+                {
+                    throw new IOException("Not a naming server snapshot");
+                }
+                first = in.readLong();
+                replay.snapshot(in);
+
+                long computed = checked.getChecksum().getValue();
+                if (in.readLong() != computed)
+                {
+                    throw new IOException("Corrupt naming server snapshot");
+                }
+            }
+        }
+
+        long[] segments = segments();
+        segmentNumber = first;
+        for (int i = 0; i < segments.length; i++)
+        {
+            if (segments[i] < first)
+            {
+                // Left by a snapshot which completed before the server
+                // stopped.
+                Files.deleteIfExists(segmentFile(segments[i]).toPath());
+                continue;
+            }
+
+            long valid = replaySegment(segments[i], replay);
+            if (valid < segmentFile(segments[i]).length())
+            {
+                if (i != segments.length - 1)
+                {
+                    throw new IOException("Corrupt journal segment " + segments[i]);
+                }
+                try (FileChannel torn = FileChannel.open(segmentFile(segments[i]).toPath(),
+                                                         StandardOpenOption.WRITE))
+                {
+                    torn.truncate(valid);
+                    torn.force(true);
+                }
+            }
+            segmentNumber = segments[i];
+        }
+    }
+
+    /** Starts writing records, after recovery.
+
+        @param image Writes the snapshots of the naming server's state.
+        @throws IOException If the current segment cannot be opened.
+     */
+    void start(Image image) throws IOException
+    {
+        this.image = image;
+        segment = openSegment(segmentNumber);
+
+        writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                write();
+            }
+        }, "naming-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /** Stops the journal after writing every record appended so far. */
+    void close()
+    {
+        synchronized (this)
+        {
+            closed = true;
+            notifyAll();
+        }
+
+        joinUninterruptibly(writer);
+        Thread running;
+        synchronized (this)
+        {
+            running = snapshotter;
+        }
+        joinUninterruptibly(running);
+
+        try
+        {
+            if (segment != null)
+            {
+                segment.close();
+            }
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /** Appends the registration of a storage server.
+
+        @param stubs The serialized stubs of the storage server.
+        @return The number of the record.
+     */
+    long register(int id, byte[] stubs)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(stubs.length + 16);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(REGISTER);
+            out.writeInt(id);
+            out.writeInt(stubs.length);
+            out.write(stubs);
+            return append(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Appends the creation of a directory. */
+    long directory(Path path)
+    {
+        return append(DIRECTORY, path, 0);
+    }
+
+    /** Appends the creation of a file hosted by a storage server. */
+    long file(Path path, int server)
+    {
+        return append(FILE, path, server);
+    }
+
+    /** Appends the deletion of a file or directory. */
+    long delete(Path path)
+    {
+        return append(DELETE, path, 0);
+    }
+
+    /** Returns the number of the last record appended. */
+    synchronized long last()
+    {
+        return appended;
+    }
+
+    /** Waits until the record with the given number, and every record before
+        it, has been forced to the disk.
+
+        @throws IOException If the records could not be written, or the
+                            journal was closed before they were.
+     */
+    synchronized void await(long record) throws IOException
+    {
+        boolean interrupted = false;
+
+        while (durable < record && !stopped)
+        {
+            try
+            {
+                wait();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+        if (durable < record)
+        {
+            throw failure != null ? new IOException("Unable to write journal", failure)
+                                  : new IOException("Journal closed");
+        }
+    }
+
+    private long append(byte kind, Path path, int server)
+    {
+        try
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(kind);
+            out.writeUTF(path.toString());
+            if (kind == FILE)
+            {
+                out.writeInt(server);
+            }
+            return append(bytes.toByteArray());
+        }
+        catch (IOException e)
+        {
+            // Not raised when writing to an array.
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /** Frames a record with its length and checksum, and queues it for the
+        writer.
+
+        @throws IllegalArgumentException If the record is longer than
+                                         <code>MAX_RECORD</code>.
+     */
+    private long append(byte[] payload)
+    {
+        if (payload.length > MAX_RECORD)
+        {
+            throw new IllegalArgumentException("Journal record of " + payload.length +
+                                               " bytes exceeds the limit of " + MAX_RECORD);
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        byte[] record = new byte[payload.length + 8];
+        ByteBuffer.wrap(record).putInt(payload.length).putInt((int) crc.getValue())
+                               .put(payload);
+
+        synchronized (this)
+        {
+            queue.add(record);
+            appended++;
+            notifyAll();
+            return appended;
+        }
+    }
+
+    /** Body of the writer thread. */
+    private void write()
+    {
+        while (true)
+        {
+            List<byte[]> batch;
+            long last;
+
+            synchronized (this)
+            {
+                while (queue.isEmpty() && !closed)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // The writer stops only when the journal is closed.
+                    }
+                }
+                if (queue.isEmpty())
+                {
+                    stopped = true;
+                    notifyAll();
+                    return;
+                }
+
+                batch = queue;
+                queue = new ArrayList<>();
+                last = appended;
+            }
+
+            try
+            {
+                int size = 0;
+                for (byte[] record : batch)
+                {
+                    size += record.length;
+                }
+                ByteBuffer buffer = ByteBuffer.allocate(size);
+                for (byte[] record : batch)
+                {
+                    buffer.put(record);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining())
+                {
+                    segment.write(buffer);
+                }
+                segment.force(false);
+            }
+            catch (IOException e)
+            {
+                synchronized (this)
+                {
+                    failure = e;
+                    stopped = true;
+                    notifyAll();
+                }
+                return;
+            }
+
+            synchronized (this)
+            {
+                durable = last;
+                notifyAll();
+            }
+
+            sinceSnapshot += batch.size();
+            if (sinceSnapshot >= snapshotRecords)
+            {
+                rotate();
+            }
+        }
+    }
+
+    /** Starts a new segment and a snapshot in the background, unless a
+        snapshot is already being written. Called by the writer. */
+    private void rotate()
+    {
+        synchronized (this)
+        {
+            if (snapshotter != null)
+            {
+                return;
+            }
+        }
+
+        FileChannel next;
+        try
+        {
+            next = openSegment(segmentNumber + 1);
+        }
+        catch (IOException e)
+        {
+            // Keep writing to the current segment, and try again after the
+            // next batch.
+            return;
+        }
+
+        try
+        {
+            segment.close();
+        }
+        catch (IOException e)
+        {
+        }
+        segment = next;
+        segmentNumber++;
+        sinceSnapshot = 0;
+
+        final long first = segmentNumber;
+        synchronized (this)
+        {
+            snapshotter = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        snapshot(first);
+                    }
+                    catch (IOException e)
+                    {
+                        // The segments before the snapshot are kept, so the
+                        // state can still be recovered from them.
+                    }
+                    finally
+                    {
+                        synchronized (Journal.this)
+                        {
+                            snapshotter = null;
+                        }
+                    }
+                }
+            }, "naming-snapshot");
+            snapshotter.setDaemon(true);
+            snapshotter.start();
+        }
+    }
+
+    /** Writes a snapshot to be followed by the given segment, replaces the
+        previous snapshot with it, and deletes the segments it replaces. */
+    private void snapshot(long first) throws IOException
+    {
+        File temporary = new File(directory, "snapshot.tmp");
+
+        try (FileOutputStream file = new FileOutputStream(temporary))
+        {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(file, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(first);
+            image.write(out);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            file.getFD().sync();
+        }
+
+        Files.move(temporary.toPath(), new File(directory, "snapshot").toPath(),
+                   StandardCopyOption.REPLACE_EXISTING,
+                   StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory();
+
+        for (long number : segments())
+        {
+            if (number < first)
+            {
+                Files.deleteIfExists(segmentFile(number).toPath());
+            }
+        }
+    }
+
+    /** Replays the records of a segment.
+
+        @return The length of the valid records at the start of the segment.
+     */
+    private long replaySegment(long number, Replay replay) throws IOException
+    {
+        long valid = 0;
+        long size = segmentFile(number).length();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 new FileInputStream(segmentFile(number)), 1 << 16)))
+        {
+            while (true)
+            {
+                byte[] payload;
+                try
+                {
+                    int length = in.readInt();
+                    int checksum = in.readInt();
+                    // A torn length may ask for more than the segment holds.
+                    if (length <= 0 || length > MAX_RECORD ||
+                        length > size - valid - 8)
+                    {
+                        return valid;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+
+                    CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if ((int) crc.getValue() != checksum)
+                    {
+                        return valid;
+                    }
+                }
+                catch (EOFException e)
+                {
+                    return valid;
+                }
+
+                replayRecord(payload, replay);
+                valid += payload.length + 8;
+            }
+        }
+    }
+
+    private static void replayRecord(byte[] payload, Replay replay) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        switch (in.readByte())
+        {
+            case REGISTER:
+                int id = in.readInt();
+                byte[] stubs = new byte[in.readInt()];
+                in.readFully(stubs);
+                replay.register(id, stubs);
+                break;
+            case DIRECTORY:
+                replay.directory(new Path(in.readUTF()));
+                break;
+            case FILE:
+                Path path = new Path(in.readUTF());
+                replay.file(path, in.readInt());
+                break;
+            case DELETE:
+                replay.delete(new Path(in.readUTF()));
+                break;
+            default:
+                throw new IOException("Unknown journal record");
+        }
+    }
+
+    /** Returns the numbers of the segments in the directory, in order. */
+    private long[] segments()
+    {
+        String[] names = directory.list();
+        if (names == null)
+        {
+            return new long[0];
+        }
+
+        long[] numbers = new long[names.length];
+        int count = 0;
+        for (String name : names)
+        {
+            if (name.startsWith("journal."))
+            {
+                try
+                {
+                    numbers[count] = Long.parseLong(name.substring("journal.".length()));
+                    count++;
+                }
+                catch (NumberFormatException e)
+                {
+                }
+            }
+        }
+
+        numbers = Arrays.copyOf(numbers, count);
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    private File segmentFile(long number)
+    {
+        return new File(directory, "journal." + number);
+    }
+
+    private FileChannel openSegment(long number) throws IOException
+    {
+        FileChannel channel = FileChannel.open(segmentFile(number).toPath(),
+                                               StandardOpenOption.CREATE,
+                                               StandardOpenOption.WRITE,
+                                               StandardOpenOption.APPEND);
+        forceDirectory();
+        return channel;
+    }
+
+    /** Makes the creation and renaming of files in the directory durable,
+        where the platform allows it. */
+    private void forceDirectory()
+    {
+        try (FileChannel channel = FileChannel.open(directory.toPath(),
+                                                    StandardOpenOption.READ))
+        {
+            channel.force(true);
+        }
+        catch (IOException e)
+        {
+            // Directories cannot be opened on every platform.
+        }
+    }
+
+    private static void joinUninterruptibly(Thread thread)
+    {
+        boolean interrupted = false;
+
+        while (thread != null && thread.isAlive())
+        {
+            try
+            {
+                thread.join();
+            }
+            catch (InterruptedException e)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package naming;
+
+import java.util.Arrays;
+
+/** Dictionary of the names of the entries of a directory tree.
+
+    <p>
+    Each distinct name is stored once, as an encoded byte array shared by
+    every node with that name, so that a name repeated in many directories,
+    such as <code>part-00000</code>, costs a reference per node rather than
+    a string per node. The dictionary counts the nodes using each name, and
+    drops a name when its last node is removed.
+
+    <p>
+    A name is encoded one UTF-16 unit at a time, in one byte for ASCII
+    characters, two up to U+07FF and three above. The encoding is the same as
+    UTF-8 for characters outside the surrogate range, and unlike UTF-8 it
+    keeps unpaired surrogates, so that every string has an encoding of its
+    own. Encoded names are compared with strings without decoding them.
+
+    <p>
+    The dictionary is changed only by changes to the tree, and is
+    synchronized. Lookups in the tree compare the names held by its nodes,
+    and do not use the dictionary.
+ */
+final class Names
+{
+    private static final byte[] EMPTY = new byte[0];
+
+    /** Open-addressed table of names, with linear probing. */
+    private byte[][] names = new byte[16][];
+    /** Number of nodes using each name in <code>names</code>. */
+    private int[] counts = new int[16];
+    private int size = 0;
+
+    /** Returns the encoded form of a name, shared with every other node using
+        it, and counts one more node using it. */
+    synchronized byte[] acquire(String name)
+    {
+        if (name.isEmpty())
+        {
+            return EMPTY;
+        }
+
+        byte[] encoded = encode(name);
+        int mask = names.length - 1;
+
+        for (int slot = hash(encoded) & mask; ; slot = (slot + 1) & mask)
+        {
+            byte[] known = names[slot];
+            if (known == null)
+            {
+                names[slot] = encoded;
+                counts[slot] = 1;
+                if (++size * 4 > names.length * 3)
+                {
+                    resize(names.length * 2);
+                }
+                return encoded;
+            }
+            if (Arrays.equals(known, encoded))
+            {
+                counts[slot]++;
+                return known;
+            }
+        }
+    }
+
+    /** Counts one node fewer using a name returned by
+        <code>acquire</code>, and drops the name if no node uses it. */
+    synchronized void release(byte[] name)
+    {
+        if (name.length == 0)
+        {
+            return;
+        }
+
+        int mask = names.length - 1;
+        int slot = hash(name) & mask;
+        while (names[slot] != name)
+        {
+            if (names[slot] == null)
+            {
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (--counts[slot] > 0)
+        {
+            return;
+        }
+
+        // Move back the names after the freed slot which could not take
+        // their own slots, so that none is separated from its slot by an
+        // empty one.
+        int free = slot;
+        names[free] = null;
+        for (slot = (free + 1) & mask; names[slot] != null; slot = (slot + 1) & mask)
+        {
+            int home = hash(names[slot]) & mask;
+            if (((slot - home) & mask) >= ((slot - free) & mask))
+            {
+                names[free] = names[slot];
+                counts[free] = counts[slot];
+                names[slot] = null;
+                free = slot;
+            }
+        }
+
+        size--;
+        if (names.length > 16 && size * 8 < names.length)
+        {
+            resize(names.length / 2);
+        }
+    }
+
+    /** Returns the number of distinct names in use. */
+    synchronized int size()
+    {
+        return size;
+    }
+
+    private void resize(int capacity)
+    {
+        byte[][] oldNames = names;
+        int[] oldCounts = counts;
+        names = new byte[capacity][];
+        counts = new int[capacity];
+        int mask = capacity - 1;
+
+        for (int index = 0; index < oldNames.length; index++)
+        {
+            if (oldNames[index] == null)
+            {
+                continue;
+            }
+
+            int slot = hash(oldNames[index]) & mask;
+            while (names[slot] != null)
+            {
+                slot = (slot + 1) & mask;
+            }
+            names[slot] = oldNames[index];
+            counts[slot] = oldCounts[index];
+        }
+    }
+
+    private static int hash(byte[] name)
+    {
+        int hash = Arrays.hashCode(name) * 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Encodes a name. */
+    static byte[] encode(String name)
+    {
+        int length = 0;
+        for (int index = 0; index < name.length(); index++)
+        {
+            char c = name.charAt(index);
+            length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+        }
+
+        byte[] encoded = new byte[length];
+        int position = 0;
+        for (int index = 0; index < name.length(); index++)
+        {
+            char c = name.charAt(index);
+            if (c < 0x80)
+            {
+                encoded[position++] = (byte) c;
+            }
+            else if (c < 0x800)
+            {
+                encoded[position++] = (byte) (0xc0 | c >> 6);
+                encoded[position++] = (byte) (0x80 | c & 0x3f);
+            }
+            else
+            {
+                encoded[position++] = (byte) (0xe0 | c >> 12);
+                encoded[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                encoded[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return encoded;
+    }
+
+    /** Decodes a name. */
+    static String decode(byte[] encoded)
+    {
+        StringBuilder name = new StringBuilder(encoded.length);
+        int position = 0;
+        while (position < encoded.length)
+        {
+            int b = encoded[position] & 0xff;
+            if (b < 0x80)
+            {
+                name.append((char) b);
+                position += 1;
+            }
+            else if (b < 0xe0)
+            {
+                name.append((char) ((b & 0x1f) << 6 | encoded[position + 1] & 0x3f));
+                position += 2;
+            }
+            else
+            {
+                name.append((char) ((b & 0x0f) << 12 |
+                                    (encoded[position + 1] & 0x3f) << 6 |
+                                    encoded[position + 2] & 0x3f));
+                position += 3;
+            }
+        }
+        return name.toString();
+    }
+
+    /** Returns whether an encoded name is the encoding of a string. */
+    static boolean matches(byte[] encoded, String name)
+    {
+        int position = 0;
+        for (int index = 0; index < name.length(); index++)
+        {
+            char c = name.charAt(index);
+            if (c < 0x80)
+            {
+                if (position >= encoded.length || encoded[position] != (byte) c)
+                {
+                    return false;
+                }
+                position += 1;
+            }
+            else if (c < 0x800)
+            {
+                if (position + 1 >= encoded.length ||
+                    encoded[position] != (byte) (0xc0 | c >> 6) ||
+                    encoded[position + 1] != (byte) (0x80 | c & 0x3f))
+                {
+                    return false;
+                }
+                position += 2;
+            }
+            else
+            {
+                if (position + 2 >= encoded.length ||
+                    encoded[position] != (byte) (0xe0 | c >> 12) ||
+                    encoded[position + 1] != (byte) (0x80 | c >> 6 & 0x3f) ||
+                    encoded[position + 2] != (byte) (0x80 | c & 0x3f))
+                {
+                    return false;
+                }
+                position += 3;
+            }
+        }
+        return position == encoded.length;
+    }
+}
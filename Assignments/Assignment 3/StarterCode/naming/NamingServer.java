@@ -3,8 +3,15 @@ package naming;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Random;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import rmi.*;
 import common.*;
@@ -14,14 +21,116 @@ import storage.*;
 
 
 class ServerStub {
-    public Storage storageStub;
-    public Command commandStub;
+    public volatile Storage storageStub;
+    public volatile Command commandStub;
+    /** Number given to the storage server when it first registered, by
+        which the journal refers to it. */
+    public int id;
+    /** Whether the storage server was restored from the journal and has not
+        registered again since the naming server restarted. */
+    public volatile boolean restored = false;
+    /** Capacity and load last reported by the storage server, or
+        <code>null</code> if it has not reported them. */
+    volatile StorageLoad load = null;
+    /** Time of the last report, as given by <code>System.nanoTime</code>. */
+    volatile long reportedAt = 0;
+    /** Number of files placed on the storage server since its last
+        report. */
+    final AtomicInteger placedSinceReport = new AtomicInteger();
+    /** Number of files placed on the storage server. */
+    final LongAdder chosen = new LongAdder();
+    /** Number of requests for the storage server's load which failed. */
+    final LongAdder reportFailures = new LongAdder();
+
+    private AsyncStub<Command> commandAsync;
 
     public ServerStub(Storage storage, Command command){
         storageStub = storage;
         commandStub = command;
     }
 
+    /** Returns the storage server with the given number among those being
+        restored from the journal, adding it without stubs if it is not yet
+        known. Its stubs are set when its registration is replayed. */
+    static ServerStub restored(Map<Integer, ServerStub> servers, int id){
+        ServerStub server = servers.get(id);
+        if (server == null){
+            server = new ServerStub(null, null);
+            server.id = id;
+            server.restored = true;
+            servers.put(id, server);
+        }
+        return server;
+    }
+
+    /** Records a report of the storage server's capacity and load, which
+        counts the files placed on it before the report. */
+    void report(StorageLoad load){
+        this.load = load;
+        reportedAt = System.nanoTime();
+        placedSinceReport.set(0);
+    }
+
+    /** Serializes the stubs of the storage server for the journal. */
+    byte[] stubBytes() throws IOException{
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)){
+            out.writeObject(storageStub);
+            out.writeObject(commandStub);
+        }
+        return bytes.toByteArray();
+    }
+
+    /** Sets the stubs of a storage server restored from the journal. */
+    void setStubs(byte[] stubs) throws IOException{
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stubs))){
+            storageStub = (Storage) in.readObject();
+            commandStub = (Command) in.readObject();
+        }
+        catch (ClassNotFoundException | ClassCastException e){
+            throw new IOException("Unable to restore storage server stubs", e);
+        }
+    }
+
+    /** Sets the stubs of a storage server restored from the journal which
+        registered again with other stubs, as it does when it restarts on
+        other ports. */
+    synchronized void rebind(Storage storage, Command command){
+        storageStub = storage;
+        commandStub = command;
+        commandAsync = null;
+    }
+
+    /** Starts deleting a path on this storage server without waiting for the
+        storage server to reply. A command object which is not an RMI stub is
+        called directly. */
+    public CompletableFuture<Boolean> deleteAsync(Path path){
+        synchronized (this){
+            if (commandAsync == null){
+                try{
+                    commandAsync = Stub.createAsync(Command.class, commandStub, null);
+                }
+                catch (IllegalArgumentException e){
+                    CompletableFuture<Boolean> result = new CompletableFuture<>();
+                    try{
+                        result.complete(commandStub.delete(path));
+                    }
+                    catch (RMIException failure){
+                        result.completeExceptionally(failure);
+                    }
+                    return result;
+                }
+            }
+        }
+
+        return commandAsync.call(new AsyncStub.Call<Command, Boolean>(){
+            @Override
+            public Boolean call(Command command) throws RMIException{
+                return command.delete(path);
+            }
+        });
+    }
+
     public boolean equals(ServerStub serverStub){
         return storageStub.equals(serverStub.storageStub) && commandStub.equals(serverStub.commandStub);
     }
@@ -51,17 +160,57 @@ class ServerStub {
     specifying the remote network address. To make this possible, the client and
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
+
+    <p>
+    Calls are served concurrently. The directory tree is a
+    <code>HashTree</code>, which orders concurrent changes by locking the
+    directories they affect, and the list of registered storage servers is
+    copied on every registration, so that it can be read without locking.
+
+    <p>
+    A naming server created with a directory records every change to the tree,
+    and every registration, in a <code>Journal</code> in that directory, and
+    restores them when it is created again with the same directory. Empty
+    directories survive a restart, and files are known again before their
+    storage servers register. A storage server restored from the journal is
+    not chosen for new files until it registers again, which it may do once
+    without being refused as a duplicate. A storage server which restarted
+    registers with new stubs, since it listens on new ports: it is then taken
+    for the restored server whose files it reports, if it reports all of them
+    and no file of another restored server, and keeps that server's files.
+    Files hosted by a restored server are never reported as duplicates. A restored server which has not registered
+    <code>naming.restoredMillis</code> milliseconds (600000 by default) after
+    the naming server starts is retired, and the files it hosted are removed
+    from the tree.
+
+    <p>
+    New files are placed on the storage servers by a
+    <code>PlacementPolicy</code>, according to the capacity and load which
+    the servers report. The policy, and the choices it has made, are reached
+    through <code>getPlacement</code>.
  */
 public class NamingServer implements Service, Registration
 {
+    private static final long RESTORED_MILLIS =
+        Long.getLong("naming.restoredMillis", 600000);
+
     private Skeleton<Service> serviceSkeleton = null;
     private Skeleton<Registration> registrationSkeleton = null;
     private boolean started = false;
     private boolean stopping = false;
-    private LinkedList<ServerStub> stubList = new LinkedList<>();
-    private HashTree hashTree = new HashTree(stubList);
-
-    private static Random randGenerator = new Random();
+    private final List<ServerStub> stubList = new CopyOnWriteArrayList<>();
+    private final Placement placement =
+        new Placement(stubList, PlacementPolicy.fromProperty());
+    private final HashTree hashTree;
+    /** Journal of the tree, or <code>null</code> if it is kept only in
+        memory. */
+    private final Journal journal;
+    /** Number given to the next storage server to register. Guarded by
+        <code>stubList</code>. */
+    private int nextServerId = 1;
+    /** Thread retiring the storage servers restored from the journal which
+        do not register again, or <code>null</code> if none is running. */
+    private Thread retirer = null;
 
 
 
@@ -72,6 +221,105 @@ public class NamingServer implements Service, Registration
      */
     public NamingServer()
     {
+        journal = null;
+        hashTree = new HashTree();
+    }
+
+    /** Creates a naming server whose directory tree is recorded in a journal.
+
+        <p>
+        If the directory already holds a journal, the directory tree and the
+        storage servers registered with the naming server are restored from
+        it. The naming server is not started.
+
+        @param directory Directory holding the journal. It is created if it
+                         does not exist.
+        @throws IOException If the journal cannot be created or read.
+     */
+    public NamingServer(File directory) throws IOException
+    {
+        journal = new Journal(directory);
+        hashTree = new HashTree(journal);
+
+        final Map<Integer, ServerStub> servers = new HashMap<>();
+        journal.recover(new Journal.Replay()
+        {
+            @Override
+            public void snapshot(DataInputStream in) throws IOException
+            {
+                hashTree.read(in, servers);
+
+                int count = in.readInt();
+                for (int i = 0; i < count; i++)
+                {
+                    int id = in.readInt();
+                    byte[] stubs = new byte[in.readInt()];
+                    in.readFully(stubs);
+                    register(id, stubs);
+                }
+            }
+
+            @Override
+            public void register(int id, byte[] stubs) throws IOException
+            {
+                // A server which registered again with new stubs has a later
+                // record, which replaces the stubs of the earlier one.
+                ServerStub.restored(servers, id).setStubs(stubs);
+            }
+
+            @Override
+            public void directory(Path path)
+            {
+                hashTree.restoreDirectory(path);
+            }
+
+            @Override
+            public void file(Path path, int server)
+            {
+                hashTree.restoreFile(path, ServerStub.restored(servers, server));
+            }
+
+            @Override
+            public void delete(Path path)
+            {
+                hashTree.restoreDelete(path);
+            }
+        });
+
+        for (ServerStub server : servers.values())
+        {
+            nextServerId = Math.max(nextServerId, server.id + 1);
+            if (server.storageStub == null)
+            {
+                // A snapshot taken while a server was retired may hold files
+                // which the journal then deletes, but not the server.
+                if (!hashTree.hostsFiles(server))
+                {
+                    continue;
+                }
+                throw new IOException("Journal refers to unknown storage server " + server.id);
+            }
+            stubList.add(server);
+        }
+
+        journal.start(new Journal.Image()
+        {
+            @Override
+            public void write(DataOutputStream out) throws IOException
+            {
+                hashTree.write(out);
+
+                ServerStub[] known = stubList.toArray(new ServerStub[0]);
+                out.writeInt(known.length);
+                for (ServerStub server : known)
+                {
+                    byte[] stubs = server.stubBytes();
+                    out.writeInt(server.id);
+                    out.writeInt(stubs.length);
+                    out.write(stubs);
+                }
+            }
+        });
     }
 
     /** Starts the naming server.
@@ -97,16 +345,87 @@ public class NamingServer implements Service, Registration
             throw new RMIException("Naming server stopping");
         }
 
-        serviceSkeleton = new Skeleton<>(Service.class, this, new InetSocketAddress(NamingStubs.SERVICE_PORT));
+        // Both skeletons share one pool of workers, in which registrations
+        // are served ahead of client requests.
+        DispatchPolicy lanes = DispatchPolicy.prioritized();
+
+        serviceSkeleton = new Skeleton<>(Service.class, this, new InetSocketAddress(NamingStubs.SERVICE_PORT), lanes);
 
-        registrationSkeleton = new Skeleton<>(Registration.class, this, new InetSocketAddress(NamingStubs.REGISTRATION_PORT));
+        registrationSkeleton = new Skeleton<>(Registration.class, this, new InetSocketAddress(NamingStubs.REGISTRATION_PORT), lanes);
 
         serviceSkeleton.start();
         registrationSkeleton.start();
+        placement.start();
+        startRetirer();
 
         started = true;
     }
 
+    /** Starts the thread which retires the storage servers restored from the
+        journal if they have not registered again in time. */
+    private void startRetirer()
+    {
+        boolean restored = false;
+        for (ServerStub server : stubList)
+        {
+            restored |= server.restored;
+        }
+        if (!restored)
+        {
+            return;
+        }
+
+        retirer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(RESTORED_MILLIS);
+                    retireRestored();
+                }
+                catch (InterruptedException e)
+                {
+                }
+                catch (RMIException e)
+                {
+                    e.printStackTrace();
+                }
+            }
+        }, "naming-retirer");
+        retirer.setDaemon(true);
+        retirer.start();
+    }
+
+    /** Retires the storage servers restored from the journal which have not
+        registered again. They are no longer offered for new files or listed
+        by the placement, and the files they hosted are removed from the
+        tree.
+
+        @throws RMIException If the removals cannot be recorded.
+     */
+    void retireRestored() throws RMIException
+    {
+        List<ServerStub> retired = new ArrayList<>();
+        synchronized (stubList)
+        {
+            for (ServerStub server : stubList)
+            {
+                if (server.restored)
+                {
+                    retired.add(server);
+                }
+            }
+            stubList.removeAll(retired);
+        }
+
+        for (ServerStub server : retired)
+        {
+            hashTree.removeServer(server);
+        }
+    }
+
     /** Stops the naming server.
 
         <p>
@@ -122,6 +441,15 @@ public class NamingServer implements Service, Registration
         {
             stopping = true;
         }
+        placement.stop();
+        synchronized(this)
+        {
+            if (retirer != null)
+            {
+                retirer.interrupt();
+                retirer = null;
+            }
+        }
         try
         {
             serviceSkeleton.stop();
@@ -132,10 +460,12 @@ public class NamingServer implements Service, Registration
                 started = false;
                 stopping = false;
             }
+            closeJournal();
             stopped(null);
         }
         catch (Throwable throwableStop)
         {
+            closeJournal();
             stopped(throwableStop);
         }
     }
@@ -153,6 +483,22 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /** Returns the placement of new files on the storage servers, through
+        which its policy may be set and its choices observed. */
+    public Placement getPlacement()
+    {
+        return placement;
+    }
+
+    /** Writes every change still queued for the journal, and closes it. */
+    private void closeJournal()
+    {
+        if (journal != null)
+        {
+            journal.close();
+        }
+    }
+
     // The following methods are documented in Service.java.
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
@@ -172,47 +518,29 @@ public class NamingServer implements Service, Registration
         if(file.isRoot())
             return false;
 
-        ServerStub serverStub = stubList.get(randGenerator.nextInt(stubList.size()));
-
-
-        if(!hashTree.isDirectory(file.parent()))
-        {
-            throw new FileNotFoundException("The parent of "+file.toString()+" is not a directory.");
-        }
-
-        boolean success = hashTree.createFile(file, serverStub);
-
-        if(!success)
-            return false;
-
-        success = serverStub.commandStub.create(file);
-
-        if(!success)
+        // The choice counts toward the load of the server only if the file
+        // is created.
+        Placement.Choice choice = placement.choose(file);
+        boolean created = hashTree.createFile(file, choice.server);
+        if (created)
         {
-            hashTree.delete(file);
+            placement.placed(choice);
         }
-
-        return success;
-
+        return created;
     }
 
     @Override
-    public boolean createDirectory(Path directory) throws FileNotFoundException
+    public boolean createDirectory(Path directory) throws RMIException, FileNotFoundException
     {
         if(directory.isRoot())
             return false;
 
-        if(!hashTree.isDirectory(directory.parent()))
-        {
-            throw new FileNotFoundException("The parent of " + directory.toString() + " is not a directory.");
-        }
-
         return hashTree.createDirectory(directory);
 
     }
 
     @Override
-    public boolean delete(Path path) throws FileNotFoundException
+    public boolean delete(Path path) throws RMIException, FileNotFoundException
     {
         return (!path.isRoot()) && hashTree.delete(path);
     }
@@ -226,6 +554,7 @@ public class NamingServer implements Service, Registration
     // The method register is documented in Registration.java.
     @Override
     public Path[] register(Storage client_stub, Command command_stub, Path[] files)
+        throws RMIException
     {
         if (client_stub == null || command_stub == null || files == null)
         {
@@ -235,18 +564,68 @@ public class NamingServer implements Service, Registration
         ArrayList<Path> deleteList = new ArrayList<>();
         ServerStub newStub = new ServerStub(client_stub, command_stub);
 
-        for (ServerStub s : stubList)
+        // Checked and added under one lock, so that two registrations of the
+        // same server cannot both succeed.
+        synchronized (stubList)
         {
-            if (newStub.equals(s))
+            ServerStub known = null;
+            for (ServerStub s : stubList)
             {
-                throw new IllegalStateException("Duplicate storage server registration");
+                if (newStub.equals(s))
+                {
+                    if (!s.restored)
+                    {
+                        throw new IllegalStateException("Duplicate storage server registration");
+                    }
+                    known = s;
+                }
             }
-        }
 
-        synchronized (stubList)
-        {
-            stubList.add(newStub);
+            if (known == null)
+            {
+                known = restoredHost(client_stub, files);
+                if (known != null)
+                {
+                    // The server restarted on other ports: its new stubs
+                    // replace the restored ones, under the same number.
+                    known.rebind(client_stub, command_stub);
+                    if (journal != null)
+                    {
+                        try
+                        {
+                            journal.register(known.id, known.stubBytes());
+                        }
+                        catch (IOException e)
+                        {
+                            throw new RMIException("Unable to record registration", e);
+                        }
+                    }
+                }
+            }
+
+            if (known != null)
+            {
+                known.restored = false;
+                newStub = known;
+            }
+            else
+            {
+                newStub.id = nextServerId++;
+                if (journal != null)
+                {
+                    try
+                    {
+                        journal.register(newStub.id, newStub.stubBytes());
+                    }
+                    catch (IOException e)
+                    {
+                        throw new RMIException("Unable to record registration", e);
+                    }
+                }
+                stubList.add(newStub);
+            }
         }
+        placement.refreshSoon();
 
         for (Path path : files)
         {
@@ -256,11 +635,67 @@ public class NamingServer implements Service, Registration
             }
         }
 
+        hashTree.sync();
+
         Path[] deleteArray = new Path[deleteList .size()];
         deleteArray = deleteList.toArray(deleteArray);
 
         return deleteArray;
     }
+
+    /** Returns the storage server restored from the journal, and not yet
+        registered again, which a server registering with other stubs takes
+        over, or <code>null</code> if there is none.
+
+        <p>
+        A storage server restarted on other ports reports every file it
+        hosted. A restored server is therefore taken over only if it is the
+        only restored server hosting any of the files reported, and if every
+        file it still hosts is reported, so that a server holding copies of
+        some of its files cannot take its place. A registration reporting
+        files of restored servers which matches none of them in this way is
+        logged, and made as a new server. Called with <code>stubList</code>
+        locked.
+     */
+    private ServerStub restoredHost(Storage client_stub, Path[] files)
+    {
+        // Servers already retired are still found in the tree until their
+        // files are removed, but are no longer listed.
+        List<ServerStub> hosts = new ArrayList<>();
+        for (Path path : files)
+        {
+            ServerStub host = hashTree.host(path);
+            if (host != null && host.restored && !hosts.contains(host) &&
+                stubList.contains(host))
+            {
+                hosts.add(host);
+            }
+        }
+
+        if (hosts.isEmpty())
+        {
+            return null;
+        }
+
+        if (hosts.size() == 1)
+        {
+            ServerStub candidate = hosts.get(0);
+            if (new HashSet<>(Arrays.asList(files)).containsAll(hashTree.files(candidate)))
+            {
+                return candidate;
+            }
+        }
+
+        List<Integer> ids = new ArrayList<>();
+        for (ServerStub host : hosts)
+        {
+            ids.add(host.id);
+        }
+        System.err.println("Storage server " + client_stub + " reports files of restored " +
+                           "storage servers " + ids + " without matching any of them; " +
+                           "registered as a new server");
+        return null;
+    }
 }
 
 
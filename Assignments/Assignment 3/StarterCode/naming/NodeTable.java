@@ -0,0 +1,204 @@
+package naming;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.ArrayList;
+
+/** Hash table of the nodes of a directory tree, by the hash codes of their
+    paths.
+
+    <p>
+    The table is an array of nodes with open addressing and linear probing.
+    It starts empty, takes two slots for its first node, and doubles as
+    needed to stay at most three quarters full, so that the many small
+    directories of a tree cost little. A removed node leaves a marker in its
+    slot, which a later node may take, and the markers are dropped whenever
+    the array is replaced. The array shrinks when it is less than an eighth
+    full.
+
+    <p>
+    Lookups take no lock. Slots are written and read as volatile variables,
+    and a replaced array is not changed afterwards, so a lookup sees every
+    change made before it began, and never a node which is not fully built.
+    Changes must be made under a lock held by the caller.
+ */
+final class NodeTable
+{
+    /** Condition on the nodes found by a lookup. */
+    interface Match
+    {
+        boolean matches(HashNode node);
+    }
+
+    private static final VarHandle SLOTS =
+        MethodHandles.arrayElementVarHandle(HashNode[].class);
+    private static final HashNode[] EMPTY = new HashNode[0];
+    /** Marker left in the slot of a removed node. */
+    private static final HashNode REMOVED =
+        new HashNode.File(new byte[0], null, 0, new int[0]);
+
+    private volatile HashNode[] slots = EMPTY;
+    /** Number of nodes in the table. */
+    private int size = 0;
+    /** Number of slots holding a node or a marker. */
+    private int used = 0;
+
+    /** Returns a node with the given hash code which satisfies a condition,
+        or <code>null</code> if there is none. Takes no lock. */
+    HashNode get(int hash, Match match)
+    {
+        HashNode[] table = slots;
+        if (table.length == 0)
+        {
+            return null;
+        }
+
+        int mask = table.length - 1;
+        for (int slot = spread(hash) & mask; ; slot = (slot + 1) & mask)
+        {
+            HashNode node = (HashNode) SLOTS.getVolatile(table, slot);
+            if (node == null)
+            {
+                return null;
+            }
+            if (node != REMOVED && node.hash == hash && match.matches(node))
+            {
+                return node;
+            }
+        }
+    }
+
+    /** Returns the node with the given name and hash code, for a table
+        holding the entries of a single directory, or <code>null</code> if
+        there is none. Takes no lock. */
+    HashNode get(int hash, final String name)
+    {
+        return get(hash, new Match()
+        {
+            @Override
+            public boolean matches(HashNode node)
+            {
+                return Names.matches(node.name, name);
+            }
+        });
+    }
+
+    /** Adds a node, which the table must not already hold. */
+    void put(HashNode node)
+    {
+        if ((used + 1) * 4 > slots.length * 3)
+        {
+            resize(size + 1);
+        }
+
+        HashNode[] table = slots;
+        int mask = table.length - 1;
+        int slot = spread(node.hash) & mask;
+        while (table[slot] != null && table[slot] != REMOVED)
+        {
+            slot = (slot + 1) & mask;
+        }
+
+        if (table[slot] == null)
+        {
+            used++;
+        }
+        SLOTS.setVolatile(table, slot, node);
+        size++;
+    }
+
+    /** Removes a node, if the table holds it. */
+    void remove(HashNode node)
+    {
+        HashNode[] table = slots;
+        if (table.length == 0)
+        {
+            return;
+        }
+
+        int mask = table.length - 1;
+        for (int slot = spread(node.hash) & mask; table[slot] != null; slot = (slot + 1) & mask)
+        {
+            if (table[slot] == node)
+            {
+                SLOTS.setVolatile(table, slot, REMOVED);
+                size--;
+                if (size * 8 < table.length)
+                {
+                    resize(size);
+                }
+                return;
+            }
+        }
+    }
+
+    /** Returns the nodes in the table. Takes no lock. */
+    HashNode[] nodes()
+    {
+        HashNode[] table = slots;
+        ArrayList<HashNode> nodes = new ArrayList<>();
+
+        for (int slot = 0; slot < table.length; slot++)
+        {
+            HashNode node = (HashNode) SLOTS.getVolatile(table, slot);
+            if (node != null && node != REMOVED)
+            {
+                nodes.add(node);
+            }
+        }
+        return nodes.toArray(new HashNode[0]);
+    }
+
+    /** Mixes the bits of a hash code, so that paths differing only in their
+        last characters fall in distant slots. */
+    static int spread(int hash)
+    {
+        hash ^= hash >>> 16;
+        hash *= 0x85ebca6b;
+        hash ^= hash >>> 13;
+        hash *= 0xc2b2ae35;
+        return hash ^ (hash >>> 16);
+    }
+
+    /** Replaces the array with one sized for the given number of nodes,
+        holding the nodes of the current one. */
+    private void resize(int count)
+    {
+        if (count == 0)
+        {
+            slots = EMPTY;
+            used = 0;
+            return;
+        }
+
+        int capacity = 2;
+        while (count * 4 > capacity * 3)
+        {
+            capacity *= 2;
+        }
+
+        HashNode[] old = slots;
+        HashNode[] table = new HashNode[capacity];
+        int mask = capacity - 1;
+
+        for (HashNode node : old)
+        {
+            if (node == null || node == REMOVED)
+            {
+                continue;
+            }
+
+            int slot = spread(node.hash) & mask;
+            while (table[slot] != null)
+            {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = node;
+        }
+
+        // The array is filled before it is published, and readers of the
+        // volatile field see it filled.
+        slots = table;
+        used = size;
+    }
+}
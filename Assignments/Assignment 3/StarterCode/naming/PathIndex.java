@@ -0,0 +1,88 @@
+package naming;
+
+import common.Path;
+
+import java.util.ArrayList;
+
+/** Index of every node of a directory tree by its full path.
+
+    <p>
+    The index does not hold the paths themselves, which would take more room
+    than the nodes. Nodes are found by the hash code of their path, and a node
+    with the hash code sought is checked against the path by comparing the
+    names of the node and of the directories above it with the components of
+    the path, from the last. The index is divided into segments by hash code,
+    each a <code>NodeTable</code> changed under its own lock, so that changes
+    to different directories seldom wait for each other. Lookups take no
+    lock.
+ */
+final class PathIndex
+{
+    /** Number of segments, a power of two. */
+    private static final int SEGMENTS = 64;
+
+    private final NodeTable[] segments = new NodeTable[SEGMENTS];
+
+    PathIndex()
+    {
+        for (int index = 0; index < SEGMENTS; index++)
+        {
+            segments[index] = new NodeTable();
+        }
+    }
+
+    /** Returns the node at a path, or <code>null</code> if there is none. */
+    HashNode get(Path path)
+    {
+        final ArrayList<String> names = new ArrayList<>();
+        for (String name : path)
+        {
+            names.add(name);
+        }
+
+        int hash = path.hashCode();
+        return segment(hash).get(hash, new NodeTable.Match()
+        {
+            @Override
+            public boolean matches(HashNode node)
+            {
+                for (int index = names.size() - 1; index >= 0; index--)
+                {
+                    if (node == null || !Names.matches(node.name, names.get(index)))
+                    {
+                        return false;
+                    }
+                    node = node.parent;
+                }
+                // The path must lead back to the root, and no further.
+                return node != null && node.parent == null;
+            }
+        });
+    }
+
+    void add(HashNode node)
+    {
+        NodeTable segment = segment(node.hash);
+        synchronized (segment)
+        {
+            segment.put(node);
+        }
+    }
+
+    void remove(HashNode node)
+    {
+        NodeTable segment = segment(node.hash);
+        synchronized (segment)
+        {
+            segment.remove(node);
+        }
+    }
+
+    /** Returns the segment holding the nodes with a hash code. The segment
+        is chosen by the high bits of the mixed hash code, and slots within
+        it by the low bits. */
+    private NodeTable segment(int hash)
+    {
+        return segments[NodeTable.spread(hash) >>> (32 - Integer.numberOfTrailingZeros(SEGMENTS))];
+    }
+}
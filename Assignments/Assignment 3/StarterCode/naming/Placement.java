@@ -0,0 +1,458 @@
+package naming;
+
+import common.Path;
+import rmi.Deadline;
+import rmi.RMIException;
+import storage.StorageLoad;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Placement of new files on the storage servers of a naming server.
+
+    <p>
+    While the naming server runs, a thread asks every registered storage
+    server for its capacity and load every
+    <code>naming.placement.refreshMillis</code> milliseconds (1000 by
+    default), and as soon as a server registers. Each request must complete
+    within the same interval; a server which does not answer keeps its last
+    report. Between reports, the files placed on each server are counted, so
+    that policies can account for them.
+
+    <p>
+    For each new file, the storage servers which may host it are offered to
+    the <code>PlacementPolicy</code>. Servers restored from the journal which
+    have not registered again are left out, and so are servers whose usable
+    space is below <code>naming.placement.reserve</code> percent (2 by
+    default) of their total space, unless every server is. A choice is
+    counted, by server, only once the file has been created on the chosen
+    server, so that creations which fail do not count as load. The counts and
+    last reports can be read with <code>getServers</code> or over JMX.
+ */
+public final class Placement implements PlacementMXBean
+{
+    private static final long REFRESH_MILLIS =
+        Long.getLong("naming.placement.refreshMillis", 1000);
+    private static final int RESERVE_PERCENT =
+        Integer.getInteger("naming.placement.reserve", 2);
+
+    /** Registered storage servers, shared with the naming server. */
+    private final List<ServerStub> servers;
+    private volatile PlacementPolicy policy;
+    private final LongAdder decisions = new LongAdder();
+    private final LongAdder reserveExclusions = new LongAdder();
+
+    /** Whether the refresh thread runs. Guarded by the object. */
+    private boolean running = false;
+    /** Whether a refresh is wanted before the interval ends. Guarded by the
+        object. */
+    private boolean wake = false;
+    private ObjectName name = null;
+
+    Placement(List<ServerStub> servers, PlacementPolicy policy)
+    {
+        this.servers = servers;
+        this.policy = policy;
+    }
+
+    /** Sets the policy used for the files created from now on. */
+    public void setPolicy(PlacementPolicy policy)
+    {
+        if (policy == null)
+        {
+            throw new NullPointerException("Placement policy is null");
+        }
+        this.policy = policy;
+    }
+
+    @Override
+    public String getPolicy()
+    {
+        return policy.toString();
+    }
+
+    @Override
+    public long getDecisions()
+    {
+        return decisions.sum();
+    }
+
+    @Override
+    public long getReserveExclusions()
+    {
+        return reserveExclusions.sum();
+    }
+
+    @Override
+    public List<ServerStats> getServers()
+    {
+        List<ServerStats> snapshot = new ArrayList<>();
+        for (ServerStub server : servers)
+        {
+            snapshot.add(new ServerStats(server));
+        }
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    /** Storage server chosen for a new file, not counted until
+        <code>placed</code> is called. */
+    static final class Choice
+    {
+        /** The chosen server. */
+        final ServerStub server;
+        /** Whether servers short of space were left out of the choice. */
+        private final boolean excluded;
+
+        private Choice(ServerStub server, boolean excluded)
+        {
+            this.server = server;
+            this.excluded = excluded;
+        }
+    }
+
+    /** Chooses the storage server for a new file. The choice is not counted
+        until the file has been created and <code>placed</code> is called.
+
+        @throws IllegalStateException If no storage server may host the
+                                      file.
+     */
+    Choice choose(Path file)
+    {
+        List<ServerStub> eligible = new ArrayList<>(servers.size());
+        boolean belowReserve = false;
+
+        for (ServerStub server : servers)
+        {
+            if (server.restored)
+            {
+                continue;
+            }
+            if (isBelowReserve(server.load))
+            {
+                belowReserve = true;
+                continue;
+            }
+            eligible.add(server);
+        }
+
+        if (belowReserve)
+        {
+            if (eligible.isEmpty())
+            {
+                // Every server is short of space: choose among all of them.
+                for (ServerStub server : servers)
+                {
+                    if (!server.restored)
+                    {
+                        eligible.add(server);
+                    }
+                }
+                belowReserve = false;
+            }
+        }
+
+        if (eligible.isEmpty())
+        {
+            throw new IllegalStateException("No storage servers are connected");
+        }
+
+        List<PlacementPolicy.Candidate> candidates = new ArrayList<>(eligible.size());
+        for (ServerStub server : eligible)
+        {
+            candidates.add(new PlacementPolicy.Candidate(server.id, server.load,
+                                                         server.placedSinceReport.get()));
+        }
+
+        PlacementPolicy.Candidate chosen =
+            policy.choose(file, Collections.unmodifiableList(candidates));
+        int index = candidates.indexOf(chosen);
+        if (index < 0)
+        {
+            throw new IllegalStateException("Placement policy " + policy +
+                                            " chose a server not offered to it");
+        }
+
+        return new Choice(eligible.get(index), belowReserve);
+    }
+
+    /** Counts a choice, once the file has been created on the chosen
+        server. */
+    void placed(Choice choice)
+    {
+        choice.server.placedSinceReport.incrementAndGet();
+        choice.server.chosen.increment();
+        decisions.increment();
+        if (choice.excluded)
+        {
+            reserveExclusions.increment();
+        }
+    }
+
+    private static boolean isBelowReserve(StorageLoad load)
+    {
+        return load != null &&
+               load.getUsableSpace() < load.getTotalSpace() / 100 * RESERVE_PERCENT;
+    }
+
+    /** Starts refreshing the loads of the storage servers, and registers
+        with the platform MBean server. */
+    synchronized void start()
+    {
+        if (running)
+        {
+            return;
+        }
+        running = true;
+
+        Thread refresher = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refresh();
+            }
+        }, "naming-placement");
+        refresher.setDaemon(true);
+        refresher.start();
+
+        register();
+    }
+
+    /** Stops refreshing the loads of the storage servers, and unregisters
+        from the platform MBean server. A request in progress is left to
+        complete within its interval. */
+    synchronized void stop()
+    {
+        running = false;
+        notifyAll();
+        unregister();
+    }
+
+    /** Asks the storage servers for their loads without waiting for the end
+        of the interval, after a server registers. */
+    synchronized void refreshSoon()
+    {
+        wake = true;
+        notifyAll();
+    }
+
+    /** Body of the refresh thread. */
+    private void refresh()
+    {
+        while (true)
+        {
+            for (ServerStub server : servers)
+            {
+                synchronized (this)
+                {
+                    if (!running)
+                    {
+                        return;
+                    }
+                }
+                if (!server.restored)
+                {
+                    report(server);
+                }
+            }
+
+            synchronized (this)
+            {
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REFRESH_MILLIS);
+                long remaining;
+                while (running && !wake &&
+                       (remaining = end - System.nanoTime()) > 0)
+                {
+                    try
+                    {
+                        TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+
+                if (!running)
+                {
+                    return;
+                }
+                wake = false;
+            }
+        }
+    }
+
+    /** Asks a storage server for its load. A server which does not report
+        its load keeps counting the files placed on it. */
+    private void report(ServerStub server)
+    {
+        StorageLoad load;
+        Deadline deadline = Deadline.after(REFRESH_MILLIS, TimeUnit.MILLISECONDS);
+        try
+        {
+            load = server.commandStub.load();
+        }
+        catch (RMIException | RuntimeException e)
+        {
+            server.reportFailures.increment();
+            return;
+        }
+        finally
+        {
+            deadline.close();
+        }
+
+        if (load != null)
+        {
+            server.report(load);
+        }
+    }
+
+    /** Registers with the platform MBean server. Failures are ignored: the
+        statistics remain available through <code>getServers</code>. */
+    private void register()
+    {
+        try
+        {
+            ObjectName candidate = new ObjectName("naming:type=Placement");
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            if (server.isRegistered(candidate))
+            {
+                server.unregisterMBean(candidate);
+            }
+            server.registerMBean(this, candidate);
+            name = candidate;
+        }
+        catch (JMException | RuntimeException e)
+        {
+        }
+    }
+
+    private void unregister()
+    {
+        if (name == null)
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException | RuntimeException e)
+        {
+        }
+        name = null;
+    }
+
+    /** Snapshot of the placement state of one storage server. */
+    public static final class ServerStats
+    {
+        private final int id;
+        private final String storage;
+        private final boolean restored;
+        private final long chosen;
+        private final int placedSinceReport;
+        private final long reportFailures;
+        private final long reportAgeMillis;
+        private final long totalSpace;
+        private final long usableSpace;
+        private final long files;
+        private final int activeRequests;
+
+        private ServerStats(ServerStub server)
+        {
+            StorageLoad load = server.load;
+
+            this.id = server.id;
+            this.storage = String.valueOf(server.storageStub);
+            this.restored = server.restored;
+            this.chosen = server.chosen.sum();
+            this.placedSinceReport = server.placedSinceReport.get();
+            this.reportFailures = server.reportFailures.sum();
+            this.reportAgeMillis = load == null ? -1 :
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - server.reportedAt);
+            this.totalSpace = load == null ? -1 : load.getTotalSpace();
+            this.usableSpace = load == null ? -1 : load.getUsableSpace();
+            this.files = load == null ? -1 : load.getFiles();
+            this.activeRequests = load == null ? -1 : load.getActiveRequests();
+        }
+
+        /** Returns the number given to the server when it first
+            registered. */
+        public int getId()
+        {
+            return id;
+        }
+
+        /** Returns a description of the server's storage stub. */
+        public String getStorage()
+        {
+            return storage;
+        }
+
+        /** Returns whether the server was restored from the journal and has
+            not registered again. */
+        public boolean isRestored()
+        {
+            return restored;
+        }
+
+        /** Returns the number of new files placed on the server. */
+        public long getChosen()
+        {
+            return chosen;
+        }
+
+        /** Returns the number of files placed on the server since its last
+            report. */
+        public int getPlacedSinceReport()
+        {
+            return placedSinceReport;
+        }
+
+        /** Returns the number of requests for the server's load which
+            failed. */
+        public long getReportFailures()
+        {
+            return reportFailures;
+        }
+
+        /** Returns the age of the server's last report in milliseconds, or
+            <code>-1</code> if it has not reported. The last four values are
+            <code>-1</code> in the same case. */
+        public long getReportAgeMillis()
+        {
+            return reportAgeMillis;
+        }
+
+        public long getTotalSpace()
+        {
+            return totalSpace;
+        }
+
+        public long getUsableSpace()
+        {
+            return usableSpace;
+        }
+
+        public long getFiles()
+        {
+            return files;
+        }
+
+        public int getActiveRequests()
+        {
+            return activeRequests;
+        }
+    }
+}
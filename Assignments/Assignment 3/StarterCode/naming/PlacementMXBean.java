@@ -0,0 +1,28 @@
+package naming;
+
+import java.util.List;
+
+/** Management interface of <code>Placement</code>.
+
+    <p>
+    A started naming server registers its placement with the platform MBean
+    server as <code>naming:type=Placement</code>, so that the choices of
+    storage servers for new files, and the loads they were based on, can be
+    read with any JMX client.
+ */
+public interface PlacementMXBean
+{
+    /** Returns the name of the placement policy. */
+    public String getPolicy();
+
+    /** Returns the number of storage servers chosen for new files. */
+    public long getDecisions();
+
+    /** Returns the number of choices from which servers were left out for
+        having less usable space than their reserve. */
+    public long getReserveExclusions();
+
+    /** Returns a snapshot of the state of every registered storage
+        server. */
+    public List<Placement.ServerStats> getServers();
+}
@@ -0,0 +1,265 @@
+package naming;
+
+import common.Path;
+import storage.StorageLoad;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Choice of the storage server on which the naming server creates a new
+    file.
+
+    <p>
+    A policy is given the storage servers which may host the file, with the
+    capacity and load each last reported, and chooses one of them. The policy
+    of a naming server is set with <code>Placement.setPolicy</code>, and is
+    otherwise selected by the system property <code>naming.placement</code>:
+    <ul>
+    <li><code>p2c</code> (the default) picks two servers at random and takes
+        the less loaded one, counting its client requests and the files placed
+        on it since it last reported, and, between equally loaded servers,
+        the one with more usable space. Choosing between two servers, rather
+        than among all of them, keeps files from all going to the same server
+        between two reports.</li>
+    <li><code>space</code> takes the server with the most usable space.
+        Since files are created empty, and fill only as they are written, the
+        same server is chosen until its next report shows the space taken;
+        this suits files written soon after they are created.</li>
+    <li><code>hash</code> chooses by the path alone, by rendezvous hashing:
+        each path goes to the server for which a hash of the path and the
+        server's identifier is highest, so that a path is placed on the same
+        server whenever that server may host it, and adding or removing a
+        server moves only the paths which it would take or held.</li>
+    <li><code>random</code> chooses uniformly at random.</li>
+    </ul>
+
+    <p>
+    Whatever the policy, the naming server does not offer it a server whose
+    usable space is below its reserve while another server is above its
+    own. See <code>Placement</code>.
+
+    <p>
+    Policies are called concurrently, by every thread creating files, and
+    must be thread-safe.
+ */
+public abstract class PlacementPolicy
+{
+    /** Chooses the storage server for a new file.
+
+        @param file Path of the file.
+        @param candidates Servers which may host the file. There is at least
+                          one.
+        @return One of the candidates.
+     */
+    public abstract Candidate choose(Path file, List<Candidate> candidates);
+
+    /** Storage server which may host a new file, as seen by a policy. */
+    public static final class Candidate
+    {
+        private final int id;
+        private final StorageLoad load;
+        private final int placedSinceReport;
+
+        Candidate(int id, StorageLoad load, int placedSinceReport)
+        {
+            this.id = id;
+            this.load = load;
+            this.placedSinceReport = placedSinceReport;
+        }
+
+        /** Returns the number given to the storage server when it first
+            registered, which does not change while the naming server
+            keeps its journal. */
+        public int getId()
+        {
+            return id;
+        }
+
+        /** Returns the capacity and load last reported by the server, or
+            <code>null</code> if it has not reported them. */
+        public StorageLoad getLoad()
+        {
+            return load;
+        }
+
+        /** Returns the number of files placed on the server since its last
+            report, which the report does not count. */
+        public int getPlacedSinceReport()
+        {
+            return placedSinceReport;
+        }
+
+        /** Returns the client requests last reported by the server, plus the
+            files placed on it since. */
+        long pending()
+        {
+            return (load == null ? 0 : load.getActiveRequests()) + placedSinceReport;
+        }
+
+        /** Returns the usable space last reported by the server, or
+            <code>-1</code> if it has not reported it. */
+        long usableSpace()
+        {
+            return load == null ? -1 : load.getUsableSpace();
+        }
+    }
+
+    /** Returns the policy selected by the system property
+        <code>naming.placement</code>. */
+    static PlacementPolicy fromProperty()
+    {
+        String name = System.getProperty("naming.placement", "p2c");
+
+        if ("space".equalsIgnoreCase(name))
+        {
+            return mostSpace();
+        }
+        if ("hash".equalsIgnoreCase(name))
+        {
+            return hashing();
+        }
+        if ("random".equalsIgnoreCase(name))
+        {
+            return random();
+        }
+        return twoChoices();
+    }
+
+    /** Returns a policy choosing uniformly at random. */
+    public static PlacementPolicy random()
+    {
+        return new PlacementPolicy()
+        {
+            @Override
+            public Candidate choose(Path file, List<Candidate> candidates)
+            {
+                return candidates.get(ThreadLocalRandom.current().nextInt(candidates.size()));
+            }
+
+            @Override
+            public String toString()
+            {
+                return "random";
+            }
+        };
+    }
+
+    /** Returns a policy choosing the less loaded of two servers picked at
+        random. */
+    public static PlacementPolicy twoChoices()
+    {
+        return new PlacementPolicy()
+        {
+            @Override
+            public Candidate choose(Path file, List<Candidate> candidates)
+            {
+                if (candidates.size() == 1)
+                {
+                    return candidates.get(0);
+                }
+
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                int first = random.nextInt(candidates.size());
+                int second = random.nextInt(candidates.size() - 1);
+                if (second >= first)
+                {
+                    second++;
+                }
+
+                Candidate a = candidates.get(first);
+                Candidate b = candidates.get(second);
+                if (a.pending() != b.pending())
+                {
+                    return b.pending() < a.pending() ? b : a;
+                }
+                return b.usableSpace() > a.usableSpace() ? b : a;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "p2c";
+            }
+        };
+    }
+
+    /** Returns a policy choosing the server with the most usable space.
+        Servers which have not reported their space are chosen only if none
+        has, and ties go to the server with fewer files placed since its
+        report. */
+    public static PlacementPolicy mostSpace()
+    {
+        return new PlacementPolicy()
+        {
+            @Override
+            public Candidate choose(Path file, List<Candidate> candidates)
+            {
+                // Start at a random server, so that ties are broken at
+                // random.
+                int start = ThreadLocalRandom.current().nextInt(candidates.size());
+                Candidate best = null;
+
+                for (int i = 0; i < candidates.size(); i++)
+                {
+                    Candidate candidate = candidates.get((start + i) % candidates.size());
+                    if (best == null ||
+                        candidate.usableSpace() > best.usableSpace() ||
+                        (candidate.usableSpace() == best.usableSpace() &&
+                         candidate.getPlacedSinceReport() < best.getPlacedSinceReport()))
+                    {
+                        best = candidate;
+                    }
+                }
+                return best;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "space";
+            }
+        };
+    }
+
+    /** Returns a policy choosing by the path of the file, by rendezvous
+        hashing. */
+    public static PlacementPolicy hashing()
+    {
+        return new PlacementPolicy()
+        {
+            @Override
+            public Candidate choose(Path file, List<Candidate> candidates)
+            {
+                Candidate best = null;
+                long bestScore = 0;
+
+                for (Candidate candidate : candidates)
+                {
+                    long score = mix(((long) file.hashCode() << 32) ^ candidate.getId());
+                    if (best == null || score > bestScore)
+                    {
+                        best = candidate;
+                        bestScore = score;
+                    }
+                }
+                return best;
+            }
+
+            @Override
+            public String toString()
+            {
+                return "hash";
+            }
+        };
+    }
+
+    /** Mixes the bits of a 64-bit value. */
+    private static long mix(long value)
+    {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        return value ^ (value >>> 33);
+    }
+}
@@ -2,13 +2,20 @@ package naming;
 
 import common.*;
 import storage.*;
+import rmi.Lane;
+import rmi.Priority;
 import rmi.RMIException;
+import rmi.RemoteInterface;
 
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used once, on startup, by each storage server. Its
+    calls are served in the control lane, ahead of client requests waiting at
+    the naming server.
  */
+@RemoteInterface
+@Priority(Lane.CONTROL)
 public interface Registration
 {
     /** Registers a storage server with the naming server.
@@ -2,7 +2,10 @@ package naming;
 
 import java.io.*;
 import common.*;
+import rmi.Cacheable;
+import rmi.Idempotent;
 import rmi.RMIException;
+import rmi.RemoteInterface;
 import storage.Storage;
 
 /** Naming server client service interface.
@@ -14,6 +17,7 @@ import storage.Storage;
     The term <em>object</em> in the documentation below refers to any filesystem
     object: either a file or a directory.
  */
+@RemoteInterface
 public interface Service
 {
     /** Determines whether a path refers to a directory.
@@ -26,6 +30,8 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable
+    @Idempotent
     public boolean isDirectory(Path path)
         throws RMIException, FileNotFoundException;
 
@@ -39,6 +45,7 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public String[] list(Path directory)
         throws RMIException, FileNotFoundException;
 
@@ -91,6 +98,8 @@ public interface Service
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable
+    @Idempotent
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
 }
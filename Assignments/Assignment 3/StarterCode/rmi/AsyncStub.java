@@ -0,0 +1,134 @@
+package rmi;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/** Asynchronous view of an RMI stub.
+
+    <p>
+    An asynchronous stub starts remote calls without blocking the caller for
+    the round trip. A call is written as an ordinary call on the remote
+    interface, passed to <code>call</code> or <code>run</code>:
+
+    <pre>
+    CompletableFuture&lt;Long&gt; size = storage.call(s -&gt; s.size(file));
+    </pre>
+
+    The expression is evaluated once by a <code>CallRecorder</code>, which
+    notes the method and arguments instead of contacting the server; the
+    recorded call is then sent, and the returned future completes with its
+    result. The expression must make exactly one call on the interface, and its
+    own return value is ignored.
+
+    <p>
+    The future completes exceptionally with the exception the synchronous stub
+    would have thrown: an <code>RMIException</code> if the call could not be
+    made, or the exception raised by the remote method. Futures are completed
+    on the stub's executor, the common fork-join pool unless another is given,
+    so that dependent actions never run on a connection's reader thread.
+
+    <p>
+    Asynchronous stubs are created with <code>Stub.createAsync</code>. Any
+    number of calls may be in progress on one asynchronous stub at a time; they
+    share the pooled connections of the synchronous stubs.
+ */
+public final class AsyncStub<T>
+{
+    /** A call on a remote interface which returns a value. */
+    public interface Call<T, R>
+    {
+        R call(T stub) throws Exception;
+    }
+
+    /** A call on a remote interface whose result is not needed. */
+    public interface Action<T>
+    {
+        void run(T stub) throws Exception;
+    }
+
+    private final T stub;
+    private final Stub.StubHandler handler;
+    private final Executor executor;
+    private final CallRecorder<T> recorder;
+
+    AsyncStub(Class<T> c, T stub, Executor executor)
+    {
+        this.stub = stub;
+        this.handler = Stub.handlerOf(stub);
+        this.executor = executor == null ? ForkJoinPool.commonPool() : executor;
+        this.recorder = new CallRecorder<T>(c, handler);
+    }
+
+    /** Returns the synchronous stub for the same remote object. */
+    public T stub()
+    {
+        return stub;
+    }
+
+    /** Starts a remote call returning a value.
+
+        @param call Expression making exactly one call on the remote interface.
+        @return A future completed with the result of the remote call.
+        @throws IllegalArgumentException If <code>call</code> does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws NullPointerException If <code>call</code> is <code>null</code>.
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> call(Call<T, R> call)
+    {
+        return (CompletableFuture<R>) start(recorder.record(call));
+    }
+
+    /** Starts a remote call whose result is discarded.
+
+        @param action Expression making exactly one call on the remote
+                      interface.
+        @return A future completed when the remote call returns.
+        @throws IllegalArgumentException If <code>action</code> does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws NullPointerException If <code>action</code> is
+                                     <code>null</code>.
+     */
+    public CompletableFuture<Void> run(Action<T> action)
+    {
+        return start(recorder.recordAction(action)).thenApply(new Function<Object, Void>()
+        {
+            @Override
+            public Void apply(Object value)
+            {
+                return null;
+            }
+        });
+    }
+
+    /** Sends a recorded call, completing the returned future on the stub's
+        executor. */
+    private CompletableFuture<Object> start(CallRecorder.Recording recorded)
+    {
+        final CompletableFuture<Object> result = new CompletableFuture<>();
+
+        handler.invokeAsync(recorded.method, recorded.args).whenCompleteAsync(
+            new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    if (error != null)
+                    {
+                        result.completeExceptionally(error);
+                    }
+                    else
+                    {
+                        result.complete(value);
+                    }
+                }
+            }, executor);
+
+        return result;
+    }
+}
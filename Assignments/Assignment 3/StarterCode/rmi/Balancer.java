@@ -0,0 +1,207 @@
+package rmi;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Choice of endpoint for each call made by a stub with several equivalent
+    endpoints.
+
+    <p>
+    The balancer keeps, for every endpoint called by such a stub, the number
+    of calls in progress and the state of its ejection. Both are shared by all
+    the stubs in the virtual machine, so that stubs for the same replicas
+    spread their calls together. Calls are spread by one of two policies,
+    selected by the system property <code>rmi.balancer</code>:
+    <ul>
+    <li><code>p2c</code> (the default) picks two endpoints at random and
+        takes the one with fewer calls in progress. This avoids sending every
+        call to the same endpoint when many stubs see the same counts.</li>
+    <li><code>least</code> takes the endpoint with the fewest calls in
+        progress, breaking ties at random.</li>
+    </ul>
+
+    <p>
+    An endpoint to which a connection cannot be opened is ejected: it is not
+    chosen while any endpoint which is not ejected remains. Its first ejection
+    lasts <code>rmi.balancer.ejectMillis</code> milliseconds (100 by default),
+    and each further consecutive failure doubles it, up to
+    <code>rmi.balancer.maxEjectMillis</code> (30 seconds by default). A
+    successful connection ends the ejection. If every endpoint is ejected, the
+    one whose ejection ends first is tried.
+ */
+final class Balancer
+{
+    private static final boolean LEAST_OUTSTANDING =
+        "least".equalsIgnoreCase(System.getProperty("rmi.balancer", "p2c"));
+    private static final long EJECT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("rmi.balancer.ejectMillis", 100));
+    private static final long MAX_EJECT_NANOS = TimeUnit.MILLISECONDS.toNanos(
+        Long.getLong("rmi.balancer.maxEjectMillis", 30000));
+
+    private static final Map<InetSocketAddress, Health> health =
+        new ConcurrentHashMap<>();
+
+    private Balancer()
+    {
+    }
+
+    /** State of one endpoint. */
+    private static class Health
+    {
+        final AtomicInteger outstanding = new AtomicInteger();
+        /** Number of consecutive failed connections. Guarded by the
+            object. */
+        private int failures = 0;
+        /** End of the current ejection, as given by
+            <code>System.nanoTime</code>, if <code>ejected</code>. */
+        private volatile long ejectedUntil;
+        private volatile boolean ejected = false;
+
+        boolean isEjected(long now)
+        {
+            return ejected && ejectedUntil - now > 0;
+        }
+    }
+
+    private static Health health(InetSocketAddress endpoint)
+    {
+        Health state = health.get(endpoint);
+        if (state == null)
+        {
+            health.putIfAbsent(endpoint, new Health());
+            state = health.get(endpoint);
+        }
+        return state;
+    }
+
+    /** Chooses the endpoint for a call.
+
+        @param endpoints The endpoints of the stub.
+        @param tried Endpoints already tried by the call, which are not
+                     chosen again.
+        @return The endpoint, or <code>null</code> if every endpoint has been
+                tried.
+     */
+    static InetSocketAddress choose(InetSocketAddress[] endpoints,
+                                    Collection<InetSocketAddress> tried)
+    {
+        long now = System.nanoTime();
+        List<InetSocketAddress> candidates = new ArrayList<>(endpoints.length);
+        InetSocketAddress soonest = null;
+        long soonestEnd = 0;
+
+        for (InetSocketAddress endpoint : endpoints)
+        {
+            if (tried != null && tried.contains(endpoint))
+            {
+                continue;
+            }
+
+            Health state = health(endpoint);
+            if (!state.isEjected(now))
+            {
+                candidates.add(endpoint);
+            }
+            else if (soonest == null || state.ejectedUntil - soonestEnd < 0)
+            {
+                soonest = endpoint;
+                soonestEnd = state.ejectedUntil;
+            }
+        }
+
+        if (candidates.isEmpty())
+        {
+            return soonest;
+        }
+        if (candidates.size() == 1)
+        {
+            return candidates.get(0);
+        }
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (LEAST_OUTSTANDING)
+        {
+            int start = random.nextInt(candidates.size());
+            InetSocketAddress best = null;
+            int fewest = Integer.MAX_VALUE;
+            for (int i = 0; i < candidates.size(); i++)
+            {
+                InetSocketAddress endpoint =
+                    candidates.get((start + i) % candidates.size());
+                int outstanding = health(endpoint).outstanding.get();
+                if (outstanding < fewest)
+                {
+                    best = endpoint;
+                    fewest = outstanding;
+                }
+            }
+            return best;
+        }
+
+        int first = random.nextInt(candidates.size());
+        int second = random.nextInt(candidates.size() - 1);
+        if (second >= first)
+        {
+            second++;
+        }
+        InetSocketAddress a = candidates.get(first);
+        InetSocketAddress b = candidates.get(second);
+        return health(b).outstanding.get() < health(a).outstanding.get() ? b : a;
+    }
+
+    /** Records the start of a call to an endpoint. */
+    static void started(InetSocketAddress endpoint)
+    {
+        health(endpoint).outstanding.incrementAndGet();
+    }
+
+    /** Records the end of a call to an endpoint, whatever its outcome. */
+    static void finished(InetSocketAddress endpoint)
+    {
+        health(endpoint).outstanding.decrementAndGet();
+    }
+
+    /** Records a connection to an endpoint, ending any ejection. */
+    static void connected(InetSocketAddress endpoint)
+    {
+        Health state = health(endpoint);
+        if (state.ejected)
+        {
+            synchronized (state)
+            {
+                state.failures = 0;
+                state.ejected = false;
+            }
+        }
+    }
+
+    /** Records a failure to connect to an endpoint, ejecting it. */
+    static void connectFailed(InetSocketAddress endpoint)
+    {
+        Health state = health(endpoint);
+        synchronized (state)
+        {
+            long duration = EJECT_NANOS << Math.min(state.failures, 30);
+            if (duration <= 0 || duration > MAX_EJECT_NANOS)
+            {
+                duration = MAX_EJECT_NANOS;
+            }
+            state.failures++;
+            state.ejectedUntil = System.nanoTime() + duration;
+            state.ejected = true;
+        }
+    }
+
+    /** Returns <code>true</code> if the endpoint is currently ejected. */
+    static boolean isEjected(InetSocketAddress endpoint)
+    {
+        return health(endpoint).isEjected(System.nanoTime());
+    }
+}
@@ -0,0 +1,240 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/** Group of calls to one remote object, sent in a single round trip.
+
+    <p>
+    Calls are added with <code>call</code> or <code>run</code>, written as
+    ordinary calls on the remote interface in the same way as for
+    <code>AsyncStub</code>, and nothing is sent until <code>execute</code> is
+    called. The skeleton then executes the calls one after the other, in the
+    order in which they were added, and sends back all results together. A
+    call that fails does not stop the calls after it.
+
+    <p>
+    Each call is given a <code>Result</code>. Once the batch has executed, the
+    result holds the call's return value, or the exception the call would have
+    thrown if made through the synchronous stub - including an
+    <code>RMIException</code> if the skeleton could not decode or invoke that
+    call. If the batch as a whole cannot be sent or its reply received,
+    <code>execute</code> throws an <code>RMIException</code> and every result
+    holds it.
+
+    <p>
+    Batches are created with <code>Stub.createBatch</code>. A batch executes
+    once and is not safe for use by several threads.
+ */
+public final class Batch<T>
+{
+    private final Stub.StubHandler handler;
+    private final CallRecorder<T> recorder;
+    private final List<CallRecorder.Recording> calls = new ArrayList<>();
+    private final List<Result<?>> results = new ArrayList<>();
+    private boolean executed = false;
+
+    Batch(Class<T> c, T stub)
+    {
+        this.handler = Stub.handlerOf(stub);
+        this.recorder = new CallRecorder<T>(c, handler);
+    }
+
+    /** Outcome of one call in a batch. */
+    public static final class Result<R>
+    {
+        private boolean done = false;
+        private Object value = null;
+        private Throwable exception = null;
+
+        private Result()
+        {
+        }
+
+        /** Returns <code>true</code> once the batch has executed, or has
+            failed. */
+        public boolean isDone()
+        {
+            return done;
+        }
+
+        /** Returns the exception raised by the call, or <code>null</code> if
+            the call returned normally.
+
+            @throws IllegalStateException If the batch has not executed.
+         */
+        public Throwable exception()
+        {
+            check();
+            return exception;
+        }
+
+        /** Returns the call's result, or throws the call's exception.
+
+            @throws IllegalStateException If the batch has not executed.
+            @throws Exception The exception raised by the remote method, or an
+                              <code>RMIException</code> if the call could not
+                              be made.
+         */
+        @SuppressWarnings("unchecked")
+        public R get() throws Exception
+        {
+            check();
+
+            if (exception == null)
+            {
+                return (R) value;
+            }
+            if (exception instanceof Exception)
+            {
+                throw (Exception) exception;
+            }
+            if (exception instanceof Error)
+            {
+                throw (Error) exception;
+            }
+            throw new RMIException(exception);
+        }
+
+        private void check()
+        {
+            if (!done)
+            {
+                throw new IllegalStateException("Batch has not executed");
+            }
+        }
+
+        private void complete(Object value, Throwable exception)
+        {
+            this.value = value;
+            this.exception = exception;
+            this.done = true;
+        }
+    }
+
+    /** Adds a call returning a value.
+
+        @param call Expression making exactly one call on the remote interface.
+        @return The result of the call, available once the batch executes.
+        @throws IllegalArgumentException If <code>call</code> does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws IllegalStateException If the batch has already executed.
+     */
+    public <R> Result<R> call(AsyncStub.Call<T, R> call)
+    {
+        checkOpen();
+        return add(recorder.record(call));
+    }
+
+    /** Adds a call whose result is not needed.
+
+        @param action Expression making exactly one call on the remote
+                      interface.
+        @return The result of the call, available once the batch executes. Its
+                value is always <code>null</code>.
+        @throws IllegalArgumentException If <code>action</code> does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws IllegalStateException If the batch has already executed.
+     */
+    public Result<Void> run(AsyncStub.Action<T> action)
+    {
+        checkOpen();
+        return add(recorder.recordAction(action));
+    }
+
+    /** Returns the number of calls in the batch. */
+    public int size()
+    {
+        return calls.size();
+    }
+
+    /** Sends all calls in one request and waits for their results.
+
+        @throws RMIException If the batch cannot be sent or its reply cannot be
+                             received. Every result then holds this exception.
+        @throws IllegalStateException If the batch has already executed.
+     */
+    public void execute() throws RMIException
+    {
+        checkOpen();
+        executed = true;
+
+        if (calls.isEmpty())
+        {
+            return;
+        }
+
+        Method[] methods = new Method[calls.size()];
+        Object[][] args = new Object[calls.size()][];
+        for (int i = 0; i < methods.length; i++)
+        {
+            methods[i] = calls.get(i).method;
+            args[i] = calls.get(i).args;
+        }
+
+        CompletableFuture<Object> reply = handler.invokeBatchAsync(methods, args);
+
+        Wire.Reply[] replies;
+        try
+        {
+            replies = (Wire.Reply[]) reply.get();
+        }
+        catch (ExecutionException e)
+        {
+            RMIException failure = e.getCause() instanceof RMIException
+                ? (RMIException) e.getCause() : new RMIException(e.getCause());
+            failAll(failure);
+            throw failure;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            RMIException failure = new RMIException(e);
+            failAll(failure);
+            throw failure;
+        }
+
+        for (int i = 0; i < replies.length; i++)
+        {
+            Wire.Reply result = replies[i];
+
+            if (result.status == RMIStatus.OK)
+            {
+                results.get(i).complete(result.value, null);
+            }
+            else
+            {
+                results.get(i).complete(null, result.exception());
+            }
+        }
+    }
+
+    private <R> Result<R> add(CallRecorder.Recording recorded)
+    {
+        Result<R> result = new Result<R>();
+        calls.add(recorded);
+        results.add(result);
+        return result;
+    }
+
+    private void failAll(RMIException failure)
+    {
+        for (Result<?> result : results)
+        {
+            result.complete(null, failure);
+        }
+    }
+
+    private void checkOpen()
+    {
+        if (executed)
+        {
+            throw new IllegalStateException("Batch has already executed");
+        }
+    }
+}
@@ -0,0 +1,351 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+
+import common.Path;
+
+/** Compact binary codec.
+
+    <p>
+    A request is the method number from the interface's
+    <code>MethodSchema</code> followed by the arguments. A reply is a status
+    byte followed by the result or exception. Every value is a one-byte type
+    tag followed by its encoding: primitives in their fixed-size big-endian
+    form, and strings, byte arrays, paths and arrays of paths and strings with a
+    variable-length count prefix. Values of any other type are sent as
+    length-prefixed Java serialization.
+ */
+class BinaryCodec extends Codec
+{
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHAR = 4;
+    private static final byte INT = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte BYTES = 10;
+    private static final byte PATH = 11;
+    private static final byte PATH_ARRAY = 12;
+    private static final byte STRING_ARRAY = 13;
+    private static final byte SERIALIZED = 14;
+
+    private static final RMIStatus[] statuses = RMIStatus.values();
+
+    @Override
+    byte id()
+    {
+        return BINARY;
+    }
+
+    @Override
+    void writeRequest(DataOutputStream out, MethodSchema schema, Method method,
+                      Object[] args) throws IOException
+    {
+        int id = schema.idOf(method);
+        if (id < 0)
+        {
+            throw new IOException("Method " + method.getName() + " is not remote");
+        }
+
+        writeVarint(out, id);
+
+        int count = args == null ? 0 : args.length;
+        writeVarint(out, count);
+        for (int i = 0; i < count; i++)
+        {
+            writeValue(out, args[i]);
+        }
+    }
+
+    @Override
+    Wire.Request readRequest(DataInputStream in, MethodSchema schema)
+        throws IOException, NoSuchMethodException, ClassNotFoundException
+    {
+        int id = readVarint(in);
+        Method method = schema.method(id);
+
+        int count = readSize(in);
+        Object[] args = count == 0 ? null : new Object[count];
+        for (int i = 0; i < count; i++)
+        {
+            args[i] = readValue(in);
+        }
+
+        return new Wire.Request(id, method, args);
+    }
+
+    @Override
+    void writeReply(DataOutputStream out, RMIStatus status, Object value)
+        throws IOException
+    {
+        out.writeByte(status.ordinal());
+        writeValue(out, value);
+    }
+
+    @Override
+    Wire.Reply readReply(DataInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        int status = in.readUnsignedByte();
+        if (status >= statuses.length)
+        {
+            throw new IOException("Invalid reply status " + status);
+        }
+
+        return new Wire.Reply(statuses[status], readValue(in));
+    }
+
+    static void writeValue(DataOutputStream out, Object value) throws IOException
+    {
+        if (value == null)
+        {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof String)
+        {
+            out.writeByte(STRING);
+            writeString(out, (String) value);
+        }
+        else if (value instanceof byte[])
+        {
+            byte[] bytes = (byte[]) value;
+            out.writeByte(BYTES);
+            writeVarint(out, bytes.length);
+            out.write(bytes);
+        }
+        else if (value.getClass() == Path.class)
+        {
+            out.writeByte(PATH);
+            writeString(out, value.toString());
+        }
+        else if (value.getClass() == Path[].class)
+        {
+            Path[] paths = (Path[]) value;
+            out.writeByte(PATH_ARRAY);
+            writeVarint(out, paths.length);
+            for (Path path : paths)
+            {
+                writeString(out, path == null ? null : path.toString());
+            }
+        }
+        else if (value.getClass() == String[].class)
+        {
+            String[] strings = (String[]) value;
+            out.writeByte(STRING_ARRAY);
+            writeVarint(out, strings.length);
+            for (String string : strings)
+            {
+                writeString(out, string);
+            }
+        }
+        else if (value instanceof Boolean)
+        {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Integer)
+        {
+            out.writeByte(INT);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long)
+        {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Byte)
+        {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Short)
+        {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Character)
+        {
+            out.writeByte(CHAR);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof Float)
+        {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) value);
+        }
+        else if (value instanceof Double)
+        {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) value);
+        }
+        else
+        {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream objects = new ObjectOutputStream(bytes);
+            objects.writeObject(value);
+            objects.close();
+
+            out.writeByte(SERIALIZED);
+            writeVarint(out, bytes.size());
+            bytes.writeTo(out);
+        }
+    }
+
+    static Object readValue(DataInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        byte tag = in.readByte();
+
+        switch (tag)
+        {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHAR:
+                return in.readChar();
+            case INT:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return in.readFloat();
+            case DOUBLE:
+                return in.readDouble();
+            case STRING:
+                return readString(in);
+            case BYTES:
+            {
+                byte[] bytes = new byte[readSize(in)];
+                in.readFully(bytes);
+                return bytes;
+            }
+            case PATH:
+                return new Path(readString(in));
+            case PATH_ARRAY:
+            {
+                Path[] paths = new Path[readSize(in)];
+                for (int i = 0; i < paths.length; i++)
+                {
+                    String path = readString(in);
+                    paths[i] = path == null ? null : new Path(path);
+                }
+                return paths;
+            }
+            case STRING_ARRAY:
+            {
+                String[] strings = new String[readSize(in)];
+                for (int i = 0; i < strings.length; i++)
+                {
+                    strings[i] = readString(in);
+                }
+                return strings;
+            }
+            case SERIALIZED:
+            {
+                byte[] bytes = new byte[readSize(in)];
+                in.readFully(bytes);
+                ObjectInputStream objects = new ObjectInputStream(new ByteArrayInputStream(bytes));
+                return objects.readObject();
+            }
+            default:
+                throw new IOException("Invalid value tag " + tag);
+        }
+    }
+
+    /** Writes a string as its UTF-8 length plus one, followed by the bytes.
+        Zero stands for <code>null</code>. */
+    private static void writeString(DataOutputStream out, String string)
+        throws IOException
+    {
+        if (string == null)
+        {
+            writeVarint(out, 0);
+            return;
+        }
+
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, bytes.length + 1);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException
+    {
+        int length = readVarint(in);
+        if (length == 0)
+        {
+            return null;
+        }
+        if (length - 1 > in.available())
+        {
+            throw new IOException("Invalid string length " + (length - 1));
+        }
+
+        byte[] bytes = new byte[length - 1];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /** Reads the count of elements or bytes which follow it. Every element
+        takes at least one byte, so a count above the number of bytes left
+        cannot be right, and is refused before anything is allocated for
+        it. The stream must be over a byte array, so that every byte left is
+        available. */
+    static int readSize(DataInputStream in) throws IOException
+    {
+        int size = readVarint(in);
+        if (size > in.available())
+        {
+            throw new IOException("Invalid size " + size + " with " +
+                                  in.available() + " bytes left");
+        }
+        return size;
+    }
+
+    /** Writes a non-negative integer in seven-bit groups, low group first. */
+    static void writeVarint(DataOutputStream out, int value) throws IOException
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException
+    {
+        int value = 0;
+
+        for (int shift = 0; shift < 32; shift += 7)
+        {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                if (value < 0)
+                {
+                    throw new IOException("Invalid length " + value);
+                }
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable-length integer");
+    }
+}
@@ -0,0 +1,36 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a method of a remote interface whose results may be reused by the
+    stub for a time instead of calling the remote object again.
+
+    <p>
+    Each stub keeps the results of its calls to cacheable methods, keyed by
+    the method and its arguments, which are compared with
+    <code>equals</code>. A result is reused for <code>ttlMillis</code>
+    milliseconds. A <code>FileNotFoundException</code> raised by the method is
+    kept and raised again in the same way; the results of calls which fail
+    otherwise are not kept. Results are shared by all the callers of the stub,
+    so the method should return immutable objects.
+
+    <p>
+    A call through the stub to a method marked neither
+    <code>Cacheable</code> nor <code>Idempotent</code>, which may change the
+    state of the remote object, discards every result kept by the stub. The
+    cache does not see changes made through other stubs or other channels; a
+    caller making such a change discards the results with
+    <code>Stub.invalidateCache</code>.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Cacheable
+{
+    /** Time for which a result is reused, in milliseconds. */
+    long ttlMillis() default 1000;
+}
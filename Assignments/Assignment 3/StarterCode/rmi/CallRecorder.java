@@ -0,0 +1,176 @@
+package rmi;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+/** Captures a call written as an ordinary call on a remote interface.
+
+    <p>
+    The call expression is evaluated once against a recording object, which
+    notes the method and arguments instead of contacting the server, and
+    returns a default value. Asynchronous stubs and batches use this to accept
+    calls without changing the remote interface. A recorder may be shared by
+    several threads.
+ */
+class CallRecorder<T>
+{
+    private final Stub.StubHandler handler;
+    private final T recorder;
+    private final ThreadLocal<Recording> recording = new ThreadLocal<>();
+
+    @SuppressWarnings("unchecked")
+    CallRecorder(Class<T> c, Stub.StubHandler handler)
+    {
+        this.handler = handler;
+        this.recorder = (T) Proxy.newProxyInstance(c.getClassLoader(),
+                                                   new Class<?>[] { c },
+                                                   new Recorder());
+    }
+
+    /** A recorded call. */
+    static class Recording
+    {
+        Method method;
+        Object[] args;
+        private int count = 0;
+    }
+
+    /** Records the call made by an expression returning a value.
+
+        @throws IllegalArgumentException If the expression does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws NullPointerException If <code>call</code> is <code>null</code>.
+     */
+    Recording record(AsyncStub.Call<T, ?> call)
+    {
+        if (call == null)
+        {
+            throw new NullPointerException("Call is null");
+        }
+
+        Recording recorded = begin();
+        try
+        {
+            call.call(recorder);
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Call expression failed", e);
+        }
+        finally
+        {
+            recording.remove();
+        }
+        return check(recorded);
+    }
+
+    /** Records the call made by an expression whose result is not needed.
+
+        @throws IllegalArgumentException If the expression does not make
+                                         exactly one call on the remote
+                                         interface.
+        @throws NullPointerException If <code>action</code> is
+                                     <code>null</code>.
+     */
+    Recording recordAction(AsyncStub.Action<T> action)
+    {
+        if (action == null)
+        {
+            throw new NullPointerException("Action is null");
+        }
+
+        Recording recorded = begin();
+        try
+        {
+            action.run(recorder);
+        }
+        catch (Exception e)
+        {
+            throw new IllegalArgumentException("Call expression failed", e);
+        }
+        finally
+        {
+            recording.remove();
+        }
+        return check(recorded);
+    }
+
+    private Recording begin()
+    {
+        Recording recorded = new Recording();
+        recording.set(recorded);
+        return recorded;
+    }
+
+    private Recording check(Recording recorded)
+    {
+        if (recorded.count != 1 || !handler.isRemoteMethod(recorded.method))
+        {
+            throw new IllegalArgumentException(
+                "Call expression must make exactly one remote call");
+        }
+        return recorded;
+    }
+
+    /** Invocation handler of the recording object. */
+    private class Recorder implements InvocationHandler
+    {
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            Recording recorded = recording.get();
+            if (recorded == null)
+            {
+                throw new IllegalStateException(
+                    "Recording stub used outside of a call expression");
+            }
+
+            recorded.method = method;
+            recorded.args = args;
+            recorded.count++;
+
+            return defaultValue(method.getReturnType());
+        }
+    }
+
+    /** Returns the value returned by the recording object, which must be
+        unboxable when the method returns a primitive. */
+    private static Object defaultValue(Class<?> type)
+    {
+        if (!type.isPrimitive() || type == void.class)
+        {
+            return null;
+        }
+        if (type == boolean.class)
+        {
+            return false;
+        }
+        if (type == char.class)
+        {
+            return (char) 0;
+        }
+        if (type == byte.class)
+        {
+            return (byte) 0;
+        }
+        if (type == short.class)
+        {
+            return (short) 0;
+        }
+        if (type == int.class)
+        {
+            return 0;
+        }
+        if (type == long.class)
+        {
+            return 0L;
+        }
+        if (type == float.class)
+        {
+            return 0f;
+        }
+        return 0d;
+    }
+}
@@ -0,0 +1,309 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/** Marshalling of requests and replies into frame payloads.
+
+    <p>
+    Two codecs are provided. <code>SerializationCodec</code> sends method names,
+    parameter types and values with Java serialization, and works between any
+    two ends. <code>BinaryCodec</code> sends method numbers from the
+    interface's <code>MethodSchema</code> and compact encodings of common value
+    types, and requires both ends to have the same schema.
+
+    <p>
+    The codec of a connection is negotiated when the connection is opened: the
+    stub proposes the codec named by the system property <code>rmi.codec</code>
+    (<code>binary</code> by default) together with its schema hash, and the
+    skeleton accepts it or falls back to Java serialization. The stub may also
+    ask for <code>Compression</code> of large bodies, which the skeleton
+    grants if it has compression enabled as well. Codecs without compression
+    are shared; a codec with compression is created for each connection, so
+    that each connection adapts to its own data. The encoding and decoding
+    helpers of this class compress and decompress as required.
+ */
+abstract class Codec
+{
+    static final byte SERIALIZATION = 0;
+    static final byte BINARY = 1;
+    /** Flag added to a codec identifier during negotiation to ask for, or
+        grant, compression. */
+    static final byte COMPRESSED = 0x40;
+
+    /** Codec proposed by stubs. */
+    static final byte PREFERRED =
+        "serialization".equalsIgnoreCase(System.getProperty("rmi.codec", "binary"))
+            ? SERIALIZATION : BINARY;
+
+    private static final Codec serialization = new SerializationCodec();
+    private static final Codec binary = new BinaryCodec();
+
+    /** Compression state of the connection, or <code>null</code> if bodies
+        are not compressed. Set only when the codec is created. */
+    private Compression compression = null;
+
+    /** Returns the codec with the given identifier, which may carry the
+        <code>COMPRESSED</code> flag. A codec with compression is new every
+        time, as it keeps the compression state of one connection.
+
+        @throws IOException If the identifier is unknown.
+     */
+    static Codec forId(byte id) throws IOException
+    {
+        switch (id)
+        {
+            case SERIALIZATION:
+                return serialization;
+            case BINARY:
+                return binary;
+            case SERIALIZATION | COMPRESSED:
+                return compressing(new SerializationCodec());
+            case BINARY | COMPRESSED:
+                return compressing(new BinaryCodec());
+            default:
+                throw new IOException("Unknown codec " + id);
+        }
+    }
+
+    /** Returns the identifier proposed by stubs. */
+    static byte proposal()
+    {
+        return (byte) (PREFERRED | (Compression.ENABLED ? COMPRESSED : 0));
+    }
+
+    private static Codec compressing(Codec codec)
+    {
+        codec.compression = new Compression();
+        return codec;
+    }
+
+    /** Returns the identifier of the codec, without the compression flag. */
+    abstract byte id();
+
+    /** Returns the identifier sent during negotiation, including the
+        compression flag. */
+    final byte wireId()
+    {
+        return (byte) (compression != null ? id() | COMPRESSED : id());
+    }
+
+    abstract void writeRequest(DataOutputStream out, MethodSchema schema,
+                               Method method, Object[] args) throws IOException;
+
+    /** Reads a request.
+
+        @throws NoSuchMethodException If the request names a method which is
+                                      not in the schema.
+        @throws ClassNotFoundException If an argument has a class unknown to
+                                       this end.
+     */
+    abstract Wire.Request readRequest(DataInputStream in, MethodSchema schema)
+        throws IOException, NoSuchMethodException, ClassNotFoundException;
+
+    abstract void writeReply(DataOutputStream out, RMIStatus status,
+                             Object value) throws IOException;
+
+    abstract Wire.Reply readReply(DataInputStream in)
+        throws IOException, ClassNotFoundException;
+
+    /** Encodes a request for a single call into a frame payload.
+
+        @param budget Time, in milliseconds, the stub will wait for the reply,
+                      or zero for no deadline.
+        @param trace Context of the call, or <code>null</code> if it is not
+                     traced.
+     */
+    final byte[] encodeRequest(long callId, int budget, TraceContext trace,
+                               MethodSchema schema, Method method, Object[] args)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(callId);
+        out.writeByte(Wire.CALL);
+        out.writeInt(budget);
+        Wire.writeTrace(out, trace);
+        writeRequest(out, schema, method, args);
+        out.flush();
+
+        return seal(bytes.toByteArray(), Wire.REQUEST_HEADER);
+    }
+
+    /** Encodes a request for a batch of calls into a frame payload. Each call
+        is encoded separately and prefixed with its length, so that the
+        skeleton can report a call it cannot decode without losing the rest of
+        the batch. */
+    final byte[] encodeBatch(long callId, int budget, TraceContext trace,
+                             MethodSchema schema, Method[] methods,
+                             Object[][] args)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(callId);
+        out.writeByte(Wire.BATCH);
+        out.writeInt(budget);
+        Wire.writeTrace(out, trace);
+        BinaryCodec.writeVarint(out, methods.length);
+
+        ByteArrayOutputStream entry = new ByteArrayOutputStream();
+        DataOutputStream entryOut = new DataOutputStream(entry);
+        for (int i = 0; i < methods.length; i++)
+        {
+            entry.reset();
+            writeRequest(entryOut, schema, methods[i], args[i]);
+            entryOut.flush();
+
+            BinaryCodec.writeVarint(out, entry.size());
+            entry.writeTo(out);
+        }
+        out.flush();
+
+        return seal(bytes.toByteArray(), Wire.REQUEST_HEADER);
+    }
+
+    /** Returns a request payload as it was before <code>encodeRequest</code>
+        or <code>encodeBatch</code> compressed it. The other request decoding
+        methods, except <code>decodeRequest(byte[], MethodSchema)</code>,
+        expect an opened payload. */
+    final byte[] openRequest(byte[] payload) throws IOException
+    {
+        return open(payload, Wire.REQUEST_HEADER);
+    }
+
+    /** Decodes a request for a single call, including its header. */
+    final Wire.Request decodeRequest(byte[] payload, MethodSchema schema)
+        throws IOException, NoSuchMethodException, ClassNotFoundException
+    {
+        payload = openRequest(payload);
+        Wire.Request request = decodeRequest(payload, Wire.REQUEST_HEADER, schema);
+        request.callId = Wire.callId(payload);
+        return request;
+    }
+
+    /** Decodes a call starting at the given offset, either after the header
+        of a single-call request or at the start of a batch entry. */
+    final Wire.Request decodeRequest(byte[] payload, int offset,
+                                     MethodSchema schema)
+        throws IOException, NoSuchMethodException, ClassNotFoundException
+    {
+        return readRequest(new DataInputStream(new ByteArrayInputStream(
+            payload, offset, payload.length - offset)), schema);
+    }
+
+    /** Splits a batch request into its encoded calls. */
+    final byte[][] decodeBatch(byte[] payload) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            payload, Wire.REQUEST_HEADER, payload.length - Wire.REQUEST_HEADER));
+
+        return readEntries(in);
+    }
+
+    /** Encodes a reply into a frame payload, after the identifier of the call
+        it answers. */
+    final byte[] encodeReply(long callId, RMIStatus status, Object value)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(callId);
+        writeReply(out, status, value);
+        out.flush();
+
+        return seal(bytes.toByteArray(), Wire.CALL_ID);
+    }
+
+    /** Encodes the reply to one call of a batch, without a call identifier. */
+    final byte[] encodeEntryReply(RMIStatus status, Object value)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeReply(out, status, value);
+        out.flush();
+
+        return bytes.toByteArray();
+    }
+
+    /** Encodes the reply to a batch from the encoded replies to its calls. */
+    final byte[] encodeBatchReply(long callId, byte[][] entries)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        out.writeLong(callId);
+        BinaryCodec.writeVarint(out, entries.length);
+        for (byte[] entry : entries)
+        {
+            BinaryCodec.writeVarint(out, entry.length);
+            out.write(entry);
+        }
+        out.flush();
+
+        return seal(bytes.toByteArray(), Wire.CALL_ID);
+    }
+
+    final Wire.Reply decodeReply(byte[] payload)
+        throws IOException, ClassNotFoundException
+    {
+        payload = open(payload, Wire.CALL_ID);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+
+        long callId = in.readLong();
+        Wire.Reply reply = readReply(in);
+        reply.callId = callId;
+        return reply;
+    }
+
+    /** Decodes the reply to a batch into the replies to its calls, in the
+        order in which the calls were made. */
+    final Wire.Reply[] decodeBatchReply(byte[] payload)
+        throws IOException, ClassNotFoundException
+    {
+        payload = open(payload, Wire.CALL_ID);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+            payload, Wire.CALL_ID, payload.length - Wire.CALL_ID));
+
+        byte[][] entries = readEntries(in);
+        Wire.Reply[] replies = new Wire.Reply[entries.length];
+        for (int i = 0; i < entries.length; i++)
+        {
+            replies[i] = readReply(new DataInputStream(new ByteArrayInputStream(entries[i])));
+            replies[i].callId = Wire.callId(payload);
+        }
+        return replies;
+    }
+
+    /** Compresses the body of an encoded payload if this codec compresses. */
+    private byte[] seal(byte[] payload, int header)
+    {
+        return compression != null ? compression.pack(payload, header) : payload;
+    }
+
+    private byte[] open(byte[] payload, int header) throws IOException
+    {
+        return compression != null ? Compression.unpack(payload, header) : payload;
+    }
+
+    private static byte[][] readEntries(DataInputStream in) throws IOException
+    {
+        byte[][] entries = new byte[BinaryCodec.readSize(in)][];
+        for (int i = 0; i < entries.length; i++)
+        {
+            entries[i] = new byte[BinaryCodec.readSize(in)];
+            in.readFully(entries[i]);
+        }
+        return entries;
+    }
+}
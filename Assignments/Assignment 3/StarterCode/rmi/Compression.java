@@ -0,0 +1,192 @@
+package rmi;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/** Compression of large request and reply bodies.
+
+    <p>
+    Compression is negotiated with the codec when a connection is opened: the
+    stub asks for it, and the skeleton agrees if it also has compression
+    enabled. On a connection with compression, the header of every request
+    and reply (the call identifier and, for a request, its kind, time budget
+    and trace context) is followed by an encoding byte. A body of fewer bytes than the
+    threshold is sent as it is after an encoding byte of <code>RAW</code>. A
+    larger body is compressed with <code>LzBlock</code> and sent after an
+    encoding byte of <code>LZ</code> and its uncompressed length, unless that
+    saves less than an eighth of its size, in which case it is sent raw.
+
+    <p>
+    Data which does not compress, such as already compressed files, is not
+    worth the attempt. Each end of a connection keeps its own
+    <code>Compression</code> state, in which each failed attempt doubles the
+    number of large bodies, up to 64, which are sent raw without trying, and a
+    successful attempt resets it.
+
+    <p>
+    Compression is enabled unless the system property
+    <code>rmi.compression</code> is <code>false</code>, and the threshold is
+    taken from <code>rmi.compression.threshold</code> (bytes). Its statistics
+    are returned by <code>RMIMetrics.getCompression</code>.
+ */
+final class Compression
+{
+    /** Default body size, in bytes, from which bodies are compressed. */
+    static final int DEFAULT_THRESHOLD = 1024;
+
+    /** Whether this end offers or accepts compression. */
+    static final boolean ENABLED =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.compression", "true"));
+    static final int THRESHOLD =
+        Integer.getInteger("rmi.compression.threshold", DEFAULT_THRESHOLD);
+
+    static final byte RAW = 0;
+    static final byte LZ = 1;
+
+    private static final int MAX_BACKOFF = 64;
+
+    private final AtomicInteger skip = new AtomicInteger();
+    private final AtomicInteger backoff = new AtomicInteger();
+
+    static final LongAdder compressed = new LongAdder();
+    static final LongAdder incompressible = new LongAdder();
+    static final LongAdder skipped = new LongAdder();
+    static final LongAdder bytesIn = new LongAdder();
+    static final LongAdder bytesOut = new LongAdder();
+    static final LongAdder compressNanos = new LongAdder();
+    static final LongAdder decompressNanos = new LongAdder();
+
+    /** Encodes the body of a payload, which follows a header of the given
+        length. */
+    byte[] pack(byte[] payload, int header)
+    {
+        int length = payload.length - header;
+        if (length < THRESHOLD)
+        {
+            return raw(payload, header);
+        }
+        if (skip.get() > 0 && skip.getAndDecrement() > 0)
+        {
+            skipped.increment();
+            return raw(payload, header);
+        }
+
+        long started = System.nanoTime();
+
+        byte[] packed = new byte[header + 6 + length - length / 8];
+        System.arraycopy(payload, 0, packed, 0, header);
+        packed[header] = LZ;
+        int start = writeVarint(packed, header + 1, length);
+        int size = LzBlock.compress(payload, header, length, packed, start,
+                                    packed.length - start);
+
+        compressNanos.add(System.nanoTime() - started);
+
+        if (size < 0)
+        {
+            incompressible.increment();
+            int next = Math.min(Math.max(1, backoff.get() * 2), MAX_BACKOFF);
+            backoff.set(next);
+            skip.set(next);
+            return raw(payload, header);
+        }
+
+        backoff.set(0);
+        compressed.increment();
+        bytesIn.add(length);
+        bytesOut.add(start - header + size);
+
+        byte[] result = new byte[start + size];
+        System.arraycopy(packed, 0, result, 0, result.length);
+        return result;
+    }
+
+    /** Decodes the body of a payload packed by <code>pack</code>, returning
+        the original payload.
+
+        @throws IOException If the body is malformed.
+     */
+    static byte[] unpack(byte[] payload, int header) throws IOException
+    {
+        if (payload.length <= header)
+        {
+            throw new IOException("Frame has no body encoding");
+        }
+
+        byte encoding = payload[header];
+        if (encoding == RAW)
+        {
+            byte[] result = new byte[payload.length - 1];
+            System.arraycopy(payload, 0, result, 0, header);
+            System.arraycopy(payload, header + 1, result, header,
+                             result.length - header);
+            return result;
+        }
+        if (encoding != LZ)
+        {
+            throw new IOException("Unknown body encoding " + encoding);
+        }
+
+        long started = System.nanoTime();
+
+        int[] position = { header + 1 };
+        int length = readVarint(payload, position);
+        int start = position[0];
+        if (length < 0 ||
+            length > LzBlock.maxDecompressed(payload.length - start) ||
+            length > Integer.MAX_VALUE - header)
+        {
+            throw new IOException("Invalid uncompressed length " + length);
+        }
+
+        byte[] result = new byte[header + length];
+        System.arraycopy(payload, 0, result, 0, header);
+        LzBlock.decompress(payload, start, payload.length - start,
+                           result, header, length);
+
+        decompressNanos.add(System.nanoTime() - started);
+        return result;
+    }
+
+    private static byte[] raw(byte[] payload, int header)
+    {
+        byte[] result = new byte[payload.length + 1];
+        System.arraycopy(payload, 0, result, 0, header);
+        result[header] = RAW;
+        System.arraycopy(payload, header, result, header + 1,
+                         payload.length - header);
+        return result;
+    }
+
+    private static int writeVarint(byte[] dst, int offset, int value)
+    {
+        while ((value & ~0x7f) != 0)
+        {
+            dst[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        dst[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int readVarint(byte[] src, int[] position) throws IOException
+    {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7)
+        {
+            if (position[0] >= src.length)
+            {
+                throw new IOException("Truncated body length");
+            }
+
+            byte b = src[position[0]++];
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+            {
+                return value;
+            }
+        }
+        throw new IOException("Malformed body length");
+    }
+}
@@ -0,0 +1,367 @@
+package rmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/** A single stub-side connection to a skeleton.
+
+    <p>
+    A connection carries any number of calls at the same time. Each request
+    frame starts with a call identifier, unique on the connection, which the
+    skeleton copies into the reply. Requests are written under a lock so that
+    frames sent by different threads never interleave, and a reader thread
+    owned by the connection hands every reply to the call waiting for it, in
+    whatever order the replies arrive.
+
+    <p>
+    When the connection fails, all calls still waiting on it fail with the same
+    exception. A call with a deadline which passes before its reply arrives
+    fails with <code>Expired</code>; the connection stays open, and the reply
+    is discarded if it arrives later. Connections are handed out and taken back
+    by <code>ConnectionPool</code>.
+
+    <p>
+    A connection to a skeleton on the same host is opened over the skeleton's
+    unix domain socket, if it has one, as described in
+    <code>UnixSockets</code>.
+ */
+class Connection
+{
+    final InetSocketAddress address;
+    final MethodSchema schema;
+    /** Codec negotiated when the connection was opened. */
+    final Codec codec;
+    /** The TCP socket or unix domain socket channel. */
+    private final Closeable socket;
+    /** Whether the connection is over a unix domain socket. */
+    final boolean unix;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+
+    private final Map<Long, CompletableFuture<byte[]>> pending = new HashMap<>();
+    private long nextCallId = 0;
+    private IOException failure = null;
+
+    /** Number of calls in progress. Guarded by the pool. */
+    int inFlight = 0;
+    /** Time at which a call on this connection last completed. Guarded by the
+        pool. */
+    long lastUsed;
+    /** Number of calls that have completed on this connection. Written only
+        under the pool's lock; volatile because <code>isReused</code> reads it
+        from callers and the reader thread without that lock. */
+    volatile int calls = 0;
+
+    /** Raised when a call or the opening of a connection does not complete
+        before its deadline. */
+    static class Expired extends IOException
+    {
+        Expired(String message)
+        {
+            super(message);
+        }
+    }
+
+    /** Raised when a call fails because its request could not be written,
+        so that the skeleton cannot have executed it. */
+    static class Unsent extends IOException
+    {
+        Unsent(IOException cause)
+        {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /** Opens a connection, negotiates its codec and starts its reader.
+
+        @param address Address of the skeleton.
+        @param schema Schema of the remote interface served at the address.
+        @param expiry Time by which the connection must be open, as given by
+                      <code>System.nanoTime</code>, or zero for none.
+        @throws Expired If the deadline passes first.
+     */
+    Connection(InetSocketAddress address, MethodSchema schema, long expiry)
+        throws IOException
+    {
+        this.address = address;
+        this.schema = schema;
+
+        SocketChannel channel = UnixSockets.connect(address);
+        Socket tcp = channel == null ? new Socket() : null;
+        this.socket = channel != null ? channel : tcp;
+        this.unix = channel != null;
+
+        int timeout = 0;
+        if (expiry != 0)
+        {
+            long remaining = expiry - System.nanoTime();
+            if (remaining <= 0)
+            {
+                throw new Expired("Deadline passed before connecting");
+            }
+            timeout = (int) Math.max(1, Math.min(Integer.MAX_VALUE,
+                                                 TimeUnit.NANOSECONDS.toMillis(remaining)));
+        }
+
+        ScheduledFuture<?> expiration = null;
+        try
+        {
+            if (unix)
+            {
+                // A channel has no read timeout, so it is closed if the
+                // skeleton has not answered by the deadline.
+                if (expiry != 0)
+                {
+                    expiration = Deadline.schedule(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            close();
+                        }
+                    }, expiry);
+                }
+
+                out = new DataOutputStream(new BufferedOutputStream(
+                    UnixSockets.outputStream(channel)));
+                in = new DataInputStream(new BufferedInputStream(
+                    UnixSockets.inputStream(channel)));
+            }
+            else
+            {
+                // An unresolved address means the local host, as it did when
+                // the socket was created with a null address.
+                InetAddress host = address.getAddress() == null
+                    ? InetAddress.getByName(null) : address.getAddress();
+                tcp.connect(new InetSocketAddress(host, address.getPort()), timeout);
+                tcp.setSoTimeout(timeout);
+                tcp.setTcpNoDelay(true);
+
+                out = new DataOutputStream(new BufferedOutputStream(tcp.getOutputStream()));
+                in = new DataInputStream(new BufferedInputStream(tcp.getInputStream()));
+            }
+
+            Wire.writeHello(out, Codec.proposal(), schema.hash);
+
+            byte[] accepted = Wire.readFrame(in);
+            if (accepted == null || accepted.length != 1)
+            {
+                throw new EOFException("Codec negotiation failed");
+            }
+            codec = Codec.forId(accepted[0]);
+            if (!unix)
+            {
+                tcp.setSoTimeout(0);
+            }
+        }
+        catch (SocketTimeoutException e)
+        {
+            close();
+            throw new Expired("Deadline passed while connecting");
+        }
+        catch (IOException e)
+        {
+            close();
+            if (unix && expiry != 0 && System.nanoTime() - expiry >= 0)
+            {
+                throw new Expired("Deadline passed while connecting");
+            }
+            throw e;
+        }
+        finally
+        {
+            if (expiration != null)
+            {
+                expiration.cancel(false);
+            }
+        }
+
+        lastUsed = System.currentTimeMillis();
+
+        Thread reader = new Thread(new Reader(), "rmi-connection-reader");
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /** Allocates the identifier for a new call on this connection. */
+    synchronized long nextCallId()
+    {
+        return nextCallId++;
+    }
+
+    /** Sends a request frame without waiting for the reply.
+
+        @param callId The call identifier encoded at the start of the request.
+        @param request The request frame payload.
+        @param expiry Time by which the reply must arrive, as given by
+                      <code>System.nanoTime</code>, or zero for none.
+        @return A future completed with the reply frame payload, or completed
+                exceptionally with an <code>IOException</code> if the
+                connection fails first, with <code>Unsent</code> if it fails
+                before the request is written, or with <code>Expired</code> if
+                the deadline passes first.
+     */
+    CompletableFuture<byte[]> send(final long callId, byte[] request, long expiry)
+    {
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+
+        synchronized (this)
+        {
+            if (failure != null)
+            {
+                reply.completeExceptionally(new Unsent(failure));
+                return reply;
+            }
+            pending.put(callId, reply);
+        }
+
+        if (expiry != 0)
+        {
+            final ScheduledFuture<?> expiration = Deadline.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    expire(callId);
+                }
+            }, expiry);
+
+            reply.whenComplete(new BiConsumer<byte[], Throwable>()
+            {
+                @Override
+                public void accept(byte[] frame, Throwable error)
+                {
+                    expiration.cancel(false);
+                }
+            });
+        }
+
+        try
+        {
+            synchronized (out)
+            {
+                Wire.writeFrame(out, request);
+            }
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                pending.remove(callId);
+            }
+            fail(e);
+            reply.completeExceptionally(new Unsent(e));
+        }
+        return reply;
+    }
+
+    /** Returns <code>true</code> if this connection has already carried a
+        call, in which case the skeleton may have closed it in the meantime. */
+    boolean isReused()
+    {
+        return calls > 0;
+    }
+
+    synchronized boolean isClosed()
+    {
+        return failure != null;
+    }
+
+    void close()
+    {
+        fail(new EOFException("Connection closed"));
+    }
+
+    /** Fails a call whose deadline has passed, if it is still waiting. */
+    private void expire(long callId)
+    {
+        CompletableFuture<byte[]> reply;
+        synchronized (this)
+        {
+            reply = pending.remove(callId);
+        }
+
+        if (reply != null)
+        {
+            reply.completeExceptionally(new Expired("No reply before deadline"));
+        }
+    }
+
+    /** Closes the socket and fails every call still waiting for a reply. */
+    private void fail(IOException cause)
+    {
+        List<CompletableFuture<byte[]>> waiting;
+
+        synchronized (this)
+        {
+            if (failure == null)
+            {
+                failure = cause;
+            }
+            waiting = new ArrayList<>(pending.values());
+            pending.clear();
+        }
+
+        try
+        {
+            socket.close();
+        }
+        catch (IOException e)
+        {
+        }
+
+        for (CompletableFuture<byte[]> reply : waiting)
+        {
+            reply.completeExceptionally(cause);
+        }
+    }
+
+    /** Reads reply frames and completes the calls they belong to. */
+    private class Reader implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            try
+            {
+                byte[] frame;
+                while ((frame = Wire.readFrame(in)) != null)
+                {
+                    CompletableFuture<byte[]> reply;
+                    synchronized (Connection.this)
+                    {
+                        reply = pending.remove(Wire.callId(frame));
+                    }
+
+                    if (reply != null)
+                    {
+                        reply.complete(frame);
+                    }
+                }
+                fail(new EOFException("Connection closed by skeleton"));
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,450 @@
+package rmi;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
+
+/** Per-address pool of persistent stub connections.
+
+    <p>
+    Stubs borrow a connection from the pool for the duration of a single call
+    and give it back afterwards, so consecutive calls to the same skeleton do
+    not pay for a new TCP handshake and codec negotiation. The pool keeps a
+    separate set of connections for every skeleton address.
+
+    <p>
+    Connections are shared: a call is placed on the open connection with the
+    fewest calls in progress, and a new connection is opened only when every
+    open connection already carries the maximum number of concurrent calls.
+    Many threads calling the same skeleton therefore share a handful of
+    connections.
+
+    <p>
+    Four limits can be configured, all of them per address: the number of
+    idle connections kept open, the number of calls in progress at the same
+    time, the number of concurrent calls carried by one connection, and the
+    time after which an idle connection is closed. A call that finds the active
+    limit reached waits until another call completes, or until its deadline
+    passes.
+
+    <p>
+    All stubs share the pool returned by <code>getDefault</code>. Its limits are
+    taken from the system properties <code>rmi.pool.maxIdle</code>,
+    <code>rmi.pool.maxActive</code>, <code>rmi.pool.maxStreams</code> and
+    <code>rmi.pool.idleTimeout</code> (milliseconds), and it can be replaced
+    with <code>setDefault</code>.
+ */
+public class ConnectionPool
+{
+    /** Default number of idle connections kept per address. */
+    public static final int DEFAULT_MAX_IDLE = 8;
+    /** Default number of calls in progress per address. */
+    public static final int DEFAULT_MAX_ACTIVE = 64;
+    /** Default number of concurrent calls carried by one connection. */
+    public static final int DEFAULT_MAX_STREAMS = 16;
+    /** Default idle time, in milliseconds, before a connection is closed. */
+    public static final long DEFAULT_IDLE_TIMEOUT = 30000;
+
+    private static ConnectionPool defaultPool = null;
+
+    private final int maxIdle;
+    private final int maxActive;
+    private final int maxStreams;
+    private final long idleTimeout;
+
+    private final Map<InetSocketAddress, Endpoint> endpoints = new HashMap<>();
+    private Timer evictor = null;
+    private boolean closed = false;
+
+    /** Creates a connection pool with the given limits and the default
+        number of concurrent calls per connection.
+
+        @param maxIdle Maximum number of idle connections kept open for each
+                       address. Zero disables connection reuse.
+        @param maxActive Maximum number of calls to each address that may be in
+                         progress at the same time.
+        @param idleTimeout Time, in milliseconds, after which an idle connection
+                           is closed. Zero or less disables idle eviction.
+        @throws IllegalArgumentException If <code>maxIdle</code> is negative or
+                                         <code>maxActive</code> is not
+                                         positive.
+     */
+    public ConnectionPool(int maxIdle, int maxActive, long idleTimeout)
+    {
+        this(maxIdle, maxActive, DEFAULT_MAX_STREAMS, idleTimeout);
+    }
+
+    /** Creates a connection pool with the given limits.
+
+        @param maxIdle Maximum number of idle connections kept open for each
+                       address. Zero disables connection reuse.
+        @param maxActive Maximum number of calls to each address that may be in
+                         progress at the same time.
+        @param maxStreams Maximum number of calls carried by one connection at
+                          the same time. One gives every concurrent call its
+                          own connection.
+        @param idleTimeout Time, in milliseconds, after which an idle connection
+                           is closed. Zero or less disables idle eviction.
+        @throws IllegalArgumentException If <code>maxIdle</code> is negative, or
+                                         if <code>maxActive</code> or
+                                         <code>maxStreams</code> is not
+                                         positive.
+     */
+    public ConnectionPool(int maxIdle, int maxActive, int maxStreams,
+                          long idleTimeout)
+    {
+        if (maxIdle < 0 || maxActive <= 0 || maxStreams <= 0)
+        {
+            throw new IllegalArgumentException("Invalid connection pool limits");
+        }
+
+        this.maxIdle = maxIdle;
+        this.maxActive = maxActive;
+        this.maxStreams = maxStreams;
+        this.idleTimeout = idleTimeout;
+    }
+
+    /** Returns the pool shared by all stubs. */
+    public static synchronized ConnectionPool getDefault()
+    {
+        if (defaultPool == null)
+        {
+            defaultPool = new ConnectionPool(
+                Integer.getInteger("rmi.pool.maxIdle", DEFAULT_MAX_IDLE),
+                Integer.getInteger("rmi.pool.maxActive", DEFAULT_MAX_ACTIVE),
+                Integer.getInteger("rmi.pool.maxStreams", DEFAULT_MAX_STREAMS),
+                Long.getLong("rmi.pool.idleTimeout", DEFAULT_IDLE_TIMEOUT));
+        }
+        return defaultPool;
+    }
+
+    /** Replaces the pool shared by all stubs. The previous pool is closed.
+
+        @param pool The new shared pool.
+        @throws NullPointerException If <code>pool</code> is <code>null</code>.
+     */
+    public static synchronized void setDefault(ConnectionPool pool)
+    {
+        if (pool == null)
+        {
+            throw new NullPointerException("Connection pool is null");
+        }
+
+        if (defaultPool != null && defaultPool != pool)
+        {
+            defaultPool.close();
+        }
+        defaultPool = pool;
+    }
+
+    /** Returns the number of open connections to the given address that carry
+        no call. */
+    public synchronized int idleCount(InetSocketAddress address)
+    {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null)
+        {
+            return 0;
+        }
+
+        int idle = 0;
+        for (Connection connection : endpoint.open)
+        {
+            if (connection.inFlight == 0)
+            {
+                idle++;
+            }
+        }
+        return idle;
+    }
+
+    /** Returns the number of calls to the given address currently in
+        progress. */
+    public synchronized int activeCount(InetSocketAddress address)
+    {
+        Endpoint endpoint = endpoints.get(address);
+        return endpoint == null ? 0 : endpoint.active;
+    }
+
+    /** Closes all idle connections and stops idle eviction. Connections
+        carrying calls are closed when their last call completes. */
+    public synchronized void close()
+    {
+        closed = true;
+
+        for (Endpoint endpoint : endpoints.values())
+        {
+            endpoint.closeIdle();
+        }
+        endpoints.clear();
+
+        if (evictor != null)
+        {
+            evictor.cancel();
+            evictor = null;
+        }
+        notifyAll();
+    }
+
+    /** Borrows a connection to the given address for one call. The least
+        loaded open connection is shared if it has room for another call;
+        otherwise a new connection is opened.
+
+        @param expiry Time by which the connection must be obtained, as given
+                      by <code>System.nanoTime</code>, or zero for none.
+        @throws Connection.Expired If the deadline passes while waiting for the
+                                   active limit or while connecting.
+        @throws IOException If a new connection cannot be opened.
+        @throws InterruptedException If the calling thread is interrupted while
+                                     waiting for the active limit.
+     */
+    Connection acquire(InetSocketAddress address, MethodSchema schema,
+                       long expiry) throws IOException, InterruptedException
+    {
+        Endpoint endpoint;
+
+        synchronized (this)
+        {
+            if (closed)
+            {
+                throw new IOException("Connection pool is closed");
+            }
+
+            endpoint = endpoint(address);
+
+            while (endpoint.active >= maxActive)
+            {
+                if (expiry == 0)
+                {
+                    wait();
+                    continue;
+                }
+
+                long remaining = expiry - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    throw new Connection.Expired(
+                        "Deadline passed waiting for a connection");
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+
+            endpoint.active++;
+
+            Connection best = null;
+            Iterator<Connection> iter = endpoint.open.iterator();
+            while (iter.hasNext())
+            {
+                Connection connection = iter.next();
+
+                if (connection.isClosed() ||
+                    (connection.schema != schema && connection.inFlight == 0))
+                {
+                    // Closed by the skeleton, or the skeleton at this address
+                    // was replaced by one for a different interface.
+                    iter.remove();
+                    connection.close();
+                    continue;
+                }
+
+                if (connection.schema == schema &&
+                    connection.inFlight < maxStreams &&
+                    (best == null || connection.inFlight < best.inFlight))
+                {
+                    best = connection;
+                }
+            }
+
+            if (best != null)
+            {
+                best.inFlight++;
+                return best;
+            }
+        }
+
+        return open(address, schema, endpoint, expiry);
+    }
+
+    /** Opens a new connection to replace one that failed. The call moves to
+        the new connection and keeps its place under the active limit.
+     */
+    Connection reopen(Connection stale, long expiry) throws IOException
+    {
+        Endpoint endpoint;
+
+        synchronized (this)
+        {
+            endpoint = endpoint(stale.address);
+            endpoint.open.remove(stale);
+            stale.inFlight--;
+        }
+        stale.close();
+
+        return open(stale.address, stale.schema, endpoint, expiry);
+    }
+
+    /** Gives a connection back to the pool after a completed call. */
+    void release(Connection connection)
+    {
+        synchronized (this)
+        {
+            connection.inFlight--;
+            connection.calls++;
+            connection.lastUsed = System.currentTimeMillis();
+
+            Endpoint endpoint = endpoints.get(connection.address);
+            if (endpoint != null)
+            {
+                endpoint.active--;
+                notifyAll();
+            }
+
+            if (connection.inFlight > 0)
+            {
+                return;
+            }
+
+            if (!closed && endpoint != null &&
+                endpoint.open.contains(connection) &&
+                idleCount(connection.address) <= maxIdle)
+            {
+                scheduleEviction();
+                return;
+            }
+
+            if (endpoint != null)
+            {
+                endpoint.open.remove(connection);
+            }
+        }
+        connection.close();
+    }
+
+    /** Closes a connection whose state is unknown after a failed call. Other
+        calls sharing the connection fail as well. */
+    void invalidate(Connection connection)
+    {
+        connection.close();
+
+        synchronized (this)
+        {
+            connection.inFlight--;
+
+            Endpoint endpoint = endpoints.get(connection.address);
+            if (endpoint != null)
+            {
+                endpoint.open.remove(connection);
+                endpoint.active--;
+                notifyAll();
+            }
+        }
+    }
+
+    private Connection open(InetSocketAddress address, MethodSchema schema,
+                            Endpoint endpoint, long expiry) throws IOException
+    {
+        Connection connection;
+
+        try
+        {
+            connection = new Connection(address, schema, expiry);
+        }
+        catch (IOException e)
+        {
+            synchronized (this)
+            {
+                endpoint.active--;
+                notifyAll();
+            }
+            throw e;
+        }
+
+        synchronized (this)
+        {
+            connection.inFlight = 1;
+            if (!closed)
+            {
+                endpoint.open.add(connection);
+            }
+        }
+        return connection;
+    }
+
+    private Endpoint endpoint(InetSocketAddress address)
+    {
+        Endpoint endpoint = endpoints.get(address);
+        if (endpoint == null)
+        {
+            endpoint = new Endpoint();
+            endpoints.put(address, endpoint);
+        }
+        return endpoint;
+    }
+
+    private void scheduleEviction()
+    {
+        if (evictor != null || idleTimeout <= 0)
+        {
+            return;
+        }
+
+        long period = Math.max(idleTimeout / 2, 1);
+
+        evictor = new Timer("rmi-pool-evictor", true);
+        evictor.schedule(new TimerTask()
+        {
+            @Override
+            public void run()
+            {
+                evictIdle();
+            }
+        }, period, period);
+    }
+
+    private synchronized void evictIdle()
+    {
+        long cutoff = System.currentTimeMillis() - idleTimeout;
+
+        for (Endpoint endpoint : endpoints.values())
+        {
+            Iterator<Connection> iter = endpoint.open.iterator();
+            while (iter.hasNext())
+            {
+                Connection connection = iter.next();
+                if (connection.inFlight == 0 &&
+                    (connection.lastUsed <= cutoff || connection.isClosed()))
+                {
+                    iter.remove();
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /** Connections to a single address. */
+    private static class Endpoint
+    {
+        private final List<Connection> open = new ArrayList<>();
+        /** Number of calls in progress. */
+        private int active = 0;
+
+        private void closeIdle()
+        {
+            for (Connection connection : open)
+            {
+                if (connection.inFlight == 0)
+                {
+                    connection.close();
+                }
+            }
+            open.clear();
+        }
+    }
+}
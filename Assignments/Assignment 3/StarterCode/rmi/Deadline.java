@@ -0,0 +1,174 @@
+package rmi;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/** Deadline for the remote calls made by the current thread.
+
+    <p>
+    A deadline is set for a block of code with a try-with-resources statement:
+
+    <pre>
+    try (Deadline deadline = Deadline.after(500, TimeUnit.MILLISECONDS))
+    {
+        storage.read(file, 0, length);
+    }
+    </pre>
+
+    Every remote call started by the thread inside the block, through a stub,
+    an asynchronous stub or a batch, must complete before the deadline or fail
+    with a <code>DeadlineExceededException</code>. The deadline bounds waiting
+    for a pooled connection, connecting, and waiting for the reply, and the
+    time remaining is sent to the skeleton, which drops the request instead of
+    executing it if it has expired by the time a thread is free to serve it.
+
+    <p>
+    Deadlines nest: a deadline set inside the block of another never extends
+    it. A stub may also carry its own timeout, set with
+    <code>Stub.withTimeout</code>; a call then uses whichever of the two ends
+    first.
+ */
+public final class Deadline implements AutoCloseable
+{
+    private static final ThreadLocal<Deadline> current = new ThreadLocal<>();
+
+    /** Expires the calls whose deadline passes. */
+    private static final ScheduledThreadPoolExecutor timer = newTimer();
+
+    /** Time at which the deadline expires, as given by
+        <code>System.nanoTime</code>. */
+    private final long expiry;
+    private final Deadline previous;
+    private final Thread owner;
+
+    private Deadline(long expiry, Deadline previous)
+    {
+        this.expiry = expiry;
+        this.previous = previous;
+        this.owner = Thread.currentThread();
+    }
+
+    /** Sets a deadline for the remote calls made by the current thread until
+        the returned object is closed.
+
+        @param timeout Time from now until the deadline.
+        @param unit Unit of <code>timeout</code>.
+        @return The deadline, which must be closed by the same thread.
+        @throws IllegalArgumentException If <code>timeout</code> is negative.
+     */
+    public static Deadline after(long timeout, TimeUnit unit)
+    {
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+
+        Deadline outer = current.get();
+        long expiry = System.nanoTime() + unit.toNanos(timeout);
+        if (outer != null && outer.expiry - expiry < 0)
+        {
+            expiry = outer.expiry;
+        }
+
+        Deadline deadline = new Deadline(expiry, outer);
+        current.set(deadline);
+        return deadline;
+    }
+
+    /** Returns the time remaining until the deadline, in nanoseconds. The
+        result is negative if the deadline has passed. */
+    public long remainingNanos()
+    {
+        return expiry - System.nanoTime();
+    }
+
+    /** Returns <code>true</code> if the deadline has passed. */
+    public boolean isExpired()
+    {
+        return remainingNanos() <= 0;
+    }
+
+    /** Removes the deadline, restoring the one in effect when it was set.
+
+        @throws IllegalStateException If called by a thread other than the one
+                                      which set the deadline.
+     */
+    @Override
+    public void close()
+    {
+        if (Thread.currentThread() != owner)
+        {
+            throw new IllegalStateException("Deadline closed by another thread");
+        }
+
+        if (current.get() == this)
+        {
+            if (previous == null)
+            {
+                current.remove();
+            }
+            else
+            {
+                current.set(previous);
+            }
+        }
+    }
+
+    /** Returns the expiry time of the call about to be started by the current
+        thread, as given by <code>System.nanoTime</code>, or zero if the call
+        has no deadline.
+
+        @param timeout Timeout of the stub making the call, in milliseconds, or
+                       zero for none.
+     */
+    static long expiryOfCall(long timeout)
+    {
+        Deadline deadline = current.get();
+        long now = System.nanoTime();
+
+        if (timeout <= 0)
+        {
+            return deadline == null ? 0 : nonZero(deadline.expiry);
+        }
+
+        long expiry = now + TimeUnit.MILLISECONDS.toNanos(timeout);
+        if (deadline != null && deadline.expiry - expiry < 0)
+        {
+            expiry = deadline.expiry;
+        }
+        return nonZero(expiry);
+    }
+
+    /** Zero is reserved for "no deadline". */
+    private static long nonZero(long expiry)
+    {
+        return expiry == 0 ? 1 : expiry;
+    }
+
+    /** Runs a task on the shared deadline timer when the given expiry time,
+        as given by <code>System.nanoTime</code>, is reached. */
+    static ScheduledFuture<?> schedule(Runnable task, long expiry)
+    {
+        return timer.schedule(task, expiry - System.nanoTime(),
+                              TimeUnit.NANOSECONDS);
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer()
+    {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, "rmi-deadline-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+}
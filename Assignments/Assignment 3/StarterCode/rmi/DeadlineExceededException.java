@@ -0,0 +1,18 @@
+package rmi;
+
+/** Thrown when a remote call does not complete before its deadline.
+
+    <p>
+    The call may or may not have been executed by the server. A skeleton which
+    receives a request whose deadline has already passed does not execute it,
+    and answers with this exception instead.
+ */
+public class DeadlineExceededException extends RMIException
+{
+    /** Creates a <code>DeadlineExceededException</code> with the given
+        message string. */
+    public DeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,534 @@
+package rmi;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Policy deciding which thread serves each request received by a skeleton.
+
+    <p>
+    A policy is given to a <code>Skeleton</code> when it is constructed. Each
+    connection has a thread reading its requests, and every request read is
+    handed to the policy as a separate task, so calls multiplexed over one
+    connection are served concurrently. Four policies are provided:
+    <ul>
+    <li><code>threadPerRequest</code> starts a new thread for every task.
+        This is the default, and places no limit on the number of threads.</li>
+    <li><code>boundedPool</code> runs tasks on a fixed number of worker
+        threads, with a bounded queue in front of them. When the queue is full,
+        the <code>RejectPolicy</code> decides what happens to the task.</li>
+    <li><code>virtualThreads</code> starts a virtual thread for every task. On
+        a Java runtime without virtual threads it behaves like
+        <code>threadPerRequest</code>.</li>
+    <li><code>prioritized</code> runs tasks on a fixed number of worker
+        threads, with a bounded queue for each <code>Lane</code>. Idle workers
+        take tasks from the lanes in proportion to their weights, so a flood of
+        requests in one lane delays the requests of other lanes only by its
+        share of the workers. A task whose lane queue is full is rejected, and
+        the stub receives an <code>OverloadedException</code>. A policy of this
+        kind is meant to be shared by the skeletons of one server, so that
+        their lanes compete for the same workers.</li>
+    </ul>
+
+    <p>
+    Every policy counts the tasks it has rejected and reports the current
+    number of queued and running tasks, so that an operator can tell whether a
+    skeleton is overloaded. Rejections are also counted by lane.
+ */
+public abstract class DispatchPolicy
+{
+    /** Action taken when a bounded pool cannot accept a task. */
+    public enum RejectPolicy
+    {
+        /** The request is not served. The stub receives an
+            <code>RMIException</code> in reply. */
+        ABORT,
+        /** The task runs in the thread that submitted it. The connection does
+            not read further requests until the task completes, which pushes
+            back on the stub. */
+        CALLER_RUNS
+    }
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLongArray rejectedByLane =
+        new AtomicLongArray(Lane.values().length);
+    private final AtomicInteger running = new AtomicInteger();
+
+    /** Returns a policy which starts a new thread for every task. */
+    public static DispatchPolicy threadPerRequest()
+    {
+        return new ThreadPerTask(false);
+    }
+
+    /** Returns a policy which runs tasks on a bounded worker pool.
+
+        @param threads Number of worker threads.
+        @param queueCapacity Number of tasks that may wait for a worker.
+        @param reject Action taken when the queue is full.
+        @throws IllegalArgumentException If <code>threads</code> or
+                                         <code>queueCapacity</code> is not
+                                         positive.
+        @throws NullPointerException If <code>reject</code> is
+                                     <code>null</code>.
+     */
+    public static DispatchPolicy boundedPool(int threads, int queueCapacity,
+                                             RejectPolicy reject)
+    {
+        return new BoundedPool(threads, queueCapacity, reject);
+    }
+
+    /** Returns a policy which starts a virtual thread for every task, if the
+        Java runtime supports virtual threads. */
+    public static DispatchPolicy virtualThreads()
+    {
+        return new ThreadPerTask(true);
+    }
+
+    /** Returns a policy which runs tasks on a bounded worker pool, with a
+        separate queue for each lane, and workers shared between the lanes
+        by weighted fair scheduling.
+
+        @param threads Number of worker threads.
+        @param laneCapacity Number of tasks that may wait for a worker in each
+                            lane.
+        @throws IllegalArgumentException If <code>threads</code> or
+                                         <code>laneCapacity</code> is not
+                                         positive.
+     */
+    public static DispatchPolicy prioritized(int threads, int laneCapacity)
+    {
+        return new Prioritized(threads, laneCapacity);
+    }
+
+    /** Returns a prioritized policy sized by the system properties
+        <code>rmi.lanes.threads</code> (eight times the number of processors
+        by default) and <code>rmi.lanes.capacity</code> (256 by default). */
+    public static DispatchPolicy prioritized()
+    {
+        int processors = Runtime.getRuntime().availableProcessors();
+        return prioritized(Integer.getInteger("rmi.lanes.threads", 8 * processors),
+                           Integer.getInteger("rmi.lanes.capacity", 256));
+    }
+
+    /** Submits a task in <code>Lane.NORMAL</code>.
+
+        @param task The task to run.
+        @return <code>true</code> if the task was accepted, <code>false</code>
+                if it was rejected. A rejected task has not been run.
+     */
+    public final boolean dispatch(Runnable task)
+    {
+        return dispatch(task, Lane.NORMAL);
+    }
+
+    /** Submits a task in the given lane.
+
+        @param task The task to run.
+        @param lane The lane of the request served by the task.
+        @return <code>true</code> if the task was accepted, <code>false</code>
+                if it was rejected. A rejected task has not been run.
+     */
+    public final boolean dispatch(Runnable task, Lane lane)
+    {
+        if (submit(new Counted(task), lane))
+        {
+            return true;
+        }
+        rejected.incrementAndGet();
+        rejectedByLane.incrementAndGet(lane.ordinal());
+        return false;
+    }
+
+    /** Runs a task in the calling thread, if the policy would otherwise start
+        a thread for it alone. This saves a thread for a call made in the same
+        virtual machine whose caller is about to wait for it anyway.
+
+        @return <code>true</code> if the task was run, <code>false</code> if
+                the policy places limits on its threads and the task must be
+                dispatched.
+     */
+    final boolean runInline(Runnable task)
+    {
+        if (!threadPerTask())
+        {
+            return false;
+        }
+        new Counted(task).run();
+        return true;
+    }
+
+    /** Returns <code>true</code> if every task gets a new thread. */
+    boolean threadPerTask()
+    {
+        return false;
+    }
+
+    /** Returns the number of tasks waiting for a thread. */
+    public int queueDepth()
+    {
+        return 0;
+    }
+
+    /** Returns the number of tasks of the given lane waiting for a thread.
+        Policies which do not queue lanes separately report zero. */
+    public int queueDepth(Lane lane)
+    {
+        return 0;
+    }
+
+    /** Returns the number of tasks currently running. */
+    public int activeCount()
+    {
+        return running.get();
+    }
+
+    /** Returns the number of tasks rejected since the policy was created. */
+    public long rejectedCount()
+    {
+        return rejected.get();
+    }
+
+    /** Returns the number of tasks of the given lane rejected since the
+        policy was created. */
+    public long rejectedCount(Lane lane)
+    {
+        return rejectedByLane.get(lane.ordinal());
+    }
+
+    /** Hands a task to the policy's threads. Returns <code>false</code> if the
+        task is rejected. */
+    protected abstract boolean submit(Runnable task);
+
+    /** Hands a task of the given lane to the policy's threads. Returns
+        <code>false</code> if the task is rejected. Policies which do not
+        distinguish lanes submit every task alike. */
+    protected boolean submit(Runnable task, Lane lane)
+    {
+        return submit(task);
+    }
+
+    /** Task wrapper maintaining the running task count. */
+    private class Counted implements Runnable
+    {
+        private final Runnable task;
+
+        private Counted(Runnable task)
+        {
+            this.task = task;
+        }
+
+        @Override
+        public void run()
+        {
+            running.incrementAndGet();
+            try
+            {
+                task.run();
+            }
+            finally
+            {
+                running.decrementAndGet();
+            }
+        }
+    }
+
+    private static class ThreadPerTask extends DispatchPolicy
+    {
+        private final ExecutorService virtual;
+
+        private ThreadPerTask(boolean tryVirtual)
+        {
+            this.virtual = tryVirtual ? virtualExecutor() : null;
+        }
+
+        @Override
+        protected boolean submit(Runnable task)
+        {
+            if (virtual != null)
+            {
+                virtual.execute(task);
+            }
+            else
+            {
+                new Thread(task).start();
+            }
+            return true;
+        }
+
+        @Override
+        boolean threadPerTask()
+        {
+            return true;
+        }
+
+        /** Looks up <code>Executors.newVirtualThreadPerTaskExecutor</code>
+            reflectively, so that the library still builds and runs on Java
+            versions which do not have it. */
+        private static ExecutorService virtualExecutor()
+        {
+            try
+            {
+                return (ExecutorService) Executors.class
+                    .getMethod("newVirtualThreadPerTaskExecutor")
+                    .invoke(null);
+            }
+            catch (ReflectiveOperationException | RuntimeException e)
+            {
+                return null;
+            }
+        }
+    }
+
+    private static class BoundedPool extends DispatchPolicy
+    {
+        private final ThreadPoolExecutor executor;
+        private final RejectPolicy reject;
+
+        private BoundedPool(int threads, int queueCapacity, RejectPolicy reject)
+        {
+            if (threads <= 0 || queueCapacity <= 0)
+            {
+                throw new IllegalArgumentException("Invalid worker pool size");
+            }
+            if (reject == null)
+            {
+                throw new NullPointerException("Reject policy is null");
+            }
+
+            this.reject = reject;
+            this.executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new WorkerFactory(),
+                new ThreadPoolExecutor.AbortPolicy());
+            this.executor.allowCoreThreadTimeOut(true);
+        }
+
+        @Override
+        protected boolean submit(Runnable task)
+        {
+            try
+            {
+                executor.execute(task);
+                return true;
+            }
+            catch (RejectedExecutionException e)
+            {
+                if (reject == RejectPolicy.CALLER_RUNS)
+                {
+                    task.run();
+                    return true;
+                }
+                return false;
+            }
+        }
+
+        @Override
+        public int queueDepth()
+        {
+            return executor.getQueue().size();
+        }
+    }
+
+    /** Pool of workers taking tasks from one queue per lane.
+
+        <p>
+        Lanes are served by stride scheduling: each lane has a pass value,
+        advanced by a stride inversely proportional to its weight whenever a
+        task is taken from it, and workers take the next task from the
+        non-empty lane with the lowest pass. A lane which was empty starts
+        again from the pass of the lane last served, so that it cannot claim
+        the workers for the time it spent idle. Workers are started as tasks
+        arrive, up to the pool size, and stop after a minute without work.
+     */
+    private static class Prioritized extends DispatchPolicy
+    {
+        private static final long STRIDE = 1 << 20;
+        private static final long IDLE_NANOS = TimeUnit.SECONDS.toNanos(60);
+
+        private final int threads;
+        private final int capacity;
+        private final ArrayDeque<Runnable>[] queues;
+        private final long[] pass;
+        private final WorkerFactory factory = new WorkerFactory();
+        /** Pass of the lane last served. */
+        private long current = 0;
+        private int queued = 0;
+        private int workers = 0;
+        private int idle = 0;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private Prioritized(int threads, int capacity)
+        {
+            if (threads <= 0 || capacity <= 0)
+            {
+                throw new IllegalArgumentException("Invalid worker pool size");
+            }
+
+            this.threads = threads;
+            this.capacity = capacity;
+            this.queues = new ArrayDeque[Lane.values().length];
+            this.pass = new long[queues.length];
+            for (int i = 0; i < queues.length; i++)
+            {
+                queues[i] = new ArrayDeque<Runnable>();
+            }
+        }
+
+        @Override
+        protected boolean submit(Runnable task)
+        {
+            return submit(task, Lane.NORMAL);
+        }
+
+        @Override
+        protected synchronized boolean submit(Runnable task, Lane lane)
+        {
+            ArrayDeque<Runnable> queue = queues[lane.ordinal()];
+            if (queue.size() >= capacity)
+            {
+                return false;
+            }
+
+            if (queue.isEmpty())
+            {
+                pass[lane.ordinal()] = Math.max(pass[lane.ordinal()], current);
+            }
+            queue.add(task);
+            queued++;
+
+            if (queued > idle && workers < threads)
+            {
+                workers++;
+                factory.newThread(new Worker()).start();
+            }
+            else
+            {
+                notify();
+            }
+            return true;
+        }
+
+        @Override
+        public synchronized int queueDepth()
+        {
+            return queued;
+        }
+
+        @Override
+        public synchronized int queueDepth(Lane lane)
+        {
+            return queues[lane.ordinal()].size();
+        }
+
+        /** Takes the next task for a worker, waiting for one if none is
+            queued. Returns <code>null</code> if the worker has been idle for
+            too long, in which case it must stop. */
+        private synchronized Runnable next()
+        {
+            long deadline = System.nanoTime() + IDLE_NANOS;
+
+            while (queued == 0)
+            {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0)
+                {
+                    workers--;
+                    return null;
+                }
+
+                idle++;
+                try
+                {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                }
+                catch (InterruptedException e)
+                {
+                    // Workers are stopped only by idleness.
+                }
+                finally
+                {
+                    idle--;
+                }
+            }
+
+            int chosen = -1;
+            for (int i = 0; i < queues.length; i++)
+            {
+                if (!queues[i].isEmpty() &&
+                    (chosen < 0 || pass[i] < pass[chosen]))
+                {
+                    chosen = i;
+                }
+            }
+
+            current = pass[chosen];
+            pass[chosen] += STRIDE / Lane.values()[chosen].weight;
+            queued--;
+            return queues[chosen].poll();
+        }
+
+        /** Accounts for a worker dying with an exception, and starts another
+            in its place if tasks are queued which the idle workers cannot
+            take, so that they do not wait for the next task to arrive. */
+        private synchronized void workerFailed()
+        {
+            workers--;
+            if (queued > idle && workers < threads)
+            {
+                workers++;
+                factory.newThread(new Worker()).start();
+            }
+        }
+
+        private class Worker implements Runnable
+        {
+            @Override
+            public void run()
+            {
+                Runnable task;
+                while ((task = next()) != null)
+                {
+                    boolean completed = false;
+                    try
+                    {
+                        task.run();
+                        completed = true;
+                    }
+                    finally
+                    {
+                        if (!completed)
+                        {
+                            // The thread dies with the exception. Another
+                            // worker is started for the tasks left queued.
+                            workerFailed();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /** Creates daemon worker threads, so that an idle pool does not keep the
+        JVM alive. */
+    private static class WorkerFactory implements ThreadFactory
+    {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable task)
+        {
+            Thread thread = new Thread(task, "rmi-worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package rmi;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+
+/** Table of invokers for the methods of one server object.
+
+    <p>
+    The table is built once, when the skeleton is created, and is indexed by
+    method number from the interface's <code>MethodSchema</code>. If a
+    <code>GeneratedSkeleton</code> exists for the interface, each entry calls
+    the method through it. Otherwise, each entry is a method handle bound to
+    the server object and adapted to take its arguments as an
+    <code>Object[]</code>, so serving a call involves neither a method lookup
+    nor the access checks of <code>Method.invoke</code>. Methods whose
+    declaring interface is not accessible through a public lookup fall back
+    to reflection.
+
+    <p>
+    The benchmark <code>DispatchBenchmark</code> in the unit tests measures
+    the table against reflection. What the table saves is the lookup of the
+    method on every call, which the skeleton once made: on Java 17, a call
+    through the table takes about a third of the time of
+    <code>getMethod</code> followed by <code>Method.invoke</code>. It is no
+    faster than <code>Method.invoke</code> on a method found in advance, as
+    the check of the arguments costs a few nanoseconds more than the handle
+    saves.
+ */
+class DispatchTable
+{
+    private final Invoker[] invokers;
+
+    DispatchTable(MethodSchema schema, Object server)
+    {
+        this.invokers = new Invoker[schema.size()];
+
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+
+        GeneratedSkeleton generated = GeneratedSkeleton.forInterface(schema.c);
+        Map<Method, Integer> generatedIndex = new HashMap<>();
+        if (generated != null)
+        {
+            Method[] methods = generated.methods();
+            for (int index = 0; index < methods.length; index++)
+            {
+                generatedIndex.put(methods[index], index);
+            }
+        }
+
+        for (int id = 0; id < invokers.length; id++)
+        {
+            Method method;
+            try
+            {
+                method = schema.method(id);
+            }
+            catch (NoSuchMethodException e)
+            {
+                throw new Error(e);
+            }
+
+            Integer index = generatedIndex.get(method);
+            if (index != null)
+            {
+                invokers[id] = new Invoker(method, null, server, generated, index);
+                continue;
+            }
+
+            MethodHandle handle;
+            try
+            {
+                handle = lookup.unreflect(method).bindTo(server);
+                handle = handle.asType(handle.type().generic())
+                               .asSpreader(Object[].class, method.getParameterCount());
+            }
+            catch (IllegalAccessException | RuntimeException e)
+            {
+                handle = null;
+                try
+                {
+                    method.setAccessible(true);
+                }
+                catch (RuntimeException denied)
+                {
+                }
+            }
+
+            invokers[id] = new Invoker(method, handle, server, null, -1);
+        }
+    }
+
+    /** Calls a method on the server object.
+
+        @param id The method number.
+        @param args The arguments, or <code>null</code> for none.
+        @return The method's result.
+        @throws IllegalArgumentException If the arguments do not match the
+                                         method's parameters. The method has
+                                         not been called.
+        @throws InvocationTargetException If the method threw an exception.
+     */
+    Object invoke(int id, Object[] args)
+        throws IllegalArgumentException, InvocationTargetException
+    {
+        return invokers[id].invoke(args);
+    }
+
+    /** Invoker for a single method. */
+    private static class Invoker
+    {
+        private final Method method;
+        private final MethodHandle handle;
+        private final Object server;
+        private final GeneratedSkeleton generated;
+        private final int index;
+        private final Class<?>[] boxedTypes;
+        private final boolean[] primitive;
+
+        private Invoker(Method method, MethodHandle handle, Object server,
+                        GeneratedSkeleton generated, int index)
+        {
+            this.method = method;
+            this.handle = handle;
+            this.server = server;
+            this.generated = generated;
+            this.index = index;
+
+            Class<?>[] types = method.getParameterTypes();
+            boxedTypes = new Class<?>[types.length];
+            primitive = new boolean[types.length];
+            for (int i = 0; i < types.length; i++)
+            {
+                boxedTypes[i] = box(types[i]);
+                primitive[i] = types[i].isPrimitive();
+            }
+        }
+
+        private Object invoke(Object[] args)
+            throws IllegalArgumentException, InvocationTargetException
+        {
+            if (args == null)
+            {
+                args = new Object[0];
+            }
+            check(args);
+
+            if (generated != null)
+            {
+                try
+                {
+                    return generated.invoke(server, index, args);
+                }
+                catch (Throwable t)
+                {
+                    throw new InvocationTargetException(t);
+                }
+            }
+
+            if (handle == null)
+            {
+                try
+                {
+                    return method.invoke(server, args);
+                }
+                catch (IllegalAccessException e)
+                {
+                    throw new IllegalArgumentException(e);
+                }
+            }
+
+            try
+            {
+                return handle.invokeExact(args);
+            }
+            catch (Throwable t)
+            {
+                throw new InvocationTargetException(t);
+            }
+        }
+
+        /** Checks the arguments up front, so that a mismatch is reported as a
+            marshalling error rather than as an exception from the method. */
+        private void check(Object[] args)
+        {
+            if (args.length != boxedTypes.length)
+            {
+                throw new IllegalArgumentException("Wrong number of arguments");
+            }
+
+            for (int i = 0; i < args.length; i++)
+            {
+                if (args[i] == null)
+                {
+                    if (primitive[i])
+                    {
+                        throw new IllegalArgumentException("Null primitive argument");
+                    }
+                }
+                else if (!boxedTypes[i].isInstance(args[i]))
+                {
+                    throw new IllegalArgumentException("Argument type mismatch");
+                }
+            }
+        }
+    }
+
+    private static Class<?> box(Class<?> type)
+    {
+        if (!type.isPrimitive())
+        {
+            return type;
+        }
+        if (type == int.class)
+        {
+            return Integer.class;
+        }
+        if (type == long.class)
+        {
+            return Long.class;
+        }
+        if (type == boolean.class)
+        {
+            return Boolean.class;
+        }
+        if (type == byte.class)
+        {
+            return Byte.class;
+        }
+        if (type == short.class)
+        {
+            return Short.class;
+        }
+        if (type == char.class)
+        {
+            return Character.class;
+        }
+        if (type == float.class)
+        {
+            return Float.class;
+        }
+        return Double.class;
+    }
+}
@@ -0,0 +1,76 @@
+package rmi;
+
+import java.lang.reflect.Method;
+
+/** Base class of the skeleton classes generated for remote interfaces marked
+    with <code>RemoteInterface</code>.
+
+    <p>
+    A generated skeleton calls the methods of a server object with a
+    <code>switch</code> over their positions in <code>methods</code>, casting
+    each argument to its parameter type, so serving a call needs no
+    reflection. A <code>Skeleton</code> uses the generated class for its
+    interface, if there is one, in place of reflective invokers; the
+    arguments have been checked against the parameter types by then.
+
+    <p>
+    Generated skeletons are not used if the system property
+    <code>rmi.generated</code> is <code>false</code>.
+ */
+public abstract class GeneratedSkeleton
+{
+    protected GeneratedSkeleton()
+    {
+    }
+
+    /** Returns the generated skeleton for the given interface, or
+        <code>null</code> if none was generated. */
+    static GeneratedSkeleton forInterface(Class<?> c)
+    {
+        if (!GeneratedStub.ENABLED)
+        {
+            return null;
+        }
+
+        try
+        {
+            Class<?> generated =
+                Class.forName(GeneratedStub.generatedName(c, "_Skeleton"), true,
+                              c.getClassLoader());
+            if (!GeneratedSkeleton.class.isAssignableFrom(generated))
+            {
+                return null;
+            }
+            return (GeneratedSkeleton) generated.getConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | LinkageError e)
+        {
+            return null;
+        }
+    }
+
+    /** Looks up a method of a remote interface, for a generated class.
+
+        @throws Error If the interface has no such method.
+     */
+    protected static Method method(Class<?> c, String name, Class<?>... types)
+    {
+        return GeneratedStub.method(c, name, types);
+    }
+
+    /** Returns the methods of the remote interface, in the order of their
+        cases in <code>invoke</code>. */
+    protected abstract Method[] methods();
+
+    /** Calls a method on the server object.
+
+        @param server The server object.
+        @param index The position of the method in <code>methods</code>.
+        @param args The arguments, whose types match the parameters.
+        @return The method's result, or <code>null</code> for a
+                <code>void</code> method.
+        @throws Throwable The exception raised by the method.
+     */
+    protected abstract Object invoke(Object server, int index, Object[] args)
+        throws Throwable;
+}
@@ -0,0 +1,174 @@
+package rmi;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Base class of the stub classes generated for remote interfaces marked
+    with <code>RemoteInterface</code>.
+
+    <p>
+    A generated stub implements each method of its interface by passing the
+    method and its arguments to <code>invoke</code>, which makes the call as a
+    dynamic proxy stub would, without the proxy's dispatch through
+    <code>InvocationHandler</code>. Generated stubs compare, hash and print
+    like proxy stubs, and are serialized in a form which the receiving virtual
+    machine turns back into whichever kind of stub it has for the interface.
+
+    <p>
+    Generated stubs are not used if the system property
+    <code>rmi.generated</code> is <code>false</code>.
+ */
+public abstract class GeneratedStub implements Serializable
+{
+    static final boolean ENABLED =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.generated", "true"));
+
+    /** Generated stub constructors by interface, or <code>NONE</code> for
+        interfaces without a generated stub. */
+    private static final Map<Class<?>, Object> constructors =
+        new ConcurrentHashMap<>();
+    private static final Object NONE = new Object();
+
+    /** Handler making the calls. Set once, after construction. */
+    transient Stub.StubHandler handler;
+
+    protected GeneratedStub()
+    {
+    }
+
+    /** Returns a generated stub for the given interface which makes its
+        calls with the given handler, or <code>null</code> if no stub class
+        was generated for the interface. */
+    static Object newInstance(Class<?> c, Stub.StubHandler handler)
+    {
+        if (!ENABLED)
+        {
+            return null;
+        }
+
+        Object constructor = constructors.get(c);
+        if (constructor == null)
+        {
+            constructor = find(c);
+            constructors.putIfAbsent(c, constructor);
+        }
+        if (constructor == NONE)
+        {
+            return null;
+        }
+
+        GeneratedStub stub;
+        try
+        {
+            stub = (GeneratedStub) ((Constructor<?>) constructor).newInstance();
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new Error("Unable to create generated stub for " +
+                            c.getName(), e);
+        }
+        stub.handler = handler;
+        return stub;
+    }
+
+    private static Object find(Class<?> c)
+    {
+        try
+        {
+            Class<?> generated = Class.forName(generatedName(c, "_Stub"), true,
+                                               c.getClassLoader());
+            if (!GeneratedStub.class.isAssignableFrom(generated) ||
+                !c.isAssignableFrom(generated))
+            {
+                return NONE;
+            }
+            return generated.getConstructor();
+        }
+        catch (ClassNotFoundException | NoSuchMethodException |
+               LinkageError e)
+        {
+            return NONE;
+        }
+    }
+
+    /** Returns the name of a class generated for an interface: the binary
+        name of the interface, with nested names joined by underscores, and
+        the given suffix. */
+    static String generatedName(Class<?> c, String suffix)
+    {
+        return c.getName().replace('$', '_') + suffix;
+    }
+
+    /** Looks up a method of a remote interface, for a generated class.
+
+        @throws Error If the interface has no such method.
+     */
+    protected static Method method(Class<?> c, String name, Class<?>... types)
+    {
+        try
+        {
+            return c.getMethod(name, types);
+        }
+        catch (NoSuchMethodException e)
+        {
+            throw new Error("Generated class does not match interface " +
+                            c.getName(), e);
+        }
+    }
+
+    /** Calls a method on the remote object.
+
+        @param method The method of the remote interface.
+        @param args The arguments, or <code>null</code> for none.
+        @return The method's result.
+        @throws Throwable The exception the method, or the call, raised.
+     */
+    protected final Object invoke(Method method, Object[] args) throws Throwable
+    {
+        return handler.call(method, args);
+    }
+
+    @Override
+    public final boolean equals(Object other)
+    {
+        return handler.localEquals(this, new Object[] { other });
+    }
+
+    @Override
+    public final int hashCode()
+    {
+        return handler.localHashCode(this);
+    }
+
+    @Override
+    public final String toString()
+    {
+        return handler.localToString(this);
+    }
+
+    /** Replaces the stub with its handler when it is serialized. */
+    protected final Object writeReplace() throws ObjectStreamException
+    {
+        return new SerializedStub(handler);
+    }
+
+    /** Serialized form of a generated stub. */
+    private static class SerializedStub implements Serializable
+    {
+        private final Stub.StubHandler handler;
+
+        private SerializedStub(Stub.StubHandler handler)
+        {
+            this.handler = handler;
+        }
+
+        private Object readResolve() throws ObjectStreamException
+        {
+            return Stub.newStub(handler.remoteInterface(), handler);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package rmi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/** Configuration of hedged calls, and the threads which send them.
+
+    <p>
+    A call to a method marked <code>Idempotent</code>, made through a stub
+    with several endpoints, is hedged: if it has not completed after the
+    method usually takes, the stub sends a duplicate to another endpoint and
+    completes the call with whichever reply arrives first. The delay is the
+    percentile given by the system property <code>rmi.hedge.percentile</code>
+    (95 by default) of the time the method's calls have spent waiting for
+    their replies, at the endpoint where this is lowest. The slowest calls are
+    thus the only ones duplicated, and hedging adds about as many calls as the
+    percentile leaves out. A call is not hedged until
+    <code>MIN_SAMPLES</code> replies have been recorded for the method, at
+    the endpoint used for the delay.
+
+    <p>
+    A failure of the call to reach an endpoint does not complete a hedged
+    call while its other request may still succeed. A reply does, whether it
+    carries a result or an exception raised by the method. Batches are not
+    hedged. Hedging is disabled with the system property
+    <code>rmi.hedge=false</code>.
+ */
+final class Hedging
+{
+    static final boolean ENABLED =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.hedge", "true"));
+    /** Fraction of calls which complete before a duplicate is sent. */
+    static final double PERCENTILE =
+        Math.min(100, Math.max(0, Integer.getInteger("rmi.hedge.percentile",
+                                                     95))) / 100.0;
+    /** Number of replies after which a method's calls are hedged. */
+    static final long MIN_SAMPLES = 20;
+
+    /** Sends duplicate requests, which may have to open connections, so that
+        the deadline timer thread does not wait for them. */
+    private static final ExecutorService senders = newSenders();
+
+    private Hedging()
+    {
+    }
+
+    /** Returns the delay after which a call to the given method, through a
+        stub with the given metrics for its endpoints, is hedged.
+
+        @return The delay in nanoseconds, or <code>-1</code> if the call is
+                not to be hedged.
+     */
+    static long delay(RMIMetrics.MethodMetrics[] endpoints)
+    {
+        long delay = -1;
+        for (RMIMetrics.MethodMetrics metrics : endpoints)
+        {
+            long percentile = metrics.percentile(RMIMetrics.Phase.EXECUTE,
+                                                 PERCENTILE, MIN_SAMPLES);
+            if (percentile >= 0 && (delay < 0 || percentile < delay))
+            {
+                delay = percentile;
+            }
+        }
+        return delay;
+    }
+
+    /** Runs a task sending a duplicate request. */
+    static void send(Runnable task)
+    {
+        senders.execute(task);
+    }
+
+    private static ExecutorService newSenders()
+    {
+        return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new ThreadFactory()
+            {
+                @Override
+                public Thread newThread(Runnable task)
+                {
+                    Thread thread = new Thread(task, "rmi-hedge");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+    }
+}
@@ -0,0 +1,35 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a method of a remote interface which may safely be executed more
+    than once for a single call.
+
+    <p>
+    A call made through a stub with several endpoints, created by
+    <code>Stub.createReplicated</code>, is retried on another endpoint if its
+    connection fails after the request was sent only if the method is marked
+    idempotent: the first server may or may not have executed it. A call
+    whose connection could not be opened, or whose request could not be
+    written, is retried on another endpoint whether or not the method is
+    idempotent.
+
+    <p>
+    The same holds for a call on a pooled connection which the skeleton
+    closed while it was idle: the call is retried once on a fresh connection
+    if its request was not written or the method is idempotent.
+
+    <p>
+    A call to an idempotent method which is slower than most calls to it is
+    also duplicated to another endpoint, and completed with the first reply.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface Idempotent
+{
+}
@@ -0,0 +1,33 @@
+package rmi;
+
+/** Class of requests served by a skeleton, which decides how they are
+    scheduled when the skeleton is busy.
+
+    <p>
+    A skeleton serves all requests for its remote interface in the lane given
+    by the interface's <code>Priority</code> annotation, or in
+    <code>NORMAL</code> if it has none. Lanes matter only to a dispatch policy
+    created by <code>DispatchPolicy.prioritized</code>, which queues each lane
+    separately and shares its threads between the lanes in proportion to their
+    weights.
+ */
+public enum Lane
+{
+    /** Requests which coordinate servers, such as registration and storage
+        commands. They are served before any other requests waiting. */
+    CONTROL(16),
+    /** Ordinary client requests. */
+    NORMAL(4),
+    /** Requests which move large amounts of data, and may wait while other
+        requests are served. */
+    BULK(1);
+
+    /** Number of requests served from the lane, when every lane has requests
+        waiting, for each request served from a lane of weight one. */
+    final int weight;
+
+    private Lane(int weight)
+    {
+        this.weight = weight;
+    }
+}
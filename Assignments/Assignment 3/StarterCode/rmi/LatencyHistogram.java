@@ -0,0 +1,125 @@
+package rmi;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Concurrent histogram of durations in nanoseconds.
+
+    <p>
+    Buckets are log-linear, in the manner of an HDR histogram: each power of
+    two is split into sixteen equal sub-buckets, so any recorded value is
+    reported with a relative error of at most one sixteenth, from one
+    nanosecond up to about eighteen minutes. Longer durations are counted in
+    the last bucket. Recording is lock-free and does not allocate.
+ */
+class LatencyHistogram
+{
+    /** Number of sub-buckets per power of two, as a power of two. */
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    /** Largest exponent tracked; values of 2^40 ns and above share a bucket. */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /** Records one duration. Negative durations are recorded as zero. */
+    void record(long nanos)
+    {
+        if (nanos < 0)
+        {
+            nanos = 0;
+        }
+
+        counts.incrementAndGet(index(nanos));
+        total.incrementAndGet();
+        sum.addAndGet(nanos);
+
+        long previous;
+        while (nanos > (previous = max.get()))
+        {
+            if (max.compareAndSet(previous, nanos))
+            {
+                break;
+            }
+        }
+    }
+
+    long count()
+    {
+        return total.get();
+    }
+
+    long max()
+    {
+        return max.get();
+    }
+
+    /** Returns the mean of the recorded durations, or zero if there are
+        none. */
+    long mean()
+    {
+        long count = total.get();
+        return count == 0 ? 0 : sum.get() / count;
+    }
+
+    /** Returns the duration below which the given fraction of the recorded
+        durations fall, or zero if nothing has been recorded.
+
+        @param fraction A number between zero and one.
+     */
+    long percentile(double fraction)
+    {
+        long count = total.get();
+        if (count == 0)
+        {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(fraction * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++)
+        {
+            seen += counts.get(i);
+            if (seen >= rank)
+            {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    private static int index(long nanos)
+    {
+        if (nanos < SUB_COUNT)
+        {
+            return (int) nanos;
+        }
+
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent > MAX_EXPONENT)
+        {
+            return BUCKETS - 1;
+        }
+
+        int sub = (int) (nanos >>> (exponent - SUB_BITS)) & (SUB_COUNT - 1);
+        return (exponent - SUB_BITS + 1) * SUB_COUNT + sub;
+    }
+
+    /** Returns the largest duration counted in a bucket. */
+    private static long upperBound(int index)
+    {
+        if (index < SUB_COUNT)
+        {
+            return index;
+        }
+
+        int exponent = index / SUB_COUNT + SUB_BITS - 1;
+        long sub = index % SUB_COUNT;
+        long width = 1L << (exponent - SUB_BITS);
+        return (1L << exponent) + (sub + 1) * width - 1;
+    }
+}
@@ -0,0 +1,201 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.Path;
+
+/** Registry of the skeletons running in this virtual machine, used to
+    short-circuit calls made by stubs to them.
+
+    <p>
+    A skeleton registers itself under its port once it is listening. Before
+    sending a call, a stub looks up the skeleton listening on its port; if
+    one is found for the same interface, at the stub's address, the call is
+    handed directly to the skeleton, without a connection and without
+    encoding the request or the reply. A stub's address is served by a
+    skeleton if the two addresses are equal, or if the skeleton listens on
+    the wildcard address and the stub's address belongs to this host.
+
+    <p>
+    Arguments and results are still copied by default, so that the caller and
+    the server see the same values they would see over the network. The
+    system property <code>rmi.local</code> selects the behaviour:
+    <ul>
+    <li><code>copy</code> (the default) copies each argument and result by
+        serializing and deserializing it. Values of immutable classes, such as
+        strings, boxed primitives and paths, are not copied, and arrays of
+        bytes, strings and paths are cloned.</li>
+    <li><code>share</code> passes arguments and results by reference. This is
+        only safe if neither side modifies the objects it passes.</li>
+    <li><code>off</code> disables the short-circuit: every call goes through
+        the network.</li>
+    </ul>
+ */
+final class LocalSkeletons
+{
+    private static final String MODE =
+        System.getProperty("rmi.local", "copy").toLowerCase();
+    static final boolean SHARE = MODE.equals("share");
+    private static volatile boolean enabled = !MODE.equals("off");
+
+    /** Running skeletons, by port. */
+    private static final Map<Integer, Skeleton<?>> skeletons =
+        new ConcurrentHashMap<>();
+    /** Whether each address looked up so far belongs to this host. */
+    private static final Map<InetAddress, Boolean> local =
+        new ConcurrentHashMap<>();
+
+    private LocalSkeletons()
+    {
+    }
+
+    /** Enables or disables the short-circuit, overriding
+        <code>rmi.local</code>. Used by tests of the network path. */
+    static void setEnabled(boolean enabled)
+    {
+        LocalSkeletons.enabled = enabled;
+    }
+
+    /** Registers a skeleton which has started listening at the given
+        address. */
+    static void register(Skeleton<?> skeleton, InetSocketAddress address)
+    {
+        if (address != null)
+        {
+            skeletons.put(address.getPort(), skeleton);
+        }
+    }
+
+    /** Removes a skeleton which has stopped. */
+    static void unregister(Skeleton<?> skeleton, InetSocketAddress address)
+    {
+        if (address != null)
+        {
+            skeletons.remove(address.getPort(), skeleton);
+        }
+    }
+
+    /** Returns the running skeleton in this virtual machine which serves the
+        given interface at the given address, or <code>null</code> if calls to
+        it must go through the network. */
+    static Skeleton<?> find(Class<?> c, InetSocketAddress address)
+    {
+        if (!enabled || skeletons.isEmpty())
+        {
+            return null;
+        }
+
+        Skeleton<?> skeleton = skeletons.get(address.getPort());
+        if (skeleton == null || skeleton.remoteInterface() != c ||
+            skeleton.isStopped())
+        {
+            return null;
+        }
+
+        InetSocketAddress bound = skeleton.getAddress();
+        InetAddress target = address.getAddress();
+        if (bound == null || target == null)
+        {
+            return null;
+        }
+
+        if (bound.getAddress() == null || bound.getAddress().isAnyLocalAddress())
+        {
+            return isLocal(target) ? skeleton : null;
+        }
+        return bound.getAddress().equals(target) ? skeleton : null;
+    }
+
+    private static boolean isLocal(InetAddress address)
+    {
+        if (address.isLoopbackAddress() || address.isAnyLocalAddress())
+        {
+            return true;
+        }
+
+        Boolean known = local.get(address);
+        if (known == null)
+        {
+            try
+            {
+                known = NetworkInterface.getByInetAddress(address) != null;
+            }
+            catch (SocketException e)
+            {
+                known = false;
+            }
+            local.put(address, known);
+        }
+        return known;
+    }
+
+    /** Copies the arguments of a call, as they would be received by a
+        skeleton over the network. */
+    static Object[] copyArguments(Object[] args)
+        throws IOException, ClassNotFoundException
+    {
+        if (args == null || SHARE)
+        {
+            return args;
+        }
+
+        Object[] copies = new Object[args.length];
+        for (int i = 0; i < args.length; i++)
+        {
+            copies[i] = copy(args[i]);
+        }
+        return copies;
+    }
+
+    /** Copies a value, as it would be received over the network.
+
+        @throws java.io.NotSerializableException If the value, or an object
+                                                 it refers to, is not
+                                                 serializable.
+     */
+    static Object copy(Object value) throws IOException, ClassNotFoundException
+    {
+        if (value == null || SHARE || isImmutable(value.getClass()))
+        {
+            return value;
+        }
+        if (value instanceof byte[])
+        {
+            return ((byte[]) value).clone();
+        }
+        if (value instanceof String[] || value instanceof Path[])
+        {
+            return ((Object[]) value).clone();
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes))
+        {
+            out.writeObject(value);
+        }
+
+        try (ObjectInputStream in = new ObjectInputStream(
+                 new ByteArrayInputStream(bytes.toByteArray())))
+        {
+            return in.readObject();
+        }
+    }
+
+    private static boolean isImmutable(Class<?> c)
+    {
+        return c == String.class || c == Integer.class || c == Long.class ||
+               c == Boolean.class || c == Double.class || c == Float.class ||
+               c == Short.class || c == Byte.class || c == Character.class ||
+               c == Path.class;
+    }
+}
@@ -0,0 +1,278 @@
+package rmi;
+
+import java.io.IOException;
+
+/** Fast LZ77 block compressor, in the LZ4 block format.
+
+    <p>
+    A block is a sequence of sequences. Each sequence starts with a token byte
+    whose high four bits give the number of literal bytes and whose low four
+    bits give the length of the match, less four; a nibble of fifteen is
+    followed by further length bytes, each added to it, the last of which is
+    less than 255. The literals follow, then the two-byte little-endian offset
+    of the match. The last sequence has only literals. The last five bytes of
+    a block are always literals, and no match starts in its last twelve bytes.
+
+    <p>
+    Matches are found through a single-entry hash table of four-byte
+    prefixes, which trades compression ratio for speed: text typically shrinks
+    to between a third and a half of its size, at several hundred megabytes
+    per second.
+ */
+final class LzBlock
+{
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MATCH_LIMIT = 12;
+    private static final int MAX_OFFSET = 65535;
+    private static final int HASH_LOG = 12;
+    /** Misses after which the search starts skipping ahead, as a power of
+        two. */
+    private static final int SKIP_TRIGGER = 6;
+
+    private LzBlock()
+    {
+    }
+
+    /** Returns the largest size that a block of the given length can
+        decompress to. */
+    static long maxDecompressed(int compressedLength)
+    {
+        return (long) compressedLength * 255 + 16;
+    }
+
+    /** Compresses <code>length</code> bytes of <code>src</code> into
+        <code>dst</code>.
+
+        @return The size of the compressed block, or -1 if it does not fit in
+                <code>capacity</code> bytes.
+     */
+    static int compress(byte[] src, int offset, int length,
+                        byte[] dst, int dstOffset, int capacity)
+    {
+        int[] table = new int[1 << HASH_LOG];
+        int end = offset + length;
+        int dstEnd = dstOffset + capacity;
+        int anchor = offset;
+        int op = dstOffset;
+
+        if (length >= MATCH_LIMIT + 1)
+        {
+            int limit = end - MATCH_LIMIT;
+            int matchEnd = end - LAST_LITERALS;
+            int ip = offset;
+            int misses = 1 << SKIP_TRIGGER;
+
+            while (ip < limit)
+            {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = table[h] - 1 + offset;
+                table[h] = ip - offset + 1;
+
+                if (ref < offset || ip - ref > MAX_OFFSET ||
+                    readInt(src, ref) != sequence)
+                {
+                    ip += misses++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                misses = 1 << SKIP_TRIGGER;
+
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchEnd &&
+                       src[ref + matchLength] == src[ip + matchLength])
+                {
+                    matchLength++;
+                }
+
+                op = writeSequence(src, anchor, ip - anchor, ip - ref,
+                                   matchLength, dst, op, dstEnd);
+                if (op < 0)
+                {
+                    return -1;
+                }
+
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+
+        op = writeSequence(src, anchor, end - anchor, 0, 0, dst, op, dstEnd);
+        return op < 0 ? -1 : op - dstOffset;
+    }
+
+    /** Decompresses a block into exactly <code>length</code> bytes of
+        <code>dst</code>.
+
+        @throws IOException If the block is malformed or does not decompress
+                            to the expected length.
+     */
+    static void decompress(byte[] src, int offset, int length,
+                           byte[] dst, int dstOffset, int dstLength)
+        throws IOException
+    {
+        int ip = offset;
+        int end = offset + length;
+        int op = dstOffset;
+        int dstEnd = dstOffset + dstLength;
+
+        while (true)
+        {
+            if (ip >= end)
+            {
+                throw new IOException("Truncated compressed block");
+            }
+
+            int token = src[ip++] & 0xff;
+
+            int literals = token >>> 4;
+            if (literals == 15)
+            {
+                int more;
+                do
+                {
+                    if (ip >= end)
+                    {
+                        throw new IOException("Truncated compressed block");
+                    }
+                    more = src[ip++] & 0xff;
+                    literals += more;
+                }
+                while (more == 255);
+            }
+
+            if (literals > end - ip || literals > dstEnd - op)
+            {
+                throw new IOException("Corrupt compressed block");
+            }
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+
+            if (ip == end)
+            {
+                break;
+            }
+
+            if (end - ip < 2)
+            {
+                throw new IOException("Truncated compressed block");
+            }
+            int distance = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+
+            int matchLength = token & 0x0f;
+            if (matchLength == 15)
+            {
+                int more;
+                do
+                {
+                    if (ip >= end)
+                    {
+                        throw new IOException("Truncated compressed block");
+                    }
+                    more = src[ip++] & 0xff;
+                    matchLength += more;
+                }
+                while (more == 255);
+            }
+            matchLength += MIN_MATCH;
+
+            int ref = op - distance;
+            if (distance == 0 || ref < dstOffset || matchLength > dstEnd - op)
+            {
+                throw new IOException("Corrupt compressed block");
+            }
+
+            if (distance >= matchLength)
+            {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            }
+            else
+            {
+                // The match overlaps the bytes it produces.
+                for (int i = 0; i < matchLength; i++)
+                {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+
+        if (op != dstEnd)
+        {
+            throw new IOException("Compressed block has the wrong length");
+        }
+    }
+
+    /** Writes one sequence. A match length of zero writes the final,
+        literal-only sequence.
+
+        @return The offset after the sequence, or -1 if it does not fit.
+     */
+    private static int writeSequence(byte[] src, int literalsStart, int literals,
+                                     int distance, int matchLength,
+                                     byte[] dst, int op, int dstEnd)
+    {
+        int extra = matchLength - MIN_MATCH;
+        if (op + 1 + literals / 255 + 1 + literals + 2 + extra / 255 + 1 > dstEnd)
+        {
+            return -1;
+        }
+
+        int token = op++;
+        if (literals >= 15)
+        {
+            dst[token] = (byte) (15 << 4);
+            op = writeLength(literals - 15, dst, op);
+        }
+        else
+        {
+            dst[token] = (byte) (literals << 4);
+        }
+
+        System.arraycopy(src, literalsStart, dst, op, literals);
+        op += literals;
+
+        if (matchLength == 0)
+        {
+            return op;
+        }
+
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+
+        if (extra >= 15)
+        {
+            dst[token] |= 15;
+            op = writeLength(extra - 15, dst, op);
+        }
+        else
+        {
+            dst[token] |= extra;
+        }
+        return op;
+    }
+
+    private static int writeLength(int length, byte[] dst, int op)
+    {
+        while (length >= 255)
+        {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    private static int readInt(byte[] src, int i)
+    {
+        return (src[i] & 0xff) | (src[i + 1] & 0xff) << 8 |
+               (src[i + 2] & 0xff) << 16 | (src[i + 3] & 0xff) << 24;
+    }
+
+    private static int hash(int sequence)
+    {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+}
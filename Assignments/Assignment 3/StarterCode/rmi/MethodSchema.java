@@ -0,0 +1,155 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/** Numbering of the methods of a remote interface.
+
+    <p>
+    The methods of the interface are sorted by their signature and numbered in
+    that order, so a stub and a skeleton built from the same interface assign
+    the same number to every method without exchanging any names. A hash over
+    all the signatures lets the two ends detect, when they connect, that they
+    were built from different versions of the interface.
+
+    <p>
+    Schemas are computed once per interface and shared.
+ */
+final class MethodSchema
+{
+    private static final Map<Class<?>, MethodSchema> schemas = new ConcurrentHashMap<>();
+
+    final Class<?> c;
+    private final Method[] methods;
+    private final Map<Method, Integer> ids = new HashMap<>();
+    /** Whether each method is marked <code>Idempotent</code>, by number. */
+    private final boolean[] idempotent;
+    /** Time for which each method's results are cached, in nanoseconds, or
+        <code>-1</code> if they are not, by number. */
+    private final long[] cacheTtl;
+    final long hash;
+
+    private MethodSchema(Class<?> c)
+    {
+        this.c = c;
+        this.methods = c.getMethods();
+
+        Arrays.sort(methods, new Comparator<Method>()
+        {
+            @Override
+            public int compare(Method m1, Method m2)
+            {
+                return signature(m1).compareTo(signature(m2));
+            }
+        });
+
+        // 64-bit FNV-1a over the sorted signatures.
+        long h = 0xcbf29ce484222325L;
+        idempotent = new boolean[methods.length];
+        cacheTtl = new long[methods.length];
+        for (int id = 0; id < methods.length; id++)
+        {
+            ids.put(methods[id], id);
+            idempotent[id] = methods[id].isAnnotationPresent(Idempotent.class);
+            Cacheable cacheable = methods[id].getAnnotation(Cacheable.class);
+            cacheTtl[id] = cacheable == null ?
+                -1 : TimeUnit.MILLISECONDS.toNanos(Math.max(0, cacheable.ttlMillis()));
+
+            for (byte b : signature(methods[id]).getBytes(StandardCharsets.UTF_8))
+            {
+                h ^= b & 0xff;
+                h *= 0x100000001b3L;
+            }
+        }
+        this.hash = h;
+    }
+
+    /** Returns the schema of the given remote interface. */
+    static MethodSchema of(Class<?> c)
+    {
+        MethodSchema schema = schemas.get(c);
+        if (schema == null)
+        {
+            schema = new MethodSchema(c);
+            MethodSchema raced = schemas.putIfAbsent(c, schema);
+            if (raced != null)
+            {
+                schema = raced;
+            }
+        }
+        return schema;
+    }
+
+    /** Returns the number of the given method, or <code>-1</code> if it is not
+        a method of the interface. */
+    int idOf(Method method)
+    {
+        Integer id = ids.get(method);
+        return id == null ? -1 : id;
+    }
+
+    /** Returns the method with the given number. */
+    Method method(int id) throws NoSuchMethodException
+    {
+        if (id < 0 || id >= methods.length)
+        {
+            throw new NoSuchMethodException("No method " + id + " in " + c.getName());
+        }
+        return methods[id];
+    }
+
+    /** Returns <code>true</code> if the given method of the interface is
+        marked <code>Idempotent</code>. */
+    boolean isIdempotent(Method method)
+    {
+        int id = idOf(method);
+        return id >= 0 && idempotent[id];
+    }
+
+    /** Returns the time for which the results of the given method are
+        cached, in nanoseconds, or <code>-1</code> if the method is not marked
+        <code>Cacheable</code>. */
+    long cacheTtl(Method method)
+    {
+        int id = idOf(method);
+        return id < 0 ? -1 : cacheTtl[id];
+    }
+
+    /** Returns <code>true</code> if a call to the given method may change the
+        state of the remote object: if it is marked neither
+        <code>Cacheable</code> nor <code>Idempotent</code>. */
+    boolean mayModify(Method method)
+    {
+        int id = idOf(method);
+        return id < 0 || (cacheTtl[id] < 0 && !idempotent[id]);
+    }
+
+    /** Returns the number of methods in the interface. */
+    int size()
+    {
+        return methods.length;
+    }
+
+    private static String signature(Method method)
+    {
+        StringBuilder builder = new StringBuilder(method.getName()).append('(');
+
+        Class<?>[] types = method.getParameterTypes();
+        for (int i = 0; i < types.length; i++)
+        {
+            if (i > 0)
+            {
+                builder.append(',');
+            }
+            builder.append(types[i].getName());
+        }
+
+        return builder.append(')').append(method.getReturnType().getName()).toString();
+    }
+}
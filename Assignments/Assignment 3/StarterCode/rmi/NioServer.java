@@ -0,0 +1,530 @@
+package rmi;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Non-blocking skeleton transport.
+
+    <p>
+    One acceptor thread hands new connections to a small, fixed set of event
+    loops. Each event loop owns a <code>Selector</code> and reads request
+    frames from all of its connections without blocking. A complete frame is
+    handed to the skeleton's dispatch policy, so unmarshalling and the call
+    itself never run on an event loop. The reply is queued on the connection
+    and written by the event loop as the socket accepts it, so replies to
+    calls multiplexed over one connection go out as each call completes.
+
+    <p>
+    The number of event loops is taken from the system property
+    <code>rmi.nio.loops</code>. The transport is selected with
+    <code>rmi.transport=nio</code>; stubs need no change, since both
+    transports speak the same frames.
+
+    <p>
+    Whatever the transport, a skeleton also serves the connections of stubs on
+    the same host through a second <code>NioServer</code>, listening on the
+    skeleton's unix domain socket. That server does not report its own end to
+    the skeleton: stubs fall back to TCP if it stops.
+ */
+class NioServer
+{
+    private static final int LOOPS = Integer.getInteger("rmi.nio.loops",
+        Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors())));
+
+    private final Skeleton<?> skeleton;
+    private final DispatchPolicy dispatchPolicy;
+
+    private ServerSocketChannel serverChannel;
+    /** Whether the server listens on a unix domain socket. */
+    private boolean unix = false;
+    private EventLoop[] loops;
+    private Thread acceptor;
+    private final CountDownLatch acceptorExited = new CountDownLatch(1);
+    private volatile boolean stopping = false;
+
+    NioServer(Skeleton<?> skeleton, DispatchPolicy dispatchPolicy)
+    {
+        this.skeleton = skeleton;
+        this.dispatchPolicy = dispatchPolicy;
+    }
+
+    /** Binds the listening channel and starts the transport threads.
+
+        @param address The address to bind, or <code>null</code> for a
+                       system-assigned port.
+        @return The address actually bound.
+     */
+    InetSocketAddress start(InetSocketAddress address) throws IOException
+    {
+        serverChannel = ServerSocketChannel.open();
+        listen(address);
+
+        return (InetSocketAddress) serverChannel.getLocalAddress();
+    }
+
+    /** Binds a listening unix domain socket and starts the transport
+        threads. */
+    void startUnix(UnixDomainSocketAddress address) throws IOException
+    {
+        unix = true;
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        listen(address);
+    }
+
+    private void listen(SocketAddress address) throws IOException
+    {
+        try
+        {
+            if (!unix)
+            {
+                serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            serverChannel.bind(address);
+
+            loops = new EventLoop[LOOPS];
+            for (int i = 0; i < loops.length; i++)
+            {
+                loops[i] = new EventLoop();
+            }
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+
+        for (int i = 0; i < loops.length; i++)
+        {
+            Thread thread = new Thread(loops[i], "rmi-nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        acceptor = new Thread(new Acceptor(), "rmi-nio-acceptor");
+        acceptor.start();
+    }
+
+    /** Stops accepting connections and closes all open connections. Calls in
+        progress complete, but their replies are discarded.
+
+        <p>
+        The listening socket of a channel blocked in <code>accept</code> is only
+        released once the accepting thread wakes up, so this method waits for
+        that thread. Otherwise a skeleton restarted at the same address could
+        find the port still bound.
+     */
+    void stop()
+    {
+        stopping = true;
+        close();
+
+        if (acceptor != null && Thread.currentThread() != acceptor)
+        {
+            try
+            {
+                acceptorExited.await(5, TimeUnit.SECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void close()
+    {
+        try
+        {
+            serverChannel.close();
+        }
+        catch (IOException e)
+        {
+        }
+
+        if (loops != null)
+        {
+            for (EventLoop loop : loops)
+            {
+                if (loop != null)
+                {
+                    loop.selector.wakeup();
+                }
+            }
+        }
+    }
+
+    private class Acceptor implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            int next = 0;
+
+            while (!stopping)
+            {
+                try
+                {
+                    SocketChannel channel = serverChannel.accept();
+                    channel.configureBlocking(false);
+                    if (!unix)
+                    {
+                        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                    }
+
+                    loops[next].register(channel);
+                    next = (next + 1) % loops.length;
+                }
+                catch (IOException e)
+                {
+                    if (stopping)
+                    {
+                        break;
+                    }
+                    if (unix)
+                    {
+                        // Stubs connect over TCP once the socket is closed.
+                        stopping = true;
+                        close();
+                        break;
+                    }
+                    if (!skeleton.listen_error(e))
+                    {
+                        skeleton.stop();
+                        break;
+                    }
+                }
+            }
+
+            acceptorExited.countDown();
+            if (!unix)
+            {
+                skeleton.listenerStopped(null);
+            }
+        }
+    }
+
+    private class EventLoop implements Runnable
+    {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<SocketChannel> registrations = new ConcurrentLinkedQueue<>();
+        private final ConcurrentLinkedQueue<ChannelState> writes = new ConcurrentLinkedQueue<>();
+
+        private EventLoop() throws IOException
+        {
+            selector = Selector.open();
+        }
+
+        /** Hands a newly accepted channel to this loop. */
+        private void register(SocketChannel channel)
+        {
+            registrations.add(channel);
+            selector.wakeup();
+        }
+
+        /** Asks this loop to write the pending replies of a channel. */
+        private void flush(ChannelState state)
+        {
+            writes.add(state);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                while (!stopping)
+                {
+                    selector.select();
+
+                    SocketChannel channel;
+                    while ((channel = registrations.poll()) != null)
+                    {
+                        accept(channel);
+                    }
+
+                    ChannelState pending;
+                    while ((pending = writes.poll()) != null)
+                    {
+                        write(pending);
+                    }
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext())
+                    {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+
+                        ChannelState state = (ChannelState) key.attachment();
+                        if (key.isValid() && key.isWritable())
+                        {
+                            write(state);
+                        }
+                        if (key.isValid() && key.isReadable())
+                        {
+                            read(state);
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                if (!stopping)
+                {
+                    skeleton.service_error(new RMIException(e));
+                }
+            }
+            finally
+            {
+                for (SelectionKey key : selector.keys())
+                {
+                    ((ChannelState) key.attachment()).close();
+                }
+
+                SocketChannel channel;
+                while ((channel = registrations.poll()) != null)
+                {
+                    try
+                    {
+                        channel.close();
+                    }
+                    catch (IOException e)
+                    {
+                    }
+                }
+
+                try
+                {
+                    selector.close();
+                }
+                catch (IOException e)
+                {
+                }
+            }
+        }
+
+        private void accept(SocketChannel channel)
+        {
+            try
+            {
+                ChannelState state = new ChannelState(this, channel);
+                state.key = channel.register(selector, SelectionKey.OP_READ, state);
+            }
+            catch (ClosedChannelException e)
+            {
+            }
+        }
+
+        private void read(ChannelState state)
+        {
+            try
+            {
+                byte[] request;
+                while ((request = state.readFrame()) != null)
+                {
+                    if (state.codec == null)
+                    {
+                        state.codec = skeleton.negotiate(request);
+                        state.send(new byte[] { state.codec.wireId() });
+                    }
+                    else
+                    {
+                        dispatch(state, request);
+                    }
+                }
+            }
+            catch (EOFException e)
+            {
+                state.close();
+            }
+            catch (IOException e)
+            {
+                state.fail(e);
+            }
+        }
+
+        private void write(ChannelState state)
+        {
+            try
+            {
+                state.writeQueued();
+            }
+            catch (IOException e)
+            {
+                state.fail(e);
+            }
+        }
+
+        private void dispatch(final ChannelState state, final byte[] request)
+        {
+            final long received = System.nanoTime();
+
+            boolean accepted = dispatchPolicy.dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        state.send(skeleton.handle(state.codec, request, received));
+                    }
+                    catch (IOException e)
+                    {
+                        state.fail(e);
+                    }
+                }
+            }, skeleton.lane());
+
+            if (!accepted)
+            {
+                try
+                {
+                    state.send(skeleton.reject(state.codec, request));
+                }
+                catch (IOException e)
+                {
+                    state.fail(e);
+                }
+            }
+        }
+    }
+
+    /** Read and write state of one connection. */
+    private class ChannelState
+    {
+        private final EventLoop loop;
+        private final SocketChannel channel;
+        private SelectionKey key;
+        /** Codec negotiated by the first frame, or <code>null</code> before
+            it has arrived. */
+        private Codec codec = null;
+
+        private final ByteBuffer header = ByteBuffer.allocate(Wire.HEADER);
+        private ByteBuffer body = null;
+        private final ArrayDeque<ByteBuffer> queued = new ArrayDeque<>();
+
+        private ChannelState(EventLoop loop, SocketChannel channel)
+        {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        /** Reads as much of the next frame as is available.
+
+            @return The complete payload, or <code>null</code> if the frame is
+                    not complete yet.
+            @throws EOFException If the peer closed the connection.
+         */
+        private byte[] readFrame() throws IOException
+        {
+            if (body == null)
+            {
+                if (channel.read(header) < 0)
+                {
+                    throw new EOFException();
+                }
+                if (header.hasRemaining())
+                {
+                    return null;
+                }
+
+                int length = header.getInt(0);
+                Wire.checkLength(length);
+                body = ByteBuffer.allocate(length);
+            }
+
+            if (body.hasRemaining() && channel.read(body) < 0)
+            {
+                throw new EOFException();
+            }
+            if (body.hasRemaining())
+            {
+                return null;
+            }
+
+            byte[] payload = body.array();
+            body = null;
+            header.clear();
+            return payload;
+        }
+
+        /** Queues a reply frame. Called from worker threads. */
+        private void send(byte[] reply)
+        {
+            ByteBuffer frame = ByteBuffer.allocate(Wire.HEADER + reply.length);
+            frame.putInt(reply.length).put(reply).flip();
+
+            synchronized (queued)
+            {
+                queued.addLast(frame);
+            }
+            loop.flush(this);
+        }
+
+        /** Writes queued frames until the socket buffer is full. Called only
+            from the event loop. */
+        private void writeQueued() throws IOException
+        {
+            if (!key.isValid())
+            {
+                return;
+            }
+
+            synchronized (queued)
+            {
+                ByteBuffer frame;
+                while ((frame = queued.peekFirst()) != null)
+                {
+                    channel.write(frame);
+                    if (frame.hasRemaining())
+                    {
+                        key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                        return;
+                    }
+                    queued.removeFirst();
+                }
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        private void fail(IOException e)
+        {
+            if (!stopping && channel.isOpen())
+            {
+                skeleton.service_error(new RMIException(e));
+            }
+            close();
+        }
+
+        private void close()
+        {
+            if (key != null)
+            {
+                key.cancel();
+            }
+
+            try
+            {
+                channel.close();
+            }
+            catch (IOException e)
+            {
+            }
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package rmi;
+
+/** Thrown when a skeleton is too busy to accept a remote call.
+
+    <p>
+    The call was not executed by the server. A skeleton rejects a request
+    when its dispatch policy has no room for it, for example when the queue
+    of the request's <code>Lane</code> is full. The caller may retry later, or
+    at another server.
+ */
+public class OverloadedException extends RMIException
+{
+    /** Creates an <code>OverloadedException</code> with the given message
+        string. */
+    public OverloadedException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,24 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Gives the lane in which a skeleton serves the requests for a remote
+    interface.
+
+    <p>
+    The lane applies to every method of the interface: a skeleton chooses the
+    lane of a request when it is received, before its method is known.
+    Interfaces without this annotation are served in <code>Lane.NORMAL</code>.
+ */
+@Documented
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Priority
+{
+    /** The lane of the interface's requests. */
+    Lane value();
+}
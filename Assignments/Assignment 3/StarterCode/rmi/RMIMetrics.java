@@ -0,0 +1,561 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/** Per-method call statistics of one skeleton, or of the stubs calling one
+    remote object.
+
+    <p>
+    For every remote method, the statistics count calls, completed calls by
+    outcome, and calls in progress, and keep a latency histogram for each
+    <code>Phase</code> of a call. Stubs and skeletons keep separate statistics:
+    a skeleton's are returned by <code>Skeleton.getMetrics</code>, and the
+    statistics shared by all stubs for the same interface and address by
+    <code>Stub.getMetrics</code>.
+
+    <p>
+    Statistics are read with <code>getMethods</code>, which returns an
+    immutable snapshot, or over JMX: each instance is registered with the
+    platform MBean server as
+    <code>rmi:type=Skeleton|Stub,interface=...,address=...</code>. A skeleton
+    registers when it starts and unregisters when it stops. Registration can
+    be disabled with the system property <code>rmi.jmx=false</code>.
+
+    <p>
+    The statistics of payload compression are kept for the whole virtual
+    machine, and returned by <code>getCompression</code>.
+ */
+public final class RMIMetrics implements RMIMetricsMXBean
+{
+    /** Phases of a call.
+
+        <p>
+        On the stub side, <code>CONNECT</code> is the time taken to obtain a
+        connection from the pool, including opening it; <code>SERIALIZE</code>
+        the time to marshal the request; <code>EXECUTE</code> the time from
+        sending the request until its reply arrives; and <code>REPLY</code> the
+        time to unmarshal the reply.
+
+        <p>
+        On the skeleton side, <code>CONNECT</code> is the time a request waits
+        for a thread of the dispatch policy after it has been read;
+        <code>SERIALIZE</code> the time to unmarshal the request;
+        <code>EXECUTE</code> the time spent in the server object; and
+        <code>REPLY</code> the time to marshal the reply.
+     */
+    public enum Phase
+    {
+        CONNECT, SERIALIZE, EXECUTE, REPLY
+    }
+
+    private static final boolean JMX =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.jmx", "true"));
+
+    private static final Map<String, RMIMetrics> stubMetrics =
+        new ConcurrentHashMap<>();
+
+    private final String side;
+    private final Class<?> c;
+    private volatile InetSocketAddress address;
+    private final Map<Method, MethodMetrics> methods = new ConcurrentHashMap<>();
+    private ObjectName name = null;
+
+    private RMIMetrics(String side, Class<?> c, InetSocketAddress address)
+    {
+        this.side = side;
+        this.c = c;
+        this.address = address;
+    }
+
+    /** Creates the statistics of a skeleton. They are registered with JMX
+        when the skeleton starts. */
+    static RMIMetrics forSkeleton(Class<?> c)
+    {
+        return new RMIMetrics("Skeleton", c, null);
+    }
+
+    /** Returns the statistics shared by all stubs for the given interface and
+        address, registering them with JMX on first use. */
+    static RMIMetrics forStub(Class<?> c, InetSocketAddress address)
+    {
+        String key = c.getName() + "@" + address;
+
+        RMIMetrics metrics = stubMetrics.get(key);
+        if (metrics == null)
+        {
+            RMIMetrics created = new RMIMetrics("Stub", c, address);
+            metrics = stubMetrics.putIfAbsent(key, created);
+            if (metrics == null)
+            {
+                metrics = created;
+                metrics.register();
+            }
+        }
+        return metrics;
+    }
+
+    @Override
+    public String getSide()
+    {
+        return side;
+    }
+
+    @Override
+    public String getInterfaceName()
+    {
+        return c.getName();
+    }
+
+    @Override
+    public String getAddress()
+    {
+        InetSocketAddress current = address;
+        return current == null ? null : current.toString();
+    }
+
+    @Override
+    public List<MethodStats> getMethods()
+    {
+        List<MethodStats> snapshot = new ArrayList<>();
+        for (Map.Entry<Method, MethodMetrics> entry : methods.entrySet())
+        {
+            snapshot.add(new MethodStats(entry.getKey(), entry.getValue()));
+        }
+
+        Collections.sort(snapshot, new Comparator<MethodStats>()
+        {
+            @Override
+            public int compare(MethodStats a, MethodStats b)
+            {
+                return a.getMethod().compareTo(b.getMethod());
+            }
+        });
+        return Collections.unmodifiableList(snapshot);
+    }
+
+    /** Returns a snapshot of the statistics of one method, or
+        <code>null</code> if it has not been called.
+
+        @param name Method name, optionally followed by its parameter types as
+                    in <code>size(common.Path)</code>.
+     */
+    public MethodStats getMethod(String name)
+    {
+        for (MethodStats stats : getMethods())
+        {
+            if (stats.getMethod().equals(name) ||
+                stats.getMethod().startsWith(name + "("))
+            {
+                return stats;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the number of calls in progress, over all methods. Unlike
+        <code>getMethods</code>, this takes no snapshot of the latency
+        histograms. */
+    public int inFlight()
+    {
+        int total = 0;
+        for (MethodMetrics metrics : methods.values())
+        {
+            total += metrics.inFlight.get();
+        }
+        return total;
+    }
+
+    @Override
+    public void reset()
+    {
+        methods.clear();
+    }
+
+    /** Returns a snapshot of the statistics of payload compression, shared by
+        all connections in this virtual machine. */
+    public static CompressionStats getCompression()
+    {
+        return new CompressionStats();
+    }
+
+    @Override
+    public CompressionStats getCompressionStats()
+    {
+        return getCompression();
+    }
+
+    /** Returns the live counters of a method. */
+    MethodMetrics method(Method method)
+    {
+        MethodMetrics metrics = methods.get(method);
+        if (metrics == null)
+        {
+            MethodMetrics created = new MethodMetrics();
+            metrics = methods.putIfAbsent(method, created);
+            if (metrics == null)
+            {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /** Registers with the platform MBean server under the given address.
+        Failures are ignored: statistics remain available through
+        <code>getMethods</code>. */
+    synchronized void register(InetSocketAddress address)
+    {
+        this.address = address;
+        register();
+    }
+
+    private synchronized void register()
+    {
+        if (!JMX || name != null)
+        {
+            return;
+        }
+
+        try
+        {
+            ObjectName candidate = new ObjectName("rmi:type=" + side +
+                ",interface=" + c.getName() +
+                ",address=" + ObjectName.quote(String.valueOf(address)));
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+            if (server.isRegistered(candidate))
+            {
+                server.unregisterMBean(candidate);
+            }
+            server.registerMBean(this, candidate);
+            name = candidate;
+        }
+        catch (JMException | RuntimeException e)
+        {
+        }
+    }
+
+    synchronized void unregister()
+    {
+        if (name == null)
+        {
+            return;
+        }
+
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+        catch (JMException | RuntimeException e)
+        {
+        }
+        name = null;
+    }
+
+    /** Live counters of one method. */
+    static final class MethodMetrics
+    {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder rmiExceptions = new LongAdder();
+        private final LongAdder exceptions = new LongAdder();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final LatencyHistogram[] phases =
+            new LatencyHistogram[Phase.values().length];
+
+        private MethodMetrics()
+        {
+            for (int i = 0; i < phases.length; i++)
+            {
+                phases[i] = new LatencyHistogram();
+            }
+        }
+
+        /** Records the start of a call. */
+        void start()
+        {
+            calls.increment();
+            inFlight.incrementAndGet();
+        }
+
+        void record(Phase phase, long nanos)
+        {
+            phases[phase.ordinal()].record(nanos);
+        }
+
+        /** Returns the duration below which the given fraction of a phase's
+            recorded durations fall, in nanoseconds, or <code>-1</code> if
+            fewer than <code>minimum</code> have been recorded. */
+        long percentile(Phase phase, double fraction, long minimum)
+        {
+            LatencyHistogram histogram = phases[phase.ordinal()];
+            if (histogram.count() < minimum)
+            {
+                return -1;
+            }
+            return histogram.percentile(fraction);
+        }
+
+        /** Records the end of a call. Failures to make the call at all are
+            counted as <code>RMI_EXCEPTION</code>. */
+        void finish(RMIStatus status)
+        {
+            inFlight.decrementAndGet();
+
+            switch (status)
+            {
+                case OK:
+                    succeeded.increment();
+                    break;
+                case RMI_EXCEPTION:
+                    rmiExceptions.increment();
+                    break;
+                default:
+                    exceptions.increment();
+                    break;
+            }
+        }
+    }
+
+    /** Snapshot of the statistics of one method. */
+    public static final class MethodStats
+    {
+        private final String method;
+        private final long calls;
+        private final long succeeded;
+        private final long rmiExceptions;
+        private final long exceptions;
+        private final int inFlight;
+        private final PhaseStats[] phases;
+
+        private MethodStats(Method method, MethodMetrics metrics)
+        {
+            StringBuilder signature = new StringBuilder(method.getName()).append('(');
+            Class<?>[] types = method.getParameterTypes();
+            for (int i = 0; i < types.length; i++)
+            {
+                if (i > 0)
+                {
+                    signature.append(',');
+                }
+                signature.append(types[i].getTypeName());
+            }
+            this.method = signature.append(')').toString();
+
+            this.calls = metrics.calls.sum();
+            this.succeeded = metrics.succeeded.sum();
+            this.rmiExceptions = metrics.rmiExceptions.sum();
+            this.exceptions = metrics.exceptions.sum();
+            this.inFlight = metrics.inFlight.get();
+
+            this.phases = new PhaseStats[metrics.phases.length];
+            for (int i = 0; i < phases.length; i++)
+            {
+                phases[i] = new PhaseStats(metrics.phases[i]);
+            }
+        }
+
+        /** Returns the method name and parameter types. */
+        public String getMethod()
+        {
+            return method;
+        }
+
+        /** Returns the number of calls started. */
+        public long getCalls()
+        {
+            return calls;
+        }
+
+        /** Returns the number of calls which returned normally. */
+        public long getSucceeded()
+        {
+            return succeeded;
+        }
+
+        /** Returns the number of calls which ended with an
+            <code>RMIException</code> raised by the RMI library. */
+        public long getRmiExceptions()
+        {
+            return rmiExceptions;
+        }
+
+        /** Returns the number of calls which ended with an exception raised by
+            the server object. */
+        public long getExceptions()
+        {
+            return exceptions;
+        }
+
+        /** Returns the number of calls in progress. */
+        public int getInFlight()
+        {
+            return inFlight;
+        }
+
+        public PhaseStats getConnect()
+        {
+            return phases[Phase.CONNECT.ordinal()];
+        }
+
+        public PhaseStats getSerialize()
+        {
+            return phases[Phase.SERIALIZE.ordinal()];
+        }
+
+        public PhaseStats getExecute()
+        {
+            return phases[Phase.EXECUTE.ordinal()];
+        }
+
+        public PhaseStats getReply()
+        {
+            return phases[Phase.REPLY.ordinal()];
+        }
+
+        /** Returns the latency statistics of one phase. */
+        public PhaseStats phase(Phase phase)
+        {
+            return phases[phase.ordinal()];
+        }
+    }
+
+    /** Snapshot of the statistics of payload compression. Bodies below the
+        compression threshold are not counted. */
+    public static final class CompressionStats
+    {
+        private final long compressed;
+        private final long incompressible;
+        private final long skipped;
+        private final long bytesIn;
+        private final long bytesOut;
+        private final double compressMicros;
+        private final double decompressMicros;
+
+        private CompressionStats()
+        {
+            this.compressed = Compression.compressed.sum();
+            this.incompressible = Compression.incompressible.sum();
+            this.skipped = Compression.skipped.sum();
+            this.bytesIn = Compression.bytesIn.sum();
+            this.bytesOut = Compression.bytesOut.sum();
+            this.compressMicros = Compression.compressNanos.sum() / 1000.0;
+            this.decompressMicros = Compression.decompressNanos.sum() / 1000.0;
+        }
+
+        /** Returns the number of bodies sent compressed. */
+        public long getCompressed()
+        {
+            return compressed;
+        }
+
+        /** Returns the number of bodies sent raw because compressing them
+            did not save enough. */
+        public long getIncompressible()
+        {
+            return incompressible;
+        }
+
+        /** Returns the number of bodies sent raw without an attempt, after
+            earlier attempts failed. */
+        public long getSkipped()
+        {
+            return skipped;
+        }
+
+        /** Returns the uncompressed size of the bodies sent compressed. */
+        public long getBytesIn()
+        {
+            return bytesIn;
+        }
+
+        /** Returns the compressed size of the bodies sent compressed. */
+        public long getBytesOut()
+        {
+            return bytesOut;
+        }
+
+        public long getBytesSaved()
+        {
+            return bytesIn - bytesOut;
+        }
+
+        /** Returns the time spent compressing, including failed attempts. */
+        public double getCompressMicros()
+        {
+            return compressMicros;
+        }
+
+        public double getDecompressMicros()
+        {
+            return decompressMicros;
+        }
+    }
+
+    /** Snapshot of the latency histogram of one phase. Durations are in
+        microseconds. */
+    public static final class PhaseStats
+    {
+        private final long count;
+        private final double mean;
+        private final double p50;
+        private final double p90;
+        private final double p99;
+        private final double max;
+
+        private PhaseStats(LatencyHistogram histogram)
+        {
+            this.count = histogram.count();
+            this.mean = histogram.mean() / 1000.0;
+            this.p50 = histogram.percentile(0.50) / 1000.0;
+            this.p90 = histogram.percentile(0.90) / 1000.0;
+            this.p99 = histogram.percentile(0.99) / 1000.0;
+            this.max = histogram.max() / 1000.0;
+        }
+
+        /** Returns the number of durations recorded. */
+        public long getCount()
+        {
+            return count;
+        }
+
+        public double getMeanMicros()
+        {
+            return mean;
+        }
+
+        public double getP50Micros()
+        {
+            return p50;
+        }
+
+        public double getP90Micros()
+        {
+            return p90;
+        }
+
+        public double getP99Micros()
+        {
+            return p99;
+        }
+
+        public double getMaxMicros()
+        {
+            return max;
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package rmi;
+
+import java.util.List;
+
+/** Management interface of <code>RMIMetrics</code>.
+
+    <p>
+    Every skeleton, and every remote object called through stubs, registers
+    one of these with the platform MBean server under the domain
+    <code>rmi</code>, so that the call statistics can be read with any JMX
+    client.
+ */
+public interface RMIMetricsMXBean
+{
+    /** Returns <code>Stub</code> or <code>Skeleton</code>. */
+    public String getSide();
+
+    /** Returns the name of the remote interface. */
+    public String getInterfaceName();
+
+    /** Returns the address of the skeleton, or <code>null</code> if it has
+        not been assigned one. */
+    public String getAddress();
+
+    /** Returns a snapshot of the statistics of every method which has been
+        called. */
+    public List<RMIMetrics.MethodStats> getMethods();
+
+    /** Returns the statistics of payload compression, which are shared by
+        all connections in this virtual machine. */
+    public RMIMetrics.CompressionStats getCompressionStats();
+
+    /** Clears all statistics. */
+    public void reset();
+}
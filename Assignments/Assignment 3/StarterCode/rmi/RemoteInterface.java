@@ -0,0 +1,27 @@
+package rmi;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/** Marks a remote interface for which stub and skeleton classes are generated
+    when the project is compiled.
+
+    <p>
+    The annotation processor <code>build.RemoteProcessor</code> generates, for
+    an interface <code>p.I</code>, the classes <code>p.I_Stub</code>, a stub
+    calling each method directly, and <code>p.I_Skeleton</code>, which serves
+    calls to the server object with a <code>switch</code> over the methods
+    instead of reflection. <code>Stub</code> and <code>Skeleton</code> use the
+    generated classes if they are present, and otherwise fall back to dynamic
+    proxies and reflection, so that unannotated interfaces, and code compiled
+    without the processor, still work.
+ */
+@Documented
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface RemoteInterface
+{
+}
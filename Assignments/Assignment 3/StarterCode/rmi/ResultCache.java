@@ -0,0 +1,240 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/** Results of the calls made by a stub to methods marked
+    <code>Cacheable</code>.
+
+    <p>
+    The cache holds at most <code>rmi.cache.size</code> results (1024 by
+    default), and evicts them in the manner of W-TinyLFU. New results enter a
+    small window, ordered by last use, which holds one percent of the
+    capacity. A result leaving the window is admitted to the main area, also
+    ordered by last use, only if it has been looked up more often than the
+    result it would evict from there. Lookups are counted by a count-min
+    sketch, whose counts are halved periodically, so that results which are
+    looked up often keep their place while a burst of calls made once does
+    not flush them.
+
+    <p>
+    Caching is disabled with the system property <code>rmi.cache=false</code>.
+ */
+final class ResultCache
+{
+    static final boolean ENABLED =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.cache", "true"));
+    private static final int CAPACITY =
+        Math.max(2, Integer.getInteger("rmi.cache.size", 1024));
+
+    private final int windowCapacity;
+    private final int mainCapacity;
+    private final LinkedHashMap<Object, Entry> window =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Object, Entry> main =
+        new LinkedHashMap<>(16, 0.75f, true);
+    private final Sketch sketch;
+    /** Number of times the cache has been cleared. A result is only stored
+        if the cache has not been cleared since its call started. */
+    private long generation = 0;
+
+    ResultCache()
+    {
+        windowCapacity = Math.max(1, CAPACITY / 100);
+        mainCapacity = CAPACITY - windowCapacity;
+        sketch = new Sketch(CAPACITY);
+    }
+
+    /** Kept outcome of a call. */
+    static final class Entry
+    {
+        /** The result, or the exception raised. */
+        final Object value;
+        final boolean raised;
+        /** Time after which the entry is not used, as given by
+            <code>System.nanoTime</code>. */
+        private final long expiry;
+
+        private Entry(Object value, boolean raised, long expiry)
+        {
+            this.value = value;
+            this.raised = raised;
+            this.expiry = expiry;
+        }
+    }
+
+    /** Returns the key of a call. */
+    static Object key(Method method, Object[] args)
+    {
+        return Arrays.asList(method, args == null ? null : Arrays.asList(args));
+    }
+
+    /** Returns <code>true</code> if the outcome of a call may be kept. */
+    static boolean isCacheable(Throwable error)
+    {
+        return error == null || error instanceof FileNotFoundException;
+    }
+
+    /** Looks up the outcome of a call, counting the lookup.
+
+        @return The entry, or <code>null</code> if there is none or it has
+                expired.
+     */
+    synchronized Entry get(Object key)
+    {
+        sketch.increment(key);
+
+        Map<Object, Entry> area = window;
+        Entry entry = window.get(key);
+        if (entry == null)
+        {
+            area = main;
+            entry = main.get(key);
+        }
+        if (entry != null && entry.expiry - System.nanoTime() <= 0)
+        {
+            area.remove(key);
+            return null;
+        }
+        return entry;
+    }
+
+    /** Returns the current generation, to be passed to <code>put</code> for
+        a call starting now. */
+    synchronized long generation()
+    {
+        return generation;
+    }
+
+    /** Keeps the outcome of a call.
+
+        @param key The key of the call.
+        @param value The result, or the exception raised.
+        @param raised Whether <code>value</code> is an exception.
+        @param ttl Time for which the outcome is kept, in nanoseconds.
+        @param started The generation when the call started.
+     */
+    synchronized void put(Object key, Object value, boolean raised, long ttl,
+                          long started)
+    {
+        if (started != generation)
+        {
+            return;
+        }
+
+        Entry entry = new Entry(value, raised, System.nanoTime() + ttl);
+        if (main.containsKey(key))
+        {
+            main.put(key, entry);
+            return;
+        }
+
+        window.put(key, entry);
+        if (window.size() <= windowCapacity)
+        {
+            return;
+        }
+
+        Map.Entry<Object, Entry> candidate = removeEldest(window);
+        if (main.size() < mainCapacity)
+        {
+            main.put(candidate.getKey(), candidate.getValue());
+            return;
+        }
+
+        Object victim = main.keySet().iterator().next();
+        if (sketch.frequency(candidate.getKey()) > sketch.frequency(victim))
+        {
+            main.remove(victim);
+            main.put(candidate.getKey(), candidate.getValue());
+        }
+    }
+
+    /** Discards every kept outcome. */
+    synchronized void clear()
+    {
+        window.clear();
+        main.clear();
+        generation++;
+    }
+
+    private static Map.Entry<Object, Entry> removeEldest(Map<Object, Entry> area)
+    {
+        Iterator<Map.Entry<Object, Entry>> iterator = area.entrySet().iterator();
+        Map.Entry<Object, Entry> eldest = iterator.next();
+        iterator.remove();
+        return eldest;
+    }
+
+    /** Count-min sketch of the number of lookups of each key, with four-bit
+        counters. */
+    private static final class Sketch
+    {
+        private static final int[] SEEDS =
+            { 0x97cb3127, 0xb7c5a3c5, 0xa1b2c3d7, 0x85ebca6b };
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        /** Number of increments after which the counts are halved. */
+        private final int period;
+        private int increments = 0;
+
+        Sketch(int capacity)
+        {
+            int width = Integer.highestOneBit(Math.max(16, capacity - 1) << 1);
+            for (int row = 0; row < rows.length; row++)
+            {
+                rows[row] = new byte[width];
+            }
+            mask = width - 1;
+            period = 10 * capacity;
+        }
+
+        void increment(Object key)
+        {
+            int hash = key.hashCode();
+            for (int row = 0; row < rows.length; row++)
+            {
+                int index = index(hash, row);
+                if (rows[row][index] < 15)
+                {
+                    rows[row][index]++;
+                }
+            }
+
+            if (++increments >= period)
+            {
+                for (byte[] counters : rows)
+                {
+                    for (int i = 0; i < counters.length; i++)
+                    {
+                        counters[i] >>= 1;
+                    }
+                }
+                increments /= 2;
+            }
+        }
+
+        int frequency(Object key)
+        {
+            int hash = key.hashCode();
+            int frequency = 15;
+            for (int row = 0; row < rows.length; row++)
+            {
+                frequency = Math.min(frequency, rows[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row)
+        {
+            int h = hash * SEEDS[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package rmi;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Method;
+
+/** Codec sending everything with Java serialization.
+
+    <p>
+    Methods are identified by name and parameter types, so this codec works
+    even when the two ends were built from different versions of the remote
+    interface. It is the fallback when negotiation of a more compact codec
+    fails.
+ */
+class SerializationCodec extends Codec
+{
+    @Override
+    byte id()
+    {
+        return SERIALIZATION;
+    }
+
+    @Override
+    void writeRequest(DataOutputStream out, MethodSchema schema, Method method,
+                      Object[] args) throws IOException
+    {
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+
+        objects.writeObject(method.getName());
+        objects.writeObject(method.getParameterTypes());
+        objects.writeObject(args);
+        objects.flush();
+    }
+
+    @Override
+    Wire.Request readRequest(DataInputStream in, MethodSchema schema)
+        throws IOException, NoSuchMethodException, ClassNotFoundException
+    {
+        ObjectInputStream objects = new ObjectInputStream(in);
+
+        String methodName = (String) objects.readObject();
+        Class<?>[] parameterTypes = (Class<?>[]) objects.readObject();
+        Object[] args = (Object[]) objects.readObject();
+
+        Method method = schema.c.getMethod(methodName, parameterTypes);
+        return new Wire.Request(schema.idOf(method), method, args);
+    }
+
+    @Override
+    void writeReply(DataOutputStream out, RMIStatus status, Object value)
+        throws IOException
+    {
+        ObjectOutputStream objects = new ObjectOutputStream(out);
+
+        objects.writeObject(status);
+        objects.writeObject(value);
+        objects.flush();
+    }
+
+    @Override
+    Wire.Reply readReply(DataInputStream in)
+        throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream objects = new ObjectInputStream(in);
+
+        RMIStatus status = (RMIStatus) objects.readObject();
+        Object value = objects.readObject();
+
+        return new Wire.Reply(status, value);
+    }
+}
@@ -1,11 +1,24 @@
 package rmi;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.NotSerializableException;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 enum RMIStatus {
     OK, RMI_EXCEPTION, EXCEPTION
@@ -38,9 +51,56 @@ public class Skeleton<T>
 
     private Class<T> c;
     private T server;
+    private MethodSchema schema;
+    private DispatchTable dispatchTable;
+    private RMIMetrics metrics;
+    /** Lane in which requests for the interface are dispatched. */
+    private Lane lane;
     private InetSocketAddress address;
-    private boolean stopped = true;
+    private volatile boolean stopped = true;
     private ServerSocket serverSocket = null;
+    private final Set<SkeletonHandler> connections = new HashSet<>();
+    private DispatchPolicy dispatchPolicy = DispatchPolicy.threadPerRequest();
+    private NioServer nioServer = null;
+    /** Server for connections over the skeleton's unix domain socket, or
+        <code>null</code> if it has none. */
+    private NioServer unixServer = null;
+    private UnixDomainSocketAddress unixAddress = null;
+
+    /** Selects the transport used by all skeletons: <code>blocking</code> (the
+        default) reads each connection on its own thread, <code>nio</code>
+        multiplexes all connections over a few selector threads. */
+    static final boolean USE_NIO = "nio".equalsIgnoreCase(System.getProperty("rmi.transport", "blocking"));
+
+    /** Time, in milliseconds, after which a connection with no request in
+        progress is closed by the skeleton. This frees the reading threads of
+        stubs that keep connections open but idle. */
+    static final int IDLE_TIMEOUT = Integer.getInteger("rmi.skeleton.idleTimeout", 60000);
+
+    /** Threads reading the connections of every skeleton on the blocking
+        transport, one per connection. At most
+        <code>rmi.skeleton.maxConnections</code> connections (1024 by default)
+        are read at once, whatever the dispatch policies of the skeletons; a
+        connection accepted beyond that is closed at once, and its stub fails
+        or retries the call. Readers are not run by the dispatch policy, as a
+        reader waits on its connection for as long as it is open, and would
+        keep the policy's workers from serving the calls it reads. */
+    static final ThreadPoolExecutor READERS = new ThreadPoolExecutor(
+        0, Math.max(1, Integer.getInteger("rmi.skeleton.maxConnections", 1024)),
+        60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+        new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task)
+            {
+                Thread thread = new Thread(task, "rmi-connection-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        },
+        new ThreadPoolExecutor.AbortPolicy());
 
 
 
@@ -68,6 +128,11 @@ public class Skeleton<T>
 
         this.c = c;
         this.server = server;
+        this.schema = MethodSchema.of(c);
+        this.dispatchTable = new DispatchTable(schema, server);
+        this.metrics = RMIMetrics.forSkeleton(c);
+        Priority priority = c.getAnnotation(Priority.class);
+        this.lane = priority == null ? Lane.NORMAL : priority.value();
 
     }
 
@@ -95,6 +160,49 @@ public class Skeleton<T>
         this.address = address;
     }
 
+    /** Creates a <code>Skeleton</code> with the given dispatch policy.
+
+        <p>
+        The policy decides which thread serves each request. It is fixed for
+        the lifetime of the skeleton.
+
+        @param c An object representing the class of the interface for which the
+                 skeleton server is to handle method call requests.
+        @param server An object implementing said interface.
+        @param address The address at which the skeleton is to run, or
+                       <code>null</code> to have the system choose it.
+        @param dispatchPolicy The policy used to serve requests.
+        @throws Error If <code>c</code> does not represent a remote interface.
+        @throws NullPointerException If any of <code>c</code>,
+                                     <code>server</code> or
+                                     <code>dispatchPolicy</code> is
+                                     <code>null</code>.
+     */
+    public Skeleton(Class<T> c, T server, InetSocketAddress address,
+                    DispatchPolicy dispatchPolicy)
+    {
+        this(c, server, address);
+
+        if (dispatchPolicy == null)
+        {
+            throw new NullPointerException("Dispatch policy cannot be null");
+        }
+        this.dispatchPolicy = dispatchPolicy;
+    }
+
+    /** Returns the dispatch policy of this skeleton. The policy reports queue
+        depth and rejection counts. */
+    public DispatchPolicy getDispatchPolicy()
+    {
+        return dispatchPolicy;
+    }
+
+    /** Returns the call statistics of this skeleton. */
+    public RMIMetrics getMetrics()
+    {
+        return metrics;
+    }
+
     /** Called when the listening thread exits.
 
         <p>
@@ -152,9 +260,11 @@ public class Skeleton<T>
 
         <p>
         A thread is created to listen for connection requests, and the method
-        returns immediately. Additional threads are created when connections are
-        accepted. The network address used for the server is determined by which
-        constructor was used to create the <code>Skeleton</code> object.
+        returns immediately. Each accepted connection is read by its own thread,
+        and each request read is handed to the skeleton's dispatch policy, which
+        decides the thread that serves it. The network
+        address used for the server is determined by which constructor was used
+        to create the <code>Skeleton</code> object.
 
         @throws RMIException When the listening socket cannot be created or
                              bound, when the listening thread cannot be created,
@@ -169,6 +279,26 @@ public class Skeleton<T>
             return;
         }
         stopped = false;
+
+        if (USE_NIO)
+        {
+            try
+            {
+                nioServer = new NioServer(this, dispatchPolicy);
+                address = nioServer.start(address);
+                metrics.register(address);
+                LocalSkeletons.register(this, address);
+                startUnix();
+            }
+            catch (IOException e)
+            {
+                stopped = true;
+                nioServer = null;
+                throw new RMIException("Unable to start skeleton", e);
+            }
+            return;
+        }
+
         Listener l = new Listener();
         Thread t = new Thread(l);
 
@@ -200,6 +330,17 @@ public class Skeleton<T>
         }
         stopped = true;
 
+        metrics.unregister();
+        LocalSkeletons.unregister(this, address);
+        stopUnix();
+
+        if (nioServer != null)
+        {
+            nioServer.stop();
+            nioServer = null;
+            return;
+        }
+
         try
         {
             this.serverSocket.close();
@@ -207,9 +348,31 @@ public class Skeleton<T>
         catch (Exception e)
         {
             stopped = false;
+            return;
+        }
+
+        List<SkeletonHandler> open;
+        synchronized (connections)
+        {
+            open = new ArrayList<>(connections);
+        }
+        for (SkeletonHandler handler : open)
+        {
+            handler.closeIfIdle();
         }
     }
 
+    boolean isStopped()
+    {
+        return stopped;
+    }
+
+    /** Returns the remote interface served by the skeleton. */
+    Class<T> remoteInterface()
+    {
+        return c;
+    }
+
     public synchronized InetSocketAddress getAddress()
     {
         return address;
@@ -236,6 +399,350 @@ public class Skeleton<T>
         return true;
     }
 
+    /** Answers the opening frame of a new connection.
+
+        @return The codec to use for the rest of the connection.
+        @throws IOException If the frame is not a valid opening frame.
+     */
+    Codec negotiate(byte[] hello) throws IOException
+    {
+        return Wire.negotiate(hello, schema);
+    }
+
+    /** Serves one request frame and returns the reply frame.
+
+        <p>
+        This is shared by all transports. Exceptions raised by the server object
+        are sent back to the stub, as are failures to unmarshal the request or
+        to marshal the result. The calls of a batch request are served one by
+        one, and their results sent back together in one reply frame.
+
+        <p>
+        If the request is traced, the time it waited since it was received is
+        recorded as a <code>QUEUE</code> span, and each call is served in the
+        request's trace context.
+
+        @param codec The codec negotiated for the connection.
+        @param payload The request frame, carrying one call or a batch.
+        @param received Time at which the request was read, as given by
+                        <code>System.nanoTime</code>.
+        @throws IOException If the reply cannot be marshalled at all.
+     */
+    byte[] handle(Codec codec, byte[] payload, long received) throws IOException
+    {
+        payload = codec.openRequest(payload);
+        long callId = Wire.callId(payload);
+        int budget = Wire.budget(payload);
+        long expiry = budget == 0 ? 0 : received + TimeUnit.MILLISECONDS.toNanos(budget);
+        TraceContext trace = Wire.trace(payload);
+
+        if (trace != null && Tracing.isEnabled())
+        {
+            Tracing.export(trace.traceId, Tracing.newId(), trace.spanId,
+                           Span.Kind.QUEUE, "queue", address, received,
+                           System.nanoTime(), RMIStatus.OK.name());
+        }
+
+        if (Wire.kind(payload) == Wire.BATCH)
+        {
+            byte[][] calls = codec.decodeBatch(payload);
+            byte[][] replies = new byte[calls.length][];
+
+            // Calls in a batch run one after the other, in the order in which
+            // the stub made them. A failed call does not stop the rest.
+            for (int i = 0; i < calls.length; i++)
+            {
+                replies[i] = serve(codec, callId, calls[i], 0, true, received,
+                                   expiry, trace);
+            }
+            return codec.encodeBatchReply(callId, replies);
+        }
+
+        return serve(codec, callId, payload, Wire.REQUEST_HEADER, false, received,
+                     expiry, trace);
+    }
+
+    /** Decodes one call, invokes it on the server object and encodes the
+        reply, recording the call's statistics.
+
+        @param offset Offset of the encoded call in <code>payload</code>.
+        @param entry <code>true</code> if the call is part of a batch, in which
+                     case the reply is encoded without a call identifier.
+        @param received Time at which the request was read, as given by
+                        <code>System.nanoTime</code>.
+        @param expiry Time after which the stub no longer waits for the reply,
+                      or zero if it has no deadline. An expired call is not
+                      invoked, and is answered with a
+                      <code>DeadlineExceededException</code>.
+        @param trace The trace context of the request, or <code>null</code>
+                     if it is not traced.
+        @throws IOException If the call is malformed, or its reply cannot be
+                            marshalled at all.
+     */
+    private byte[] serve(Codec codec, long callId, byte[] payload, int offset,
+                         boolean entry, long received, long expiry,
+                         TraceContext trace)
+        throws IOException
+    {
+        long started = System.nanoTime();
+        Wire.Request request;
+
+        try
+        {
+            request = codec.decodeRequest(payload, offset, schema);
+        }
+        catch (ClassNotFoundException | NoSuchMethodException | ClassCastException e)
+        {
+            return encode(codec, callId, entry, RMIStatus.RMI_EXCEPTION, e);
+        }
+
+        long decoded = System.nanoTime();
+        RMIMetrics.MethodMetrics counter = metrics.method(request.method);
+        counter.start();
+
+        RMIStatus status;
+        Object value;
+        TraceContext serving = serving(trace);
+
+        try
+        {
+            if (expiry != 0 && decoded - expiry >= 0)
+            {
+                value = new DeadlineExceededException(
+                    "Deadline passed before the request was served");
+                status = RMIStatus.RMI_EXCEPTION;
+            }
+            else
+            {
+                TraceContext previous = Tracing.enter(serving);
+                try
+                {
+                    value = dispatchTable.invoke(request.methodId, request.args);
+                    status = RMIStatus.OK;
+                }
+                finally
+                {
+                    Tracing.restore(previous);
+                }
+            }
+        }
+        catch (InvocationTargetException e)
+        {
+            value = e.getCause();
+            status = RMIStatus.EXCEPTION;
+        }
+        catch (IllegalArgumentException e)
+        {
+            value = e;
+            status = RMIStatus.RMI_EXCEPTION;
+        }
+
+        long executed = System.nanoTime();
+        exportServerSpan(trace, serving, request.method, decoded, executed,
+                         status);
+        byte[] reply;
+
+        try
+        {
+            reply = encode(codec, callId, entry, status, value);
+        }
+        catch (NotSerializableException e)
+        {
+            status = RMIStatus.RMI_EXCEPTION;
+            reply = encode(codec, callId, entry, status, e);
+        }
+        finally
+        {
+            counter.record(RMIMetrics.Phase.CONNECT, started - received);
+            counter.record(RMIMetrics.Phase.SERIALIZE, decoded - started);
+            counter.record(RMIMetrics.Phase.EXECUTE, executed - decoded);
+            counter.record(RMIMetrics.Phase.REPLY, System.nanoTime() - executed);
+            counter.finish(status);
+        }
+        return reply;
+    }
+
+    private static byte[] encode(Codec codec, long callId, boolean entry,
+                                 RMIStatus status, Object value)
+        throws IOException
+    {
+        if (entry)
+        {
+            return codec.encodeEntryReply(status, value);
+        }
+        return codec.encodeReply(callId, status, value);
+    }
+
+    /** Returns the lane in which the skeleton dispatches its requests, given
+        by the <code>Priority</code> of its interface. */
+    Lane lane()
+    {
+        return lane;
+    }
+
+    /** Returns the reply to a request frame which the dispatch policy
+        rejected. The stub receives an <code>OverloadedException</code>.
+
+        @throws IOException If the frame carries no call identifier.
+     */
+    byte[] reject(Codec codec, byte[] payload) throws IOException
+    {
+        return codec.encodeReply(Wire.callId(payload), RMIStatus.RMI_EXCEPTION,
+                                 new OverloadedException("Request rejected by skeleton"));
+    }
+
+    /** Serves a call made by a stub in the same virtual machine.
+
+        <p>
+        The call is invoked on the server object directly, with copies of its
+        arguments, and the copied result is returned as the reply would have
+        been decoded by the stub. The statistics of the call are recorded as
+        for a call received over the network, except that no time is spent
+        reading or writing frames.
+
+        @param method The method called.
+        @param args The arguments of the call, which are not modified.
+        @param expiry Time after which the stub no longer waits for the reply,
+                      or zero if it has no deadline.
+        @param trace The trace context of the call, or <code>null</code> if it
+                     is not traced.
+     */
+    Wire.Reply invokeLocal(Method method, Object[] args, long expiry,
+                           TraceContext trace)
+    {
+        long started = System.nanoTime();
+        RMIMetrics.MethodMetrics counter = metrics.method(method);
+        counter.start();
+
+        RMIStatus status;
+        Object value;
+        long decoded = started;
+        long executed = started;
+
+        try
+        {
+            if (expiry != 0 && started - expiry >= 0)
+            {
+                value = new DeadlineExceededException(
+                    "Deadline passed before the request was served");
+                status = RMIStatus.RMI_EXCEPTION;
+            }
+            else
+            {
+                Object[] copies = LocalSkeletons.copyArguments(args);
+                decoded = System.nanoTime();
+                TraceContext serving = serving(trace);
+                TraceContext previous = Tracing.enter(serving);
+                try
+                {
+                    value = dispatchTable.invoke(schema.idOf(method), copies);
+                    status = RMIStatus.OK;
+                }
+                catch (InvocationTargetException e)
+                {
+                    value = e.getCause();
+                    status = RMIStatus.EXCEPTION;
+                }
+                finally
+                {
+                    Tracing.restore(previous);
+                }
+                executed = System.nanoTime();
+                exportServerSpan(trace, serving, method, decoded, executed,
+                                 status);
+                value = LocalSkeletons.copy(value);
+            }
+        }
+        catch (IllegalArgumentException | IOException | ClassNotFoundException e)
+        {
+            value = e;
+            status = RMIStatus.RMI_EXCEPTION;
+        }
+
+        counter.record(RMIMetrics.Phase.SERIALIZE, decoded - started);
+        counter.record(RMIMetrics.Phase.EXECUTE, executed - decoded);
+        counter.record(RMIMetrics.Phase.REPLY, System.nanoTime() - executed);
+        counter.finish(status);
+        return new Wire.Reply(status, value);
+    }
+
+    /** Returns the trace context in which the server object serves a call:
+        a new span of the call's trace if spans are recorded, or the call's
+        own context, so that a traced call is still traced further on. */
+    private static TraceContext serving(TraceContext trace)
+    {
+        if (trace == null || !Tracing.isEnabled())
+        {
+            return trace;
+        }
+        return new TraceContext(trace.traceId, Tracing.newId());
+    }
+
+    /** Exports the <code>SERVER</code> span of a call, if one was started
+        by <code>serving</code>. */
+    private void exportServerSpan(TraceContext trace, TraceContext serving,
+                                  Method method, long start, long end,
+                                  RMIStatus status)
+    {
+        if (serving != trace)
+        {
+            Tracing.export(serving.traceId, serving.spanId, trace.spanId,
+                           Span.Kind.SERVER, Tracing.nameOf(method), address,
+                           start, end, status.name());
+        }
+    }
+
+    /** Called by a transport when its listening thread exits. */
+    void listenerStopped(Throwable cause)
+    {
+        LocalSkeletons.unregister(this, address);
+        synchronized (this)
+        {
+            stopUnix();
+            stopped(cause);
+        }
+    }
+
+    /** Starts serving stubs on the same host over a unix domain socket. If
+        the socket cannot be opened, they connect over TCP. */
+    private synchronized void startUnix()
+    {
+        if (!UnixSockets.ENABLED)
+        {
+            return;
+        }
+
+        try
+        {
+            unixAddress = UnixSockets.advertise(address);
+            unixServer = new NioServer(this, dispatchPolicy);
+            unixServer.startUnix(unixAddress);
+        }
+        catch (IOException | RuntimeException e)
+        {
+            unixServer = null;
+            if (unixAddress != null)
+            {
+                UnixSockets.withdraw(unixAddress);
+                unixAddress = null;
+            }
+        }
+    }
+
+    private synchronized void stopUnix()
+    {
+        if (unixServer != null)
+        {
+            unixServer.stop();
+            unixServer = null;
+        }
+        if (unixAddress != null)
+        {
+            UnixSockets.withdraw(unixAddress);
+            unixAddress = null;
+        }
+    }
+
     private class Listener implements Runnable
     {
         public Listener()
@@ -261,6 +768,9 @@ public class Skeleton<T>
                         serverSocket = new ServerSocket();
                         serverSocket.bind(address);
                     }
+                    metrics.register(address);
+                    LocalSkeletons.register(Skeleton.this, address);
+                    startUnix();
                 }
                 catch (Exception e)
                 {
@@ -275,7 +785,22 @@ public class Skeleton<T>
                 try
                 {
                     Socket socket = Skeleton.this.serverSocket.accept();
-                    new Thread(new SkeletonHandler(socket)).start();
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(IDLE_TIMEOUT);
+
+                    SkeletonHandler handler = new SkeletonHandler(socket);
+                    synchronized (connections)
+                    {
+                        connections.add(handler);
+                    }
+                    try
+                    {
+                        READERS.execute(handler);
+                    }
+                    catch (RejectedExecutionException e)
+                    {
+                        handler.close();
+                    }
                 }
                 catch (Exception e)
                 {
@@ -284,21 +809,27 @@ public class Skeleton<T>
                         listen_error(e);
                     }
                 }
-                synchronized (Skeleton.this)
+                if (isStopped())
                 {
-                    if (stopped)
-                    {
-                        stopped(null);
-                        return;
-                    }
+                    listenerStopped(null);
+                    return;
                 }
             }
         }
     }
 
+    /** Serves one connection. The handler's thread reads request frames and
+        hands each of them to the dispatch policy, so several calls from the
+        same stub may be in progress at once. Replies are written under a lock,
+        in the order in which calls complete. */
     private class SkeletonHandler implements Runnable
     {
         private Socket clientSocket;
+        private DataOutputStream out;
+        private Codec codec;
+        /** Number of requests read but not yet answered. */
+        private int inFlight = 0;
+        private boolean reading = true;
 
         public SkeletonHandler(Socket clientSocket)
         {
@@ -308,73 +839,220 @@ public class Skeleton<T>
         @Override
         public void run()
         {
-            ObjectOutputStream out = null;
-            Method method = null;
-
             try
             {
-                out = new ObjectOutputStream(clientSocket.getOutputStream());
-                out.flush();
+                out = new DataOutputStream(new BufferedOutputStream(clientSocket.getOutputStream()));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(clientSocket.getInputStream()));
 
-                ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
-                String methodName = (String) in.readObject();
+                byte[] hello = Wire.readFrame(in);
+                if (hello == null)
+                {
+                    // The peer closed the connection before sending a request.
+                    return;
+                }
+                codec = negotiate(hello);
+                Wire.writeFrame(out, new byte[] { codec.wireId() });
 
-                Class<?>[] parameterTypes = (Class<?>[]) in.readObject();
-                Object[] args = (Object[]) in.readObject();
+                // Read calls until the stub closes the connection or the
+                // skeleton is stopped.
+                byte[] request;
+                while ((request = nextCall(in)) != null)
+                {
+                    final byte[] call = request;
+                    final long received = System.nanoTime();
 
-                try
+                    boolean accepted = dispatchPolicy.dispatch(new Runnable()
+                    {
+                        @Override
+                        public void run()
+                        {
+                            serve(call, received);
+                        }
+                    }, lane);
+
+                    if (!accepted)
+                    {
+                        try
+                        {
+                            reply(reject(codec, call));
+                        }
+                        finally
+                        {
+                            endCall();
+                        }
+                    }
+                }
+            }
+            catch (IOException e)
+            {
+                if (!isClosing())
+                {
+                    service_error(new RMIException(e));
+                }
+            }
+            catch (Exception e)
+            {
+                System.out.println("Skeleton Handler exception : " + e);
+                e.printStackTrace();
+            }
+            finally
+            {
+                endReading();
+            }
+        }
+
+        /** Serves one call and writes its reply. */
+        private void serve(byte[] request, long received)
+        {
+            try
+            {
+                reply(handle(codec, request, received));
+            }
+            catch (IOException e)
+            {
+                if (!isClosing())
                 {
-                    method = c.getMethod(methodName, parameterTypes);
+                    service_error(new RMIException(e));
                 }
-                catch (NoSuchMethodException e)
+                close();
+            }
+            finally
+            {
+                endCall();
+            }
+        }
+
+        private void reply(byte[] frame) throws IOException
+        {
+            synchronized (out)
+            {
+                Wire.writeFrame(out, frame);
+            }
+        }
+
+        /** Waits for the next request frame on the connection. Returns
+            <code>null</code> if the stub closed the connection cleanly, if the
+            connection was idle for too long, or if the skeleton is stopping.
+
+            <p>
+            The connection is idle only between frames. Once the first byte
+            of a frame has arrived, a timeout before its last byte leaves the
+            stream in the middle of the frame, where no later frame could be
+            found, and fails the connection.
+         */
+        private byte[] nextCall(DataInputStream in) throws IOException
+        {
+            byte[] request;
+
+            while (true)
+            {
+                try
                 {
+                    int first;
                     try
                     {
-                        out.writeObject(RMIStatus.RMI_EXCEPTION);
-                        out.writeObject(e);
-                        clientSocket.close();
+                        first = in.read();
                     }
-                    catch (Exception e1)
+                    catch (SocketTimeoutException e)
                     {
-                        service_error(new RMIException(e1.getCause()));
+                        // Calls in progress keep the connection open even if
+                        // the stub sends nothing new.
+                        synchronized (this)
+                        {
+                            if (inFlight == 0)
+                            {
+                                return null;
+                            }
+                        }
+                        continue;
                     }
 
+                    request = first < 0 ? null : Wire.readFrame(first, in);
+                    break;
                 }
-                if (method != null)
+                catch (SocketTimeoutException e)
                 {
-                    Object result = method.invoke(server, args);
-                    try
-                    {
-                        out.writeObject(RMIStatus.OK);
-                        out.writeObject(result);
-                        clientSocket.close();
-                    }
-                    catch (Exception e)
+                    throw new IOException("Connection timed out in the middle of a request", e);
+                }
+                catch (IOException e)
+                {
+                    if (isClosing())
                     {
-                        service_error(new RMIException(e.getCause()));
+                        return null;
                     }
+                    throw e;
                 }
             }
-            catch (InvocationTargetException e)
+
+            synchronized (this)
             {
-                try
+                if (request == null || isClosing())
                 {
-                    out.writeObject(RMIStatus.EXCEPTION);
-                    out.writeObject(e.getCause());
-                }
-                catch (Exception e1)
-                {
-                    service_error(new RMIException(e.getCause()));
+                    return null;
                 }
+                inFlight++;
+            }
+            return request;
+        }
+
+        /** Records that a call has been answered, and closes the connection
+            if it was the last call of a connection no longer being read. */
+        private synchronized void endCall()
+        {
+            inFlight--;
+            if (inFlight == 0 && (!reading || isClosing()))
+            {
+                close();
+            }
+        }
+
+        private synchronized void endReading()
+        {
+            reading = false;
+            if (inFlight == 0)
+            {
+                close();
+            }
+        }
+
+        /** Closes the connection if no call is in progress. Otherwise stops
+            reading requests, and closes the connection once the last reply
+            has been sent. */
+        private synchronized void closeIfIdle()
+        {
+            if (inFlight == 0)
+            {
+                close();
+                return;
+            }
+
+            try
+            {
+                clientSocket.shutdownInput();
             }
             catch (IOException e)
             {
-                service_error(new RMIException(e));
             }
-            catch (Exception e)
+        }
+
+        private boolean isClosing()
+        {
+            return clientSocket.isClosed() || Skeleton.this.isStopped();
+        }
+
+        private void close()
+        {
+            synchronized (connections)
+            {
+                connections.remove(this);
+            }
+
+            try
+            {
+                clientSocket.close();
+            }
+            catch (IOException e)
             {
-                System.out.println("Skeleton Handler exception : " + e);
-                e.printStackTrace();
             }
         }
     }
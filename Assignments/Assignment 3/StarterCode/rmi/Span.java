@@ -0,0 +1,137 @@
+package rmi;
+
+/** A timed step of a traced remote call.
+
+    <p>
+    Spans with the same trace identifier belong to the same trace, which
+    begins with the first call made by a thread not itself serving a traced
+    call. Each span names the span it is part of as its parent, so that the
+    spans of a trace form a tree: a stub's <code>CLIENT</code> span holds the
+    <code>NETWORK</code> span of each request sent for the call, which holds
+    the skeleton's <code>QUEUE</code> and <code>SERVER</code> spans, under
+    which are the <code>CLIENT</code> spans of the calls made by the server
+    object while serving it.
+
+    <p>
+    Identifiers are random non-zero numbers. Times are in microseconds; start
+    times since the epoch, as given by the clock of the virtual machine which
+    recorded the span.
+ */
+public final class Span
+{
+    /** Steps of a call. */
+    public enum Kind
+    {
+        /** A call made through a stub, from the caller's point of view. */
+        CLIENT,
+        /** One request of a call, from the time it was sent until its reply
+            arrived at the stub. */
+        NETWORK,
+        /** Time a request waited at the skeleton for a thread. */
+        QUEUE,
+        /** Execution of a call by the server object. */
+        SERVER
+    }
+
+    private final long traceId;
+    private final long spanId;
+    private final long parentId;
+    private final Kind kind;
+    private final String name;
+    private final String address;
+    private final long startMicros;
+    private final long durationMicros;
+    private final String status;
+
+    Span(long traceId, long spanId, long parentId, Kind kind, String name,
+         String address, long startMicros, long durationMicros, String status)
+    {
+        this.traceId = traceId;
+        this.spanId = spanId;
+        this.parentId = parentId;
+        this.kind = kind;
+        this.name = name;
+        this.address = address;
+        this.startMicros = startMicros;
+        this.durationMicros = durationMicros;
+        this.status = status;
+    }
+
+    public long getTraceId()
+    {
+        return traceId;
+    }
+
+    public long getSpanId()
+    {
+        return spanId;
+    }
+
+    /** Returns the identifier of the span this one is part of, or zero if it
+        is the root of its trace. */
+    public long getParentId()
+    {
+        return parentId;
+    }
+
+    public Kind getKind()
+    {
+        return kind;
+    }
+
+    /** Returns the name of the remote method, as
+        <code>Interface.method</code>, or <code>batch</code> for the
+        <code>CLIENT</code> and <code>NETWORK</code> spans of a batch, or
+        <code>queue</code> for a <code>QUEUE</code> span. */
+    public String getName()
+    {
+        return name;
+    }
+
+    /** Returns the address of the remote endpoint for client and network
+        spans, or of the skeleton for queue and server spans, or
+        <code>null</code> if it is not known. */
+    public String getAddress()
+    {
+        return address;
+    }
+
+    public long getStartMicros()
+    {
+        return startMicros;
+    }
+
+    public long getDurationMicros()
+    {
+        return durationMicros;
+    }
+
+    /** Returns the outcome of the step: <code>OK</code>, or the
+        <code>RMIStatus</code> of a failed call, or <code>FAILED</code> for a
+        request which received no reply. */
+    public String getStatus()
+    {
+        return status;
+    }
+
+    /** Returns the span as one line of JSON, the format in which spans are
+        written to a file. */
+    @Override
+    public String toString()
+    {
+        StringBuilder line = new StringBuilder("{");
+        line.append("\"trace\":\"").append(Long.toHexString(traceId)).append('"');
+        line.append(",\"span\":\"").append(Long.toHexString(spanId)).append('"');
+        line.append(",\"parent\":\"").append(Long.toHexString(parentId)).append('"');
+        line.append(",\"kind\":\"").append(kind).append('"');
+        line.append(",\"name\":\"").append(name).append('"');
+        if (address != null)
+        {
+            line.append(",\"address\":\"").append(address).append('"');
+        }
+        line.append(",\"start\":").append(startMicros);
+        line.append(",\"duration\":").append(durationMicros);
+        line.append(",\"status\":\"").append(status).append('"');
+        return line.append('}').toString();
+    }
+}
@@ -0,0 +1,78 @@
+package rmi;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/** Span exporter keeping the most recent spans in memory.
+
+    <p>
+    The collector holds at most a fixed number of spans, discarding the
+    oldest when it is full. It is meant for tests and for inspecting a running
+    server, for instance from a debugger or an administrative command.
+ */
+public class SpanCollector implements SpanExporter
+{
+    /** Number of spans kept by a collector created without a capacity. */
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private final int capacity;
+    private final ArrayDeque<Span> spans = new ArrayDeque<>();
+
+    /** Creates a collector keeping <code>DEFAULT_CAPACITY</code> spans. */
+    public SpanCollector()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /** Creates a collector keeping the given number of spans.
+
+        @throws IllegalArgumentException If <code>capacity</code> is not
+                                         positive.
+     */
+    public SpanCollector(int capacity)
+    {
+        if (capacity <= 0)
+        {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.capacity = capacity;
+    }
+
+    @Override
+    public synchronized void export(Span span)
+    {
+        if (spans.size() == capacity)
+        {
+            spans.removeFirst();
+        }
+        spans.addLast(span);
+    }
+
+    /** Returns the spans kept, oldest first. */
+    public synchronized List<Span> getSpans()
+    {
+        return new ArrayList<>(spans);
+    }
+
+    /** Returns the spans kept which belong to the given trace, oldest
+        first. */
+    public synchronized List<Span> getTrace(long traceId)
+    {
+        List<Span> trace = new ArrayList<>();
+        for (Span span : spans)
+        {
+            if (span.getTraceId() == traceId)
+            {
+                trace.add(span);
+            }
+        }
+        return trace;
+    }
+
+    /** Discards the spans kept. */
+    public synchronized void clear()
+    {
+        spans.clear();
+    }
+}
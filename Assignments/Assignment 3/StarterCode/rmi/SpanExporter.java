@@ -0,0 +1,14 @@
+package rmi;
+
+/** Receiver of the spans recorded by <code>Tracing</code>.
+
+    <p>
+    Spans are exported by the threads which end them: the threads of the
+    connection pool and of skeletons' dispatch policies, and the callers of
+    stubs. An exporter must therefore be thread-safe, and should not block.
+ */
+public interface SpanExporter
+{
+    /** Receives a finished span. */
+    void export(Span span);
+}
@@ -1,12 +1,29 @@
 package rmi;
 
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
 import java.lang.reflect.InvocationHandler;
 import java.lang.reflect.Method;
 import java.lang.reflect.Proxy;
 import java.net.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
 
 /** RMI stub factory.
 
@@ -20,6 +37,12 @@ import java.net.*;
     may not be modified afterwards. Two stubs are equal if they implement the
     same interface and carry the same remote server address - and would
     therefore connect to the same skeleton. Stubs are serializable.
+
+    <p>
+    A call made to a skeleton running in the same virtual machine is handed to
+    it directly, without a connection. Arguments and results are still copied
+    unless the system property <code>rmi.local</code> is <code>share</code>,
+    and the short-circuit is disabled if it is <code>off</code>.
  */
 public abstract class Stub
 {
@@ -136,6 +159,79 @@ public abstract class Stub
         {
             throw new NullPointerException("Address is null");
         }
+        checkRemoteInterface(c);
+        try
+        {
+            return (T) newStub(c, new StubHandler(c, address));
+        }
+        catch (Exception e)
+        {
+            System.out.println(e);
+            return null;
+        }
+    }
+
+    /** Creates a stub for a remote object served by several equivalent
+        skeletons, such as replicas of the same server.
+
+        <p>
+        Each call made through the stub is sent to one of the endpoints,
+        chosen to spread calls over those with the fewest calls in progress.
+        An endpoint to which no connection can be opened is avoided for a time
+        which grows while it keeps failing, and the call moves to another
+        endpoint. A call to a method marked <code>Idempotent</code> also moves
+        to another endpoint if its connection fails after the request was
+        sent, and is duplicated to another endpoint if its reply is slower
+        than most. The system properties controlling these choices are
+        described in the documentation of the package-private classes
+        <code>Balancer</code> and <code>Hedging</code>.
+
+        <p>
+        Two stubs created by this method are equal if they implement the same
+        interface and have the same set of endpoints. A stub created with a
+        single endpoint is an ordinary stub.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param endpoints The network addresses of the skeletons. Duplicates
+                         are ignored.
+        @return The stub created.
+        @throws NullPointerException If <code>c</code> or
+                                     <code>endpoints</code>, or any of the
+                                     endpoints, is <code>null</code>.
+        @throws IllegalArgumentException If <code>endpoints</code> is empty.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T createReplicated(Class<T> c,
+                                         Collection<InetSocketAddress> endpoints)
+    {
+        if (c == null)
+        {
+            throw new NullPointerException("Class is null");
+        }
+        if (endpoints == null || endpoints.contains(null))
+        {
+            throw new NullPointerException("Endpoint is null");
+        }
+        checkRemoteInterface(c);
+
+        Set<InetSocketAddress> distinct = new LinkedHashSet<>(endpoints);
+        if (distinct.isEmpty())
+        {
+            throw new IllegalArgumentException("No endpoints given");
+        }
+        if (distinct.size() == 1)
+        {
+            return create(c, distinct.iterator().next());
+        }
+
+        return (T) newStub(c, new StubHandler(
+            c, distinct.toArray(new InetSocketAddress[distinct.size()])));
+    }
+
+    private static void checkRemoteInterface(Class<?> c)
+    {
         if (!c.isInterface())
         {
             throw new Error("Class does not implement any interface.");
@@ -144,26 +240,251 @@ public abstract class Stub
         {
             throw new Error("Non-remote interface encountered.");
         }
-        try
+    }
+
+    /** Creates an asynchronous stub, given the address of a remote server.
+
+        <p>
+        Calls made through the asynchronous stub return
+        <code>CompletableFuture</code> results instead of blocking the caller
+        for the round trip, so that many calls can be in progress at once.
+        Futures are completed on the common fork-join pool.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param address The network address of the remote skeleton.
+        @return The asynchronous stub created.
+        @throws NullPointerException If any argument is <code>null</code>.
+        @throws Error If <code>c</code> does not represent a remote interface.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c, InetSocketAddress address)
+    {
+        return new AsyncStub<T>(c, create(c, address), null);
+    }
+
+    /** Creates an asynchronous stub for the same remote object as an
+        existing stub.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by this class.
+        @param executor Executor on which futures are completed, or
+                        <code>null</code> for the common fork-join pool.
+        @return The asynchronous stub created.
+        @throws NullPointerException If <code>c</code> or <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class for the interface
+                                         <code>c</code>.
+     */
+    public static <T> AsyncStub<T> createAsync(Class<T> c, T stub,
+                                               Executor executor)
+    {
+        checkStub(c, stub);
+        return new AsyncStub<T>(c, stub, executor);
+    }
+
+    /** Creates a batch of calls to the remote object of an existing stub.
+
+        <p>
+        The calls added to the batch are sent in one request when the batch is
+        executed, and the skeleton executes them in order. This saves a round
+        trip per call when many calls are made to the same server.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by this class.
+        @return An empty batch.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class for the interface
+                                         <code>c</code>.
+     */
+    public static <T> Batch<T> createBatch(Class<T> c, T stub)
+    {
+        checkStub(c, stub);
+        return new Batch<T>(c, stub);
+    }
+
+    /** Returns the call statistics of a stub.
+
+        <p>
+        The statistics are shared by all stubs for the same interface and
+        remote address.
+
+        @param stub A stub created by this class.
+        @return The stub's statistics.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class.
+     */
+    public static RMIMetrics getMetrics(Object stub)
+    {
+        StubHandler handler = handlerOf(stub);
+        if (handler == null)
         {
-            return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c }, new StubHandler(c, address));
+            throw new IllegalArgumentException("Object is not an RMI stub");
         }
-        catch (Exception e)
+        return handler.metrics();
+    }
+
+    /** Discards the results of cacheable calls kept by a stub, after the
+        remote object was changed other than through the stub.
+
+        <p>
+        The results are shared by every stub derived from the same stub, as
+        by <code>withTimeout</code>. An object which is not a stub keeps no
+        results, and is left alone.
+
+        @param stub The stub whose results are discarded.
+     */
+    public static void invalidateCache(Object stub)
+    {
+        StubHandler handler = handlerOf(stub);
+        if (handler != null)
         {
-            System.out.println(e);
-            return null;
+            handler.invalidateCache();
         }
     }
 
-    private static class StubHandler implements InvocationHandler, Serializable
+    /** Returns a stub for the same remote object as an existing stub, whose
+        calls time out after the given time.
+
+        <p>
+        The timeout bounds each call as a whole: waiting for a pooled
+        connection, connecting, and waiting for the reply. A call which does
+        not complete in time fails with a
+        <code>DeadlineExceededException</code>. If the calling thread has also
+        set a <code>Deadline</code>, the earlier of the two applies. The
+        default timeout of stubs is taken from the system property
+        <code>rmi.stub.timeout</code> (milliseconds), and is zero, meaning no
+        timeout, if the property is not set.
+
+        @param c A <code>Class</code> object representing the interface
+                 implemented by the remote object.
+        @param stub A stub created by this class.
+        @param timeout Timeout of each call, in milliseconds, or zero for none.
+        @return The new stub. It is equal to <code>stub</code>.
+        @throws NullPointerException If <code>c</code> or <code>stub</code> is
+                                     <code>null</code>.
+        @throws IllegalArgumentException If <code>stub</code> was not created
+                                         by this class for the interface
+                                         <code>c</code>, or if
+                                         <code>timeout</code> is negative.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> T withTimeout(Class<T> c, T stub, long timeout)
     {
+        checkStub(c, stub);
+        if (timeout < 0)
+        {
+            throw new IllegalArgumentException("Negative timeout");
+        }
+
+        return (T) newStub(c, handlerOf(stub).withTimeout(timeout));
+    }
+
+    /** Creates a stub object making its calls with the given handler. The
+        stub is an instance of the class generated for the interface, if there
+        is one, or otherwise a dynamic proxy. */
+    static Object newStub(Class<?> c, StubHandler handler)
+    {
+        Object stub = GeneratedStub.newInstance(c, handler);
+        if (stub != null)
+        {
+            return stub;
+        }
+        return Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[] { c },
+                                      handler);
+    }
+
+    /** Returns the handler of a stub created by this class, or
+        <code>null</code> if the object is not such a stub. */
+    static StubHandler handlerOf(Object stub)
+    {
+        if (stub instanceof GeneratedStub)
+        {
+            return ((GeneratedStub) stub).handler;
+        }
+        if (stub != null && Proxy.isProxyClass(stub.getClass()) &&
+            Proxy.getInvocationHandler(stub) instanceof StubHandler)
+        {
+            return (StubHandler) Proxy.getInvocationHandler(stub);
+        }
+        return null;
+    }
+
+    private static <T> void checkStub(Class<T> c, T stub)
+    {
+        if (c == null || stub == null)
+        {
+            throw new NullPointerException("Class or stub is null");
+        }
+        if (!c.isInstance(stub) || handlerOf(stub) == null)
+        {
+            throw new IllegalArgumentException("Object is not an RMI stub for " + c.getName());
+        }
+    }
+
+    static class StubHandler implements InvocationHandler, Serializable
+    {
+        /** Threads which retry calls on new connections. A reply handler runs
+            on the thread reading its connection, which must not wait to open
+            another while the replies to other calls are waiting behind it. */
+        private static final ExecutorService reconnects = newReconnects();
+
         private Class<?> c;
         private InetSocketAddress address;
+        /** Equivalent endpoints among which calls are spread, or
+            <code>null</code> if the stub has the single endpoint
+            <code>address</code>. */
+        private InetSocketAddress[] endpoints;
+        private transient MethodSchema schema;
+        private transient RMIMetrics metrics;
+        /** Results of calls to cacheable methods, created on first use. */
+        private transient ResultCache cache;
+        /** Timeout of each call, in milliseconds, or zero for none. */
+        private long timeout;
 
         public StubHandler(Class<?> c, InetSocketAddress address)
+        {
+            this(c, address, Long.getLong("rmi.stub.timeout", 0));
+        }
+
+        StubHandler(Class<?> c, InetSocketAddress address, long timeout)
         {
             this.c = c;
             this.address = address;
+            this.timeout = timeout;
+        }
+
+        /** Creates a handler spreading its calls over several endpoints. The
+            first is used for the handler's own statistics. */
+        StubHandler(Class<?> c, InetSocketAddress[] endpoints)
+        {
+            this(c, endpoints[0]);
+            this.endpoints = endpoints;
+        }
+
+        /** Returns a handler for the same endpoints with the given
+            timeout. */
+        StubHandler withTimeout(long timeout)
+        {
+            StubHandler handler = new StubHandler(c, address, timeout);
+            handler.endpoints = endpoints;
+            handler.cache = cache;
+            return handler;
+        }
+
+        /** Returns the set of the stub's endpoints. */
+        private Set<InetSocketAddress> endpointSet()
+        {
+            if (endpoints == null)
+            {
+                Set<InetSocketAddress> single = new HashSet<>();
+                single.add(address);
+                return single;
+            }
+            return new HashSet<>(Arrays.asList(endpoints));
         }
 
         @Override
@@ -171,7 +492,7 @@ public abstract class Stub
         {
             if(isRemoteMethod(method))
             {
-                return remoteInvocation(proxy, method, args);
+                return call(method, args);
             }
             else
             {
@@ -181,29 +502,69 @@ public abstract class Stub
                 }
                 if (method.getName().equals("hashCode"))
                 {
-                    return localHashCode(proxy, args);
+                    if (args != null)
+                    {
+                        throw new IllegalArgumentException("Method hashCode takes no argument!");
+                    }
+                    return localHashCode(proxy);
                 }
                 if (method.getName().equals("toString"))
                 {
-                    return localToString(proxy, args);
+                    if (args != null)
+                    {
+                        throw new IllegalArgumentException("Method toString takes no argument!");
+                    }
+                    return localToString(proxy);
                 }
                 throw new RMIException(new NoSuchMethodException());
             }
         }
 
-        private boolean isRemoteMethod(Method method)
+        boolean isRemoteMethod(Method method)
+        {
+            return schema().idOf(method) >= 0;
+        }
+
+        /** Returns the call statistics shared by all stubs for the same
+            interface and address. */
+        RMIMetrics metrics()
         {
-            for (Method m : c.getMethods())
+            if (metrics == null)
             {
-                if (m.equals(method))
-                {
-                    return true;
-                }
+                metrics = RMIMetrics.forStub(c, address);
             }
-            return false;
+            return metrics;
         }
 
-        private boolean localEquals(Object proxy, Object[] args)
+        /** Returns the call statistics of calls to one of the stub's
+            endpoints. */
+        private RMIMetrics metrics(InetSocketAddress endpoint)
+        {
+            if (endpoint == address)
+            {
+                return metrics();
+            }
+            return RMIMetrics.forStub(c, endpoint);
+        }
+
+        /** Returns the method numbering of the remote interface. It is not
+            serialized with the stub, and is looked up again on first use. */
+        private MethodSchema schema()
+        {
+            if (schema == null)
+            {
+                schema = MethodSchema.of(c);
+            }
+            return schema;
+        }
+
+        /** Returns the remote interface of the stub. */
+        Class<?> remoteInterface()
+        {
+            return c;
+        }
+
+        boolean localEquals(Object proxy, Object[] args)
         {
             if (args == null)
             {
@@ -225,76 +586,1066 @@ public abstract class Stub
                 return false;
             }
 
-            StubHandler stubHandler1 = (StubHandler)Proxy.getInvocationHandler(args[0]);
-            StubHandler stubHandler2 = (StubHandler)Proxy.getInvocationHandler(proxy);
+            StubHandler stubHandler1 = handlerOf(args[0]);
+            StubHandler stubHandler2 = handlerOf(proxy);
+
+            return stubHandler1.endpointSet().equals(stubHandler2.endpointSet());
+        }
+
+        int localHashCode(Object proxy)
+        {
+            StubHandler stubHandler = handlerOf(proxy);
+
+            return stubHandler.endpointSet().hashCode() + proxy.getClass().hashCode();
+        }
+
+        String localToString(Object proxy)
+        {
+            StubHandler stubHandler = handlerOf(proxy);
+            String name = "Remote interface: " + proxy.getClass().getInterfaces()[0].toString();
+            String addr = "Remote address: " + stubHandler.address.toString();
+            if (stubHandler.endpoints != null)
+            {
+                addr = "Remote addresses: " + Arrays.toString(stubHandler.endpoints);
+            }
 
-            return stubHandler1.address.equals(stubHandler2.address);
+            return name+'\n'+addr+'\n';
         }
 
-        private int localHashCode(Object proxy, Object[] args) throws Throwable
+        /** Makes a remote call and waits for its result.
+
+            @throws Throwable The exception raised by the remote method, or an
+                              <code>RMIException</code> if the call failed.
+         */
+        Object call(Method method, Object[] args) throws Throwable
         {
-            if (args != null)
+            CompletableFuture<Object> result = startCall(method, args, true);
+
+            try
+            {
+                return result.get();
+            }
+            catch (ExecutionException e)
             {
-                throw new IllegalArgumentException("Method hashCode takes no argument!");
+                throw e.getCause();
             }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RMIException(e);
+            }
+        }
 
-            StubHandler stubHandler = (StubHandler)Proxy.getInvocationHandler(proxy);
+        /** Starts a remote call without waiting for it.
 
-            return stubHandler.address.hashCode() + proxy.getClass().hashCode();
+            <p>
+            The returned future completes with the method's result, or
+            exceptionally with the exception the synchronous call would have
+            thrown: an <code>RMIException</code> if the call could not be made,
+            or the exception raised by the remote method, or a
+            <code>DeadlineExceededException</code> if the call's deadline
+            passes first. It is completed by the connection's reader thread.
+            The calling thread blocks only while the connection pool's active
+            limit is reached, or while a new connection is opened.
+         */
+        CompletableFuture<Object> invokeAsync(Method method, Object[] args)
+        {
+            return startCall(method, args, false);
         }
 
-        private String localToString(Object proxy, Object[] args) throws Throwable
+        /** Starts a batch of remote calls, sent in one request and executed
+            by the skeleton in order.
+
+            <p>
+            The returned future completes with an array of
+            <code>Wire.Reply</code> objects, one per call, or exceptionally
+            with an <code>RMIException</code> if the batch could not be sent
+            or its reply received.
+         */
+        CompletableFuture<Object> invokeBatchAsync(Method[] methods, Object[][] args)
         {
-            if (args != null)
+            for (Method method : methods)
             {
-                throw new IllegalArgumentException("Method toString takes no argument!");
+                if (schema().mayModify(method))
+                {
+                    invalidateCache();
+                    break;
+                }
             }
+            return start(new BatchCall(methods, args), false);
+        }
 
-            StubHandler stubHandler = (StubHandler)Proxy.getInvocationHandler(proxy);
-            String name = "Remote interface: " + proxy.getClass().getInterfaces()[0].toString();
-            String addr = "Remote address: " + stubHandler.address.toString();
+        /** Starts a single remote call, or completes it from the stub's cache
+            if the method is <code>Cacheable</code> and the outcome of an
+            earlier call with the same arguments is kept there. */
+        private CompletableFuture<Object> startCall(Method method, Object[] args,
+                                                    boolean synchronous)
+        {
+            final long ttl = ResultCache.ENABLED ? schema().cacheTtl(method) : -1;
+            if (ttl < 0)
+            {
+                if (schema().mayModify(method))
+                {
+                    invalidateCache();
+                }
+                return start(new SingleCall(method, args), synchronous);
+            }
 
-            return name+'\n'+addr+'\n';
+            final ResultCache results = cache();
+            final Object key = ResultCache.key(method, args);
+            ResultCache.Entry entry = results.get(key);
+            if (entry != null)
+            {
+                CompletableFuture<Object> result = new CompletableFuture<>();
+                if (entry.raised)
+                {
+                    result.completeExceptionally((Throwable) entry.value);
+                }
+                else
+                {
+                    result.complete(entry.value);
+                }
+                return result;
+            }
+
+            final long generation = results.generation();
+            CompletableFuture<Object> result =
+                start(new SingleCall(method, args), synchronous);
+            result.whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    if (ResultCache.isCacheable(error))
+                    {
+                        results.put(key, error == null ? value : error,
+                                    error != null, ttl, generation);
+                    }
+                }
+            });
+            return result;
         }
 
-        private Object remoteInvocation(Object proxy, Method method, Object[] args) throws Throwable
+        private synchronized ResultCache cache()
         {
-            Object remoteObject = null;
-            RMIStatus rmiStatus;
+            if (cache == null)
+            {
+                cache = new ResultCache();
+            }
+            return cache;
+        }
 
-            try
+        /** Discards the results kept by the stub, before a call which may
+            change them. */
+        void invalidateCache()
+        {
+            ResultCache results;
+            synchronized (this)
+            {
+                results = cache;
+            }
+            if (results != null)
             {
-                StubHandler stubHandler = (StubHandler) Proxy.getInvocationHandler(proxy);
-                Socket clientSocket = new Socket(stubHandler.address.getAddress(), stubHandler.address.getPort());
+                results.clear();
+            }
+        }
+
+        /** Starts an invocation.
+
+            @param synchronous Whether the caller waits for the result before
+                               doing anything else.
+         */
+        private CompletableFuture<Object> start(final Invocation invocation,
+                                                boolean synchronous)
+        {
+            invocation.expiry = Deadline.expiryOfCall(timeout);
+            if (!invocation.beginTrace())
+            {
+                return route(invocation, synchronous);
+            }
+
+            final long started = System.nanoTime();
+            CompletableFuture<Object> result = route(invocation, synchronous);
+            result.whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    invocation.exportSpan(Span.Kind.CLIENT, invocation.callSpan,
+                                          invocation.parentSpan, started,
+                                          System.nanoTime(), statusOf(error));
+                }
+            });
+            return result;
+        }
+
+        /** Sends an invocation to the endpoint, or one of the endpoints, of
+            the stub. */
+        private CompletableFuture<Object> route(final Invocation invocation,
+                                                boolean synchronous)
+        {
+            if (endpoints == null)
+            {
+                return attempt(invocation, address, synchronous);
+            }
+
+            CompletableFuture<Object> result =
+                balanced(invocation, Balancer.choose(endpoints, null), synchronous);
+
+            Invocation duplicate = Hedging.ENABLED ? invocation.duplicate() : null;
+            if (duplicate == null || result.isDone())
+            {
+                return result;
+            }
+
+            RMIMetrics.MethodMetrics[] perEndpoint =
+                new RMIMetrics.MethodMetrics[endpoints.length];
+            for (int i = 0; i < endpoints.length; i++)
+            {
+                perEndpoint[i] = metrics(endpoints[i]).method(duplicate.called[0]);
+            }
+            long delay = Hedging.delay(perEndpoint);
+            if (delay < 0)
+            {
+                return result;
+            }
+            return hedge(invocation, duplicate, result, delay);
+        }
+
+        /** Makes an attempt at an invocation of a stub with several
+            endpoints, telling the balancer when the invocation ends. */
+        private CompletableFuture<Object> balanced(final Invocation invocation,
+                                                   InetSocketAddress endpoint,
+                                                   boolean synchronous)
+        {
+            CompletableFuture<Object> result =
+                attempt(invocation, endpoint, synchronous);
+            result.whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    invocation.endAttempt();
+                }
+            });
+            return result;
+        }
+
+        /** Sends a duplicate of an invocation to another endpoint if the
+            invocation has not completed after the given delay.
+
+            <p>
+            The returned future completes with the first reply to either
+            request. It completes with an <code>RMIException</code> only once
+            every request sent has failed with one.
+
+            @param invocation The invocation, already started.
+            @param duplicate An invocation of the same call, not started.
+            @param first The future of <code>invocation</code>.
+            @param delay Delay in nanoseconds.
+         */
+        private CompletableFuture<Object> hedge(final Invocation invocation,
+                                                final Invocation duplicate,
+                                                CompletableFuture<Object> first,
+                                                long delay)
+        {
+            final CompletableFuture<Object> result = new CompletableFuture<>();
+            // Number of requests sent whose outcome is not yet known. A
+            // duplicate is only sent while it is positive.
+            final AtomicInteger pending = new AtomicInteger(1);
+
+            final BiConsumer<Object, Throwable> settle =
+                new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    int left = pending.decrementAndGet();
+                    if (error == null)
+                    {
+                        result.complete(value);
+                    }
+                    else if (!(error instanceof RMIException) || left == 0)
+                    {
+                        result.completeExceptionally(error);
+                    }
+                }
+            };
+
+            final Runnable send = new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (result.isDone())
+                    {
+                        return;
+                    }
+
+                    duplicate.expiry = invocation.expiry;
+                    duplicate.followTrace(invocation);
+                    duplicate.tried = invocation.attempted();
+                    InetSocketAddress next = Balancer.choose(endpoints, duplicate.tried);
+                    if (next == null || Balancer.isEjected(next))
+                    {
+                        return;
+                    }
+
+                    int sent;
+                    do
+                    {
+                        sent = pending.get();
+                        if (sent == 0)
+                        {
+                            return;
+                        }
+                    }
+                    while (!pending.compareAndSet(sent, sent + 1));
+
+                    balanced(duplicate, next, false).whenComplete(settle);
+                }
+            };
 
-                ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-                out.flush();
+            final ScheduledFuture<?> timer = Deadline.schedule(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    Hedging.send(send);
+                }
+            }, System.nanoTime() + delay);
 
-                out.writeObject(method.getName());
-                out.writeObject(method.getParameterTypes());
-                out.writeObject(args);
+            first.whenComplete(settle);
+            result.whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    timer.cancel(false);
+                }
+            });
+            return result;
+        }
 
-                ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
+        /** Makes one attempt at an invocation, sending it to the given
+            endpoint. */
+        private CompletableFuture<Object> attempt(Invocation invocation,
+                                                  InetSocketAddress endpoint,
+                                                  boolean synchronous)
+        {
+            ConnectionPool pool = ConnectionPool.getDefault();
+            Connection connection;
 
-                rmiStatus = (RMIStatus) in.readObject();
-                remoteObject = in.readObject();
+            invocation.begin(endpoint);
 
-                clientSocket.close();
+            Skeleton<?> skeleton = LocalSkeletons.find(c, endpoint);
+            if (skeleton != null)
+            {
+                return startLocal(skeleton, invocation, synchronous);
+            }
 
-                if (rmiStatus == RMIStatus.OK)
+            try
+            {
+                connection = pool.acquire(endpoint, schema(), invocation.expiry);
+            }
+            catch (Connection.Expired e)
+            {
+                invocation.fail();
+                return failed(new DeadlineExceededException(e.getMessage()));
+            }
+            catch (IOException | InterruptedException e)
+            {
+                invocation.fail();
+                if (endpoints != null && e instanceof IOException)
                 {
-                    return remoteObject;
+                    // Nothing was sent, so any call may move to another
+                    // endpoint.
+                    Balancer.connectFailed(endpoint);
+                    InetSocketAddress next = invocation.failOver();
+                    if (next != null)
+                    {
+                        return attempt(invocation, next, synchronous);
+                    }
                 }
-                else if(rmiStatus == RMIStatus.RMI_EXCEPTION)
+                return failed(new RMIException(e));
+            }
+            if (endpoints != null)
+            {
+                Balancer.connected(endpoint);
+            }
+            invocation.acquired = System.nanoTime();
+
+            return send(pool, connection, invocation, true);
+        }
+
+        /** Hands an invocation to a skeleton running in the same virtual
+            machine.
+
+            <p>
+            The invocation is run by the skeleton's dispatch policy, as it
+            would be if it had arrived over the network, so that the limits
+            of the policy still apply. If the policy would start a thread for
+            it alone, a synchronous call with no deadline is run by the
+            calling thread instead, which would only wait for it.
+         */
+        private CompletableFuture<Object> startLocal(final Skeleton<?> skeleton,
+                                                     final Invocation invocation,
+                                                     boolean synchronous)
+        {
+            final CompletableFuture<Object> result = new CompletableFuture<>();
+            DispatchPolicy policy = skeleton.getDispatchPolicy();
+
+            invocation.acquired = System.nanoTime();
+            invocation.encoded = invocation.acquired;
+
+            Runnable task = new Runnable()
+            {
+                @Override
+                public void run()
                 {
-                    throw (Throwable) remoteObject;
+                    if (result.isDone())
+                    {
+                        // The deadline passed while the task was queued.
+                        return;
+                    }
+
+                    Object reply = invocation.invokeLocal(skeleton);
+                    invocation.received = System.nanoTime();
+                    invocation.complete(reply, result);
                 }
+            };
+
+            if (synchronous && invocation.expiry == 0 && policy.runInline(task))
+            {
+                return result;
+            }
+
+            if (!policy.dispatch(task, skeleton.lane()))
+            {
+                invocation.fail();
+                return failed(new OverloadedException("Request rejected by skeleton"));
+            }
+
+            if (invocation.expiry != 0 && !result.isDone())
+            {
+                final ScheduledFuture<?> expiration = Deadline.schedule(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        if (result.completeExceptionally(
+                                new DeadlineExceededException("No reply before deadline")))
+                        {
+                            invocation.fail();
+                        }
+                    }
+                }, invocation.expiry);
+
+                result.whenComplete(new BiConsumer<Object, Throwable>()
+                {
+                    @Override
+                    public void accept(Object value, Throwable error)
+                    {
+                        expiration.cancel(false);
+                    }
+                });
+            }
+            return result;
+        }
+
+        private CompletableFuture<Object> send(ConnectionPool pool,
+                                               Connection connection,
+                                               Invocation invocation,
+                                               boolean mayRetry)
+        {
+            CompletableFuture<byte[]> response;
+
+            try
+            {
+                long callId = connection.nextCallId();
+                invocation.networkSpan =
+                    invocation.recorded ? Tracing.newId() : 0;
+                byte[] request = invocation.encode(connection.codec, callId);
+                invocation.encoded = System.nanoTime();
+                response = connection.send(callId, request, invocation.expiry);
+            }
+            catch (DeadlineExceededException e)
+            {
+                // Nothing was sent, so the connection is still usable.
+                pool.release(connection);
+                invocation.fail();
+                return failed(e);
             }
             catch (Exception e)
             {
-                throw new RMIException(e);
+                pool.invalidate(connection);
+                invocation.fail();
+                return failed(new RMIException(e));
+            }
+
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            response.whenComplete(new ReplyHandler(pool, connection, invocation,
+                                                   mayRetry, result));
+            return result;
+        }
+
+        /** Request sent by a stub, and interpretation of its reply.
+
+            <p>
+            An invocation also records the call's statistics: the counters of
+            each method called, and the times at which the phases of the call
+            ended.
+         */
+        private abstract class Invocation
+        {
+            private final Method[] called;
+            private final RMIMetrics.MethodMetrics[] counters;
+            /** Expiry time of the call as given by
+                <code>System.nanoTime</code>, or zero for none. */
+            long expiry;
+            long started;
+            long acquired;
+            long encoded;
+            long received;
+            /** Endpoint of the current attempt. */
+            private InetSocketAddress endpoint;
+            /** Endpoints of earlier attempts, or <code>null</code> if there
+                were none. */
+            private List<InetSocketAddress> tried = null;
+            /** Whether the current attempt is counted by the balancer. */
+            private boolean counted = false;
+            /** Trace of the call, or zero if it is not traced. */
+            long traceId = 0;
+            /** Span of the call as a whole, or, if its spans are not
+                recorded, the span of the caller. */
+            long callSpan = 0;
+            /** Span of the caller, or zero if the call starts its trace. */
+            long parentSpan = 0;
+            /** Span of the request last sent over the network, or zero. */
+            long networkSpan = 0;
+            /** Whether the call's spans are recorded. */
+            boolean recorded = false;
+
+            Invocation(Method... methods)
+            {
+                called = methods;
+                counters = new RMIMetrics.MethodMetrics[methods.length];
+            }
+
+            /** Starts an attempt on the given endpoint. */
+            void begin(InetSocketAddress endpoint)
+            {
+                this.endpoint = endpoint;
+                networkSpan = 0;
+                RMIMetrics metrics = metrics(endpoint);
+                for (int i = 0; i < called.length; i++)
+                {
+                    counters[i] = metrics.method(called[i]);
+                }
+
+                if (endpoints != null)
+                {
+                    synchronized (this)
+                    {
+                        Balancer.started(endpoint);
+                        counted = true;
+                    }
+                }
+
+                started = System.nanoTime();
+                for (RMIMetrics.MethodMetrics counter : counters)
+                {
+                    counter.start();
+                }
+            }
+
+            /** Tells the balancer that the current attempt is over. */
+            synchronized void endAttempt()
+            {
+                if (counted)
+                {
+                    counted = false;
+                    Balancer.finished(endpoint);
+                }
+            }
+
+            /** Ends the current attempt, which failed, and returns the
+                endpoint for the next one, or <code>null</code> if every
+                endpoint has been tried. */
+            synchronized InetSocketAddress failOver()
+            {
+                endAttempt();
+                if (tried == null)
+                {
+                    tried = new ArrayList<>();
+                }
+                tried.add(endpoint);
+                return Balancer.choose(endpoints, tried);
+            }
+
+            /** Sets the trace of the call from the context of the calling
+                thread, starting a trace if the thread has none.
+
+                @return <code>true</code> if the call's spans are recorded.
+             */
+            boolean beginTrace()
+            {
+                TraceContext caller = Tracing.current();
+                if (Tracing.isEnabled())
+                {
+                    traceId = caller == null ? Tracing.newId() : caller.traceId;
+                    parentSpan = caller == null ? 0 : caller.spanId;
+                    callSpan = Tracing.newId();
+                    recorded = true;
+                }
+                else if (caller != null)
+                {
+                    traceId = caller.traceId;
+                    callSpan = caller.spanId;
+                }
+                return recorded;
+            }
+
+            /** Makes a duplicate of a call part of the same trace. */
+            void followTrace(Invocation original)
+            {
+                traceId = original.traceId;
+                callSpan = original.callSpan;
+                parentSpan = original.parentSpan;
+                recorded = original.recorded;
+            }
+
+            /** Returns the trace context sent with the current attempt, or
+                <code>null</code> if the call is not traced. */
+            TraceContext trace()
+            {
+                if (traceId == 0)
+                {
+                    return null;
+                }
+                return new TraceContext(traceId,
+                                        networkSpan != 0 ? networkSpan : callSpan);
+            }
+
+            /** Exports a span of the call, if its spans are recorded. */
+            void exportSpan(Span.Kind kind, long spanId, long parentId,
+                            long start, long end, String status)
+            {
+                if (recorded)
+                {
+                    Tracing.export(traceId, spanId, parentId, kind, spanName(),
+                                   endpoint, start, end, status);
+                }
+            }
+
+            /** Returns the endpoints of the current and earlier attempts. */
+            synchronized List<InetSocketAddress> attempted()
+            {
+                List<InetSocketAddress> attempted = new ArrayList<>();
+                if (tried != null)
+                {
+                    attempted.addAll(tried);
+                }
+                attempted.add(endpoint);
+                return attempted;
+            }
+
+            /** Records the failure of every call of the invocation. */
+            void fail()
+            {
+                for (RMIMetrics.MethodMetrics counter : counters)
+                {
+                    counter.finish(RMIStatus.RMI_EXCEPTION);
+                }
+            }
+
+            /** Records the outcome of one call. */
+            void finish(int call, RMIStatus status)
+            {
+                counters[call].finish(status);
+            }
+
+            /** Records the duration of each phase of a single call. */
+            void recordPhases(int call)
+            {
+                RMIMetrics.MethodMetrics counter = counters[call];
+
+                counter.record(RMIMetrics.Phase.CONNECT, acquired - started);
+                counter.record(RMIMetrics.Phase.SERIALIZE, encoded - acquired);
+                counter.record(RMIMetrics.Phase.EXECUTE, received - encoded);
+                counter.record(RMIMetrics.Phase.REPLY, System.nanoTime() - received);
+            }
+
+            /** Encodes the request, with the time left before the call's
+                deadline.
+
+                @throws DeadlineExceededException If the deadline has passed.
+             */
+            abstract byte[] encode(Codec codec, long callId)
+                throws IOException, DeadlineExceededException;
+
+            abstract Object decode(Codec codec, byte[] frame)
+                throws IOException, ClassNotFoundException;
+
+            /** Completes the call's future with a decoded reply. */
+            abstract void complete(Object reply, CompletableFuture<Object> result);
+
+            /** Serves the invocation with a skeleton in the same virtual
+                machine, returning the reply as <code>decode</code> would. */
+            abstract Object invokeLocal(Skeleton<?> skeleton);
+
+            /** Returns <code>true</code> if every call of the invocation may
+                be executed more than once. */
+            abstract boolean isIdempotent();
+
+            /** Returns the name of the invocation's spans. */
+            abstract String spanName();
+
+            /** Returns a new invocation of the same call, to be hedged, or
+                <code>null</code> if the invocation is not hedged. */
+            Invocation duplicate()
+            {
+                return null;
+            }
+        }
+
+        private class SingleCall extends Invocation
+        {
+            private final Method method;
+            private final Object[] args;
+
+            private SingleCall(Method method, Object[] args)
+            {
+                super(method);
+                this.method = method;
+                this.args = args;
+            }
+
+            @Override
+            byte[] encode(Codec codec, long callId)
+                throws IOException, DeadlineExceededException
+            {
+                return codec.encodeRequest(callId, Wire.budgetOf(expiry),
+                                           trace(), schema(), method, args);
+            }
+
+            @Override
+            Object decode(Codec codec, byte[] frame)
+                throws IOException, ClassNotFoundException
+            {
+                return codec.decodeReply(frame);
+            }
+
+            @Override
+            Object invokeLocal(Skeleton<?> skeleton)
+            {
+                return skeleton.invokeLocal(method, args, expiry, trace());
+            }
+
+            @Override
+            boolean isIdempotent()
+            {
+                return schema().isIdempotent(method);
+            }
+
+            @Override
+            Invocation duplicate()
+            {
+                return isIdempotent() ? new SingleCall(method, args) : null;
+            }
+
+            @Override
+            String spanName()
+            {
+                return Tracing.nameOf(method);
+            }
+
+            @Override
+            void complete(Object decoded, CompletableFuture<Object> result)
+            {
+                Wire.Reply reply = (Wire.Reply) decoded;
+
+                recordPhases(0);
+                finish(0, reply.status);
+
+                if (reply.status == RMIStatus.OK)
+                {
+                    result.complete(reply.value);
+                }
+                else
+                {
+                    result.completeExceptionally(reply.exception());
+                }
+            }
+        }
+
+        private class BatchCall extends Invocation
+        {
+            private final Method[] methods;
+            private final Object[][] args;
+
+            private BatchCall(Method[] methods, Object[][] args)
+            {
+                super(methods);
+                this.methods = methods;
+                this.args = args;
             }
-            throw (Throwable) remoteObject;
+
+            @Override
+            byte[] encode(Codec codec, long callId)
+                throws IOException, DeadlineExceededException
+            {
+                return codec.encodeBatch(callId, Wire.budgetOf(expiry),
+                                         trace(), schema(), methods, args);
+            }
+
+            @Override
+            Object decode(Codec codec, byte[] frame)
+                throws IOException, ClassNotFoundException
+            {
+                Wire.Reply[] replies = codec.decodeBatchReply(frame);
+                if (replies.length != methods.length)
+                {
+                    throw new IOException("Batch reply has " + replies.length +
+                                          " results for " + methods.length + " calls");
+                }
+                return replies;
+            }
+
+            @Override
+            Object invokeLocal(Skeleton<?> skeleton)
+            {
+                Wire.Reply[] replies = new Wire.Reply[methods.length];
+                for (int i = 0; i < methods.length; i++)
+                {
+                    replies[i] = skeleton.invokeLocal(methods[i], args[i], expiry,
+                                                      trace());
+                }
+                return replies;
+            }
+
+            @Override
+            String spanName()
+            {
+                return "batch";
+            }
+
+            @Override
+            boolean isIdempotent()
+            {
+                for (Method method : methods)
+                {
+                    if (!schema().isIdempotent(method))
+                    {
+                        return false;
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            void complete(Object replies, CompletableFuture<Object> result)
+            {
+                // The calls of a batch share their round trip, so only their
+                // outcomes are recorded.
+                Wire.Reply[] decoded = (Wire.Reply[]) replies;
+                for (int i = 0; i < decoded.length; i++)
+                {
+                    finish(i, decoded[i].status);
+                }
+                result.complete(replies);
+            }
+        }
+
+        /** Completes a call once its reply frame arrives or its connection
+            fails. */
+        private class ReplyHandler implements BiConsumer<byte[], Throwable>
+        {
+            private final ConnectionPool pool;
+            private final Connection connection;
+            private final Invocation invocation;
+            private final boolean mayRetry;
+            private final CompletableFuture<Object> result;
+
+            private ReplyHandler(ConnectionPool pool, Connection connection,
+                                 Invocation invocation, boolean mayRetry,
+                                 CompletableFuture<Object> result)
+            {
+                this.pool = pool;
+                this.connection = connection;
+                this.invocation = invocation;
+                this.mayRetry = mayRetry;
+                this.result = result;
+            }
+
+            @Override
+            public void accept(byte[] frame, Throwable failure)
+            {
+                invocation.received = System.nanoTime();
+                invocation.exportSpan(Span.Kind.NETWORK, invocation.networkSpan,
+                                      invocation.callSpan, invocation.encoded,
+                                      invocation.received,
+                                      failure == null ? "OK" : "FAILED");
+
+                if (failure instanceof Connection.Expired)
+                {
+                    // Only this call gave up; the connection is still sound,
+                    // and a late reply will be discarded.
+                    pool.release(connection);
+                    invocation.fail();
+                    result.completeExceptionally(
+                        new DeadlineExceededException(failure.getMessage()));
+                    return;
+                }
+
+                if (failure != null)
+                {
+                    // A pooled connection may have been closed by the skeleton
+                    // while it was idle. Retry once on a fresh connection, if
+                    // the request cannot have been executed or executing it
+                    // twice is harmless.
+                    if (mayRetry && connection.isReused() &&
+                        (failure instanceof Connection.Unsent ||
+                         invocation.isIdempotent()))
+                    {
+                        reconnects.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                retry();
+                            }
+                        });
+                        return;
+                    }
+
+                    pool.invalidate(connection);
+                    invocation.fail();
+
+                    // The request may have been executed, so only an
+                    // idempotent call may move to another endpoint, unless
+                    // the request was never written.
+                    if (endpoints != null &&
+                        (failure instanceof Connection.Unsent ||
+                         invocation.isIdempotent()))
+                    {
+                        final InetSocketAddress next = invocation.failOver();
+                        if (next != null)
+                        {
+                            reconnects.execute(new Runnable()
+                            {
+                                @Override
+                                public void run()
+                                {
+                                    forward(attempt(invocation, next, false),
+                                            result);
+                                }
+                            });
+                            return;
+                        }
+                    }
+
+                    result.completeExceptionally(new RMIException(failure));
+                    return;
+                }
+
+                Object reply;
+                try
+                {
+                    reply = invocation.decode(connection.codec, frame);
+                }
+                catch (Exception e)
+                {
+                    pool.invalidate(connection);
+                    invocation.fail();
+                    result.completeExceptionally(new RMIException(e));
+                    return;
+                }
+
+                pool.release(connection);
+                invocation.complete(reply, result);
+            }
+
+            private void retry()
+            {
+                Connection fresh;
+                try
+                {
+                    fresh = pool.reopen(connection, invocation.expiry);
+                }
+                catch (Connection.Expired e)
+                {
+                    invocation.fail();
+                    result.completeExceptionally(
+                        new DeadlineExceededException(e.getMessage()));
+                    return;
+                }
+                catch (IOException e)
+                {
+                    invocation.fail();
+                    result.completeExceptionally(new RMIException(e));
+                    return;
+                }
+
+                forward(send(pool, fresh, invocation, false), result);
+            }
+        }
+
+        private static ExecutorService newReconnects()
+        {
+            return new ThreadPoolExecutor(0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable task)
+                    {
+                        Thread thread = new Thread(task, "rmi-reconnect");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+
+        /** Completes one future with the outcome of another. */
+        private static void forward(CompletableFuture<Object> from,
+                                    final CompletableFuture<Object> to)
+        {
+            from.whenComplete(new BiConsumer<Object, Throwable>()
+            {
+                @Override
+                public void accept(Object value, Throwable error)
+                {
+                    if (error != null)
+                    {
+                        to.completeExceptionally(error);
+                    }
+                    else
+                    {
+                        to.complete(value);
+                    }
+                }
+            });
+        }
+
+        /** Returns the status of a completed call for its span. */
+        private static String statusOf(Throwable error)
+        {
+            if (error == null)
+            {
+                return RMIStatus.OK.name();
+            }
+            if (error instanceof RMIException)
+            {
+                return RMIStatus.RMI_EXCEPTION.name();
+            }
+            return RMIStatus.EXCEPTION.name();
+        }
+
+        private static CompletableFuture<Object> failed(Throwable cause)
+        {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            result.completeExceptionally(cause);
+            return result;
         }
     }
 }
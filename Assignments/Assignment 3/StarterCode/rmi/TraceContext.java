@@ -0,0 +1,25 @@
+package rmi;
+
+/** Trace and span identifiers carried by a request, or set for the code a
+    thread is running.
+
+    <p>
+    Stubs send the context of each call in the request header, as the
+    identifier of the trace followed by that of the span under which the
+    skeleton's spans are recorded. A trace identifier of zero means the call
+    is not traced.
+ */
+final class TraceContext
+{
+    /** Size of a context in a request header, in bytes. */
+    static final int SIZE = 16;
+
+    final long traceId;
+    final long spanId;
+
+    TraceContext(long traceId, long spanId)
+    {
+        this.traceId = traceId;
+        this.spanId = spanId;
+    }
+}
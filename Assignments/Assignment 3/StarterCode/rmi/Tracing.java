@@ -0,0 +1,192 @@
+package rmi;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/** Tracing of remote calls through stubs, skeletons and server objects.
+
+    <p>
+    While an exporter is set, every call made through a stub records a
+    <code>Span</code> for the call as its caller sees it, one for each request
+    sent, and, at the skeleton, one for the time the request waited for a
+    thread and one for its execution by the server object. The trace and the
+    span of each request are sent in its header, and a thread serving a call
+    runs the server object in the context of that call, so that the calls it
+    makes in turn, for instance from the naming server to a storage server,
+    join the same trace. The ends of a call need not share an exporter: spans
+    are exported by the virtual machine which records them, and a skeleton
+    without an exporter still passes the context of a traced call on to the
+    calls its server makes.
+
+    <p>
+    The exporter is set with <code>setExporter</code>, or from the system
+    property <code>rmi.trace.file</code>, which names a file to which spans
+    are appended, one line of JSON each. A <code>SpanCollector</code> keeps
+    spans in memory instead.
+ */
+public final class Tracing
+{
+    private static volatile SpanExporter exporter = fileExporter(
+        System.getProperty("rmi.trace.file"));
+
+    /** Context of the call being served by the current thread. */
+    private static final ThreadLocal<TraceContext> current = new ThreadLocal<>();
+
+    /** Times from which span start times are computed. */
+    private static final long EPOCH_MICROS =
+        TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private static final long EPOCH_NANOS = System.nanoTime();
+
+    private Tracing()
+    {
+    }
+
+    /** Sets the exporter receiving the spans recorded in this virtual
+        machine.
+
+        @param exporter The exporter, or <code>null</code> to stop recording
+                        spans.
+     */
+    public static void setExporter(SpanExporter exporter)
+    {
+        Tracing.exporter = exporter;
+    }
+
+    /** Returns the exporter receiving spans, or <code>null</code> if spans
+        are not recorded. */
+    public static SpanExporter getExporter()
+    {
+        return exporter;
+    }
+
+    /** Returns <code>true</code> if spans are recorded. */
+    static boolean isEnabled()
+    {
+        return exporter != null;
+    }
+
+    /** Returns the context of the call served by the current thread, or
+        <code>null</code> if there is none. */
+    static TraceContext current()
+    {
+        return current.get();
+    }
+
+    /** Sets the context of the call served by the current thread.
+
+        @return The previous context, to be restored with
+                <code>restore</code>.
+     */
+    static TraceContext enter(TraceContext context)
+    {
+        TraceContext previous = current.get();
+        current.set(context);
+        return previous;
+    }
+
+    /** Restores the context replaced by <code>enter</code>. */
+    static void restore(TraceContext previous)
+    {
+        if (previous == null)
+        {
+            current.remove();
+        }
+        else
+        {
+            current.set(previous);
+        }
+    }
+
+    /** Returns a new trace or span identifier. */
+    static long newId()
+    {
+        long id;
+        do
+        {
+            id = ThreadLocalRandom.current().nextLong();
+        }
+        while (id == 0);
+        return id;
+    }
+
+    /** Exports a span, if spans are recorded.
+
+        @param start Start of the span, as given by
+                     <code>System.nanoTime</code>.
+        @param end End of the span, as given by <code>System.nanoTime</code>.
+     */
+    static void export(long traceId, long spanId, long parentId, Span.Kind kind,
+                       String name, Object address, long start, long end,
+                       String status)
+    {
+        SpanExporter target = exporter;
+        if (target == null)
+        {
+            return;
+        }
+
+        long startMicros = EPOCH_MICROS +
+            TimeUnit.NANOSECONDS.toMicros(start - EPOCH_NANOS);
+        target.export(new Span(traceId, spanId, parentId, kind, name,
+                               address == null ? null : address.toString(),
+                               startMicros,
+                               TimeUnit.NANOSECONDS.toMicros(end - start),
+                               status));
+    }
+
+    /** Returns the name of a span for a call of the given method. */
+    static String nameOf(Method method)
+    {
+        return method.getDeclaringClass().getSimpleName() + "." +
+            method.getName();
+    }
+
+    private static SpanExporter fileExporter(String file)
+    {
+        if (file == null || file.isEmpty())
+        {
+            return null;
+        }
+
+        try
+        {
+            return new FileExporter(new FileWriter(file, true));
+        }
+        catch (IOException e)
+        {
+            // Calls are made as usual, without recording spans.
+            return null;
+        }
+    }
+
+    /** Exporter appending spans to a file. */
+    private static class FileExporter implements SpanExporter
+    {
+        private final Writer out;
+
+        FileExporter(Writer out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public synchronized void export(Span span)
+        {
+            try
+            {
+                out.write(span.toString());
+                out.write('\n');
+                out.flush();
+            }
+            catch (IOException e)
+            {
+                // A trace file which cannot be written loses spans, but must
+                // not fail the calls which recorded them.
+            }
+        }
+    }
+}
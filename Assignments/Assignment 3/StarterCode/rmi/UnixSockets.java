@@ -0,0 +1,361 @@
+package rmi;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Unix domain sockets between stubs and skeletons on the same host.
+
+    <p>
+    Besides its TCP address, a started skeleton listens on a unix domain
+    socket whose path is derived from that address, in the directory given by
+    the system property <code>rmi.uds.dir</code>
+    (<code>rmi-sockets-</code><em>user</em> in the temporary directory by
+    default). The socket file is its advertisement: a stub whose skeleton
+    address belongs to this host opens its connections over the socket if the
+    file exists, and over TCP otherwise, so that calls between processes on
+    the same host do not go through the loopback TCP stack. Both ends speak
+    the same frames over either kind of connection.
+
+    <p>
+    Since a stub trusts any socket it finds at the path, the directory must
+    be private to the user running the virtual machine. A skeleton creates it
+    readable, writable and searchable by its owner alone, and neither end uses
+    a directory which is a symbolic link, belongs to another user, or which
+    other users may write to or search. Only processes of the same user then
+    reach each other over unix domain sockets; all others connect over TCP. A
+    skeleton does not remove a socket on which another process still listens,
+    and serves only over TCP instead.
+
+    <p>
+    A skeleton bound to the wildcard address listens on
+    <code>rmi-</code><em>port</em><code>.sock</code>, and one bound to a
+    single address on <code>rmi-</code><em>address</em><code>-</code><em>port</em><code>.sock</code>.
+    A stub looks for the latter first. Unix domain sockets are not used by
+    either end if the system property <code>rmi.uds</code> is
+    <code>false</code>.
+ */
+final class UnixSockets
+{
+    static final boolean ENABLED =
+        !"false".equalsIgnoreCase(System.getProperty("rmi.uds", "true"));
+    /** Directory holding the sockets. */
+    static final Path DIRECTORY = Paths.get(System.getProperty(
+        "rmi.uds.dir",
+        System.getProperty("java.io.tmpdir") + File.separator + "rmi-sockets-" +
+        System.getProperty("user.name")));
+    private static final Set<PosixFilePermission> OWNER_ONLY =
+        PosixFilePermissions.fromString("rwx------");
+
+    /** Whether the directory has been found private. Once it has, no other
+        user can replace it. */
+    private static volatile boolean trusted = false;
+
+    /** Whether each address seen belongs to this host. */
+    private static final Map<InetAddress, Boolean> local =
+        new ConcurrentHashMap<>();
+
+    private UnixSockets()
+    {
+    }
+
+    /** Returns the socket address at which a skeleton bound to the given
+        address listens, after creating its directory and removing any file
+        left at the path by a skeleton which did not stop cleanly.
+
+        @throws IOException If the directory is not private, or another
+                            process listens on the socket.
+     */
+    static UnixDomainSocketAddress advertise(InetSocketAddress bound)
+        throws IOException
+    {
+        if (!isPrivate(true))
+        {
+            throw new IOException("Socket directory " + DIRECTORY + " is not private");
+        }
+
+        Path path = pathOf(bound.getAddress(), bound.getPort());
+        UnixDomainSocketAddress address = UnixDomainSocketAddress.of(path);
+
+        if (Files.exists(path, LinkOption.NOFOLLOW_LINKS))
+        {
+            if (isListening(address))
+            {
+                throw new IOException("Another process listens on " + path);
+            }
+            Files.deleteIfExists(path);
+        }
+        return address;
+    }
+
+    /** Returns <code>true</code> if a process accepts connections on the
+        given socket. */
+    private static boolean isListening(UnixDomainSocketAddress address)
+    {
+        try
+        {
+            SocketChannel.open(address).close();
+            return true;
+        }
+        catch (IOException | UnsupportedOperationException e)
+        {
+            return false;
+        }
+    }
+
+    /** Removes the socket file of a skeleton which has stopped. */
+    static void withdraw(UnixDomainSocketAddress address)
+    {
+        try
+        {
+            Files.deleteIfExists(address.getPath());
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /** Opens a blocking channel to the skeleton at the given address over its
+        unix domain socket.
+
+        @return The channel, or <code>null</code> if unix domain sockets are
+                disabled, the address is not on this host, or no skeleton
+                listens on a socket for it.
+     */
+    static SocketChannel connect(InetSocketAddress address)
+    {
+        if (!ENABLED)
+        {
+            return null;
+        }
+
+        InetAddress host;
+        try
+        {
+            // An unresolved address means the local host, as it does for TCP
+            // connections.
+            host = address.getAddress() == null
+                ? InetAddress.getByName(null) : address.getAddress();
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+        if (!isLocal(host) || !isPrivate(false))
+        {
+            return null;
+        }
+
+        Path[] candidates = { pathOf(host, address.getPort()),
+                              pathOf(null, address.getPort()) };
+        for (Path path : candidates)
+        {
+            if (!Files.exists(path))
+            {
+                continue;
+            }
+
+            try
+            {
+                return SocketChannel.open(UnixDomainSocketAddress.of(path));
+            }
+            catch (IOException | UnsupportedOperationException e)
+            {
+                // A file left by a skeleton which did not stop cleanly.
+            }
+        }
+        return null;
+    }
+
+    /** Returns a stream reading from a blocking channel.
+
+        <p>
+        The streams of <code>java.nio.channels.Channels</code> hold the
+        channel's blocking lock while they wait, so a thread blocked reading
+        would stop another from writing. These streams do not.
+     */
+    static InputStream inputStream(final SocketChannel channel)
+    {
+        return new InputStream()
+        {
+            @Override
+            public int read() throws IOException
+            {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length)
+                throws IOException
+            {
+                if (length == 0)
+                {
+                    return 0;
+                }
+                return channel.read(ByteBuffer.wrap(buffer, offset, length));
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+
+    /** Returns a stream writing to a blocking channel. */
+    static OutputStream outputStream(final SocketChannel channel)
+    {
+        return new OutputStream()
+        {
+            @Override
+            public void write(int b) throws IOException
+            {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length)
+                throws IOException
+            {
+                ByteBuffer data = ByteBuffer.wrap(buffer, offset, length);
+                while (data.hasRemaining())
+                {
+                    channel.write(data);
+                }
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                channel.close();
+            }
+        };
+    }
+
+    /** Returns the path of the socket of a skeleton bound to the given
+        address and port, with a <code>null</code> or wildcard address for
+        all addresses. */
+    private static Path pathOf(InetAddress host, int port)
+    {
+        if (host == null || host.isAnyLocalAddress())
+        {
+            return DIRECTORY.resolve("rmi-" + port + ".sock");
+        }
+        String name = host.getHostAddress().replace(':', '_').replace('%', '_');
+        return DIRECTORY.resolve("rmi-" + name + "-" + port + ".sock");
+    }
+
+    /** Returns <code>true</code> if the socket directory is a directory, not
+        a link, owned by the user running the virtual machine, and closed to
+        other users.
+
+        @param create Whether to create the directory if it does not exist.
+     */
+    private static boolean isPrivate(boolean create)
+    {
+        if (trusted)
+        {
+            return true;
+        }
+
+        try
+        {
+            boolean posix = DIRECTORY.getFileSystem().supportedFileAttributeViews()
+                                     .contains("posix");
+            if (create && !Files.exists(DIRECTORY, LinkOption.NOFOLLOW_LINKS))
+            {
+                Path parent = DIRECTORY.toAbsolutePath().getParent();
+                if (parent != null)
+                {
+                    Files.createDirectories(parent);
+                }
+                try
+                {
+                    if (posix)
+                    {
+                        Files.createDirectory(DIRECTORY,
+                            PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+                    }
+                    else
+                    {
+                        Files.createDirectory(DIRECTORY);
+                    }
+                }
+                catch (FileAlreadyExistsException e)
+                {
+                    // Created in the meantime; checked below like any other.
+                }
+            }
+
+            if (!Files.isDirectory(DIRECTORY, LinkOption.NOFOLLOW_LINKS))
+            {
+                return false;
+            }
+
+            UserPrincipal user = DIRECTORY.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+            if (!user.equals(Files.getOwner(DIRECTORY, LinkOption.NOFOLLOW_LINKS)))
+            {
+                return false;
+            }
+
+            if (posix)
+            {
+                Set<PosixFilePermission> permissions =
+                    Files.getPosixFilePermissions(DIRECTORY, LinkOption.NOFOLLOW_LINKS);
+                if (!OWNER_ONLY.containsAll(permissions))
+                {
+                    // Other users may have placed sockets in it.
+                    return false;
+                }
+            }
+        }
+        catch (IOException | UnsupportedOperationException | SecurityException e)
+        {
+            return false;
+        }
+
+        trusted = true;
+        return true;
+    }
+
+    private static boolean isLocal(InetAddress host)
+    {
+        Boolean known = local.get(host);
+        if (known == null)
+        {
+            try
+            {
+                known = host.isLoopbackAddress() || host.isAnyLocalAddress() ||
+                        NetworkInterface.getByInetAddress(host) != null;
+            }
+            catch (SocketException e)
+            {
+                known = false;
+            }
+            local.put(host, known);
+        }
+        return known;
+    }
+}
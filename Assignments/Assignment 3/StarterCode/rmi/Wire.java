@@ -0,0 +1,327 @@
+package rmi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Method;
+
+/** Framing and marshalling of RMI messages.
+
+    <p>
+    Every message on a connection, in either direction, is one frame: a
+    four-byte big-endian payload length followed by the payload. Framing lets
+    the skeleton read a complete request without blocking a thread on a
+    partially received message, which is what the non-blocking transport
+    relies on. Both transports and the stub speak the same frames. A frame
+    longer than <code>rmi.maxFrame</code> bytes (64 MiB by default) is refused
+    before anything is allocated for it, and the connection it arrived on is
+    closed, so that a peer cannot make either end reserve memory it never
+    sends.
+
+    <p>
+    The first frame sent by a stub on a new connection proposes a codec, and
+    the skeleton's first frame answers with the codec it accepts. All further
+    frames are requests and replies marshalled by that <code>Codec</code>.
+
+    <p>
+    Every request and reply payload begins with an eight-byte call identifier
+    chosen by the stub. The skeleton copies the identifier of a request into
+    its reply, so a connection can carry several calls at once and replies may
+    be sent in any order. The identifier of a request is followed by a kind
+    byte: a single call, or a batch of calls which the skeleton executes in
+    order and answers with one reply holding all of their results. The kind is
+    followed by the time, in milliseconds, that the stub is still willing to
+    wait for the reply, or zero if the call has no deadline. The time is
+    relative, so the two ends need not have synchronized clocks. The header
+    ends with the call's <code>TraceContext</code>, which is zero if the call
+    is not traced.
+ */
+final class Wire
+{
+    /** Size of the frame length prefix, in bytes. */
+    static final int HEADER = 4;
+    /** Largest frame payload accepted, in bytes. */
+    static final int MAX_FRAME =
+        Math.max(1, Integer.getInteger("rmi.maxFrame", 64 * 1024 * 1024));
+    /** First four bytes of the opening frame of every stub connection. */
+    static final int MAGIC = 0x524d4931;
+    private static final int HELLO_LENGTH = 13;
+    /** Size of the call identifier at the start of requests and replies. */
+    static final int CALL_ID = 8;
+    /** Offset of the time budget in requests. */
+    private static final int BUDGET = CALL_ID + 1;
+    /** Offset of the trace context in requests. */
+    private static final int TRACE = BUDGET + 4;
+    /** Size of the call identifier, kind byte, time budget and trace context
+        at the start of requests. */
+    static final int REQUEST_HEADER = TRACE + TraceContext.SIZE;
+
+    /** Kind of a request carrying a single call. */
+    static final byte CALL = 0;
+    /** Kind of a request carrying a batch of calls. */
+    static final byte BATCH = 1;
+
+    private Wire()
+    {
+    }
+
+    /** A decoded call request. */
+    static class Request
+    {
+        /** Call identifier copied into the reply. */
+        long callId;
+        /** Method number in the interface's <code>MethodSchema</code>. */
+        final int methodId;
+        final Method method;
+        final Object[] args;
+
+        Request(int methodId, Method method, Object[] args)
+        {
+            this.methodId = methodId;
+            this.method = method;
+            this.args = args;
+        }
+    }
+
+    /** A decoded call reply. */
+    static class Reply
+    {
+        long callId;
+        final RMIStatus status;
+        final Object value;
+
+        Reply(RMIStatus status, Object value)
+        {
+            this.status = status;
+            this.value = value;
+        }
+
+        /** Returns the exception raised to the caller by an unsuccessful
+            reply. Library failures are wrapped in an
+            <code>RMIException</code>, except an expired deadline and a
+            rejection by an overloaded skeleton, which keep their own types. */
+        Throwable exception()
+        {
+            if (status == RMIStatus.RMI_EXCEPTION &&
+                !(value instanceof DeadlineExceededException) &&
+                !(value instanceof OverloadedException))
+            {
+                return new RMIException((Throwable) value);
+            }
+            return (Throwable) value;
+        }
+    }
+
+    /** Sends the opening frame of a stub connection: the protocol magic
+        number, the proposed codec and the stub's schema hash. */
+    static void writeHello(DataOutputStream out, byte codec, long schemaHash)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream hello = new DataOutputStream(bytes);
+
+        hello.writeInt(MAGIC);
+        hello.writeByte(codec);
+        hello.writeLong(schemaHash);
+
+        writeFrame(out, bytes.toByteArray());
+    }
+
+    /** Chooses the codec for a connection, given the opening frame sent by
+        the stub. The proposed codec is accepted only if the stub's schema
+        matches the skeleton's; otherwise the connection falls back to Java
+        serialization. Compression is used if both ends ask for it.
+
+        @throws IOException If the frame is not a valid opening frame.
+     */
+    static Codec negotiate(byte[] hello, MethodSchema schema) throws IOException
+    {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(hello));
+
+        if (hello.length != HELLO_LENGTH || in.readInt() != MAGIC)
+        {
+            throw new IOException("Connection is not an RMI stub");
+        }
+
+        byte proposed = in.readByte();
+        long schemaHash = in.readLong();
+
+        byte compressed = (proposed & Codec.COMPRESSED) != 0 && Compression.ENABLED
+            ? Codec.COMPRESSED : 0;
+        proposed &= ~Codec.COMPRESSED;
+
+        if (schemaHash != schema.hash || proposed != Codec.BINARY)
+        {
+            return Codec.forId((byte) (Codec.SERIALIZATION | compressed));
+        }
+        return Codec.forId((byte) (proposed | compressed));
+    }
+
+    /** Returns the call identifier at the start of a request or reply
+        payload.
+
+        @throws IOException If the payload is too short to hold one.
+     */
+    static long callId(byte[] payload) throws IOException
+    {
+        if (payload.length < CALL_ID)
+        {
+            throw new IOException("Frame has no call identifier");
+        }
+
+        long id = 0;
+        for (int i = 0; i < CALL_ID; i++)
+        {
+            id = (id << 8) | (payload[i] & 0xff);
+        }
+        return id;
+    }
+
+    /** Returns the kind of a request payload, <code>CALL</code> or
+        <code>BATCH</code>.
+
+        @throws IOException If the payload has no valid request header.
+     */
+    static byte kind(byte[] payload) throws IOException
+    {
+        if (payload.length < REQUEST_HEADER ||
+            (payload[CALL_ID] != CALL && payload[CALL_ID] != BATCH))
+        {
+            throw new IOException("Invalid request header");
+        }
+        return payload[CALL_ID];
+    }
+
+    /** Returns the time budget of a request payload, in milliseconds, or zero
+        if the request has no deadline. */
+    static int budget(byte[] payload) throws IOException
+    {
+        if (payload.length < REQUEST_HEADER)
+        {
+            throw new IOException("Invalid request header");
+        }
+
+        return (int) readLong(payload, BUDGET, 4);
+    }
+
+    /** Returns the trace context of a request payload, or <code>null</code>
+        if the call is not traced. */
+    static TraceContext trace(byte[] payload) throws IOException
+    {
+        if (payload.length < REQUEST_HEADER)
+        {
+            throw new IOException("Invalid request header");
+        }
+
+        long traceId = readLong(payload, TRACE, 8);
+        if (traceId == 0)
+        {
+            return null;
+        }
+        return new TraceContext(traceId, readLong(payload, TRACE + 8, 8));
+    }
+
+    /** Writes the trace context of a request, or zeros if it is
+        <code>null</code>. */
+    static void writeTrace(DataOutputStream out, TraceContext trace)
+        throws IOException
+    {
+        out.writeLong(trace == null ? 0 : trace.traceId);
+        out.writeLong(trace == null ? 0 : trace.spanId);
+    }
+
+    /** Reads a big-endian number of the given size from a payload. */
+    private static long readLong(byte[] payload, int offset, int size)
+    {
+        long value = 0;
+        for (int i = offset; i < offset + size; i++)
+        {
+            value = (value << 8) | (payload[i] & 0xff);
+        }
+        return value;
+    }
+
+    /** Converts the expiry time of a call to the budget sent with its
+        request.
+
+        @param expiry Expiry time as given by <code>System.nanoTime</code>, or
+                      zero for none.
+        @throws DeadlineExceededException If the deadline has already passed.
+     */
+    static int budgetOf(long expiry) throws DeadlineExceededException
+    {
+        if (expiry == 0)
+        {
+            return 0;
+        }
+
+        long remaining = expiry - System.nanoTime();
+        if (remaining <= 0)
+        {
+            throw new DeadlineExceededException("Deadline passed before the call was sent");
+        }
+        return (int) Math.min(Integer.MAX_VALUE, (remaining + 999999) / 1000000);
+    }
+
+    /** Writes one frame and flushes the stream. */
+    static void writeFrame(DataOutputStream out, byte[] payload) throws IOException
+    {
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.flush();
+    }
+
+    /** Reads one frame.
+
+        @return The payload, or <code>null</code> if the stream ended cleanly
+                at a frame boundary.
+        @throws EOFException If the stream ended in the middle of a frame.
+     */
+    static byte[] readFrame(DataInputStream in) throws IOException
+    {
+        int first = in.read();
+        if (first < 0)
+        {
+            return null;
+        }
+        return readFrame(first, in);
+    }
+
+    /** Reads the rest of a frame whose first byte has been read.
+
+        @param first The first byte of the frame, as returned by
+                     <code>read</code>.
+        @throws EOFException If the stream ends before the end of the frame.
+     */
+    static byte[] readFrame(int first, DataInputStream in) throws IOException
+    {
+        int length = (first << 24) | (in.readUnsignedByte() << 16)
+                   | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        checkLength(length);
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /** Checks the length of a frame about to be read.
+
+        @throws IOException If the length is negative or above
+                            <code>MAX_FRAME</code>.
+     */
+    static void checkLength(int length) throws IOException
+    {
+        if (length < 0)
+        {
+            throw new IOException("Invalid frame length " + length);
+        }
+        if (length > MAX_FRAME)
+        {
+            throw new IOException("Frame of " + length + " bytes exceeds the limit of " +
+                                  MAX_FRAME);
+        }
+    }
+}
@@ -70,5 +70,12 @@
     client. To avoid this, the RMI library allows the client to create an
     initial stub by directly providing a network address to a version of
     <code>create</code>.
+
+    <p>
+    Stubs are normally dynamic proxies, and skeletons call the server object
+    through method handles. A remote interface marked with
+    <code>RemoteInterface</code> also has stub and skeleton classes generated
+    for it when the project is built with its Makefile; these are used instead
+    when present.
  */
 package rmi;
@@ -0,0 +1,310 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import common.*;
+
+/** Client side of the bulk data channel of storage servers.
+
+    <p>
+    <code>Storage.read</code> and <code>Storage.write</code> carry file data as
+    serialized byte arrays, which are copied several times on the way between
+    the file and the caller's buffer. For large transfers, a storage server
+    also accepts reads and writes over a plain TCP channel, whose address is
+    returned by <code>Storage.bulkAddress</code>. The server sends file data to
+    the channel with <code>FileChannel.transferTo</code>, and receives it with
+    <code>FileChannel.transferFrom</code>, so the data does not pass through
+    the Java heap on the server. On the client, data is read from the channel
+    directly into the caller's buffer.
+
+    <p>
+    A request consists of a length-prefixed header holding the operation, the
+    path, the offset and the length, followed, for a write, by the data. The
+    reply starts with a status byte and a length-prefixed error message, and
+    is followed, for a successful read, by the data. Channels are kept open
+    and reused for later transfers to the same server.
+
+    <p>
+    The size from which the client library uses the bulk channel is taken from
+    the system property <code>storage.bulk.threshold</code> (bytes). A negative
+    threshold disables the bulk channel.
+ */
+public final class BulkChannel
+{
+    /** Default transfer size, in bytes, from which the bulk channel is
+        used. */
+    public static final int DEFAULT_THRESHOLD = 64 * 1024;
+
+    static final byte READ = 0;
+    static final byte WRITE = 1;
+
+    static final byte OK = 0;
+    static final byte NOT_FOUND = 1;
+    static final byte OUT_OF_BOUNDS = 2;
+    static final byte ERROR = 3;
+
+    /** Largest request header accepted by the server. */
+    static final int MAX_HEADER = 64 * 1024;
+
+    /** Open channels not carrying a transfer, by server address. */
+    private static final Map<InetSocketAddress, Queue<SocketChannel>> idle =
+        new ConcurrentHashMap<>();
+
+    private BulkChannel()
+    {
+    }
+
+    /** Returns the transfer size, in bytes, from which the bulk channel is
+        used, or a negative number if it is not used. */
+    public static int threshold()
+    {
+        return Integer.getInteger("storage.bulk.threshold", DEFAULT_THRESHOLD);
+    }
+
+    /** Reads a sequence of bytes from a file into a buffer.
+
+        @param address Address of the storage server's bulk channel.
+        @param file Path to the file.
+        @param offset Offset into the file to the beginning of the sequence.
+        @param buffer Buffer receiving the bytes.
+        @param bufferOffset Offset into the buffer at which bytes are written.
+        @param length The number of bytes to be read.
+        @throws IndexOutOfBoundsException If the sequence is outside the bounds
+                                          of the file.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the server cannot be contacted, or if the read
+                            cannot be completed on the server.
+     */
+    public static void read(InetSocketAddress address, Path file, long offset,
+                            byte[] buffer, int bufferOffset, int length)
+        throws IOException
+    {
+        transfer(address, READ, file, offset,
+                 ByteBuffer.wrap(buffer, bufferOffset, length));
+    }
+
+    /** Writes bytes from a buffer to a file.
+
+        @param address Address of the storage server's bulk channel.
+        @param file Path to the file.
+        @param offset Offset into the file where data is to be written.
+        @param buffer Buffer containing the bytes.
+        @param bufferOffset Offset into the buffer of the first byte.
+        @param length The number of bytes to be written.
+        @throws IndexOutOfBoundsException If <code>offset</code> is negative.
+        @throws FileNotFoundException If the file cannot be found or the path
+                                      refers to a directory.
+        @throws IOException If the server cannot be contacted, or if the write
+                            cannot be completed on the server.
+     */
+    public static void write(InetSocketAddress address, Path file, long offset,
+                             byte[] buffer, int bufferOffset, int length)
+        throws IOException
+    {
+        transfer(address, WRITE, file, offset,
+                 ByteBuffer.wrap(buffer, bufferOffset, length));
+    }
+
+    private static void transfer(InetSocketAddress address, byte operation,
+                                 Path file, long offset, ByteBuffer data)
+        throws IOException
+    {
+        SocketChannel channel = idle(address);
+        boolean reused = channel != null;
+        if (!reused)
+        {
+            channel = open(address);
+        }
+
+        int position = data.position();
+        try
+        {
+            exchange(channel, operation, file, offset, data);
+        }
+        catch (RemoteFailure e)
+        {
+            // The server reported the failure and the channel is still in
+            // step.
+            release(address, channel);
+            throw e.rethrow();
+        }
+        catch (IOException e)
+        {
+            close(channel);
+            if (!reused)
+            {
+                throw e;
+            }
+
+            // An idle channel may have been closed by the server. Both
+            // operations can safely be repeated.
+            data.position(position);
+            channel = open(address);
+            try
+            {
+                exchange(channel, operation, file, offset, data);
+            }
+            catch (RemoteFailure f)
+            {
+                release(address, channel);
+                throw f.rethrow();
+            }
+            catch (IOException f)
+            {
+                close(channel);
+                throw f;
+            }
+        }
+        release(address, channel);
+    }
+
+    private static void exchange(SocketChannel channel, byte operation,
+                                 Path file, long offset, ByteBuffer data)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.writeByte(operation);
+        header.writeUTF(file.toString());
+        header.writeLong(offset);
+        header.writeInt(data.remaining());
+        header.flush();
+
+        ByteBuffer request = ByteBuffer.allocate(4 + bytes.size());
+        request.putInt(bytes.size()).put(bytes.toByteArray()).flip();
+
+        if (operation == WRITE)
+        {
+            writeFully(channel, new ByteBuffer[] { request, data });
+            readStatus(channel);
+        }
+        else
+        {
+            writeFully(channel, new ByteBuffer[] { request });
+            readStatus(channel);
+            readFully(channel, data);
+        }
+    }
+
+    /** Reads the status of a reply, throwing the failure it reports. */
+    private static void readStatus(SocketChannel channel) throws IOException
+    {
+        ByteBuffer status = ByteBuffer.allocate(5);
+        readFully(channel, status);
+        status.flip();
+
+        byte code = status.get();
+        int length = status.getInt();
+        if (code == OK && length == 0)
+        {
+            return;
+        }
+        if (length < 0 || length > MAX_HEADER)
+        {
+            throw new IOException("Invalid bulk channel reply");
+        }
+
+        ByteBuffer message = ByteBuffer.allocate(length);
+        readFully(channel, message);
+        String text = new String(message.array(), "UTF-8");
+
+        switch (code)
+        {
+            case NOT_FOUND:
+                throw new RemoteFailure(new FileNotFoundException(text));
+            case OUT_OF_BOUNDS:
+                throw new RemoteFailure(new IndexOutOfBoundsException(text));
+            case ERROR:
+                throw new RemoteFailure(new IOException(text));
+            default:
+                throw new IOException("Invalid bulk channel reply");
+        }
+    }
+
+    /** Reads from a channel until the buffer is full. */
+    static void readFully(ScatteringByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new EOFException("Bulk channel closed");
+            }
+        }
+    }
+
+    /** Writes the whole of the given buffers to a channel. */
+    static void writeFully(GatheringByteChannel channel, ByteBuffer[] buffers)
+        throws IOException
+    {
+        int last = buffers.length - 1;
+        while (buffers[0].hasRemaining() || buffers[last].hasRemaining())
+        {
+            channel.write(buffers);
+        }
+    }
+
+    private static SocketChannel idle(InetSocketAddress address)
+    {
+        Queue<SocketChannel> channels = idle.get(address);
+        return channels == null ? null : channels.poll();
+    }
+
+    private static SocketChannel open(InetSocketAddress address)
+        throws IOException
+    {
+        SocketChannel channel = SocketChannel.open(address);
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+
+    private static void release(InetSocketAddress address, SocketChannel channel)
+    {
+        Queue<SocketChannel> channels = idle.get(address);
+        if (channels == null)
+        {
+            idle.putIfAbsent(address, new ConcurrentLinkedQueue<SocketChannel>());
+            channels = idle.get(address);
+        }
+        channels.add(channel);
+    }
+
+    private static void close(SocketChannel channel)
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    /** Failure reported by the server, which leaves the channel usable. */
+    private static class RemoteFailure extends IOException
+    {
+        private RemoteFailure(Exception cause)
+        {
+            super(cause);
+        }
+
+        /** Throws the reported exception. */
+        private IOException rethrow() throws IOException
+        {
+            if (getCause() instanceof RuntimeException)
+            {
+                throw (RuntimeException) getCause();
+            }
+            throw (IOException) getCause();
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.HashSet;
+import java.util.Set;
+
+import common.*;
+
+/** Server side of the bulk data channel of a storage server.
+
+    <p>
+    The bulk server accepts connections on its own port and serves each of
+    them on a separate thread. Files are opened through the storage server,
+    which checks the request as it would a call to <code>read</code> or
+    <code>write</code>; the data is then moved between the file and the
+    connection by <code>FileChannel.transferTo</code> and
+    <code>transferFrom</code>, without the storage server's lock being held.
+    The protocol is described in <code>BulkChannel</code>.
+ */
+class BulkServer
+{
+    private final StorageServer server;
+    private ServerSocketChannel listener = null;
+    private final Set<SocketChannel> connections = new HashSet<>();
+
+    BulkServer(StorageServer server)
+    {
+        this.server = server;
+    }
+
+    /** Starts accepting connections on a port chosen by the system.
+
+        @return The port on which the server listens.
+        @throws IOException If the port cannot be opened.
+     */
+    synchronized int start() throws IOException
+    {
+        listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(0));
+
+        Thread thread = new Thread(new Listener(listener), "storage-bulk-listener");
+        thread.setDaemon(true);
+        thread.start();
+
+        return listener.socket().getLocalPort();
+    }
+
+    /** Stops accepting connections and closes all open connections. */
+    synchronized void stop()
+    {
+        close(listener);
+        listener = null;
+
+        for (SocketChannel connection : connections)
+        {
+            close(connection);
+        }
+        connections.clear();
+    }
+
+    private synchronized boolean add(SocketChannel connection)
+    {
+        if (listener == null)
+        {
+            return false;
+        }
+        connections.add(connection);
+        return true;
+    }
+
+    private synchronized void remove(SocketChannel connection)
+    {
+        connections.remove(connection);
+    }
+
+    private static void close(Channel channel)
+    {
+        if (channel == null)
+        {
+            return;
+        }
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+        }
+    }
+
+    private class Listener implements Runnable
+    {
+        private final ServerSocketChannel listener;
+
+        private Listener(ServerSocketChannel listener)
+        {
+            this.listener = listener;
+        }
+
+        @Override
+        public void run()
+        {
+            while (true)
+            {
+                SocketChannel connection;
+                try
+                {
+                    connection = listener.accept();
+                }
+                catch (IOException e)
+                {
+                    // Closed by stop.
+                    return;
+                }
+
+                if (!add(connection))
+                {
+                    close(connection);
+                    return;
+                }
+
+                Thread thread = new Thread(new Handler(connection),
+                                           "storage-bulk-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        }
+    }
+
+    /** Serves the requests arriving on one connection, one at a time. */
+    private class Handler implements Runnable
+    {
+        private final SocketChannel connection;
+
+        private Handler(SocketChannel connection)
+        {
+            this.connection = connection;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                connection.socket().setTcpNoDelay(true);
+
+                ByteBuffer size = ByteBuffer.allocate(4);
+                while (true)
+                {
+                    size.clear();
+                    if (connection.read(size) < 0)
+                    {
+                        return;
+                    }
+                    BulkChannel.readFully(connection, size);
+                    size.flip();
+
+                    int length = size.getInt();
+                    if (length <= 0 || length > BulkChannel.MAX_HEADER)
+                    {
+                        return;
+                    }
+
+                    ByteBuffer header = ByteBuffer.allocate(length);
+                    BulkChannel.readFully(connection, header);
+                    serve(new DataInputStream(
+                        new ByteArrayInputStream(header.array())));
+                }
+            }
+            catch (IOException e)
+            {
+                // The client closed the connection, or it failed.
+            }
+            finally
+            {
+                remove(connection);
+                close(connection);
+            }
+        }
+
+        private void serve(DataInputStream header) throws IOException
+        {
+            byte operation = header.readByte();
+            Path file = new Path(header.readUTF());
+            long offset = header.readLong();
+            int length = header.readInt();
+
+            if (length < 0)
+            {
+                throw new IOException("Negative bulk transfer length");
+            }
+
+            if (operation == BulkChannel.READ)
+            {
+                read(file, offset, length);
+            }
+            else if (operation == BulkChannel.WRITE)
+            {
+                write(file, offset, length);
+            }
+            else
+            {
+                throw new IOException("Unknown bulk operation " + operation);
+            }
+        }
+
+        private void read(Path file, long offset, int length) throws IOException
+        {
+            FileChannel source;
+            try
+            {
+                source = server.openRead(file, offset, length);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                reply(e);
+                return;
+            }
+
+            try
+            {
+                reply(null);
+
+                long sent = 0;
+                while (sent < length)
+                {
+                    long count = source.transferTo(offset + sent, length - sent,
+                                                   connection);
+                    if (count <= 0 && offset + sent >= source.size())
+                    {
+                        // The file was truncated while being sent. The client
+                        // sees the connection close.
+                        throw new EOFException("File truncated during transfer");
+                    }
+                    sent += count;
+                }
+            }
+            finally
+            {
+                source.close();
+            }
+        }
+
+        private void write(Path file, long offset, int length) throws IOException
+        {
+            FileChannel target;
+            try
+            {
+                target = server.openWrite(file, offset);
+            }
+            catch (IOException | RuntimeException e)
+            {
+                discard(length);
+                reply(e);
+                return;
+            }
+
+            try
+            {
+                // transferFrom writes nothing at a position beyond the end of
+                // the file, so the file is first extended to the offset, as
+                // a write through the storage interface would.
+                if (length > 0 && offset > target.size())
+                {
+                    target.write(ByteBuffer.allocate(1), offset - 1);
+                }
+
+                long received = 0;
+                while (received < length)
+                {
+                    long count = target.transferFrom(connection, offset + received,
+                                                     length - received);
+                    if (count <= 0)
+                    {
+                        throw new EOFException("Bulk channel closed");
+                    }
+                    received += count;
+                }
+            }
+            finally
+            {
+                target.close();
+            }
+            reply(null);
+        }
+
+        /** Skips the data of a write which is refused. */
+        private void discard(int length) throws IOException
+        {
+            ByteBuffer scratch = ByteBuffer.allocate(Math.min(length, 64 * 1024));
+            int remaining = length;
+            while (remaining > 0)
+            {
+                scratch.clear();
+                scratch.limit(Math.min(remaining, scratch.capacity()));
+                BulkChannel.readFully(connection, scratch);
+                remaining -= scratch.limit();
+            }
+        }
+
+        /** Sends the status of a request: success if <code>failure</code> is
+            <code>null</code>, or the kind and message of the failure. */
+        private void reply(Exception failure) throws IOException
+        {
+            byte status = BulkChannel.OK;
+            byte[] message = new byte[0];
+
+            if (failure != null)
+            {
+                if (failure instanceof FileNotFoundException)
+                {
+                    status = BulkChannel.NOT_FOUND;
+                }
+                else if (failure instanceof IndexOutOfBoundsException)
+                {
+                    status = BulkChannel.OUT_OF_BOUNDS;
+                }
+                else
+                {
+                    status = BulkChannel.ERROR;
+                }
+                message = String.valueOf(failure.getMessage()).getBytes("UTF-8");
+            }
+
+            ByteBuffer reply = ByteBuffer.allocate(5 + message.length);
+            reply.put(status).putInt(message.length).put(message).flip();
+            BulkChannel.writeFully(connection, new ByteBuffer[] { reply });
+        }
+    }
+}
@@ -3,19 +3,26 @@ package storage;
 import java.io.*;
 
 import common.*;
+import rmi.Idempotent;
+import rmi.Lane;
+import rmi.Priority;
 import rmi.RMIException;
+import rmi.RemoteInterface;
 
 /** Storage server command interface.
 
     <p>
     The naming server uses this interface to communicate commands to the storage
-    server.
+    server. Its calls are served in the control lane, ahead of client reads
+    and writes waiting at the same server.
 
     <p>
     All methods in this interface may raise {@link NullPointerException} if
     passed <code>null</code> for arguments or {@link SecurityException} if the
     security manager on the server does not allow an operation.
  */
+@RemoteInterface
+@Priority(Lane.CONTROL)
 public interface Command
 {
     /** Creates a file on the storage server.
@@ -45,6 +52,23 @@ public interface Command
      */
     public boolean delete(Path path) throws RMIException;
 
+    /** Returns the capacity and load of the storage server.
+
+        <p>
+        The naming server calls this method periodically, and places new
+        files according to the reports it receives.
+
+        @return The capacity and load, or <code>null</code> if the server does
+                not report them.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default StorageLoad load() throws RMIException
+    {
+        return null;
+    }
+
 //    public boolean copy(Path file, Storage server)
 //            throws RMIException, FileNotFoundException, IOException;
 }
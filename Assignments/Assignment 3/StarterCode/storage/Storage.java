@@ -1,17 +1,30 @@
 package storage;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 
 import common.*;
+import rmi.Cacheable;
+import rmi.Idempotent;
+import rmi.Lane;
+import rmi.Priority;
 import rmi.RMIException;
+import rmi.RemoteInterface;
 
 /** Storage server client interface.
 
+    <p>
+    Calls to this interface are served in the bulk lane, so that a storage
+    server flooded with reads and writes still serves the naming server's
+    commands promptly.
+
     <p>
     All methods in this interface may raise {@link NullPointerException} if
     passed <code>null</code> for arguments or {@link SecurityException} if the
     security manager on the server does not allow an operation.
  */
+@RemoteInterface
+@Priority(Lane.BULK)
 public interface Storage
 {
     /** Returns the length of a file, in bytes.
@@ -23,6 +36,8 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Cacheable
+    @Idempotent
     public long size(Path file) throws RMIException, FileNotFoundException;
 
     /** Reads a sequence of bytes from a file.
@@ -43,6 +58,7 @@ public interface Storage
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
+    @Idempotent
     public byte[] read(Path file, long offset, int length)
         throws RMIException, FileNotFoundException, IOException;
 
@@ -60,4 +76,22 @@ public interface Storage
      */
     public void write(Path file, long offset, byte[] data)
         throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the address of the server's bulk data channel.
+
+        <p>
+        Large reads and writes may be made over the bulk data channel with
+        <code>BulkChannel</code> instead of with <code>read</code> and
+        <code>write</code>, so that their data is not serialized.
+
+        @return The address of the channel, or <code>null</code> if the server
+                does not provide one.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    @Idempotent
+    public default InetSocketAddress bulkAddress() throws RMIException
+    {
+        return null;
+    }
 }
@@ -0,0 +1,72 @@
+package storage;
+
+import java.io.Serializable;
+
+/** Capacity and load of a storage server, as reported to the naming server.
+
+    <p>
+    The naming server asks each storage server for its load periodically,
+    through <code>Command.load</code>, and places new files according to the
+    reports it has.
+ */
+public final class StorageLoad implements Serializable
+{
+    private static final long serialVersionUID = 1L;
+
+    private final long totalSpace;
+    private final long usableSpace;
+    private final long files;
+    private final int activeRequests;
+
+    /** Creates a report.
+
+        @param totalSpace Size of the filesystem holding the server's files,
+                          in bytes.
+        @param usableSpace Bytes of that filesystem available for new data.
+        @param files Number of files hosted by the server.
+        @param activeRequests Number of client requests the server is serving
+                              or has queued.
+     */
+    public StorageLoad(long totalSpace, long usableSpace, long files,
+                       int activeRequests)
+    {
+        this.totalSpace = totalSpace;
+        this.usableSpace = usableSpace;
+        this.files = files;
+        this.activeRequests = activeRequests;
+    }
+
+    /** Returns the size of the filesystem holding the server's files, in
+        bytes. */
+    public long getTotalSpace()
+    {
+        return totalSpace;
+    }
+
+    /** Returns the number of bytes of the filesystem available for new
+        data. */
+    public long getUsableSpace()
+    {
+        return usableSpace;
+    }
+
+    /** Returns the number of files hosted by the server. */
+    public long getFiles()
+    {
+        return files;
+    }
+
+    /** Returns the number of client requests the server is serving or has
+        queued. */
+    public int getActiveRequests()
+    {
+        return activeRequests;
+    }
+
+    @Override
+    public String toString()
+    {
+        return usableSpace + "/" + totalSpace + " bytes free, " + files +
+               " files, " + activeRequests + " requests";
+    }
+}
@@ -2,6 +2,8 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 import common.*;
 import rmi.*;
@@ -13,6 +15,17 @@ import naming.*;
     Storage servers respond to client file access requests. The files accessible
     through a storage server are those accessible under a given directory of the
     local filesystem.
+
+    <p>
+    Besides its client and command interfaces, a storage server runs a bulk
+    data channel on a port chosen by the system, over which large reads and
+    writes avoid serializing their data. See <code>BulkChannel</code>.
+
+    <p>
+    The server reports its capacity and load to the naming server through
+    <code>Command.load</code>: the space of the filesystem holding its
+    directory, the number of files it hosts, and the number of client
+    requests being served or waiting for a thread.
  */
 public class StorageServer implements Storage, Command
 {
@@ -21,6 +34,11 @@ public class StorageServer implements Storage, Command
     private int commandPort = 0;
     private Skeleton<Storage> storageSkeleton = null;
     private Skeleton<Command> commandSkeleton = null;
+    private BulkServer bulkServer = null;
+    private volatile InetSocketAddress bulkAddress = null;
+    private DispatchPolicy lanes = null;
+    /** Number of files hosted. Changed only under the server's lock. */
+    private volatile long files = 0;
     private boolean started = false;
     private boolean stopping = false;
 
@@ -78,31 +96,33 @@ public class StorageServer implements Storage, Command
             throw new RMIException("Storage server stopping");
         }
 
-        if (clientPort == 0)
-        {
-            storageSkeleton = new Skeleton<>(Storage.class, this);
-        }
-        else
-        {
-            storageSkeleton = new Skeleton<>(Storage.class, this, new InetSocketAddress(clientPort));
-        }
+        // Both skeletons share one pool of workers, in which commands from
+        // the naming server are served ahead of client reads and writes.
+        lanes = DispatchPolicy.prioritized();
 
-        if (commandPort == 0)
+        storageSkeleton = new Skeleton<>(Storage.class, this,
+            clientPort == 0 ? null : new InetSocketAddress(clientPort), lanes);
+        commandSkeleton = new Skeleton<>(Command.class, this,
+            commandPort == 0 ? null : new InetSocketAddress(commandPort), lanes);
+
+        storageSkeleton.start();
+        commandSkeleton.start();
+
+        bulkServer = new BulkServer(this);
+        try
         {
-            commandSkeleton = new Skeleton<>(Command.class, this);
+            bulkAddress = new InetSocketAddress(hostname, bulkServer.start());
         }
-        else
+        catch (IOException e)
         {
-            commandSkeleton = new Skeleton<>(Command.class, this, new InetSocketAddress(commandPort));
+            throw new RMIException("Unable to start bulk data channel", e);
         }
 
-        storageSkeleton.start();
-        commandSkeleton.start();
-
         Storage storageStub = Stub.create(Storage.class, storageSkeleton, hostname);
         Command commandStub = Stub.create(Command.class, commandSkeleton, hostname);
 
         Path[] paths = Path.list(root);
+        files = paths.length;
         Path[] duplicates = naming_server.register(storageStub, commandStub, paths);
 
         for (Path path : duplicates)
@@ -129,6 +149,11 @@ public class StorageServer implements Storage, Command
         {
             storageSkeleton.stop();
             commandSkeleton.stop();
+            if (bulkServer != null)
+            {
+                bulkServer.stop();
+                bulkAddress = null;
+            }
             synchronized(this)
             {
                 stopping = false;
@@ -167,6 +192,42 @@ public class StorageServer implements Storage, Command
 
     @Override
     public synchronized byte[] read(Path file, long offset, int length) throws FileNotFoundException, IOException
+    {
+        File localFile = checkRead(file, offset, length);
+
+        try (RandomAccessFile fileReader = new RandomAccessFile(localFile, "r"))
+        {
+            byte[] bytes = new byte[length];
+            fileReader.seek(offset);
+            fileReader.readFully(bytes, 0, length);
+
+            return bytes;
+        }
+    }
+
+    @Override
+    public InetSocketAddress bulkAddress()
+    {
+        return bulkAddress;
+    }
+
+    /** Opens a file for a read over the bulk data channel, after the checks
+        made by <code>read</code>. */
+    synchronized FileChannel openRead(Path file, long offset, int length) throws IOException
+    {
+        return FileChannel.open(checkRead(file, offset, length).toPath(),
+                                StandardOpenOption.READ);
+    }
+
+    /** Opens a file for a write over the bulk data channel, after the checks
+        made by <code>write</code>. */
+    synchronized FileChannel openWrite(Path file, long offset) throws IOException
+    {
+        return FileChannel.open(checkWrite(file, offset).toPath(),
+                                StandardOpenOption.WRITE);
+    }
+
+    private File checkRead(Path file, long offset, int length) throws IOException
     {
         File localFile = file.toFile(root);
 
@@ -185,13 +246,7 @@ public class StorageServer implements Storage, Command
             throw new IndexOutOfBoundsException("invalid offset and/or length");
         }
 
-        RandomAccessFile fileReader = new RandomAccessFile(localFile, "r");
-
-        byte[] bytes = new byte[length];
-        fileReader.seek(offset);
-        fileReader.readFully(bytes, 0, length);
-
-        return bytes;
+        return localFile;
     }
 
     @Override
@@ -202,6 +257,22 @@ public class StorageServer implements Storage, Command
             throw new NullPointerException("file or data is null");
         }
 
+        File localFile = checkWrite(file, offset);
+
+        try (RandomAccessFile fileWriter = new RandomAccessFile(localFile, "rw"))
+        {
+            fileWriter.seek(offset);
+            fileWriter.write(data);
+        }
+        catch (Throwable t)
+        {
+            t.printStackTrace();
+            throw t;
+        }
+    }
+
+    private File checkWrite(Path file, long offset) throws IOException
+    {
         File localFile = file.toFile(root);
 
         if (!localFile.exists() || localFile.isDirectory())
@@ -219,18 +290,7 @@ public class StorageServer implements Storage, Command
             throw new IndexOutOfBoundsException("Invalid offset and/or length");
         }
 
-        RandomAccessFile fileWriter = new RandomAccessFile(localFile, "rw");
-
-        try
-        {
-            fileWriter.seek(offset);
-            fileWriter.write(data);
-        }
-        catch (Throwable t)
-        {
-            t.printStackTrace();
-            throw t;
-        }
+        return localFile;
     }
 
     // The following methods are documented in Command.java.
@@ -248,7 +308,12 @@ public class StorageServer implements Storage, Command
         try
         {
             parent.mkdirs();
-            return localFile.createNewFile();
+            if (!localFile.createNewFile())
+            {
+                return false;
+            }
+            files++;
+            return true;
         }
         catch (IOException e)
         {
@@ -274,10 +339,31 @@ public class StorageServer implements Storage, Command
         return success;
     }
 
+    @Override
+    public StorageLoad load()
+    {
+        Skeleton<Storage> skeleton = storageSkeleton;
+        DispatchPolicy policy = lanes;
+        int active = 0;
+
+        if (skeleton != null)
+        {
+            active += skeleton.getMetrics().inFlight();
+        }
+        if (policy != null)
+        {
+            active += policy.queueDepth(Lane.BULK);
+        }
+
+        return new StorageLoad(root.getTotalSpace(), root.getUsableSpace(),
+                               files, active);
+    }
+
 
     private boolean localDelete(File localFile)
     {
-        if (localFile.isDirectory())
+        boolean directory = localFile.isDirectory();
+        if (directory)
         {
             File[] list = localFile.listFiles();
             for (File file : list)
@@ -287,6 +373,10 @@ public class StorageServer implements Storage, Command
         }
 
         boolean success = localFile.delete();
+        if (success && !directory)
+        {
+            files--;
+        }
         return success;
     }
 
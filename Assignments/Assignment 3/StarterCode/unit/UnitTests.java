@@ -8,6 +8,26 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link common.SampleUnitTest}</li>
+    <li>{@link rmi.ConnectionPoolTest}</li>
+    <li>{@link rmi.CodecTest}</li>
+    <li>{@link rmi.AsyncStubTest}</li>
+    <li>{@link rmi.BatchTest}</li>
+    <li>{@link rmi.DeadlineTest}</li>
+    <li>{@link rmi.LocalCallTest}</li>
+    <li>{@link rmi.BalancerTest}</li>
+    <li>{@link rmi.HedgeTest}</li>
+    <li>{@link rmi.CacheTest}</li>
+    <li>{@link rmi.TracingTest}</li>
+    <li>{@link rmi.UnixSocketTest}</li>
+    <li>{@link rmi.LaneTest}</li>
+    <li>{@link rmi.DispatchPolicyTest}</li>
+    <li>{@link rmi.TransportTest}</li>
+    <li>{@link rmi.MetricsTest}</li>
+    <li>{@link storage.BulkChannelTest}</li>
+    <li>{@link naming.ConcurrentTreeTest}</li>
+    <li>{@link naming.JournalTest}</li>
+    <li>{@link naming.CompactTreeTest}</li>
+    <li>{@link naming.PlacementTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +41,27 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {common.SampleUnitTest.class};
+            new Class[] {common.SampleUnitTest.class,
+                         rmi.ConnectionPoolTest.class,
+                         rmi.CodecTest.class,
+                         rmi.AsyncStubTest.class,
+                         rmi.BatchTest.class,
+                         rmi.DeadlineTest.class,
+                         rmi.LocalCallTest.class,
+                         rmi.BalancerTest.class,
+                         rmi.HedgeTest.class,
+                         rmi.CacheTest.class,
+                         rmi.TracingTest.class,
+                         rmi.UnixSocketTest.class,
+                         rmi.LaneTest.class,
+                         rmi.DispatchPolicyTest.class,
+                         rmi.TransportTest.class,
+                         rmi.MetricsTest.class,
+                         storage.BulkChannelTest.class,
+                         naming.ConcurrentTreeTest.class,
+                         naming.JournalTest.class,
+                         naming.CompactTreeTest.class,
+                         naming.PlacementTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
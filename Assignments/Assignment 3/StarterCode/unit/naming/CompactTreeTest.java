@@ -0,0 +1,228 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Checks the compact representation of the naming server's directory tree.
+
+    <p>
+    The test creates paths whose hash codes are equal, and checks that each is
+    found as itself. It creates names which are not ASCII, including an
+    unpaired surrogate and the question mark it would be replaced with in
+    UTF-8, and checks that they are distinct and listed as created. It checks
+    that a name repeated in many directories is stored once, that names are
+    dropped when the last node using them is released, and that a node table
+    still finds its nodes after most have been removed.
+ */
+public class CompactTreeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking compact naming tree representation";
+
+    /** Number of directories holding a file with the same name. */
+    private static final int    DIRECTORIES = 200;
+
+    /** Storage server stand-in, accepting every file. */
+    private static class NullStorage implements Storage, Command
+    {
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkCollisions();
+            checkNames();
+            checkRelease();
+        }
+        catch(FileNotFoundException | RMIException e)
+        {
+            throw new TestFailed("unexpected exception", e);
+        }
+    }
+
+    /** Checks that paths with equal hash codes are told apart. */
+    private void checkCollisions()
+        throws TestFailed, FileNotFoundException, RMIException
+    {
+        HashTree                tree = new HashTree();
+        ServerStub              first = server(1);
+        ServerStub              second = server(2);
+
+        // Aa and BB have the same hash code, and so do the paths below them
+        // with the same names.
+        Path                    left = new Path("/Aa/x");
+        Path                    right = new Path("/BB/x");
+
+        if(left.hashCode() != right.hashCode())
+            throw new TestFailed("test paths do not collide");
+
+        tree.createDirectory(new Path("/Aa"));
+        tree.createDirectory(new Path("/BB"));
+        if(!tree.createFile(left, first) || !tree.createFile(right, second))
+            throw new TestFailed("unable to create colliding files");
+
+        if(tree.getStorage(left) != first || tree.getStorage(right) != second)
+            throw new TestFailed("colliding files have wrong storage");
+
+        tree.delete(new Path("/Aa"));
+
+        if(tree.getStorage(right) != second)
+            throw new TestFailed("colliding file lost by deletion");
+
+        try
+        {
+            tree.isDirectory(left);
+            throw new TestFailed("deleted colliding file found");
+        }
+        catch(FileNotFoundException e)
+        {
+        }
+    }
+
+    /** Checks that names which are not ASCII are kept exactly. */
+    private void checkNames()
+        throws TestFailed, FileNotFoundException, RMIException
+    {
+        HashTree                tree = new HashTree();
+        ServerStub              storage = server(1);
+        String[]                names = {"plain", "caf\u00e9", "\u6587\u4ef6",
+                                         "\ud800", "?", "\ud83d\ude00"};
+
+        for(String name : names)
+        {
+            if(!tree.createFile(new Path(new Path(), name), storage))
+                throw new TestFailed("unable to create " + name);
+        }
+
+        Set<String>             listed =
+            new HashSet<>(Arrays.asList(tree.list(new Path())));
+
+        if(!listed.equals(new HashSet<>(Arrays.asList(names))))
+            throw new TestFailed("names listed differently: " + listed);
+
+        for(String name : names)
+        {
+            if(tree.isDirectory(new Path(new Path(), name)))
+                throw new TestFailed(name + " is not a file");
+
+            byte[]              encoded = Names.encode(name);
+            if(!Names.matches(encoded, name) ||
+               !Names.decode(encoded).equals(name))
+            {
+                throw new TestFailed(name + " not encoded exactly");
+            }
+        }
+    }
+
+    /** Checks that names are shared and released with the files using
+        them. */
+    private void checkRelease() throws TestFailed
+    {
+        Names                   names = new Names();
+        byte[]                  shared = names.acquire("part-00000");
+        byte[][]                own = new byte[DIRECTORIES][];
+
+        for(int directory = 1; directory < DIRECTORIES; ++directory)
+        {
+            if(names.acquire("part-00000") != shared)
+                throw new TestFailed("repeated name stored twice");
+            own[directory] = names.acquire("directory-" + directory);
+        }
+
+        if(names.size() != DIRECTORIES)
+            throw new TestFailed("wrong number of distinct names");
+
+        for(int directory = 1; directory < DIRECTORIES; ++directory)
+        {
+            names.release(shared);
+            names.release(own[directory]);
+        }
+
+        if(names.size() != 1)
+            throw new TestFailed("names not released with their nodes");
+
+        names.release(shared);
+        if(names.size() != 0)
+            throw new TestFailed("repeated name not released");
+
+        NodeTable               table = new NodeTable();
+        HashNode.Directory      root = new HashNode.Directory();
+        List<HashNode>          nodes = new ArrayList<>();
+
+        for(int index = 0; index < DIRECTORIES; ++index)
+        {
+            String              name = "f" + index;
+            HashNode            node =
+                new HashNode.Directory(Names.encode(name), root,
+                                       HashNode.hash(root, name));
+            table.put(node);
+            nodes.add(node);
+        }
+
+        for(int index = 0; index < DIRECTORIES - 1; ++index)
+            table.remove(nodes.get(index));
+
+        HashNode                last = nodes.get(DIRECTORIES - 1);
+        String                  lastName = "f" + (DIRECTORIES - 1);
+
+        if(table.nodes().length != 1 ||
+           table.get(last.hash, lastName) != last ||
+           table.get(nodes.get(0).hash, "f0") != null)
+        {
+            throw new TestFailed("node table wrong after removals");
+        }
+    }
+
+    /** Returns a storage server stand-in with the given identifier. */
+    private ServerStub server(int id)
+    {
+        NullStorage             storage = new NullStorage();
+        ServerStub              server = new ServerStub(storage, storage);
+
+        server.id = id;
+        return server;
+    }
+}
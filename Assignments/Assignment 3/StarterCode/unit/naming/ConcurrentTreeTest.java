@@ -0,0 +1,284 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Checks that the naming server stays consistent under concurrent calls.
+
+    <p>
+    The test calls a naming server directly from several threads at once. It
+    checks that only one of several simultaneous registrations of the same
+    storage server succeeds, that each path raced for by all threads is
+    created exactly once, that changes in separate directories all take
+    effect, and that the storage server receives one command for every change.
+    It also checks that nothing below a deleted directory can still be found.
+ */
+public class ConcurrentTreeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking concurrent naming server changes";
+
+    /** Number of threads calling the naming server. */
+    private static final int    THREADS = 8;
+    /** Number of files each thread creates in each directory. */
+    private static final int    FILES = 1000;
+
+    /** Naming server used in the test. It is not started. */
+    private final NamingServer  server = new NamingServer();
+    /** Storage server stand-in used in the test. */
+    private final CountingStorage storage = new CountingStorage();
+
+    /** Storage server stand-in, counting the commands it receives. */
+    private static class CountingStorage implements Storage, Command
+    {
+        final AtomicInteger     created = new AtomicInteger();
+        final AtomicInteger     deleted = new AtomicInteger();
+
+        @Override
+        public boolean create(Path file)
+        {
+            created.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            deleted.incrementAndGet();
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+    }
+
+    /** A task run by every thread of the test at the same time. */
+    private interface Task
+    {
+        void run(int thread) throws Throwable;
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        final AtomicInteger     registered = new AtomicInteger();
+
+        runAll(new Task()
+        {
+            @Override
+            public void run(int thread) throws Throwable
+            {
+                try
+                {
+                    server.register(storage, storage, new Path[0]);
+                    registered.incrementAndGet();
+                }
+                catch(IllegalStateException e)
+                {
+                }
+            }
+        });
+
+        if(registered.get() != 1)
+        {
+            throw new TestFailed("storage server registered " +
+                                 registered.get() + " times");
+        }
+
+        final AtomicInteger     raced = new AtomicInteger();
+
+        runAll(new Task()
+        {
+            @Override
+            public void run(int thread) throws Throwable
+            {
+                Path            own = new Path("/own" + thread);
+                Path            shared = new Path("/shared");
+
+                if(!server.createDirectory(own))
+                    throw new TestFailed("unable to create " + own);
+                server.createDirectory(shared);
+
+                for(int file = 0; file < FILES; ++file)
+                {
+                    if(!server.createFile(new Path(own, "f" + file)))
+                        throw new TestFailed("unable to create file in " + own);
+                    if(server.createFile(new Path(shared, "f" + file)))
+                        raced.incrementAndGet();
+                    server.isDirectory(shared);
+                    server.list(shared);
+                }
+            }
+        });
+
+        if(raced.get() != FILES)
+        {
+            throw new TestFailed(raced.get() + " shared files created, " +
+                                 "expected " + FILES);
+        }
+
+        try
+        {
+            if(server.list(new Path("/shared")).length != FILES)
+                throw new TestFailed("shared directory has wrong listing");
+
+            for(int thread = 0; thread < THREADS; ++thread)
+            {
+                if(server.list(new Path("/own" + thread)).length != FILES)
+                    throw new TestFailed("directory has wrong listing");
+            }
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("directory missing after creation", e);
+        }
+
+        if(storage.created.get() != (THREADS + 1) * FILES)
+            throw new TestFailed("wrong number of files created on storage");
+
+        runAll(new Task()
+        {
+            @Override
+            public void run(int thread) throws Throwable
+            {
+                if(!server.delete(new Path("/own" + thread)))
+                    throw new TestFailed("unable to delete directory");
+            }
+        });
+
+        try
+        {
+            if(server.list(new Path("/")).length != 1)
+                throw new TestFailed("root has wrong listing after deletion");
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("root directory missing", e);
+        }
+
+        if(storage.deleted.get() != THREADS)
+            throw new TestFailed("wrong number of deletions on storage");
+
+        checkDeletedSubtree();
+    }
+
+    /** Registers a deep file, deletes a directory above it, and checks that
+        neither the file nor the directories below the deleted one are
+        found. */
+    private void checkDeletedSubtree() throws TestFailed
+    {
+        CountingStorage         deep = new CountingStorage();
+        Path                    file = new Path("/deep/a/b/c/file");
+
+        try
+        {
+            server.register(deep, deep, new Path[] {file});
+            if(server.getStorage(file) != deep)
+                throw new TestFailed("registered file has wrong storage");
+            if(!server.delete(new Path("/deep/a")))
+                throw new TestFailed("unable to delete directory");
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("registered file not found", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception", e);
+        }
+
+        for(Path path : new Path[] {file, new Path("/deep/a/b")})
+        {
+            try
+            {
+                server.isDirectory(path);
+                throw new TestFailed(path + " found after deletion");
+            }
+            catch(FileNotFoundException e)
+            {
+            }
+        }
+    }
+
+    /** Runs a task on every thread of the test, starting them together, and
+        waits for all of them.
+
+        @throws TestFailed If the task fails on any thread.
+     */
+    private void runAll(final Task task) throws TestFailed
+    {
+        final CyclicBarrier     start = new CyclicBarrier(THREADS);
+        final Throwable[]       failures = new Throwable[THREADS];
+        Thread[]                threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final int           thread = index;
+            threads[thread] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        task.run(thread);
+                    }
+                    catch(Throwable t)
+                    {
+                        failures[thread] = t;
+                    }
+                }
+            });
+            threads[thread].start();
+        }
+
+        for(int thread = 0; thread < THREADS; ++thread)
+        {
+            try
+            {
+                threads[thread].join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for threads",
+                                     e);
+            }
+
+            if(failures[thread] instanceof TestFailed)
+                throw (TestFailed)failures[thread];
+            if(failures[thread] != null)
+                throw new TestFailed("naming server call failed",
+                                     failures[thread]);
+        }
+    }
+}
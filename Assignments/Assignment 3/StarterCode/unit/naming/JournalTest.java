@@ -0,0 +1,384 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Checks that a naming server with a journal restores its directory tree
+    when it is created again.
+
+    <p>
+    The test makes changes through one naming server, then creates a second
+    naming server on the same journal and checks that it holds the same tree,
+    including an empty directory, and that the storage server may register
+    again without its files being reported as duplicates. It then makes
+    enough changes for snapshots to be taken, adds a torn record to the end
+    of the journal, and checks that a third naming server still restores
+    every change. It then adds a record whose length is corrupt, announcing
+    far more bytes than the journal holds, and checks that a fourth naming
+    server discards it in the same way.
+
+    <p>
+    Last, it checks the restart of storage servers on new ports, on a journal
+    of its own. A storage server holding copies of some of the files of a
+    restored server does not take its place. A storage server registering
+    with new stubs and all the files of a restored server keeps those files,
+    and is restored with its new stubs the next time; a restored server which
+    does not register again is retired with its files.
+ */
+public class JournalTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server journal";
+
+    /** Number of records after which the test journals take snapshots. */
+    private static final int    SNAPSHOT_RECORDS = 16;
+    /** Number of directories created to cause snapshots. */
+    private static final int    DIRECTORIES = 100;
+
+    /** Directory holding the journal. */
+    private TemporaryDirectory  directory;
+    /** Directory holding the journal of the storage servers which move. */
+    private TemporaryDirectory  movedDirectory;
+    /** Storage server stand-in used in the test. */
+    private final FakeStorage   storage = new FakeStorage("storage");
+
+    /** Storage server stand-in, which can be written to the journal in place
+        of a stub. */
+    private static class FakeStorage implements Storage, Command, Serializable
+    {
+        private final String    name;
+
+        FakeStorage(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            return other instanceof FakeStorage &&
+                   ((FakeStorage)other).name.equals(name);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return name.hashCode();
+        }
+    }
+
+    /** Creates the journal directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            movedDirectory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create journal directory", t);
+        }
+
+        System.setProperty("naming.snapshot.records",
+                           String.valueOf(SNAPSHOT_RECORDS));
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            NamingServer        first = open();
+            first.register(storage, storage,
+                           new Path[] {new Path("/registered/file"),
+                                       new Path("/removed/file")});
+            first.createDirectory(new Path("/empty"));
+            first.createDirectory(new Path("/created"));
+            first.createFile(new Path("/created/file"));
+            first.delete(new Path("/removed"));
+            first.stop();
+
+            NamingServer        second = open();
+            checkRestored(second);
+
+            Path[]              duplicates =
+                second.register(storage, storage,
+                                new Path[] {new Path("/created/file"),
+                                            new Path("/registered/file")});
+            if(duplicates.length != 0)
+            {
+                throw new TestFailed("files restored from the journal " +
+                                     "reported as duplicates");
+            }
+
+            try
+            {
+                second.register(storage, storage, new Path[0]);
+                throw new TestFailed("storage server registered twice " +
+                                     "after restart");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+
+            for(int index = 0; index < DIRECTORIES; ++index)
+                second.createDirectory(new Path("/many" + index));
+            second.delete(new Path("/many0"));
+            second.stop();
+
+            if(!new File(directory.root(), "snapshot").exists())
+                throw new TestFailed("no snapshot was taken");
+
+            tearJournal();
+
+            NamingServer        third = open();
+            checkRestored(third);
+            // The root holds /registered, /empty, /created and every /many
+            // directory except the one deleted.
+            if(third.list(new Path("/")).length != DIRECTORIES + 2)
+                throw new TestFailed("root has wrong listing after snapshot");
+
+            try
+            {
+                third.isDirectory(new Path("/many0"));
+                throw new TestFailed("deleted directory restored");
+            }
+            catch(FileNotFoundException e)
+            {
+            }
+            third.stop();
+
+            appendToJournal(new byte[] {0x7f, (byte)0xff, (byte)0xff,
+                                        (byte)0xff, 0, 0, 0, 0, 1, 2, 3});
+            NamingServer        fourth = open();
+            checkRestored(fourth);
+            if(fourth.list(new Path("/")).length != DIRECTORIES + 2)
+                throw new TestFailed("root has wrong listing after record " +
+                                     "with corrupt length");
+            fourth.stop();
+
+            checkNewPorts();
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("path missing after restart", e);
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the changes made through the first naming server. */
+    private void checkRestored(NamingServer server)
+        throws TestFailed, FileNotFoundException
+    {
+        if(!server.isDirectory(new Path("/empty")) ||
+           server.list(new Path("/empty")).length != 0)
+        {
+            throw new TestFailed("empty directory not restored");
+        }
+
+        if(!storage.equals(server.getStorage(new Path("/created/file"))) ||
+           !storage.equals(server.getStorage(new Path("/registered/file"))))
+        {
+            throw new TestFailed("file restored with wrong storage server");
+        }
+
+        try
+        {
+            server.isDirectory(new Path("/removed"));
+            throw new TestFailed("deleted directory restored");
+        }
+        catch(FileNotFoundException e)
+        {
+        }
+    }
+
+    /** Checks that a storage server which restarts on new ports keeps its
+        files, and that a storage server which does not restart is
+        retired. */
+    private void checkNewPorts() throws Throwable
+    {
+        FakeStorage             before = new FakeStorage("storage:7001");
+        FakeStorage             after = new FakeStorage("storage:7002");
+        FakeStorage             gone = new FakeStorage("storage:7003");
+        FakeStorage             copies = new FakeStorage("storage:7004");
+        Path[]                  files = new Path[] {new Path("/kept/file"),
+                                                    new Path("/kept/other")};
+
+        NamingServer            first = new NamingServer(movedDirectory.root());
+        first.register(before, before, files);
+        first.register(gone, gone, new Path[] {new Path("/gone/file")});
+        first.stop();
+
+        NamingServer            second = new NamingServer(movedDirectory.root());
+        if(second.register(copies, copies, new Path[] {files[0]}).length != 0)
+            throw new TestFailed("copy of file of restored storage server " +
+                                 "reported as duplicate");
+
+        if(!before.equals(second.getStorage(files[0])))
+            throw new TestFailed("storage server holding copies took the " +
+                                 "place of a restored server");
+
+        Path[]                  duplicates =
+            second.register(after, after,
+                            new Path[] {files[0], files[1],
+                                        new Path("/new/file")});
+        if(duplicates.length != 0)
+        {
+            throw new TestFailed("files of storage server restarted on new " +
+                                 "ports reported as duplicates");
+        }
+
+        for(Path file : files)
+        {
+            if(!after.equals(second.getStorage(file)))
+                throw new TestFailed("file not rebound to storage server " +
+                                     "restarted on new ports");
+        }
+
+        if(second.getPlacement().getServers().size() != 3)
+            throw new TestFailed("storage server restarted on new ports " +
+                                 "listed twice");
+
+        second.retireRestored();
+        if(second.getPlacement().getServers().size() != 2)
+            throw new TestFailed("restored storage server not retired");
+        checkMissing(second, new Path("/gone/file"));
+        second.stop();
+
+        NamingServer            third = new NamingServer(movedDirectory.root());
+        for(Path file : files)
+        {
+            if(!after.equals(third.getStorage(file)))
+                throw new TestFailed("new stubs of storage server not " +
+                                     "restored");
+        }
+        checkMissing(third, new Path("/gone/file"));
+
+        if(third.register(after, after, files).length != 0)
+            throw new TestFailed("files restored from the journal reported " +
+                                 "as duplicates");
+        third.stop();
+    }
+
+    /** Checks that a path is not in the tree of a naming server. */
+    private void checkMissing(NamingServer server, Path path)
+        throws TestFailed
+    {
+        try
+        {
+            server.isDirectory(path);
+            throw new TestFailed("file of retired storage server kept");
+        }
+        catch(FileNotFoundException e)
+        {
+        }
+    }
+
+    /** Creates a naming server on the test journal. */
+    private NamingServer open() throws IOException
+    {
+        return new NamingServer(directory.root());
+    }
+
+    /** Appends the start of a record to the last journal segment, as if the
+        naming server had stopped while writing it. */
+    private void tearJournal() throws IOException, TestFailed
+    {
+        appendToJournal(new byte[] {0, 0, 0, 64, 1, 2, 3});
+    }
+
+    /** Appends bytes to the last journal segment. */
+    private void appendToJournal(byte[] bytes) throws IOException, TestFailed
+    {
+        File                    last = null;
+        for(File file : directory.root().listFiles())
+        {
+            if(file.getName().startsWith("journal.") &&
+               (last == null || segment(file) > segment(last)))
+            {
+                last = file;
+            }
+        }
+
+        if(last == null)
+            throw new TestFailed("no journal segment");
+
+        try(FileOutputStream out = new FileOutputStream(last, true))
+        {
+            out.write(bytes);
+        }
+    }
+
+    private static long segment(File file)
+    {
+        return Long.parseLong(file.getName().substring("journal.".length()));
+    }
+
+    /** Removes the journal directory. */
+    @Override
+    protected void clean()
+    {
+        System.clearProperty("naming.snapshot.records");
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+
+        if(movedDirectory != null)
+        {
+            movedDirectory.remove();
+            movedDirectory = null;
+        }
+    }
+}
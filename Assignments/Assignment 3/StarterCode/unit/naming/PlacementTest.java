@@ -0,0 +1,414 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Checks the placement of new files on storage servers.
+
+    <p>
+    The test checks that a server short of space is passed over while another
+    is not, that the space policy takes the server with the most space, that
+    the two-choice policy spreads files to make up for a difference in load
+    and counts the files placed since the last report, and that the hashing
+    policy places a path on the same server whatever other servers come and
+    go. It checks that the choices are counted, but only for the files which
+    the naming server creates, that a policy choosing a server it was not
+    offered is refused, and that the loads of the servers are fetched while
+    the placement runs. Last, it checks that a storage server reports the
+    files it hosts.
+ */
+public class PlacementTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking load-aware file placement";
+
+    /** Total space reported by the storage server stand-ins. */
+    private static final long   TOTAL = 1000000;
+    /** Number of files placed by the checks which count them. */
+    private static final int    FILES = 100;
+
+    /** Directory of the storage server whose report is checked. */
+    private TemporaryDirectory  directory;
+
+    /** Storage server stand-in, reporting a fixed load. */
+    private static class LoadedStorage implements Storage, Command
+    {
+        private final StorageLoad load;
+
+        LoadedStorage(StorageLoad load)
+        {
+            this.load = load;
+        }
+
+        @Override
+        public StorageLoad load()
+        {
+            return load;
+        }
+
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+    }
+
+    /** Creates the directory of the storage server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkReserve();
+        checkSpace();
+        checkTwoChoices();
+        checkHashing();
+        checkFailedCreations();
+        checkForeignChoice();
+        checkRefresh();
+        checkStorageReport();
+    }
+
+    /** Checks that a server short of space is left out while another is
+        not, and chosen when every server is. */
+    private void checkReserve() throws TestFailed
+    {
+        ServerStub              full = server(1, TOTAL / 1000, 0);
+        ServerStub              empty = server(2, TOTAL / 2, 0);
+        Placement               placement =
+            placement(PlacementPolicy.random(), full, empty);
+
+        for(int file = 0; file < FILES; ++file)
+        {
+            if(place(placement, path(file)) != empty)
+                throw new TestFailed("server short of space chosen");
+        }
+
+        if(placement.getReserveExclusions() != FILES)
+            throw new TestFailed("exclusions not counted");
+
+        placement = placement(PlacementPolicy.random(), full);
+        if(place(placement, path(0)) != full)
+            throw new TestFailed("only server left out for its space");
+    }
+
+    /** Checks that the space policy takes the server with the most usable
+        space. */
+    private void checkSpace() throws TestFailed
+    {
+        ServerStub              small = server(1, TOTAL / 4, 0);
+        ServerStub              large = server(2, TOTAL / 2, 0);
+        Placement               placement =
+            placement(PlacementPolicy.mostSpace(), small, large);
+
+        for(int file = 0; file < FILES; ++file)
+        {
+            if(place(placement, path(file)) != large)
+                throw new TestFailed("server with less space chosen");
+        }
+    }
+
+    /** Checks that the two-choice policy makes up for a difference in load
+        with the files it places, and that the choices are counted. */
+    private void checkTwoChoices() throws TestFailed
+    {
+        int                     busy = 10;
+        ServerStub              loaded = server(1, TOTAL / 2, busy);
+        ServerStub              idle = server(2, TOTAL / 2, 0);
+        Placement               placement =
+            placement(PlacementPolicy.twoChoices(), loaded, idle);
+
+        for(int file = 0; file < FILES; ++file)
+            place(placement, path(file));
+
+        long                    difference =
+            idle.chosen.sum() - loaded.chosen.sum();
+
+        if(difference < busy - 1 || difference > busy + 1)
+        {
+            throw new TestFailed("files not spread by load: " +
+                                 idle.chosen.sum() + " on idle server, " +
+                                 loaded.chosen.sum() + " on loaded server");
+        }
+
+        if(placement.getDecisions() != FILES)
+            throw new TestFailed("choices not counted");
+
+        long                    listed = 0;
+        for(Placement.ServerStats stats : placement.getServers())
+            listed += stats.getChosen();
+        if(listed != FILES)
+            throw new TestFailed("choices not listed by server");
+
+        idle.report(new StorageLoad(TOTAL, TOTAL / 2, 0, 0));
+        if(idle.placedSinceReport.get() != 0)
+            throw new TestFailed("report does not count placed files");
+    }
+
+    /** Checks that the hashing policy places a path on the same server as
+        other servers come and go. */
+    private void checkHashing() throws TestFailed
+    {
+        ServerStub[]            servers = new ServerStub[4];
+        for(int index = 0; index < servers.length; ++index)
+            servers[index] = server(index + 1, TOTAL / 2, 0);
+
+        Placement               all =
+            placement(PlacementPolicy.hashing(), servers);
+        Set<ServerStub>         used = new HashSet<>();
+
+        for(int file = 0; file < FILES; ++file)
+        {
+            ServerStub          chosen = place(all, path(file));
+            used.add(chosen);
+
+            if(place(all, path(file)) != chosen)
+                throw new TestFailed("path placed on different servers");
+
+            List<ServerStub>    others = new ArrayList<>();
+            for(ServerStub server : servers)
+            {
+                if(server == chosen || others.size() < 2)
+                    others.add(server);
+            }
+
+            Placement           fewer =
+                placement(PlacementPolicy.hashing(),
+                          others.toArray(new ServerStub[0]));
+            if(place(fewer, path(file)) != chosen)
+                throw new TestFailed("path moved when other servers left");
+        }
+
+        if(used.size() < 2)
+            throw new TestFailed("hashing placed every path on one server");
+    }
+
+    /** Checks that a choice is counted only if the file is created. */
+    private void checkFailedCreations() throws TestFailed
+    {
+        ServerStub              server = server(1, TOTAL / 2, 0);
+        Placement               placement =
+            placement(PlacementPolicy.twoChoices(), server);
+
+        for(int file = 0; file < FILES; ++file)
+            placement.choose(path(file));
+
+        if(placement.getDecisions() != 0 || server.chosen.sum() != 0 ||
+           server.placedSinceReport.get() != 0)
+        {
+            throw new TestFailed("choice counted before file was created");
+        }
+
+        NamingServer            naming = new NamingServer();
+        LoadedStorage           storage =
+            new LoadedStorage(new StorageLoad(TOTAL, TOTAL / 2, 0, 0));
+
+        try
+        {
+            naming.register(storage, storage, new Path[0]);
+            naming.createDirectory(new Path("/placed"));
+
+            if(!naming.createFile(path(0)) || naming.createFile(path(0)))
+                throw new TestFailed("file not created exactly once");
+
+            try
+            {
+                naming.createFile(new Path("/missing/file"));
+                throw new TestFailed("file created in missing directory");
+            }
+            catch(FileNotFoundException e)
+            {
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception creating files", e);
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new TestFailed("unexpected exception creating files", e);
+        }
+
+        if(naming.getPlacement().getDecisions() != 1)
+            throw new TestFailed("failed creation counted as a choice");
+    }
+
+    /** Checks that a policy choosing a server it was not offered is
+        refused. */
+    private void checkForeignChoice() throws TestFailed
+    {
+        PlacementPolicy         foreign = new PlacementPolicy()
+        {
+            @Override
+            public Candidate choose(Path file, List<Candidate> candidates)
+            {
+                return new Candidate(candidates.get(0).getId(), null, 0);
+            }
+        };
+
+        try
+        {
+            placement(foreign, server(1, TOTAL / 2, 0)).choose(path(0));
+            throw new TestFailed("choice of server not offered accepted");
+        }
+        catch(IllegalStateException e)
+        {
+        }
+    }
+
+    /** Checks that the loads of the servers are fetched while the placement
+        runs. */
+    private void checkRefresh() throws TestFailed
+    {
+        StorageLoad             load = new StorageLoad(TOTAL, TOTAL / 3, 7, 1);
+        LoadedStorage           storage = new LoadedStorage(load);
+        ServerStub              server = new ServerStub(storage, storage);
+        Placement               placement =
+            new Placement(new CopyOnWriteArrayList<>(Arrays.asList(server)),
+                          PlacementPolicy.twoChoices());
+
+        server.id = 1;
+        placement.start();
+
+        try
+        {
+            placement.refreshSoon();
+            long                end = System.currentTimeMillis() + 5000;
+            while(server.load != load && System.currentTimeMillis() < end)
+                Thread.sleep(10);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for load", e);
+        }
+        finally
+        {
+            placement.stop();
+        }
+
+        if(server.load != load)
+            throw new TestFailed("load of storage server not fetched");
+
+        Placement.ServerStats   stats = placement.getServers().get(0);
+        if(stats.getFiles() != 7 || stats.getUsableSpace() != TOTAL / 3 ||
+           stats.getReportAgeMillis() < 0)
+        {
+            throw new TestFailed("fetched load not listed");
+        }
+    }
+
+    /** Checks that a storage server reports the files it hosts. */
+    private void checkStorageReport() throws TestFailed
+    {
+        StorageServer           storage = new StorageServer(directory.root());
+
+        if(!storage.create(new Path("/report/file")) ||
+           !storage.create(new Path("/kept")))
+        {
+            throw new TestFailed("unable to create files");
+        }
+
+        StorageLoad             load = storage.load();
+        if(load.getFiles() != 2 || load.getTotalSpace() <= 0 ||
+           load.getUsableSpace() > load.getTotalSpace())
+        {
+            throw new TestFailed("storage server reported " + load);
+        }
+
+        storage.delete(new Path("/report"));
+        if(storage.load().getFiles() != 1)
+            throw new TestFailed("deleted file still reported");
+    }
+
+    /** Removes the directory of the storage server. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+
+    /** Returns a placement over the given servers. */
+    private Placement placement(PlacementPolicy policy, ServerStub... servers)
+    {
+        return new Placement(new CopyOnWriteArrayList<>(Arrays.asList(servers)),
+                             policy);
+    }
+
+    /** Returns a storage server stand-in which has reported the given usable
+        space and client requests. */
+    private ServerStub server(int id, long usable, int requests)
+    {
+        StorageLoad             load = new StorageLoad(TOTAL, usable, 0, requests);
+        LoadedStorage           storage = new LoadedStorage(load);
+        ServerStub              server = new ServerStub(storage, storage);
+
+        server.id = id;
+        server.report(load);
+        return server;
+    }
+
+    /** Chooses a server for a file, and counts the choice as if the file
+        had been created. */
+    private ServerStub place(Placement placement, Path file)
+    {
+        Placement.Choice        choice = placement.choose(file);
+        placement.placed(choice);
+        return choice.server;
+    }
+
+    private Path path(int file)
+    {
+        return new Path("/placed/file" + file);
+    }
+}
@@ -0,0 +1,161 @@
+package naming;
+
+import java.io.*;
+import java.lang.management.*;
+
+import rmi.*;
+import common.*;
+import storage.*;
+
+/** Measures the heap taken by the naming server's directory tree.
+
+    <p>
+    This is a benchmark, not a test, and is not run by
+    <code>UnitTests</code>. It fills a <code>HashTree</code> with files spread
+    over directories of equal size, through the same calls the naming server
+    makes, and prints the heap retained by the tree per file. It does so
+    twice: once with file names which repeat in every directory, as names
+    such as <code>part-00000</code> do in practice, and once with a name
+    unique to every file. The storage servers hosting the files are shared by
+    all of them, and are not counted.
+
+    <p>
+    The benchmark is run with the unit test classpath, and a heap large
+    enough for the tree:
+    <pre>
+    java -Xmx4g -cp .:unit naming.TreeFootprint [files] [files per directory]
+    </pre>
+    The defaults are ten million files and a thousand files per directory.
+ */
+public class TreeFootprint
+{
+    /** Number of storage servers hosting the files. */
+    private static final int    SERVERS = 4;
+
+    /** Storage server stand-in, which accepts every file. */
+    private static class NullStorage implements Storage, Command
+    {
+        @Override
+        public boolean create(Path file)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+            throws FileNotFoundException
+        {
+            throw new FileNotFoundException(file.toString());
+        }
+    }
+
+    /** Runs the benchmark.
+
+        @param arguments The number of files, and the number of files in each
+                         directory, both optional.
+        @throws Exception If the tree cannot be filled.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                     files = 10000000;
+        int                     perDirectory = 1000;
+
+        if(arguments.length > 0)
+            files = Integer.parseInt(arguments[0]);
+        if(arguments.length > 1)
+            perDirectory = Integer.parseInt(arguments[1]);
+
+        ServerStub[]            servers = new ServerStub[SERVERS];
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            NullStorage         storage = new NullStorage();
+            servers[index] = new ServerStub(storage, storage);
+            servers[index].id = index + 1;
+        }
+
+        System.out.println(files + " files, " + perDirectory +
+                           " per directory");
+        measure("repeated names", files, perDirectory, servers, false);
+        measure("unique names", files, perDirectory, servers, true);
+    }
+
+    /** Fills a tree and prints the heap it retains per file.
+
+        @param unique Whether every file is given a name of its own, rather
+                      than names repeated in every directory.
+     */
+    private static void measure(String label, int files, int perDirectory,
+                                ServerStub[] servers, boolean unique)
+        throws Exception
+    {
+        long                    before = usedHeap();
+        long                    start = System.nanoTime();
+        HashTree                tree = new HashTree();
+        Path                    directory = null;
+
+        for(int file = 0; file < files; ++file)
+        {
+            if(file % perDirectory == 0)
+            {
+                directory = new Path("/d" + file / perDirectory);
+                tree.createDirectory(directory);
+            }
+
+            String              name = unique ? "file-" + file
+                                              : "part-" + file % perDirectory;
+            tree.createFile(new Path(directory, name),
+                            servers[file % servers.length]);
+        }
+
+        long                    elapsed = System.nanoTime() - start;
+        long                    retained = usedHeap() - before;
+
+        // The tree must still be reachable when the heap is measured.
+        if(!tree.isDirectory(new Path("/d0")))
+            throw new IllegalStateException("tree lost its first directory");
+
+        System.out.printf("%-16s %8.1f bytes per file, %6.2f s to fill%n",
+                          label, (double)retained / files, elapsed / 1e9);
+    }
+
+    /** Returns the heap in use once garbage has been collected. */
+    private static long usedHeap() throws InterruptedException
+    {
+        MemoryMXBean            memory = ManagementFactory.getMemoryMXBean();
+        long                    used = Long.MAX_VALUE;
+
+        // Collect until the heap stops shrinking, since one collection may
+        // leave garbage behind.
+        for(int round = 0; round < 10; ++round)
+        {
+            System.gc();
+            Thread.sleep(50);
+
+            long                current = memory.getHeapMemoryUsage().getUsed();
+            if(current >= used)
+                break;
+            used = current;
+        }
+
+        return used;
+    }
+}
@@ -0,0 +1,182 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that asynchronous stubs overlap calls and report exceptions.
+
+    <p>
+    The test starts several calls which block in the server until all of them
+    have arrived, so that they can only complete if the asynchronous stub does
+    not wait for each call before starting the next. It then checks that an
+    exception thrown by the server completes the future exceptionally, and
+    that a call expression making no remote call is refused.
+ */
+public class AsyncStubTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking asynchronous stubs";
+
+    /** Number of calls started at once. */
+    private static final int    CALLS = 4;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7011);
+    /** Skeleton used in the test. */
+    private Skeleton<Barrier>   skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Barrier
+    {
+        public int await(int value) throws RMIException;
+        public void missing() throws RMIException, FileNotFoundException;
+    }
+
+    /** Server object used in the test. */
+    private static class BarrierServer implements Barrier
+    {
+        private final CyclicBarrier barrier = new CyclicBarrier(CALLS);
+
+        @Override
+        public int await(int value)
+        {
+            try
+            {
+                barrier.await(10, TimeUnit.SECONDS);
+            }
+            catch(Exception e)
+            {
+                return -1;
+            }
+
+            return value;
+        }
+
+        @Override
+        public void missing() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("missing");
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Barrier>(Barrier.class, new BarrierServer(),
+                                         address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    protected void perform() throws TestFailed
+    {
+        AsyncStub<Barrier>              stub =
+            Stub.createAsync(Barrier.class, address);
+        CompletableFuture<Integer>[]    results = new CompletableFuture[CALLS];
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            final int   value = call;
+
+            results[call] = stub.call(new AsyncStub.Call<Barrier, Integer>()
+            {
+                @Override
+                public Integer call(Barrier barrier) throws RMIException
+                {
+                    return barrier.await(value);
+                }
+            });
+        }
+
+        for(int call = 0; call < CALLS; ++call)
+        {
+            int         result;
+
+            try
+            {
+                result = results[call].get(20, TimeUnit.SECONDS);
+            }
+            catch(Exception e)
+            {
+                throw new TestFailed("asynchronous call failed", e);
+            }
+
+            if(result != call)
+                throw new TestFailed("asynchronous calls did not overlap");
+        }
+
+        CompletableFuture<Void>         failed =
+            stub.run(new AsyncStub.Action<Barrier>()
+            {
+                @Override
+                public void run(Barrier barrier) throws Exception
+                {
+                    barrier.missing();
+                }
+            });
+
+        try
+        {
+            failed.get(20, TimeUnit.SECONDS);
+            throw new TestFailed("exception not reported by future");
+        }
+        catch(ExecutionException e)
+        {
+            if(!(e.getCause() instanceof FileNotFoundException))
+            {
+                throw new TestFailed("wrong exception reported by future",
+                                     e.getCause());
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unexpected exception from future", e);
+        }
+
+        try
+        {
+            stub.call(new AsyncStub.Call<Barrier, Integer>()
+            {
+                @Override
+                public Integer call(Barrier barrier)
+                {
+                    return 0;
+                }
+            });
+            throw new TestFailed("call expression without remote call " +
+                                 "accepted");
+        }
+        catch(IllegalArgumentException e)
+        {
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,135 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that stubs with several endpoints spread calls and avoid failed
+    endpoints.
+
+    <p>
+    The test creates a stub for two running skeletons and an address at which
+    no skeleton runs. It checks that every call through the stub succeeds,
+    that the address without a skeleton is ejected, and that both skeletons
+    serve calls.
+ */
+public class BalancerTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking load balancing over several endpoints";
+
+    /** Number of calls made in the test. */
+    private static final int    CALLS = 60;
+
+    /** Addresses at which the test skeletons run. */
+    private final InetSocketAddress first =
+        new InetSocketAddress("127.0.0.1", 7015);
+    private final InetSocketAddress second =
+        new InetSocketAddress("127.0.0.1", 7016);
+    /** Address at which no skeleton runs. */
+    private final InetSocketAddress dead =
+        new InetSocketAddress("127.0.0.1", 7017);
+
+    /** Skeletons used in the test. */
+    private Skeleton<Counter>   firstSkeleton;
+    private Skeleton<Counter>   secondSkeleton;
+    /** Servers used in the test. */
+    private final CounterServer firstServer = new CounterServer();
+    private final CounterServer secondServer = new CounterServer();
+
+    /** Remote interface used in the test. */
+    public interface Counter
+    {
+        public int next() throws RMIException;
+    }
+
+    /** Server object used in the test, counting the calls it serves. */
+    private static class CounterServer implements Counter
+    {
+        final AtomicInteger     calls = new AtomicInteger();
+
+        @Override
+        public int next()
+        {
+            return calls.incrementAndGet();
+        }
+    }
+
+    /** Starts the test skeletons. Calls to them are made over the network,
+        even though they run in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        firstSkeleton = new Skeleton<Counter>(Counter.class, firstServer, first);
+        secondSkeleton =
+            new Skeleton<Counter>(Counter.class, secondServer, second);
+
+        try
+        {
+            firstSkeleton.start();
+            secondSkeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter                 stub = Stub.createReplicated(Counter.class,
+            Arrays.asList(first, second, dead));
+
+        if(!stub.equals(Stub.createReplicated(Counter.class,
+                                              Arrays.asList(dead, second,
+                                                            first))))
+        {
+            throw new TestFailed("stubs with the same endpoints are not " +
+                                 "equal");
+        }
+
+        try
+        {
+            // Call until the dead endpoint has been chosen once and ejected.
+            // Every call must still succeed on a live endpoint.
+            int                 call = 0;
+            while(!Balancer.isEjected(dead))
+            {
+                if(++call > CALLS)
+                {
+                    throw new TestFailed("endpoint without a skeleton was " +
+                                         "not ejected");
+                }
+                stub.next();
+            }
+
+            for(call = 0; call < CALLS; ++call)
+                stub.next();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("call was not moved to a live endpoint", e);
+        }
+
+        if(firstServer.calls.get() == 0 || secondServer.calls.get() == 0)
+            throw new TestFailed("calls were not spread over both endpoints");
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        firstSkeleton.stop();
+        secondSkeleton.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
@@ -0,0 +1,145 @@
+package rmi;
+
+import java.io.FileNotFoundException;
+import java.net.*;
+
+import test.*;
+
+/** Checks that batched calls run in order and keep their own exceptions.
+
+    <p>
+    The test sends a batch of calls to a running total, one of which throws.
+    The results must reflect the calls having run in the order in which they
+    were added, the failing call must report its own exception, and the calls
+    after it must still have run.
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking batched calls";
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7012);
+    /** Skeleton used in the test. */
+    private Skeleton<Counter>   skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Counter
+    {
+        public int add(int amount) throws RMIException;
+        public void missing() throws RMIException, FileNotFoundException;
+    }
+
+    /** Server object used in the test. */
+    private static class CounterServer implements Counter
+    {
+        private int total = 0;
+
+        @Override
+        public synchronized int add(int amount)
+        {
+            total += amount;
+            return total;
+        }
+
+        @Override
+        public void missing() throws FileNotFoundException
+        {
+            throw new FileNotFoundException("missing");
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Counter>(Counter.class, new CounterServer(),
+                                         address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter                     stub = Stub.create(Counter.class, address);
+        Batch<Counter>              batch = Stub.createBatch(Counter.class,
+                                                             stub);
+
+        Batch.Result<Integer>       first = batch.call(
+            new AsyncStub.Call<Counter, Integer>()
+            {
+                @Override
+                public Integer call(Counter counter) throws RMIException
+                {
+                    return counter.add(1);
+                }
+            });
+        Batch.Result<Void>          failed = batch.run(
+            new AsyncStub.Action<Counter>()
+            {
+                @Override
+                public void run(Counter counter) throws Exception
+                {
+                    counter.missing();
+                }
+            });
+        Batch.Result<Integer>       second = batch.call(
+            new AsyncStub.Call<Counter, Integer>()
+            {
+                @Override
+                public Integer call(Counter counter) throws RMIException
+                {
+                    return counter.add(2);
+                }
+            });
+
+        try
+        {
+            batch.execute();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to execute batch", e);
+        }
+
+        try
+        {
+            if(first.get() != 1 || second.get() != 3)
+                throw new TestFailed("batched calls did not run in order");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Exception e)
+        {
+            throw new TestFailed("unexpected exception from batched call", e);
+        }
+
+        if(!(failed.exception() instanceof FileNotFoundException))
+        {
+            throw new TestFailed("batched call did not report its exception",
+                                 failed.exception());
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
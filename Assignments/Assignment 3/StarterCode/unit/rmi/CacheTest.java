@@ -0,0 +1,141 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks that stubs reuse the results of calls to cacheable methods.
+
+    <p>
+    The test checks that repeated calls with the same arguments reach the
+    server once, that a <code>FileNotFoundException</code> is kept and raised
+    again, that a call to a method which may change the server discards the
+    kept results, and that results expire.
+ */
+public class CacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub result cache";
+
+    /** Time for which results are kept in the test, in milliseconds. */
+    private static final long   TTL = 200;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7020);
+    /** Skeleton used in the test. */
+    private Skeleton<Sizes>     skeleton;
+    /** Server used in the test. */
+    private final SizeServer    server = new SizeServer();
+
+    /** Remote interface used in the test. */
+    public interface Sizes
+    {
+        @Cacheable(ttlMillis = TTL)
+        public long size(String name) throws RMIException,
+                                             FileNotFoundException;
+
+        public void grow() throws RMIException;
+    }
+
+    /** Server object used in the test, counting the calls to
+        <code>size</code>. */
+    private static class SizeServer implements Sizes
+    {
+        final AtomicInteger     calls = new AtomicInteger();
+        volatile long           size = 1;
+
+        @Override
+        public long size(String name) throws FileNotFoundException
+        {
+            calls.incrementAndGet();
+            if(name.equals("missing"))
+                throw new FileNotFoundException(name);
+            return size;
+        }
+
+        @Override
+        public void grow()
+        {
+            ++size;
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Sizes>(Sizes.class, server, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Sizes                   stub = Stub.create(Sizes.class, address);
+
+        try
+        {
+            stub.size("file");
+            if(stub.size("file") != 1 || server.calls.get() != 1)
+                throw new TestFailed("repeated call was not cached");
+
+            stub.size("other");
+            if(server.calls.get() != 2)
+                throw new TestFailed("call with other arguments was cached");
+
+            for(int call = 0; call < 2; ++call)
+            {
+                try
+                {
+                    stub.size("missing");
+                    throw new TestFailed("missing file reported to exist");
+                }
+                catch(FileNotFoundException e) { }
+            }
+            if(server.calls.get() != 3)
+                throw new TestFailed("FileNotFoundException was not cached");
+
+            stub.grow();
+            if(stub.size("file") != 2 || server.calls.get() != 4)
+            {
+                throw new TestFailed("modifying call did not discard cached " +
+                                     "results");
+            }
+
+            Thread.sleep(2 * TTL);
+            stub.size("file");
+            if(server.calls.get() != 5)
+                throw new TestFailed("cached result did not expire");
+        }
+        catch(RMIException | FileNotFoundException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("test interrupted", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
@@ -0,0 +1,179 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Random;
+
+import common.Path;
+import test.*;
+
+/** Checks that the binary codec reproduces requests and replies exactly.
+
+    <p>
+    Requests are encoded and decoded for a method taking a path, a primitive
+    and a byte array. Replies are checked for a path array, a string array and
+    for an exception, which has no compact encoding and falls back to Java
+    serialization. The compressing variant of the codec must shrink a large
+    body of text, send random data as it is, and reproduce both exactly.
+    Counts of arguments and array elements larger than the rest of the
+    payload must be refused.
+ */
+public class CodecTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking binary wire codec";
+
+    /** Remote interface used in the test. */
+    public interface Files
+    {
+        public void write(Path file, long offset, byte[] data)
+            throws RMIException;
+        public Path[] list(Path directory) throws RMIException;
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws Throwable
+    {
+        Codec           codec = Codec.forId(Codec.BINARY);
+        MethodSchema    schema = MethodSchema.of(Files.class);
+        Method          write = Files.class.getMethod("write", Path.class,
+                                                      long.class, byte[].class);
+
+        Object[]        args = new Object[] {new Path("/a/b"), 42L,
+                                             new byte[] {1, 2, 3}};
+        Wire.Request    request = codec.decodeRequest(
+            codec.encodeRequest(7, 0, null, schema, write, args), schema);
+
+        if(request.callId != 7)
+            throw new TestFailed("call identifier changed by encoding");
+
+        if(!request.method.equals(write))
+            throw new TestFailed("method number decoded to wrong method");
+
+        if(!request.args[0].equals(args[0]) || !request.args[1].equals(42L) ||
+           !Arrays.equals((byte[])request.args[2], (byte[])args[2]))
+        {
+            throw new TestFailed("arguments changed by encoding");
+        }
+
+        Path[]          paths = new Path[] {new Path("/x"), new Path("/y/z")};
+        Wire.Reply      reply =
+            codec.decodeReply(codec.encodeReply(7, RMIStatus.OK, paths));
+
+        if(reply.callId != 7 || reply.status != RMIStatus.OK ||
+           !Arrays.equals((Path[])reply.value, paths))
+        {
+            throw new TestFailed("path array changed by encoding");
+        }
+
+        String[]        names = new String[] {"one", null, "three"};
+        reply = codec.decodeReply(codec.encodeReply(7, RMIStatus.OK, names));
+
+        if(!Arrays.equals((String[])reply.value, names))
+            throw new TestFailed("string array changed by encoding");
+
+        reply = codec.decodeReply(
+            codec.encodeReply(7, RMIStatus.EXCEPTION,
+                              new FileNotFoundException("missing")));
+
+        if(reply.status != RMIStatus.EXCEPTION ||
+           !(reply.value instanceof FileNotFoundException) ||
+           !"missing".equals(((Throwable)reply.value).getMessage()))
+        {
+            throw new TestFailed("exception changed by encoding");
+        }
+
+        checkCompression(schema, write);
+        checkSizes(codec, schema, write);
+    }
+
+    /** Checks that counts which the rest of the payload cannot hold are
+        refused rather than allocated. */
+    private void checkSizes(Codec codec, MethodSchema schema, Method write)
+        throws Throwable
+    {
+        // Largest count a variable-length integer can give.
+        byte[]          huge = new byte[] {(byte)0xff, (byte)0xff, (byte)0xff,
+                                           (byte)0xff, 0x07};
+
+        byte[]          valid = codec.encodeRequest(7, 0, null, schema, write,
+                                                    new Object[] {null, 0L, null});
+        ByteArrayOutputStream   request = new ByteArrayOutputStream();
+        request.write(valid, 0, Wire.REQUEST_HEADER + 1);
+        request.write(huge);
+
+        try
+        {
+            codec.decodeRequest(request.toByteArray(), schema);
+            throw new TestFailed("argument count beyond payload accepted");
+        }
+        catch(IOException e)
+        {
+        }
+
+        // Byte array, path array and string array tags.
+        for(byte tag : new byte[] {10, 12, 13})
+        {
+            ByteArrayOutputStream   reply = new ByteArrayOutputStream();
+            reply.write(new byte[Wire.CALL_ID]);
+            reply.write(RMIStatus.OK.ordinal());
+            reply.write(tag);
+            reply.write(huge);
+
+            try
+            {
+                codec.decodeReply(reply.toByteArray());
+                throw new TestFailed("array size beyond payload accepted for " +
+                                     "tag " + tag);
+            }
+            catch(IOException e)
+            {
+            }
+        }
+    }
+
+    /** Checks requests encoded by the compressing binary codec. */
+    private void checkCompression(MethodSchema schema, Method write)
+        throws Throwable
+    {
+        Codec           codec = Codec.forId((byte)(Codec.BINARY |
+                                                   Codec.COMPRESSED));
+
+        StringBuilder   log = new StringBuilder();
+        for(int line = 0; log.length() < 64 * 1024; ++line)
+        {
+            log.append("2024-01-01 12:00:").append(line % 60)
+               .append(" INFO storage server read block ").append(line * 7)
+               .append('\n');
+        }
+
+        byte[]          text = log.toString().getBytes("UTF-8");
+        byte[]          random = new byte[64 * 1024];
+        new Random(3).nextBytes(random);
+
+        byte[]          encoded = codec.encodeRequest(
+            7, 0, null, schema, write, new Object[] {new Path("/log"), 0L, text});
+
+        if(encoded.length > text.length / 2)
+            throw new TestFailed("text body not compressed");
+
+        Wire.Request    request = codec.decodeRequest(encoded, schema);
+        if(request.callId != 7 || !Arrays.equals((byte[])request.args[2], text))
+            throw new TestFailed("text body changed by compression");
+
+        encoded = codec.encodeRequest(
+            7, 0, null, schema, write, new Object[] {new Path("/bin"), 0L, random});
+
+        if(encoded.length < random.length)
+            throw new TestFailed("random body reported as compressed");
+
+        request = codec.decodeRequest(encoded, schema);
+        if(!Arrays.equals((byte[])request.args[2], random))
+            throw new TestFailed("random body changed by compression");
+    }
+}
@@ -0,0 +1,120 @@
+package rmi;
+
+import java.net.*;
+
+import test.*;
+
+/** Checks that stubs reuse pooled connections between calls.
+
+    <p>
+    The test makes several calls through a stub and checks that only one
+    connection is left idle in the pool afterwards, and that a call still
+    succeeds after the skeleton has been restarted underneath the idle
+    connection.
+ */
+public class ConnectionPoolTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking stub connection pooling";
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7010);
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        public int echo(int value) throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+    }
+
+    /** Starts the test skeleton. Calls to it are made over the network,
+        even though it runs in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(), address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        ConnectionPool  pool = new ConnectionPool(4, 4, 0);
+        ConnectionPool.setDefault(pool);
+
+        Echo            stub = Stub.create(Echo.class, address);
+
+        try
+        {
+            for(int call = 0; call < 5; ++call)
+            {
+                if(stub.echo(call) != call)
+                    throw new TestFailed("incorrect result from stub");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+
+        if(pool.idleCount(address) != 1)
+            throw new TestFailed("sequential calls did not reuse connection");
+
+        if(pool.activeCount(address) != 0)
+            throw new TestFailed("connection not returned to pool");
+
+        // Restart the skeleton. The idle connection in the pool is now stale,
+        // and the stub must transparently open a new one.
+        skeleton.stop();
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(), address);
+
+        try
+        {
+            skeleton.start();
+
+            if(stub.echo(42) != 42)
+                throw new TestFailed("incorrect result after restart");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("stale pooled connection was not replaced",
+                                 e);
+        }
+    }
+
+    /** Stops the skeleton and restores the default pool. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        LocalSkeletons.setEnabled(true);
+        ConnectionPool.setDefault(new ConnectionPool(
+            ConnectionPool.DEFAULT_MAX_IDLE, ConnectionPool.DEFAULT_MAX_ACTIVE,
+            ConnectionPool.DEFAULT_IDLE_TIMEOUT));
+    }
+}
@@ -0,0 +1,151 @@
+package rmi;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that calls fail at their deadline and that skeletons drop expired
+    requests.
+
+    <p>
+    The test skeleton serves requests on a single thread. A call to a slow
+    method made through a stub with a short timeout must fail with a
+    <code>DeadlineExceededException</code> well before the method returns. A
+    second call, made under a short <code>Deadline</code> while the thread is
+    still busy, must also fail, and the skeleton must then drop it instead of
+    executing it.
+ */
+public class DeadlineTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call deadlines";
+
+    /** Time for which the slow method blocks, in milliseconds. */
+    private static final long   SLOW = 1000;
+    /** Deadline of the calls expected to time out, in milliseconds. */
+    private static final long   DEADLINE = 100;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7013);
+    /** Skeleton used in the test. */
+    private Skeleton<Sleeper>   skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Sleeper
+    {
+        public void sleep(long millis) throws RMIException;
+        public void touch() throws RMIException;
+        public int touched() throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class SleeperServer implements Sleeper
+    {
+        private int touched = 0;
+
+        @Override
+        public void sleep(long millis)
+        {
+            try
+            {
+                Thread.sleep(millis);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+
+        @Override
+        public synchronized void touch()
+        {
+            touched++;
+        }
+
+        @Override
+        public synchronized int touched()
+        {
+            return touched;
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Sleeper>(Sleeper.class, new SleeperServer(),
+            address, DispatchPolicy.boundedPool(1, 16,
+                                                DispatchPolicy.RejectPolicy.ABORT));
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Sleeper                     stub = Stub.create(Sleeper.class, address);
+        Sleeper                     impatient =
+            Stub.withTimeout(Sleeper.class, stub, DEADLINE);
+
+        long                        start = System.nanoTime();
+        try
+        {
+            impatient.sleep(SLOW);
+            throw new TestFailed("slow call did not time out");
+        }
+        catch(DeadlineExceededException e)
+        {
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from slow call", e);
+        }
+
+        if(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= SLOW)
+            throw new TestFailed("slow call timed out only after it returned");
+
+        // The skeleton's only thread is still in the slow call, so this
+        // request waits in the queue until after its deadline.
+        try(Deadline deadline = Deadline.after(DEADLINE, TimeUnit.MILLISECONDS))
+        {
+            stub.touch();
+            throw new TestFailed("queued call did not time out");
+        }
+        catch(DeadlineExceededException e)
+        {
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from queued call", e);
+        }
+
+        try
+        {
+            if(stub.touched() != 0)
+                throw new TestFailed("skeleton executed an expired request");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to check executed requests", e);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
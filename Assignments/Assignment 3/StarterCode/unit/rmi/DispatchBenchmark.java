@@ -0,0 +1,192 @@
+package rmi;
+
+import java.lang.reflect.Method;
+
+import common.*;
+import storage.*;
+
+/** Compares the cost of dispatching calls by reflection and through the
+    precomputed tables used by stubs and skeletons.
+
+    <p>
+    This is a benchmark, not a test, and is not run by
+    <code>UnitTests</code>. It measures the two lookups made for every call,
+    without the network or marshalling around them:
+    <ul>
+    <li>on the stub, checking that an invoked method belongs to the remote
+        interface, by scanning <code>getMethods</code> as stubs once did and
+        by the hash lookup of <code>MethodSchema</code>;</li>
+    <li>on the skeleton, calling the server object, by
+        <code>Class.getMethod</code> and <code>Method.invoke</code> as
+        skeletons once did, by <code>Method.invoke</code> on a method found in
+        advance, and through a <code>DispatchTable</code>.</li>
+    </ul>
+    The calls are made to the methods of <code>Storage</code>, on a server
+    object which does no work. Each measurement is repeated for a number of
+    rounds after a warm-up, and the best round is printed, in nanoseconds per
+    call.
+
+    <p>
+    The benchmark is run with the unit test classpath:
+    <pre>
+    java -cp .:unit rmi.DispatchBenchmark [calls per round]
+    </pre>
+    The default is ten million calls per round.
+ */
+public class DispatchBenchmark
+{
+    /** Number of rounds measured after the warm-up round. */
+    private static final int    ROUNDS = 5;
+
+    /** Value folded from every result, so that no call can be left out. */
+    private static long         sink = 0;
+
+    /** Storage server which does no work. */
+    private static class NullStorage implements Storage
+    {
+        private static final byte[] EMPTY = new byte[0];
+
+        @Override
+        public long size(Path file)
+        {
+            return 1;
+        }
+
+        @Override
+        public byte[] read(Path file, long offset, int length)
+        {
+            return EMPTY;
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+    }
+
+    /** Dispatch of one call, as measured. */
+    private interface Dispatch
+    {
+        long call(int index) throws Exception;
+    }
+
+    /** Runs the benchmark.
+
+        @param arguments The number of calls in each round, optional.
+        @throws Exception If a call fails.
+     */
+    public static void main(String[] arguments) throws Exception
+    {
+        int                     calls = 10000000;
+        if(arguments.length > 0)
+            calls = Integer.parseInt(arguments[0]);
+
+        final Class<Storage>    c = Storage.class;
+        final NullStorage       server = new NullStorage();
+        final MethodSchema      schema = MethodSchema.of(c);
+        final DispatchTable     table = new DispatchTable(schema, server);
+
+        final Path              file = new Path("/benchmark/file");
+        final Method[]          methods = new Method[] {
+            c.getMethod("size", Path.class),
+            c.getMethod("read", Path.class, long.class, int.class),
+            c.getMethod("write", Path.class, long.class, byte[].class)};
+        final Object[][]        args = new Object[][] {
+            {file}, {file, 0L, 0}, {file, 0L, new byte[0]}};
+        final int[]             ids = new int[methods.length];
+        final Class<?>[][]      types = new Class<?>[methods.length][];
+        for(int index = 0; index < methods.length; ++index)
+        {
+            ids[index] = schema.idOf(methods[index]);
+            types[index] = methods[index].getParameterTypes();
+        }
+
+        System.out.println(calls + " calls per round, best of " + ROUNDS +
+                           " rounds");
+
+        System.out.println("stub method check");
+        measure("getMethods scan", calls, new Dispatch()
+        {
+            @Override
+            public long call(int index) throws Exception
+            {
+                Method          method = methods[index % methods.length];
+                for(Method m : c.getMethods())
+                {
+                    if(m.equals(method))
+                        return 1;
+                }
+                return 0;
+            }
+        });
+        measure("MethodSchema", calls, new Dispatch()
+        {
+            @Override
+            public long call(int index)
+            {
+                return schema.idOf(methods[index % methods.length]);
+            }
+        });
+
+        System.out.println("skeleton dispatch");
+        measure("getMethod + invoke", calls, new Dispatch()
+        {
+            @Override
+            public long call(int index) throws Exception
+            {
+                int             which = index % methods.length;
+                Method          method = c.getMethod(methods[which].getName(),
+                                                     types[which]);
+                return method.invoke(server, args[which]) == null ? 0 : 1;
+            }
+        });
+        measure("Method.invoke", calls, new Dispatch()
+        {
+            @Override
+            public long call(int index) throws Exception
+            {
+                int             which = index % methods.length;
+                return methods[which].invoke(server, args[which]) == null ? 0 : 1;
+            }
+        });
+        measure("DispatchTable", calls, new Dispatch()
+        {
+            @Override
+            public long call(int index) throws Exception
+            {
+                int             which = index % methods.length;
+                return table.invoke(ids[which], args[which]) == null ? 0 : 1;
+            }
+        });
+
+        if(sink == 42)
+            System.out.println();
+    }
+
+    /** Runs a warm-up round and the measured rounds of one kind of dispatch,
+        and prints the time per call of the fastest round. */
+    private static void measure(String label, int calls, Dispatch dispatch)
+        throws Exception
+    {
+        long                    best = Long.MAX_VALUE;
+
+        for(int round = 0; round <= ROUNDS; ++round)
+        {
+            long                start = System.nanoTime();
+            long                folded = 0;
+
+            for(int index = 0; index < calls; ++index)
+                folded += dispatch.call(index);
+
+            long                elapsed = System.nanoTime() - start;
+            sink += folded;
+
+            // The first round only warms up the code being measured.
+            if(round > 0)
+                best = Math.min(best, elapsed);
+        }
+
+        System.out.printf("  %-20s %8.1f ns per call%n", label,
+                          (double)best / calls);
+    }
+}
@@ -0,0 +1,358 @@
+package rmi;
+
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import test.*;
+
+/** Checks the bounded and virtual thread dispatch policies.
+
+    <p>
+    The test fills a bounded pool with one worker and room for one task, and
+    checks that a further task is rejected and counted when the pool aborts,
+    and run by the submitting thread when the caller runs it. It checks that
+    the virtual thread policy runs tasks on virtual threads if the Java
+    runtime has them, and on a thread of their own otherwise. Last, it fills
+    the pool of a skeleton and checks that a further call is refused with an
+    <code>OverloadedException</code> without reaching the server.
+ */
+public class DispatchPolicyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking bounded and virtual " +
+                                         "thread dispatch policies";
+
+    /** Time for which the test waits for tasks and calls, in seconds. */
+    private static final long   WAIT = 10;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7025);
+    /** Skeleton used in the test. */
+    private Skeleton<Blocker>   skeleton;
+    /** Policy of the skeleton, with one worker and room for one request. */
+    private final DispatchPolicy policy =
+        DispatchPolicy.boundedPool(1, 1, DispatchPolicy.RejectPolicy.ABORT);
+    /** Server used in the test. */
+    private final BlockerServer server = new BlockerServer();
+
+    /** Remote interface used in the test. */
+    public interface Blocker
+    {
+        public void block() throws RMIException;
+    }
+
+    /** Server object used in the test, whose calls wait until released. */
+    private static class BlockerServer implements Blocker
+    {
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    released = new CountDownLatch(1);
+        final AtomicInteger     calls = new AtomicInteger();
+
+        @Override
+        public void block()
+        {
+            calls.incrementAndGet();
+            entered.countDown();
+            try
+            {
+                released.await(WAIT, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /** Task which waits until released. */
+    private static class BlockingTask implements Runnable
+    {
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+
+        @Override
+        public void run()
+        {
+            started.countDown();
+            try
+            {
+                release.await(WAIT, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /** Task which records the thread running it. */
+    private static class RecordingTask implements Runnable
+    {
+        final CountDownLatch    done = new CountDownLatch(1);
+        volatile Thread         thread = null;
+
+        @Override
+        public void run()
+        {
+            thread = Thread.currentThread();
+            done.countDown();
+        }
+    }
+
+    /** Starts the test skeleton. Calls to it are made over the network,
+        even though it runs in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        skeleton = new Skeleton<Blocker>(Blocker.class, server, address, policy);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkAbort();
+            checkCallerRuns();
+            checkVirtualThreads();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for tasks", e);
+        }
+
+        checkSkeleton();
+    }
+
+    /** Checks that a full pool which aborts rejects and counts a task. */
+    private void checkAbort() throws TestFailed, InterruptedException
+    {
+        DispatchPolicy          pool = DispatchPolicy.boundedPool(
+            1, 1, DispatchPolicy.RejectPolicy.ABORT);
+        BlockingTask            blocking = new BlockingTask();
+        RecordingTask           queued = new RecordingTask();
+        RecordingTask           rejected = new RecordingTask();
+
+        try
+        {
+            fill(pool, blocking, queued);
+
+            if(pool.dispatch(rejected))
+                throw new TestFailed("task accepted by full pool");
+
+            if(pool.rejectedCount() != 1 ||
+               pool.rejectedCount(Lane.NORMAL) != 1)
+            {
+                throw new TestFailed("rejected task not counted");
+            }
+        }
+        finally
+        {
+            blocking.release.countDown();
+        }
+
+        if(!queued.done.await(WAIT, TimeUnit.SECONDS))
+            throw new TestFailed("queued task did not run");
+
+        if(rejected.thread != null)
+            throw new TestFailed("rejected task was run");
+    }
+
+    /** Checks that a full pool in which the caller runs rejected tasks runs
+        a further task in the submitting thread. */
+    private void checkCallerRuns() throws TestFailed, InterruptedException
+    {
+        DispatchPolicy          pool = DispatchPolicy.boundedPool(
+            1, 1, DispatchPolicy.RejectPolicy.CALLER_RUNS);
+        BlockingTask            blocking = new BlockingTask();
+        RecordingTask           queued = new RecordingTask();
+        RecordingTask           overflow = new RecordingTask();
+
+        try
+        {
+            fill(pool, blocking, queued);
+
+            if(!pool.dispatch(overflow))
+                throw new TestFailed("task rejected by pool whose caller " +
+                                     "runs tasks");
+
+            if(overflow.thread != Thread.currentThread())
+                throw new TestFailed("task beyond the queue not run by its " +
+                                     "caller");
+
+            if(pool.rejectedCount() != 0)
+                throw new TestFailed("task run by its caller counted as " +
+                                     "rejected");
+        }
+        finally
+        {
+            blocking.release.countDown();
+        }
+
+        if(!queued.done.await(WAIT, TimeUnit.SECONDS))
+            throw new TestFailed("queued task did not run");
+    }
+
+    /** Occupies the only worker of a pool with a blocking task, and its only
+        place in the queue with another task. */
+    private void fill(DispatchPolicy pool, BlockingTask blocking,
+                      RecordingTask queued)
+        throws TestFailed, InterruptedException
+    {
+        if(!pool.dispatch(blocking))
+            throw new TestFailed("task rejected by idle pool");
+
+        if(!blocking.started.await(WAIT, TimeUnit.SECONDS))
+            throw new TestFailed("blocking task did not start");
+
+        if(!pool.dispatch(queued))
+            throw new TestFailed("task rejected by pool with room for it");
+
+        if(pool.queueDepth() != 1 || pool.activeCount() != 1)
+            throw new TestFailed("queued and running tasks not counted");
+    }
+
+    /** Checks that the virtual thread policy runs tasks on virtual threads
+        if the runtime has them, and on new threads otherwise. */
+    private void checkVirtualThreads() throws TestFailed, InterruptedException
+    {
+        DispatchPolicy          virtual = DispatchPolicy.virtualThreads();
+        RecordingTask           task = new RecordingTask();
+
+        if(!virtual.dispatch(task))
+            throw new TestFailed("task rejected by virtual thread policy");
+
+        if(!task.done.await(WAIT, TimeUnit.SECONDS))
+            throw new TestFailed("task not run by virtual thread policy");
+
+        if(task.thread == Thread.currentThread())
+            throw new TestFailed("task run by the submitting thread");
+
+        Method                  isVirtual;
+        try
+        {
+            isVirtual = Thread.class.getMethod("isVirtual");
+        }
+        catch(NoSuchMethodException e)
+        {
+            // The runtime has no virtual threads: the task had a thread of
+            // its own.
+            return;
+        }
+
+        try
+        {
+            if(!(Boolean)isVirtual.invoke(task.thread))
+                throw new TestFailed("task not run on a virtual thread");
+        }
+        catch(ReflectiveOperationException e)
+        {
+            throw new TestFailed("unable to check the task's thread", e);
+        }
+    }
+
+    /** Checks that a call which does not fit in the skeleton's pool is
+        refused without reaching the server. */
+    private void checkSkeleton() throws TestFailed
+    {
+        final Blocker           stub = Stub.create(Blocker.class, address);
+        Thread[]                callers = new Thread[2];
+
+        // The first call occupies the only worker, and the second the only
+        // place in the queue.
+        for(int caller = 0; caller < callers.length; ++caller)
+        {
+            callers[caller] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stub.block();
+                    }
+                    catch(RMIException e)
+                    {
+                    }
+                }
+            });
+            callers[caller].start();
+
+            try
+            {
+                if(caller == 0 && !server.entered.await(WAIT, TimeUnit.SECONDS))
+                    throw new TestFailed("first call did not reach server");
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+        }
+
+        long                    deadline = System.nanoTime() +
+                                           TimeUnit.SECONDS.toNanos(WAIT);
+        while(policy.queueDepth() == 0)
+        {
+            if(System.nanoTime() - deadline > 0)
+                throw new TestFailed("second call was not queued");
+            Thread.yield();
+        }
+
+        try
+        {
+            stub.block();
+            throw new TestFailed("call beyond pool capacity was accepted");
+        }
+        catch(OverloadedException e)
+        {
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from rejected call", e);
+        }
+        finally
+        {
+            server.released.countDown();
+        }
+
+        for(Thread caller : callers)
+        {
+            try
+            {
+                caller.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+        }
+
+        if(server.calls.get() != 2 || policy.rejectedCount() != 1)
+            throw new TestFailed("rejected call reached the server or was " +
+                                 "not counted");
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.released.countDown();
+        skeleton.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
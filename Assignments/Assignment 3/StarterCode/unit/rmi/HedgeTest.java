@@ -0,0 +1,129 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks that slow calls to idempotent methods are hedged.
+
+    <p>
+    The test creates a stub for two skeletons, records enough fast calls for
+    the stub to learn how long they take, then makes one of the servers
+    slow. Calls which reach the slow server must still complete quickly,
+    with the reply of the other server.
+ */
+public class HedgeTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking hedged calls";
+
+    /** Number of calls made before and after one server becomes slow. */
+    private static final int    CALLS = 60;
+    /** Time taken by a call to the slow server, in milliseconds. */
+    private static final long   SLOW = 1000;
+
+    /** Addresses at which the test skeletons run. */
+    private final InetSocketAddress first =
+        new InetSocketAddress("127.0.0.1", 7018);
+    private final InetSocketAddress second =
+        new InetSocketAddress("127.0.0.1", 7019);
+
+    /** Skeletons used in the test. */
+    private Skeleton<Lookup>    firstSkeleton;
+    private Skeleton<Lookup>    secondSkeleton;
+    /** Server which is made slow. */
+    private final LookupServer  slowServer = new LookupServer();
+
+    /** Remote interface used in the test. */
+    public interface Lookup
+    {
+        @Idempotent
+        public int lookup(int key) throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class LookupServer implements Lookup
+    {
+        volatile boolean        slow = false;
+
+        @Override
+        public int lookup(int key)
+        {
+            if(slow)
+            {
+                try
+                {
+                    Thread.sleep(SLOW);
+                }
+                catch(InterruptedException e) { }
+            }
+            return key;
+        }
+    }
+
+    /** Starts the test skeletons. Calls to them are made over the network,
+        even though they run in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        firstSkeleton = new Skeleton<Lookup>(Lookup.class, slowServer, first);
+        secondSkeleton =
+            new Skeleton<Lookup>(Lookup.class, new LookupServer(), second);
+
+        try
+        {
+            firstSkeleton.start();
+            secondSkeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Lookup                  stub = Stub.createReplicated(Lookup.class,
+            Arrays.asList(first, second));
+
+        try
+        {
+            for(int call = 0; call < CALLS; ++call)
+                stub.lookup(call);
+
+            slowServer.slow = true;
+
+            for(int call = 0; call < CALLS; ++call)
+            {
+                long            started = System.nanoTime();
+
+                if(stub.lookup(call) != call)
+                    throw new TestFailed("incorrect result from hedged call");
+
+                if(System.nanoTime() - started > SLOW * 1000000 / 2)
+                    throw new TestFailed("slow call was not hedged");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+    }
+
+    /** Stops the skeletons. */
+    @Override
+    protected void clean()
+    {
+        slowServer.slow = false;
+        firstSkeleton.stop();
+        secondSkeleton.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
@@ -0,0 +1,340 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import test.*;
+
+/** Checks that prioritized dispatch policies serve lanes by weight and shed
+    requests which do not fit in their lane.
+
+    <p>
+    The test first queues bulk and control tasks behind a blocked worker, and
+    checks that the control tasks run before most of the bulk tasks, although
+    they were queued after them. It checks that a task queued behind a task
+    which kills its worker still runs, with no further task to start another
+    worker. It then fills the queue of a skeleton serving a bulk interface
+    and checks that a further call is rejected with an
+    <code>OverloadedException</code>.
+ */
+public class LaneTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking dispatch lanes and load shedding";
+
+    /** Number of tasks queued in each lane. */
+    private static final int    TASKS = 4;
+    /** Time for which the test waits for tasks and calls, in seconds. */
+    private static final long   WAIT = 10;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7024);
+    /** Skeleton used in the test. */
+    private Skeleton<Blocker>   skeleton;
+    /** Policy of the skeleton, with one worker and room for one request. */
+    private final DispatchPolicy policy = DispatchPolicy.prioritized(1, 1);
+    /** Server used in the test. */
+    private final BlockerServer server = new BlockerServer();
+
+    /** Remote interface used in the test. */
+    @Priority(Lane.BULK)
+    public interface Blocker
+    {
+        public void block() throws RMIException;
+    }
+
+    /** Server object used in the test, whose calls wait until released. */
+    private static class BlockerServer implements Blocker
+    {
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    released = new CountDownLatch(1);
+
+        @Override
+        public void block()
+        {
+            entered.countDown();
+            try
+            {
+                released.await(WAIT, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Blocker>(Blocker.class, server, address, policy);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkWeights();
+        checkFailedWorker();
+        checkShedding();
+    }
+
+    /** Checks that control tasks queued after bulk tasks run first. */
+    private void checkWeights() throws TestFailed
+    {
+        DispatchPolicy          lanes = DispatchPolicy.prioritized(1, TASKS);
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+        final CountDownLatch    done = new CountDownLatch(2 * TASKS);
+        final List<Lane>        order =
+            Collections.synchronizedList(new ArrayList<Lane>());
+
+        lanes.dispatch(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                started.countDown();
+                try
+                {
+                    release.await(WAIT, TimeUnit.SECONDS);
+                }
+                catch(InterruptedException e)
+                {
+                }
+            }
+        });
+
+        try
+        {
+            if(!started.await(WAIT, TimeUnit.SECONDS))
+                throw new TestFailed("blocking task did not start");
+
+            for(Lane lane : new Lane[] {Lane.BULK, Lane.CONTROL})
+            {
+                for(int task = 0; task < TASKS; ++task)
+                {
+                    final Lane  recorded = lane;
+                    if(!lanes.dispatch(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                order.add(recorded);
+                                done.countDown();
+                            }
+                        }, lane))
+                    {
+                        throw new TestFailed("task rejected by lane with " +
+                                             "room for it");
+                    }
+                }
+            }
+
+            if(lanes.queueDepth(Lane.BULK) != TASKS ||
+               lanes.queueDepth(Lane.CONTROL) != TASKS)
+            {
+                throw new TestFailed("queued tasks not counted by lane");
+            }
+
+            release.countDown();
+            if(!done.await(WAIT, TimeUnit.SECONDS))
+                throw new TestFailed("queued tasks did not run");
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for tasks", e);
+        }
+
+        // Stride scheduling may serve one bulk task among the first control
+        // tasks, but not more.
+        if(order.lastIndexOf(Lane.CONTROL) > TASKS)
+            throw new TestFailed("control tasks waited behind bulk tasks");
+    }
+
+    /** Exception thrown by the task which kills its worker. */
+    private static class WorkerKilled extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** Checks that a worker dying with an exception is replaced while tasks
+        are queued. */
+    private void checkFailedWorker() throws TestFailed
+    {
+        DispatchPolicy          lanes = DispatchPolicy.prioritized(1, TASKS);
+        final CountDownLatch    started = new CountDownLatch(1);
+        final CountDownLatch    release = new CountDownLatch(1);
+        final CountDownLatch    done = new CountDownLatch(1);
+        final CountDownLatch    killed = new CountDownLatch(1);
+        final Thread.UncaughtExceptionHandler   handler =
+            Thread.getDefaultUncaughtExceptionHandler();
+
+        // The exception which kills the worker is expected, and not printed.
+        Thread.setDefaultUncaughtExceptionHandler(
+            new Thread.UncaughtExceptionHandler()
+            {
+                @Override
+                public void uncaughtException(Thread thread, Throwable t)
+                {
+                    if(t instanceof WorkerKilled)
+                        killed.countDown();
+                    else if(handler != null)
+                        handler.uncaughtException(thread, t);
+                }
+            });
+
+        try
+        {
+            lanes.dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    started.countDown();
+                    try
+                    {
+                        release.await(WAIT, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e)
+                    {
+                    }
+                    throw new WorkerKilled();
+                }
+            });
+
+            if(!started.await(WAIT, TimeUnit.SECONDS))
+                throw new TestFailed("failing task did not start");
+
+            lanes.dispatch(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    done.countDown();
+                }
+            });
+
+            release.countDown();
+            if(!done.await(WAIT, TimeUnit.SECONDS))
+                throw new TestFailed("task queued behind a failed worker did " +
+                                     "not run");
+
+            killed.await(WAIT, TimeUnit.SECONDS);
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for tasks", e);
+        }
+        finally
+        {
+            release.countDown();
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    /** Checks that a call which does not fit in its lane is rejected. */
+    private void checkShedding() throws TestFailed
+    {
+        final Blocker           stub = Stub.create(Blocker.class, address);
+        Thread[]                callers = new Thread[2];
+
+        // The first call occupies the only worker, and the second the only
+        // place in the bulk lane.
+        for(int caller = 0; caller < callers.length; ++caller)
+        {
+            callers[caller] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        stub.block();
+                    }
+                    catch(RMIException e)
+                    {
+                    }
+                }
+            });
+            callers[caller].start();
+
+            try
+            {
+                if(caller == 0 && !server.entered.await(WAIT, TimeUnit.SECONDS))
+                    throw new TestFailed("first call did not reach server");
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+        }
+
+        long                    deadline = System.nanoTime() +
+                                           TimeUnit.SECONDS.toNanos(WAIT);
+        while(policy.queueDepth(Lane.BULK) == 0)
+        {
+            if(System.nanoTime() - deadline > 0)
+                throw new TestFailed("second call was not queued");
+            Thread.yield();
+        }
+
+        try
+        {
+            stub.block();
+            throw new TestFailed("call beyond lane capacity was accepted");
+        }
+        catch(OverloadedException e)
+        {
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from rejected call", e);
+        }
+        finally
+        {
+            server.released.countDown();
+        }
+
+        if(policy.rejectedCount(Lane.BULK) != 1 ||
+           policy.rejectedCount(Lane.CONTROL) != 0)
+        {
+            throw new TestFailed("rejected call not counted in its lane");
+        }
+
+        for(Thread caller : callers)
+        {
+            try
+            {
+                caller.join();
+            }
+            catch(InterruptedException e)
+            {
+                throw new TestFailed("interrupted while waiting for call", e);
+            }
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.released.countDown();
+        skeleton.stop();
+    }
+}
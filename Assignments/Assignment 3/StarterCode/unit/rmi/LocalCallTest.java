@@ -0,0 +1,122 @@
+package rmi;
+
+import java.net.*;
+import java.util.Arrays;
+
+import test.*;
+
+/** Checks that calls to a skeleton in the same virtual machine bypass the
+    network.
+
+    <p>
+    The test calls a skeleton running in the test's own virtual machine and
+    checks that no connection to it was opened, that the server cannot modify
+    the caller's arguments, and that exceptions raised by the server reach
+    the caller.
+ */
+public class LocalCallTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking calls within one virtual machine";
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7014);
+    /** Skeleton used in the test. */
+    private Skeleton<Filler>    skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Filler
+    {
+        public byte[] fill(byte[] buffer, byte value) throws RMIException;
+        public void fail(String message) throws RMIException,
+                                                IllegalStateException;
+    }
+
+    /** Server object used in the test, which modifies its argument. */
+    private static class FillerServer implements Filler
+    {
+        @Override
+        public byte[] fill(byte[] buffer, byte value)
+        {
+            Arrays.fill(buffer, value);
+            return buffer;
+        }
+
+        @Override
+        public void fail(String message)
+        {
+            throw new IllegalStateException(message);
+        }
+    }
+
+    /** Starts the test skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(true);
+        skeleton = new Skeleton<Filler>(Filler.class, new FillerServer(),
+                                        address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Filler          stub = Stub.create(Filler.class, address);
+        byte[]          buffer = new byte[16];
+
+        try
+        {
+            byte[]      result = stub.fill(buffer, (byte) 7);
+
+            if(result.length != 16 || result[15] != 7)
+                throw new TestFailed("incorrect result from stub");
+
+            if(buffer[0] != 0)
+                throw new TestFailed("server modified caller's argument");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+
+        try
+        {
+            stub.fail("expected");
+            throw new TestFailed("exception raised by server not received");
+        }
+        catch(IllegalStateException e)
+        {
+            if(!"expected".equals(e.getMessage()))
+                throw new TestFailed("incorrect exception received", e);
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+
+        ConnectionPool  pool = ConnectionPool.getDefault();
+        if(pool.idleCount(address) + pool.activeCount(address) != 0)
+            throw new TestFailed("call opened a network connection");
+    }
+
+    /** Stops the test skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+    }
+}
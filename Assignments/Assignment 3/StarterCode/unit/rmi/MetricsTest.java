@@ -0,0 +1,349 @@
+package rmi;
+
+import java.lang.management.ManagementFactory;
+import java.net.*;
+import java.util.concurrent.*;
+
+import javax.management.*;
+
+import test.*;
+
+/** Checks the call statistics kept by stubs and skeletons.
+
+    <p>
+    The test makes calls which succeed and calls in which the server throws,
+    and checks that the stub and the skeleton count each call once, by its
+    outcome, and record each phase of it. It checks that a call to an address
+    at which nothing listens is counted by the stub as an RMI failure, that a
+    call waiting in the server is counted as in progress on both sides, and
+    that resetting the statistics clears them. Last, it checks that the
+    skeleton's statistics are registered with JMX while it runs, and only
+    then.
+ */
+public class MetricsTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call statistics";
+
+    /** Number of successful calls made. */
+    private static final int    SUCCEEDED = 5;
+    /** Number of calls made in which the server throws. */
+    private static final int    FAILED = 2;
+    /** Time for which the test waits for calls, in seconds. */
+    private static final long   WAIT = 10;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7028);
+    /** Address at which nothing listens. */
+    private final InetSocketAddress unused =
+        new InetSocketAddress("127.0.0.1", 7029);
+    /** Skeleton used in the test. */
+    private Skeleton<Counter>   skeleton;
+    /** Server used in the test. */
+    private final CounterServer server = new CounterServer();
+
+    /** Remote interface used in the test. */
+    public interface Counter
+    {
+        public int add(int a, int b) throws RMIException;
+        public void fail() throws RMIException, IllegalStateException;
+        public void block() throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class CounterServer implements Counter
+    {
+        final CountDownLatch    entered = new CountDownLatch(1);
+        final CountDownLatch    released = new CountDownLatch(1);
+
+        @Override
+        public int add(int a, int b)
+        {
+            return a + b;
+        }
+
+        @Override
+        public void fail()
+        {
+            throw new IllegalStateException("failed on purpose");
+        }
+
+        @Override
+        public void block()
+        {
+            entered.countDown();
+            try
+            {
+                released.await(WAIT, TimeUnit.SECONDS);
+            }
+            catch(InterruptedException e)
+            {
+            }
+        }
+    }
+
+    /** Starts the test skeleton. Calls to it are made over the network,
+        even though it runs in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        skeleton = new Skeleton<Counter>(Counter.class, server, address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Counter                 stub = Stub.create(Counter.class, address);
+        RMIMetrics              stubMetrics = Stub.getMetrics(stub);
+
+        // Statistics are shared with stubs made by other tests for the same
+        // address, if any.
+        stubMetrics.reset();
+
+        checkOutcomes(stub, stubMetrics);
+        checkUnreachable();
+        checkInFlight(stub, stubMetrics);
+        checkReset(stubMetrics);
+        checkRegistration();
+    }
+
+    /** Checks that calls are counted once on each side, by their outcome,
+        and that each of their phases is recorded. */
+    private void checkOutcomes(Counter stub, RMIMetrics stubMetrics)
+        throws TestFailed
+    {
+        try
+        {
+            for(int call = 0; call < SUCCEEDED; ++call)
+            {
+                if(stub.add(call, 1) != call + 1)
+                    throw new TestFailed("call returned wrong result");
+            }
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception from call", e);
+        }
+
+        for(int call = 0; call < FAILED; ++call)
+        {
+            try
+            {
+                stub.fail();
+                throw new TestFailed("exception thrown by server not " +
+                                     "received");
+            }
+            catch(IllegalStateException e)
+            {
+            }
+            catch(RMIException e)
+            {
+                throw new TestFailed("unexpected exception from call", e);
+            }
+        }
+
+        RMIMetrics[]            sides =
+            new RMIMetrics[] {stubMetrics, skeleton.getMetrics()};
+
+        for(RMIMetrics metrics : sides)
+        {
+            String              side = metrics.getSide();
+
+            checkCounts(metrics.getMethod("add"), side, SUCCEEDED,
+                        SUCCEEDED, 0, 0);
+            checkCounts(metrics.getMethod("fail"), side, FAILED, 0, 0,
+                        FAILED);
+
+            if(metrics.getMethod("block") != null)
+                throw new TestFailed(side + " has statistics for a method " +
+                                     "not called");
+
+            if(metrics.inFlight() != 0)
+                throw new TestFailed(side + " counts completed calls as in " +
+                                     "progress");
+
+            RMIMetrics.MethodStats  add = metrics.getMethod("add");
+            for(RMIMetrics.Phase phase : RMIMetrics.Phase.values())
+            {
+                if(add.phase(phase).getCount() != SUCCEEDED)
+                    throw new TestFailed(side + " did not record the " +
+                                         phase + " phase of every call");
+            }
+        }
+    }
+
+    /** Checks that a call to an address at which nothing listens is counted
+        by the stub as an RMI failure. */
+    private void checkUnreachable() throws TestFailed
+    {
+        Counter                 stub = Stub.create(Counter.class, unused);
+        RMIMetrics              metrics = Stub.getMetrics(stub);
+        metrics.reset();
+
+        try
+        {
+            stub.add(1, 1);
+            throw new TestFailed("call to unused address succeeded");
+        }
+        catch(RMIException e)
+        {
+        }
+
+        checkCounts(metrics.getMethod("add"), metrics.getSide(), 1, 0, 1, 0);
+
+        if(metrics.inFlight() != 0)
+            throw new TestFailed("failed call counted as in progress");
+    }
+
+    /** Checks that a call waiting in the server is counted as in progress by
+        the stub and the skeleton. */
+    private void checkInFlight(final Counter stub, RMIMetrics stubMetrics)
+        throws TestFailed
+    {
+        Thread                  caller = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    stub.block();
+                }
+                catch(RMIException e)
+                {
+                }
+            }
+        });
+        caller.start();
+
+        try
+        {
+            if(!server.entered.await(WAIT, TimeUnit.SECONDS))
+                throw new TestFailed("call did not reach server");
+
+            if(stubMetrics.inFlight() != 1 ||
+               skeleton.getMetrics().inFlight() != 1 ||
+               skeleton.getMetrics().getMethod("block").getInFlight() != 1)
+            {
+                throw new TestFailed("call in server not counted as in " +
+                                     "progress");
+            }
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+        finally
+        {
+            server.released.countDown();
+        }
+
+        try
+        {
+            caller.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted while waiting for call", e);
+        }
+
+        if(stubMetrics.inFlight() != 0 || skeleton.getMetrics().inFlight() != 0)
+            throw new TestFailed("completed call counted as in progress");
+
+        checkCounts(skeleton.getMetrics().getMethod("block"), "Skeleton", 1, 1,
+                    0, 0);
+    }
+
+    /** Checks that resetting statistics clears them. */
+    private void checkReset(RMIMetrics stubMetrics) throws TestFailed
+    {
+        stubMetrics.reset();
+        skeleton.getMetrics().reset();
+
+        if(!stubMetrics.getMethods().isEmpty() ||
+           !skeleton.getMetrics().getMethods().isEmpty())
+        {
+            throw new TestFailed("statistics not cleared by reset");
+        }
+    }
+
+    /** Checks that the skeleton's statistics are registered with JMX while
+        it runs, and unregistered when it stops. */
+    private void checkRegistration() throws TestFailed
+    {
+        if("false".equalsIgnoreCase(System.getProperty("rmi.jmx", "true")))
+            return;
+
+        MBeanServer             beans = ManagementFactory.getPlatformMBeanServer();
+        ObjectName              name;
+
+        try
+        {
+            name = new ObjectName("rmi:type=Skeleton,interface=" +
+                                  Counter.class.getName() + ",address=" +
+                                  ObjectName.quote(String.valueOf(address)));
+        }
+        catch(MalformedObjectNameException e)
+        {
+            throw new TestFailed("unable to name statistics", e);
+        }
+
+        if(!beans.isRegistered(name))
+            throw new TestFailed("statistics of running skeleton not " +
+                                 "registered");
+
+        skeleton.stop();
+        if(beans.isRegistered(name))
+            throw new TestFailed("statistics of stopped skeleton still " +
+                                 "registered");
+    }
+
+    /** Checks the counts of calls to one method. */
+    private void checkCounts(RMIMetrics.MethodStats stats, String side,
+                             long calls, long succeeded, long rmiExceptions,
+                             long exceptions)
+        throws TestFailed
+    {
+        if(stats == null)
+            throw new TestFailed(side + " has no statistics for a method " +
+                                 "called");
+
+        if(stats.getCalls() != calls || stats.getSucceeded() != succeeded ||
+           stats.getRmiExceptions() != rmiExceptions ||
+           stats.getExceptions() != exceptions)
+        {
+            throw new TestFailed(side + " counted " + stats.getCalls() +
+                                 " calls to " + stats.getMethod() + ", " +
+                                 stats.getSucceeded() + " succeeded, " +
+                                 stats.getRmiExceptions() + " RMI failures " +
+                                 "and " + stats.getExceptions() +
+                                 " exceptions, expected " + calls + ", " +
+                                 succeeded + ", " + rmiExceptions + " and " +
+                                 exceptions);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        server.released.countDown();
+        skeleton.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
@@ -0,0 +1,180 @@
+package rmi;
+
+import java.net.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks that the spans of a call, and of the calls it makes in turn, form
+    one trace.
+
+    <p>
+    The test calls a front server which calls a back server, and checks that
+    the eight spans recorded, for the client, network, queue and server steps
+    of both calls, belong to the same trace and name the right parents.
+ */
+public class TracingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking call tracing";
+
+    /** Addresses at which the test skeletons run. */
+    private final InetSocketAddress frontAddress =
+        new InetSocketAddress("127.0.0.1", 7021);
+    private final InetSocketAddress backAddress =
+        new InetSocketAddress("127.0.0.1", 7022);
+
+    /** Skeletons used in the test. */
+    private Skeleton<Relay>     front;
+    private Skeleton<Relay>     back;
+    /** Collector receiving the spans. */
+    private final SpanCollector collector = new SpanCollector();
+    /** Exporter set before the test. */
+    private SpanExporter        previous;
+
+    /** Remote interface used in the test. */
+    public interface Relay
+    {
+        public int relay(int value) throws RMIException;
+    }
+
+    /** Server object used in the test, which passes calls on to the next
+        server, if there is one. */
+    private static class RelayServer implements Relay
+    {
+        private final Relay     next;
+
+        RelayServer(Relay next)
+        {
+            this.next = next;
+        }
+
+        @Override
+        public int relay(int value) throws RMIException
+        {
+            return next == null ? value : next.relay(value + 1);
+        }
+    }
+
+    /** Starts the test skeletons and sets the collector as exporter. Calls
+        are made over the network, even though the skeletons run in the same
+        virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        previous = Tracing.getExporter();
+        Tracing.setExporter(collector);
+
+        back = new Skeleton<Relay>(Relay.class, new RelayServer(null),
+                                   backAddress);
+        front = new Skeleton<Relay>(Relay.class, new RelayServer(
+            Stub.create(Relay.class, backAddress)), frontAddress);
+
+        try
+        {
+            back.start();
+            front.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Relay                   stub = Stub.create(Relay.class, frontAddress);
+
+        try
+        {
+            if(stub.relay(1) != 2)
+                throw new TestFailed("incorrect result from relayed call");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unexpected exception when using stub", e);
+        }
+
+        // The caller may return before the client span is exported.
+        List<Span>              spans = collector.getSpans();
+        for(int wait = 0; wait < 100 && spans.size() < 8; ++wait)
+        {
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch(InterruptedException e) { }
+            spans = collector.getSpans();
+        }
+
+        if(spans.size() != 8)
+            throw new TestFailed("expected 8 spans, got " + spans.size());
+
+        Span                    root = null;
+        Map<Long, Span>         byId = new HashMap<>();
+        for(Span span : spans)
+        {
+            if(span.getTraceId() != spans.get(0).getTraceId())
+                throw new TestFailed("spans belong to different traces");
+
+            byId.put(span.getSpanId(), span);
+            if(span.getParentId() == 0)
+                root = span;
+        }
+
+        if(root == null || root.getKind() != Span.Kind.CLIENT)
+            throw new TestFailed("trace does not start with a client span");
+
+        // Follow the chain of parents from the back server's span.
+        Span.Kind[]             chain =
+            {Span.Kind.SERVER, Span.Kind.NETWORK, Span.Kind.CLIENT,
+             Span.Kind.SERVER, Span.Kind.NETWORK, Span.Kind.CLIENT};
+        Span                    span = null;
+        for(Span candidate : spans)
+        {
+            if(candidate.getKind() == Span.Kind.SERVER &&
+               isLeaf(candidate, spans))
+            {
+                span = candidate;
+            }
+        }
+
+        for(Span.Kind kind : chain)
+        {
+            if(span == null || span.getKind() != kind)
+                throw new TestFailed("spans are not nested as expected");
+            span = byId.get(span.getParentId());
+        }
+
+        if(span != null)
+            throw new TestFailed("outer client span has a parent");
+    }
+
+    /** Returns <code>true</code> if no span names the given span as its
+        parent. */
+    private static boolean isLeaf(Span span, List<Span> spans)
+    {
+        for(Span other : spans)
+        {
+            if(other.getParentId() == span.getSpanId())
+                return false;
+        }
+        return true;
+    }
+
+    /** Stops the skeletons and restores the exporter. */
+    @Override
+    protected void clean()
+    {
+        Tracing.setExporter(previous);
+        front.stop();
+        back.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
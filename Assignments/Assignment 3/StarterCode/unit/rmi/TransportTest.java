@@ -0,0 +1,381 @@
+package rmi;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks the framing of the non-blocking skeleton transport.
+
+    <p>
+    The test serves a skeleton through a <code>NioServer</code>, whatever the
+    transport selected for the test run, and speaks to it over a plain socket
+    in the frames a stub would send. It sends a request one byte at a time,
+    so that every read of the server ends in the middle of a frame, and sends
+    several requests in one write, so that one read holds several frames. It
+    asks for replies of random data, which compression cannot shrink, much
+    larger than the socket buffers, and reads them only after a pause, so
+    that the server must queue them and write them as the socket accepts
+    them. It checks that a frame header announcing more than the largest
+    frame allowed closes the connection, on this transport and on the one
+    selected for the run. Last, on the blocking transport, it checks that a
+    connection beyond the number which may be read at once is closed, and
+    that the connections within it are still served.
+ */
+public class TransportTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking non-blocking transport " +
+                                         "framing";
+
+    /** Number of requests sent in one write. */
+    private static final int    PIPELINED = 16;
+    /** Size of each large reply, in bytes. */
+    private static final int    LARGE = 4 * 1024 * 1024;
+    /** Number of large replies requested before any is read. */
+    private static final int    LARGE_REPLIES = 8;
+    /** Time for which the test waits for replies, in milliseconds. */
+    private static final int    WAIT = 10000;
+
+    /** Address at which the non-blocking server runs. */
+    private final InetSocketAddress nioAddress =
+        new InetSocketAddress("127.0.0.1", 7026);
+    /** Address at which the skeleton runs on the transport of the run. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7027);
+    /** Skeleton used in the test. */
+    private Skeleton<Source>    skeleton;
+    /** Non-blocking server of the skeleton. */
+    private NioServer           server;
+
+    /** Schema of the remote interface. */
+    private final MethodSchema  schema = MethodSchema.of(Source.class);
+    /** Codec negotiated on the current connection. */
+    private Codec               codec;
+
+    /** Remote interface used in the test. */
+    public interface Source
+    {
+        public int echo(int value) throws RMIException;
+        public byte[] random(int size, long seed) throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class SourceServer implements Source
+    {
+        @Override
+        public int echo(int value)
+        {
+            return value;
+        }
+
+        @Override
+        public byte[] random(int size, long seed)
+        {
+            byte[]              data = new byte[size];
+            new Random(seed).nextBytes(data);
+            return data;
+        }
+    }
+
+    /** Starts the skeleton, and a non-blocking server for it. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Source>(Source.class, new SourceServer(),
+                                        address);
+
+        try
+        {
+            skeleton.start();
+            server = new NioServer(skeleton, DispatchPolicy.threadPerRequest());
+            server.start(nioAddress);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start servers", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkPartialFrames();
+            checkPipelining();
+            checkBackpressure();
+            checkFrameLimit(nioAddress);
+            checkFrameLimit(address);
+            checkConnectionLimit();
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that a request received one byte at a time is served. */
+    private void checkPartialFrames() throws Throwable
+    {
+        try(Socket socket = open(nioAddress))
+        {
+            byte[]              frame = frame(request(1, "echo", 42));
+            OutputStream        out = socket.getOutputStream();
+
+            for(byte b : frame)
+            {
+                out.write(b);
+                out.flush();
+                Thread.sleep(1);
+            }
+
+            Wire.Reply          reply = reply(socket);
+            if(reply.callId != 1 || !Integer.valueOf(42).equals(reply.value))
+                throw new TestFailed("request sent in pieces answered wrongly");
+        }
+    }
+
+    /** Checks that requests arriving together are all answered. */
+    private void checkPipelining() throws Throwable
+    {
+        try(Socket socket = open(nioAddress))
+        {
+            ByteArrayOutputStream   frames = new ByteArrayOutputStream();
+            for(int call = 0; call < PIPELINED; ++call)
+                frames.write(frame(request(call, "echo", call * 3)));
+
+            socket.getOutputStream().write(frames.toByteArray());
+            socket.getOutputStream().flush();
+
+            Set<Long>           answered = new HashSet<>();
+            for(int call = 0; call < PIPELINED; ++call)
+            {
+                Wire.Reply      reply = reply(socket);
+                if(!Integer.valueOf((int)reply.callId * 3).equals(reply.value))
+                    throw new TestFailed("pipelined request answered wrongly");
+                answered.add(reply.callId);
+            }
+
+            if(answered.size() != PIPELINED)
+                throw new TestFailed("pipelined request not answered");
+        }
+    }
+
+    /** Checks that replies which the socket cannot take at once are queued
+        and written in full. */
+    private void checkBackpressure() throws Throwable
+    {
+        try(Socket socket = open(nioAddress))
+        {
+            ByteArrayOutputStream   frames = new ByteArrayOutputStream();
+            for(int call = 0; call < LARGE_REPLIES; ++call)
+            {
+                frames.write(frame(request(call, "random", LARGE,
+                                           (long)call)));
+            }
+
+            socket.getOutputStream().write(frames.toByteArray());
+            socket.getOutputStream().flush();
+
+            // Leave the replies unread until they fill the socket buffers.
+            Thread.sleep(500);
+
+            boolean[]           answered = new boolean[LARGE_REPLIES];
+            for(int call = 0; call < LARGE_REPLIES; ++call)
+            {
+                Wire.Reply      reply = reply(socket);
+                int             id = (int)reply.callId;
+                byte[]          data = (byte[])reply.value;
+                byte[]          expected = new byte[LARGE];
+                new Random(id).nextBytes(expected);
+
+                if(!Arrays.equals(data, expected))
+                    throw new TestFailed("large reply changed in transit");
+                answered[id] = true;
+            }
+
+            for(boolean done : answered)
+            {
+                if(!done)
+                    throw new TestFailed("large reply not written");
+            }
+
+            // The connection still serves requests after the backlog.
+            socket.getOutputStream().write(frame(request(99, "echo", 7)));
+            socket.getOutputStream().flush();
+            if(!Integer.valueOf(7).equals(reply(socket).value))
+                throw new TestFailed("connection unusable after large replies");
+        }
+    }
+
+    /** Checks that a frame header announcing more than the largest frame
+        closes the connection. */
+    private void checkFrameLimit(InetSocketAddress target) throws Throwable
+    {
+        if(Wire.MAX_FRAME == Integer.MAX_VALUE)
+            return;
+
+        try(Socket socket = open(target))
+        {
+            DataOutputStream    out =
+                new DataOutputStream(socket.getOutputStream());
+            out.writeInt(Wire.MAX_FRAME + 1);
+            out.flush();
+
+            try
+            {
+                if(socket.getInputStream().read() >= 0)
+                    throw new TestFailed("oversized frame answered");
+            }
+            catch(SocketTimeoutException e)
+            {
+                throw new TestFailed("connection left open after oversized " +
+                                     "frame header");
+            }
+            catch(SocketException e)
+            {
+                // The connection was reset.
+            }
+        }
+    }
+
+    /** Checks that the blocking transport closes a connection which no
+        reader thread may take. */
+    private void checkConnectionLimit() throws Throwable
+    {
+        if(Skeleton.USE_NIO)
+            return;
+
+        int                     limit = Skeleton.READERS.getMaximumPoolSize();
+        int                     allowed = 2;
+        List<Socket>            sockets = new ArrayList<>();
+
+        // Readers left by earlier connections must finish first.
+        long                    end = System.currentTimeMillis() + WAIT;
+        while(Skeleton.READERS.getActiveCount() > 0)
+        {
+            if(System.currentTimeMillis() > end)
+                throw new TestFailed("connection readers still running");
+            Thread.sleep(10);
+        }
+
+        Skeleton.READERS.setMaximumPoolSize(allowed);
+        try
+        {
+            for(int connection = 0; connection < allowed; ++connection)
+                sockets.add(open(address));
+
+            Socket              refused = new Socket();
+            sockets.add(refused);
+            refused.connect(address, WAIT);
+            refused.setSoTimeout(WAIT);
+
+            try
+            {
+                if(refused.getInputStream().read() >= 0)
+                    throw new TestFailed("connection beyond the limit read");
+            }
+            catch(SocketTimeoutException e)
+            {
+                throw new TestFailed("connection beyond the limit left open");
+            }
+            catch(SocketException e)
+            {
+                // The connection was reset.
+            }
+
+            // The connections within the limit are still served.
+            for(int connection = 0; connection < allowed; ++connection)
+            {
+                Socket          socket = sockets.get(connection);
+                socket.getOutputStream().write(
+                    frame(request(connection, "echo", connection)));
+                socket.getOutputStream().flush();
+                if(!Integer.valueOf(connection).equals(reply(socket).value))
+                    throw new TestFailed("connection within the limit not " +
+                                         "served");
+            }
+        }
+        finally
+        {
+            for(Socket socket : sockets)
+                socket.close();
+            Skeleton.READERS.setMaximumPoolSize(limit);
+        }
+    }
+
+    /** Opens a connection and negotiates its codec. */
+    private Socket open(InetSocketAddress target) throws IOException
+    {
+        Socket                  socket = new Socket();
+        socket.connect(target, WAIT);
+        socket.setSoTimeout(WAIT);
+
+        DataOutputStream        out =
+            new DataOutputStream(new BufferedOutputStream(
+                socket.getOutputStream()));
+        Wire.writeHello(out, Codec.proposal(), schema.hash);
+
+        byte[]                  accepted = Wire.readFrame(
+            new DataInputStream(socket.getInputStream()));
+        if(accepted == null || accepted.length != 1)
+            throw new EOFException("codec negotiation failed");
+
+        codec = Codec.forId(accepted[0]);
+        return socket;
+    }
+
+    /** Encodes a request for the named method. */
+    private byte[] request(long callId, String name, Object... args)
+        throws IOException
+    {
+        for(Method method : Source.class.getMethods())
+        {
+            if(method.getName().equals(name))
+                return codec.encodeRequest(callId, 0, null, schema, method, args);
+        }
+        throw new IllegalArgumentException("no method " + name);
+    }
+
+    /** Returns a payload with its length prefix. */
+    private static byte[] frame(byte[] payload) throws IOException
+    {
+        ByteArrayOutputStream   bytes = new ByteArrayOutputStream();
+        Wire.writeFrame(new DataOutputStream(bytes), payload);
+        return bytes.toByteArray();
+    }
+
+    /** Reads and decodes a reply. */
+    private Wire.Reply reply(Socket socket) throws Throwable
+    {
+        byte[]                  payload = Wire.readFrame(
+            new DataInputStream(socket.getInputStream()));
+        if(payload == null)
+            throw new TestFailed("connection closed before reply");
+
+        Wire.Reply              reply = codec.decodeReply(payload);
+        if(reply.status != RMIStatus.OK)
+            throw new TestFailed("call failed", (Throwable)reply.value);
+        return reply;
+    }
+
+    /** Stops the servers. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.stop();
+        skeleton.stop();
+    }
+}
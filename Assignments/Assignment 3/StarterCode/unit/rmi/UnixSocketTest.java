@@ -0,0 +1,184 @@
+package rmi;
+
+import java.io.*;
+import java.net.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.nio.file.attribute.*;
+import java.util.*;
+
+import test.*;
+
+/** Checks that stubs reach skeletons on the same host over unix domain
+    sockets.
+
+    <p>
+    The test checks that a connection to a running skeleton is opened over
+    its unix domain socket, that the directory of the socket is closed to
+    other users, that the socket of the running skeleton is not taken over,
+    that calls with large arguments and results are carried over it, and
+    that the socket is removed when the skeleton stops.
+ */
+public class UnixSocketTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking unix domain socket transport";
+
+    /** Size of the array sent in the test, in bytes. */
+    private static final int    SIZE = 1 << 20;
+
+    /** Address at which the test skeleton runs. */
+    private final InetSocketAddress address =
+        new InetSocketAddress("127.0.0.1", 7023);
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Remote interface used in the test. */
+    public interface Echo
+    {
+        public byte[] echo(byte[] data) throws RMIException;
+    }
+
+    /** Server object used in the test. */
+    private static class EchoServer implements Echo
+    {
+        @Override
+        public byte[] echo(byte[] data)
+        {
+            return data;
+        }
+    }
+
+    /** Starts the test skeleton. Calls to it are made over connections, even
+        though it runs in the same virtual machine. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        LocalSkeletons.setEnabled(false);
+        skeleton = new Skeleton<Echo>(Echo.class, new EchoServer(), address);
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        if(!UnixSockets.ENABLED)
+            return;
+
+        ConnectionPool          pool = ConnectionPool.getDefault();
+        Connection              connection;
+
+        try
+        {
+            connection = pool.acquire(address, MethodSchema.of(Echo.class), 0);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to connect to skeleton", t);
+        }
+
+        boolean                 unix = connection.unix;
+        pool.release(connection);
+        if(!unix)
+            throw new TestFailed("connection was not opened over a unix " +
+                                 "domain socket");
+
+        checkPrivate();
+
+        Echo                    stub = Stub.create(Echo.class, address);
+        byte[]                  data = new byte[SIZE];
+        new Random(SIZE).nextBytes(data);
+
+        try
+        {
+            if(!Arrays.equals(stub.echo(data), data))
+                throw new TestFailed("array was changed by the call");
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to call skeleton", e);
+        }
+
+        skeleton.stop();
+
+        SocketChannel           channel = UnixSockets.connect(address);
+        if(channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch(Throwable t)
+            {
+            }
+
+            throw new TestFailed("unix domain socket is still open after " +
+                                 "the skeleton stopped");
+        }
+    }
+
+    /** Checks that the directory of the sockets is closed to other users,
+        and that the socket of a running skeleton is not replaced. */
+    private void checkPrivate() throws TestFailed
+    {
+        try
+        {
+            if(Files.isSymbolicLink(UnixSockets.DIRECTORY))
+                throw new TestFailed("socket directory is a link");
+
+            if(UnixSockets.DIRECTORY.getFileSystem()
+                   .supportedFileAttributeViews().contains("posix") &&
+               !Files.getPosixFilePermissions(UnixSockets.DIRECTORY).equals(
+                   PosixFilePermissions.fromString("rwx------")))
+            {
+                throw new TestFailed("socket directory is open to other users");
+            }
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unable to check socket directory", e);
+        }
+
+        try
+        {
+            UnixSockets.advertise(address);
+            throw new TestFailed("socket of running skeleton advertised again");
+        }
+        catch(IOException e)
+        {
+        }
+
+        SocketChannel           channel = UnixSockets.connect(address);
+        if(channel == null)
+            throw new TestFailed("socket of running skeleton removed");
+
+        try
+        {
+            channel.close();
+        }
+        catch(IOException e)
+        {
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        skeleton.stop();
+        LocalSkeletons.setEnabled(true);
+    }
+}
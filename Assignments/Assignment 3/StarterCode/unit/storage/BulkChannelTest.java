@@ -0,0 +1,306 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+import java.util.Arrays;
+import java.util.Random;
+
+import test.*;
+import rmi.*;
+import client.*;
+import common.*;
+import naming.*;
+
+/** Checks reads and writes over the bulk data channel of a storage server.
+
+    <p>
+    The test starts a storage server hosting one large file, registered with
+    a local stand-in for the naming server. It reads part of the file over the
+    bulk channel into the middle of a buffer, writes over part of the file
+    over the bulk channel and reads the result back through the ordinary
+    client interface, and checks that failures reported by the server keep
+    their types and leave the channel usable. It writes beyond the end of
+    the file, and checks that the file is extended as a write through the
+    client interface would extend it. Last, it extends the file through a
+    client output stream, which writes over the bulk channel, and checks that
+    a client input stream opened next sees the new length, though the size
+    of the file was kept by the stub shortly before.
+ */
+public class BulkChannelTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking storage bulk data channel";
+
+    /** Size of the file used in the test. */
+    private static final int    SIZE = 512 * 1024;
+
+    /** Directory served by the storage server. */
+    private TemporaryDirectory  directory;
+    /** Storage server used in the test. */
+    private StorageServer       server;
+    /** Client interface stub of the storage server. */
+    private Storage             stub;
+    /** Initial contents of the file. */
+    private byte[]              contents;
+
+    /** Naming server stand-in, which accepts every file. */
+    private class LocalRegistration implements Registration
+    {
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files)
+        {
+            stub = client_stub;
+            return new Path[0];
+        }
+    }
+
+    /** Naming server stand-in, which lists only the test file. */
+    private class LocalService implements Service
+    {
+        @Override
+        public boolean isDirectory(Path path) throws FileNotFoundException
+        {
+            return false;
+        }
+
+        @Override
+        public String[] list(Path directory) throws FileNotFoundException
+        {
+            throw new FileNotFoundException(directory.toString());
+        }
+
+        @Override
+        public boolean createFile(Path file)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean createDirectory(Path directory)
+        {
+            return false;
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return false;
+        }
+
+        @Override
+        public Storage getStorage(Path file)
+        {
+            return stub;
+        }
+    }
+
+    /** Creates the file and starts the storage server. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        contents = new byte[SIZE];
+        new Random(1).nextBytes(contents);
+
+        try
+        {
+            directory = new TemporaryDirectory();
+
+            try(FileOutputStream out =
+                    new FileOutputStream(new File(directory.root(), "file")))
+            {
+                out.write(contents);
+            }
+
+            server = new StorageServer(directory.root());
+            server.start("127.0.0.1", new LocalRegistration());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start storage server", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path                        file = new Path("/file");
+        InetSocketAddress           bulk;
+
+        try
+        {
+            bulk = stub.bulkAddress();
+        }
+        catch(RMIException e)
+        {
+            throw new TestFailed("unable to retrieve bulk channel address", e);
+        }
+
+        if(bulk == null)
+            throw new TestFailed("storage server has no bulk channel");
+
+        try
+        {
+            byte[]                  buffer = new byte[300000];
+            BulkChannel.read(bulk, file, 1000, buffer, 7, 200000);
+
+            if(!Arrays.equals(Arrays.copyOfRange(buffer, 7, 200007),
+                              Arrays.copyOfRange(contents, 1000, 201000)))
+            {
+                throw new TestFailed("bulk read returned incorrect data");
+            }
+
+            byte[]                  data = new byte[100000];
+            new Random(2).nextBytes(data);
+            BulkChannel.write(bulk, file, 5000, data, 0, data.length);
+
+            if(!Arrays.equals(stub.read(file, 5000, data.length), data))
+                throw new TestFailed("bulk write stored incorrect data");
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception during transfer", t);
+        }
+
+        try
+        {
+            BulkChannel.read(bulk, new Path("/missing"), 0, new byte[10], 0, 10);
+            throw new TestFailed("bulk read of missing file succeeded");
+        }
+        catch(FileNotFoundException e)
+        {
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected exception reading missing file",
+                                 e);
+        }
+
+        try
+        {
+            BulkChannel.read(bulk, file, SIZE - 10, new byte[20], 0, 20);
+            throw new TestFailed("bulk read past end of file succeeded");
+        }
+        catch(IndexOutOfBoundsException e)
+        {
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("unexpected exception reading past end of " +
+                                 "file", e);
+        }
+
+        try
+        {
+            byte[]                  buffer = new byte[10];
+            BulkChannel.read(bulk, file, 0, buffer, 0, 10);
+
+            if(!Arrays.equals(buffer, Arrays.copyOf(contents, 10)))
+                throw new TestFailed("bulk read after failures returned " +
+                                     "incorrect data");
+        }
+        catch(IOException e)
+        {
+            throw new TestFailed("bulk channel unusable after failures", e);
+        }
+
+        checkExtension(bulk, file);
+        checkClientSize(file);
+    }
+
+    /** Checks that a client input stream sees the length of a file extended
+        through the bulk channel by a client output stream, even if the stub
+        kept the earlier length. */
+    private void checkClientSize(Path file) throws TestFailed
+    {
+        Service                     service = new LocalService();
+        byte[]                      data = new byte[BulkChannel.threshold()];
+        new Random(4).nextBytes(data);
+
+        if(data.length <= 0)
+            return;
+
+        try
+        {
+            long                    before = stub.size(file);
+
+            DFSOutputStream         out = new DFSOutputStream(service, file);
+            out.skip(before);
+            out.write(data);
+            out.close();
+
+            DFSInputStream          in = new DFSInputStream(service, file);
+            int                     available = in.available();
+            in.close();
+
+            if(available != before + data.length)
+            {
+                throw new TestFailed("file written over the bulk channel " +
+                                     "read back with length " + available +
+                                     " instead of " +
+                                     (before + data.length));
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception extending file", t);
+        }
+    }
+
+    /** Checks that a write beyond the end of the file extends it. */
+    private void checkExtension(InetSocketAddress bulk, Path file)
+        throws TestFailed
+    {
+        int                         gap = 1000;
+        byte[]                      data = new byte[70000];
+        new Random(3).nextBytes(data);
+
+        try
+        {
+            BulkChannel.write(bulk, file, SIZE + gap, data, 0, data.length);
+
+            if(stub.size(file) != SIZE + gap + data.length)
+                throw new TestFailed("bulk write beyond end of file did not " +
+                                     "extend it");
+
+            if(!Arrays.equals(stub.read(file, SIZE, gap), new byte[gap]) ||
+               !Arrays.equals(stub.read(file, SIZE + gap, data.length), data))
+            {
+                throw new TestFailed("bulk write beyond end of file stored " +
+                                     "incorrect data");
+            }
+        }
+        catch(TestFailed e)
+        {
+            throw e;
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception writing beyond end of " +
+                                 "file", t);
+        }
+    }
+
+    /** Stops the storage server and removes the directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.stop();
+
+        if(directory != null)
+            directory.remove();
+    }
+}